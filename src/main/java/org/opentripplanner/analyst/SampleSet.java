@@ -41,18 +41,19 @@ public class SampleSet {
 
     public int[] eval (TimeSurface surf) {
         final float WALK_SPEED = 1.3f;
+        final VertexTimes times = surf.times;
         int[] ret = new int[pset.capacity];
         for (int i = 0; i < pset.capacity; i++) {
             int m0 = Integer.MAX_VALUE;
             int m1 = Integer.MAX_VALUE;
             if (v0s[i] != null) {
-                int s0 = surf.getTime(v0s[i]);
+                int s0 = times.get(v0s[i].getIndex());
                 if (s0 != TimeSurface.UNREACHABLE) {
                     m0 = (int) (s0 + d0s[i] / WALK_SPEED);
                 }
             }
             if (v1s[i] != null) {
-                int s1 = surf.getTime(v1s[i]);
+                int s1 = times.get(v1s[i].getIndex());
                 if (s1 != TimeSurface.UNREACHABLE) {
                     m1 = (int) (s1 + d1s[i] / WALK_SPEED);
                 }
@@ -2,6 +2,7 @@ package org.opentripplanner.analyst;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Queues;
 
@@ -14,7 +15,8 @@ import java.util.Queue;
 
 /**
  * Caches travel time surfaces, which are derived from shortest path trees.
- * TODO add LRU behavior upon get
+ * The cache is bounded by the memory used by the surfaces rather than by their number, since a surface on a large
+ * graph can be thousands of times bigger than one on a small graph. The least recently used surfaces are dropped first.
  * TODO extend to store any type by moving the IDs into the cache
  * TODO use a disk-backed MapDB to avoid eating memory
  */
@@ -23,17 +25,33 @@ public class SurfaceCache {
     public static final int NONE = -1;
     public final Cache<Integer, TimeSurface> cache;
 
-    public SurfaceCache (int capacity) {
+    /** @param maxBytes the memory the cached surfaces may use, in bytes. */
+    public SurfaceCache (long maxBytes) {
         this.cache = CacheBuilder.newBuilder()
-        	       		.maximumSize(100)
-        	       		.build();
+                .maximumWeight(maxBytes)
+                .weigher(new Weigher<Integer, TimeSurface>() {
+                    @Override
+                    public int weigh(Integer id, TimeSurface surface) {
+                        return (int) Math.min(surface.byteSize(), Integer.MAX_VALUE);
+                    }
+                })
+                .build();
     }
 
     public int add(TimeSurface surface) {
+        surface.times.compact();
     	this.cache.put(surface.id, surface);
     	return surface.id;
     }
 
+    /**
+     * Weigh a cached surface again after it grew, e.g. when its sample grid was built: the cache only weighs the
+     * surfaces when they are put in it. A surface dropped from the cache meanwhile is not put back.
+     */
+    public void reweigh(TimeSurface surface) {
+        this.cache.asMap().replace(surface.id, surface, surface);
+    }
+
     public TimeSurface get(int id) {
         return this.cache.getIfPresent(id);
     }
@@ -1,9 +1,6 @@
 package org.opentripplanner.analyst;
 
 import com.vividsolutions.jts.geom.Coordinate;
-import gnu.trove.iterator.TObjectIntIterator;
-import gnu.trove.map.TObjectIntMap;
-import gnu.trove.map.hash.TObjectIntHashMap;
 import org.apache.commons.math3.util.FastMath;
 import org.opentripplanner.analyst.request.SampleGridRenderer;
 import org.opentripplanner.analyst.request.SampleGridRenderer.WTWD;
@@ -18,14 +15,20 @@ import org.opentripplanner.profile.RepeatedRaptorProfileRouter;
 import org.opentripplanner.profile.RoundBasedProfileRouter;
 import org.opentripplanner.profile.TimeRange;
 import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.spt.ShortestPathTree;
 import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
 import org.opentripplanner.routing.vertextype.TransitStop;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Map;
 
 import static org.apache.commons.math3.util.FastMath.toRadians;
@@ -41,7 +44,15 @@ public class TimeSurface implements Serializable {
 
     public final String routerId;
     public final int id;
-    public final TObjectIntMap<Vertex> times = new TObjectIntHashMap<Vertex>(500000, 0.5f, UNREACHABLE);
+    /** Travel times in seconds, indexed by vertex index. */
+    public final VertexTimes times = new VertexTimes();
+    /**
+     * The graph the vertex indices refer to, which is not kept when the surface is serialized. The coordinates of the
+     * vertices with a time are written out instead, see {@link #getVertexCoordinate(int)}.
+     */
+    public transient Graph graph;
+    /** The x and y of the vertex with each index, or NaN, when this surface was deserialized without its graph. */
+    private transient double[] vertexCoordinates;
     public final double lat, lon;
     public int cutoffMinutes = 90; // this should really be copied from the data source but the new repeated raptor does not do so
     public long dateTime;
@@ -68,9 +79,13 @@ public class TimeSurface implements Serializable {
         // Here we use the key "default" unlike the graphservice which substitutes in the default ID.
         // We don't want to keep that default in sync across two modules.
         this.routerId = routerId;
+        this.graph = spt.getOptions().rctx.graph;
         long t0 = System.currentTimeMillis();
         for (State state : spt.getAllStates()) {
             Vertex vertex = state.getVertex();
+            if (vertex instanceof TemporaryVertex) {
+                continue; // the origin only exists for this request
+            }
             if (vertex instanceof StreetVertex || vertex instanceof TransitStop) {
                 int existing = times.get(vertex);
                 int t = (int) state.getActiveTime();
@@ -79,6 +94,7 @@ public class TimeSurface implements Serializable {
                 }
             }
         }
+        times.compact();
         // TODO make this work as either to or from query
         GenericLocation from = spt.getOptions().from;
         this.lon = from.lng;
@@ -100,6 +116,7 @@ public class TimeSurface implements Serializable {
         id = makeUniqueId();
         dateTime = req.fromTime; // FIXME
         routerId = profileRouter.graph.routerId;
+        graph = profileRouter.graph;
         cutoffMinutes = profileRouter.MAX_DURATION / 60;
         walkSpeed = profileRouter.request.walkSpeed;
     }
@@ -114,6 +131,7 @@ public class TimeSurface implements Serializable {
         id = makeUniqueId();
         dateTime = req.fromTime; // FIXME
         routerId = profileRouter.graph.routerId;
+        graph = profileRouter.graph;
         cutoffMinutes = profileRouter.MAX_DURATION / 60;
         walkSpeed = profileRouter.request.walkSpeed;
     }
@@ -126,6 +144,7 @@ public class TimeSurface implements Serializable {
         id = makeUniqueId();
         dateTime = req.fromTime; // FIXME
         routerId = profileRouter.graph.routerId;
+        graph = profileRouter.graph;
     }
 
     public TimeSurface(RepeatedRaptorProfileRouter profileRouter) {
@@ -135,6 +154,7 @@ public class TimeSurface implements Serializable {
         id = makeUniqueId();
         dateTime = req.fromTime; // FIXME
         routerId = profileRouter.graph.routerId;
+        graph = profileRouter.graph;
         cutoffMinutes = 120; // FIXME is there any well-defined cutoff? This is needed for generating isochrone curves.
     }
 
@@ -149,6 +169,9 @@ public class TimeSurface implements Serializable {
             avgSurface.times.put(v, tr.avg);
             maxSurface.times.put(v, tr.max);
         }
+        minSurface.times.compact();
+        avgSurface.times.compact();
+        maxSurface.times.compact();
         RangeSet result = new RangeSet();
         minSurface.description = "Travel times assuming best luck (never waiting for a transfer).";
         avgSurface.description = "Expected travel times (average wait for every transfer).";
@@ -170,6 +193,63 @@ public class TimeSurface implements Serializable {
         return times.get(v);
     }
 
+    /** @return the travel time to the vertex with the given index, or UNREACHABLE. */
+    public int getTime(int vertexIndex) {
+        return times.get(vertexIndex);
+    }
+
+    /** @return the coordinate of the vertex with the given index, or null if there is no such vertex. */
+    public Coordinate getVertexCoordinate(int vertexIndex) {
+        if (graph != null) {
+            Vertex vertex = graph.getVertexById(vertexIndex);
+            return vertex == null ? null : vertex.getCoordinate();
+        }
+        if (vertexCoordinates == null || vertexIndex * 2 >= vertexCoordinates.length
+                || Double.isNaN(vertexCoordinates[vertexIndex * 2])) {
+            return null;
+        }
+        return new Coordinate(vertexCoordinates[vertexIndex * 2], vertexCoordinates[vertexIndex * 2 + 1]);
+    }
+
+    /** Write the coordinates of the vertices with a time after the fields, since the graph is not serialized. */
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        double[] coordinates = vertexCoordinates;
+        if (graph != null) {
+            coordinates = new double[times.indexLimit() * 2];
+            Arrays.fill(coordinates, Double.NaN);
+            for (int index = 0; index < times.indexLimit(); index++) {
+                if (times.get(index) == UNREACHABLE) {
+                    continue;
+                }
+                Coordinate coordinate = getVertexCoordinate(index);
+                if (coordinate != null) {
+                    coordinates[index * 2] = coordinate.x;
+                    coordinates[index * 2 + 1] = coordinate.y;
+                }
+            }
+        }
+        out.writeObject(coordinates);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        vertexCoordinates = (double[]) in.readObject();
+    }
+
+    /** @return an estimate of the memory used by this surface, in bytes. */
+    public long byteSize() {
+        long bytes = 128 + times.byteSize();
+        if (vertexCoordinates != null) {
+            bytes += vertexCoordinates.length * 8L;
+        }
+        if (sampleGrid != null) {
+            // a sample point and its WTWD value
+            bytes += sampleGrid.size() * 96L;
+        }
+        return bytes;
+    }
+
     private synchronized int makeUniqueId() {
         int id = nextId++;
         return id;
@@ -215,17 +295,22 @@ public class TimeSurface implements Serializable {
         AccumulativeGridSampler<WTWD> sampler = new AccumulativeGridSampler<WTWD>(sampleGrid, metric);
         // Iterate over every vertex in this timesurface, adding it to the ZSampleGrid
         // TODO propagation along street geometries could happen at this stage, rather than when the SPT is still available.
-        for (TObjectIntIterator<Vertex> iter = times.iterator(); iter.hasNext(); ) {
-            iter.advance();
-            Vertex vertex = iter.key();
-            int time = iter.value();
+        for (int index = 0; index < times.indexLimit(); index++) {
+            int time = times.get(index);
+            if (time == UNREACHABLE) {
+                continue;
+            }
+            Coordinate coordinate = getVertexCoordinate(index);
+            if (coordinate == null) {
+                continue;
+            }
             WTWD z = new WTWD();
             z.w = 1.0;
             z.d = 0.0;
             z.wTime = time;
             z.wBoardings = 0; // unused
             z.wWalkDist = 0; // unused
-            sampler.addSamplingPoint(vertex.getCoordinate(), z, V0);
+            sampler.addSamplingPoint(coordinate, z, V0);
         }
         sampler.close();
         long t1 = System.currentTimeMillis();
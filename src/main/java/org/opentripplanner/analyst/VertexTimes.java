@@ -0,0 +1,134 @@
+package org.opentripplanner.analyst;
+
+import org.opentripplanner.routing.graph.Vertex;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Travel times in seconds to the vertices of a graph, in an array indexed by vertex index rather than in a map keyed
+ * on Vertex objects. Vertices without a time are unreachable. The array grows as times are set, and once the times are
+ * all known compact() trims it and, when all times are below nine hours (which is the case for any surface with a
+ * cutoff), stores them in shorts instead of ints, exactly and at half the size.
+ *
+ * Only the vertices of the graph should be given times: the index of temporary vertices keeps growing as requests are
+ * made, and the array would have to grow with it.
+ */
+public class VertexTimes implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int UNREACHABLE = TimeSurface.UNREACHABLE;
+
+    /** The times until they are compacted to shorts. */
+    private int[] ints;
+
+    /** The times once compacted, or null. */
+    private short[] shorts;
+
+    /** The number of reachable vertices. */
+    private int size = 0;
+
+    public VertexTimes() {
+        this(1024);
+    }
+
+    /** @param capacity the expected number of vertices in the graph, which the array will grow beyond if needed. */
+    public VertexTimes(int capacity) {
+        ints = new int[capacity];
+        Arrays.fill(ints, UNREACHABLE);
+    }
+
+    public int get(Vertex vertex) {
+        return get(vertex.getIndex());
+    }
+
+    /** @return the time to the vertex with the given index, or UNREACHABLE. */
+    public int get(int index) {
+        if (shorts != null) {
+            return index < shorts.length ? shorts[index] : UNREACHABLE;
+        }
+        return index < ints.length ? ints[index] : UNREACHABLE;
+    }
+
+    public void put(Vertex vertex, int time) {
+        put(vertex.getIndex(), time);
+    }
+
+    public void put(int index, int time) {
+        if (shorts != null) {
+            if (index < shorts.length && time >= UNREACHABLE && time <= Short.MAX_VALUE) {
+                count(shorts[index], time);
+                shorts[index] = (short) time;
+                return;
+            }
+            expand();
+        }
+        if (index >= ints.length) {
+            if (time == UNREACHABLE) {
+                return;
+            }
+            int oldLength = ints.length;
+            ints = Arrays.copyOf(ints, Math.max(index + 1, oldLength * 2));
+            Arrays.fill(ints, oldLength, ints.length, UNREACHABLE);
+        }
+        count(ints[index], time);
+        ints[index] = time;
+    }
+
+    private void count(int oldTime, int newTime) {
+        if (oldTime == UNREACHABLE && newTime != UNREACHABLE) {
+            size++;
+        } else if (oldTime != UNREACHABLE && newTime == UNREACHABLE) {
+            size--;
+        }
+    }
+
+    /** @return the number of reachable vertices. */
+    public int size() {
+        return size;
+    }
+
+    /** @return one more than the highest vertex index which may have a time, to iterate over the vertices. */
+    public int indexLimit() {
+        return shorts != null ? shorts.length : ints.length;
+    }
+
+    /** Trim the array to the reachable vertices, and store the times in shorts if they all fit. */
+    public void compact() {
+        if (shorts != null) {
+            return;
+        }
+        int limit = 0;
+        boolean fitInShorts = true;
+        for (int i = 0; i < ints.length; i++) {
+            if (ints[i] != UNREACHABLE) {
+                limit = i + 1;
+                fitInShorts &= ints[i] >= 0 && ints[i] <= Short.MAX_VALUE;
+            }
+        }
+        if (fitInShorts) {
+            shorts = new short[limit];
+            for (int i = 0; i < limit; i++) {
+                shorts[i] = (short) ints[i];
+            }
+            ints = null;
+        } else {
+            ints = Arrays.copyOf(ints, limit);
+        }
+    }
+
+    private void expand() {
+        ints = new int[shorts.length];
+        for (int i = 0; i < shorts.length; i++) {
+            ints[i] = shorts[i];
+        }
+        shorts = null;
+    }
+
+    /** @return an estimate of the memory used by these times, in bytes. */
+    public long byteSize() {
+        return 32 + (shorts != null ? 2L * shorts.length : 4L * ints.length);
+    }
+
+}
@@ -69,7 +69,7 @@ public class AnalystWorker implements Runnable {
     DefaultHttpClient httpClient = new DefaultHttpClient();
 
     // Of course this will eventually need to be shared between multiple AnalystWorker threads.
-    ClusterGraphBuilder clusterGraphBuilder;
+    ClusterGraphService clusterGraphService;
 
     // Of course this will eventually need to be shared between multiple AnalystWorker threads.
     PointSetDatastore pointSetDatastore;
@@ -86,6 +86,14 @@ public class AnalystWorker implements Runnable {
     boolean isSinglePoint = false;
 
     public AnalystWorker() {
+        this(false);
+    }
+
+    /**
+     * @param shareGraphs whether to build each graph only once for all the workers of this machine, and have the
+     *                    others load it from the graph cache directory. See ClusterGraphService.getRouter().
+     */
+    public AnalystWorker(boolean shareGraphs) {
 
         // Consider shutting this worker down once per hour, starting 55 minutes after it started up.
         startupTime = System.currentTimeMillis();
@@ -117,7 +125,8 @@ public class AnalystWorker implements Runnable {
         objectMapper.registerModule(TraverseModeSetSerializer.makeModule());
 
         /* These serve as lazy-loading caches for graphs and point sets. */
-        clusterGraphBuilder = new ClusterGraphBuilder(s3Prefix + "-graphs");
+        clusterGraphService = new ClusterGraphService(null, false, s3Prefix + "-graphs");
+        clusterGraphService.shareGraphs = shareGraphs;
         pointSetDatastore = new PointSetDatastore(10, null, false, s3Prefix + "-pointsets");
 
         /* The HTTP Client for talking to the Analyst Broker. */
@@ -167,9 +176,8 @@ public class AnalystWorker implements Runnable {
             LOG.info("Handling message {}", clusterRequest.toString());
 
             // Get the graph object for the ID given in the request, fetching inputs and building as needed.
-            // All requests handled together are for the same graph, and this call is synchronized so the graph will
-            // only be built once.
-            Graph graph = clusterGraphBuilder.getGraph(clusterRequest.graphId);
+            // All requests handled together are for the same graph, and the graph service only builds it once.
+            Graph graph = clusterGraphService.getRouter(clusterRequest.graphId).graph;
             graphId = clusterRequest.graphId; // Record graphId so we "stick" to this same graph on subsequent polls
 
             // This result envelope will hold the result of the profile or single-time one-to-many search.
@@ -315,8 +323,20 @@ public class AnalystWorker implements Runnable {
         }
     }
 
+    /**
+     * Start a worker. With the --shareGraphs option, the workers started on the same machine (and in the same working
+     * directory) build each graph only once between them.
+     */
     public static void main(String[] args) {
-        new AnalystWorker().run();
+        boolean shareGraphs = false;
+        for (String arg : args) {
+            if ("--shareGraphs".equals(arg)) {
+                shareGraphs = true;
+            } else {
+                LOG.warn("Ignoring unknown option {}.", arg);
+            }
+        }
+        new AnalystWorker(shareGraphs).run();
     }
 
 }
\ No newline at end of file
@@ -9,15 +9,24 @@ import com.google.common.collect.Maps;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.opentripplanner.graph_builder.GraphBuilder;
+import org.opentripplanner.routing.graph.CompactGraphFormat;
 import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Graph.LoadLevel;
 import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
 import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.routing.services.GraphSource;
 import org.opentripplanner.routing.services.GraphSource.Factory;
 import org.opentripplanner.standalone.CommandLineParameters;
 import org.opentripplanner.standalone.Router;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Enumeration;
 import java.util.Map;
@@ -29,6 +38,8 @@ import java.util.zip.ZipOutputStream;
 // TODO does not really need to extend GraphService
 public class ClusterGraphService extends GraphService { 
 
+	private static final Logger LOG = LoggerFactory.getLogger(ClusterGraphService.class);
+
 	static File GRAPH_DIR = new File("cache", "graphs");
 	
 	private String graphBucket;
@@ -39,48 +50,142 @@ public class ClusterGraphService extends GraphService {
 	// don't use more than 60% of free memory to cache graphs
 	private Map<String,Router> graphMap = Maps.newConcurrentMap();
 	
+	/**
+	 * The name of the file in the directory of each graph where the graph is saved in the compact graph format once
+	 * it has been built, so that the other worker JVMs of the machine, and this one later, load it rather than
+	 * building it again.
+	 */
+	static final String SHARED_GRAPH_FILENAME = "Graph.compact";
+
+	/**
+	 * Whether to share the graphs built by the workers of a machine, see getRouter(). Otherwise each worker builds
+	 * each graph it needs in memory. Set by the --shareGraphs option of AnalystWorker.
+	 */
+	public boolean shareGraphs = false;
+
+	/** Locks making the threads of this JVM wait for a graph being fetched or built by another thread. */
+	private final Map<String, Object> graphLocks = Maps.newConcurrentMap();
+
+	/**
+	 * Get a router for the given graph, fetching its inputs and building it if needed. Different graphs can be
+	 * loaded at the same time.
+	 *
+	 * When the graphs are shared, the first worker of the machine needing a graph builds it and saves it in the
+	 * compact graph format, while the others wait on a file lock. The other workers then load that file instead of
+	 * each running a full graph build. Only the build and the file are shared: each worker still recreates the
+	 * vertices and edges of the graph on its own heap when loading it, so this does not reduce the memory used per
+	 * machine. Sharing that memory would need the routing to read the street topology and geometry from the mapped
+	 * columns of the file rather than from Vertex and Edge objects.
+	 *
+	 * Shared graphs are cached, as loading them again for each request would defeat the purpose, but only the graph
+	 * used last is kept, and it is dropped before loading another one so that a worker never holds two graphs. Graphs
+	 * which are not shared are not cached, so that they never take up memory while the worker is not using them.
+	 */
 	@Override
-	public synchronized Router getRouter(String graphId) {
-		
-		GRAPH_DIR.mkdirs();
-		
-		if(!graphMap.containsKey(graphId)) {
-			
-			try {
-				if (!bucketCached(graphId)) {
-					if(!workOffline) {
-						downloadGraphSourceFiles(graphId, GRAPH_DIR);
-					}
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+	public Router getRouter(String graphId) {
+		Router router = graphMap.get(graphId);
+		if (router != null) {
+			return router;
+		}
+		Object graphLock = graphLocks.computeIfAbsent(graphId, id -> new Object());
+		synchronized (graphLock) {
+			router = graphMap.get(graphId);
+			if (router != null) {
+				return router;
 			}
-			
-			CommandLineParameters params = new CommandLineParameters();
-			params.build = new File(GRAPH_DIR, graphId);
-			params.inMemory = true;
-			GraphBuilder gbt = GraphBuilder.forDirectory(params, params.build);
-			gbt.run();
-			
-			Graph g = gbt.getGraph();
-			
+
+			GRAPH_DIR.mkdirs();
+
+			Graph g = null;
+			if (shareGraphs) {
+				// Keep only one graph so we don't run out of RAM. Long-term we will use an actual cache for this.
+				graphMap.clear();
+				g = loadSharedGraph(graphId);
+			}
+			if (g == null) {
+				fetchGraphSourceFiles(graphId);
+				g = buildGraph(graphId);
+			}
+
 			g.routerId = graphId;
-			
-			g.index(new DefaultStreetVertexIndexFactory());
 
 			g.index.clusterStopsAsNeeded();
-			
+
 			Router r = new Router(graphId, g);
-			
-			// temporarily disable graph caching so we don't run out of RAM.
-			// Long-term we will use an actual cache for this.
-			//graphMap.put(graphId,r);
-			
+
+			if (shareGraphs) {
+				graphMap.put(graphId, r);
+			}
+
 			return r;
-					
 		}
-		else {
-			return graphMap.get(graphId);
+	}
+
+	/** Download the inputs of the given graph unless they are already in the local cache. */
+	private void fetchGraphSourceFiles(String graphId) {
+		try {
+			if (!bucketCached(graphId)) {
+				if(!workOffline) {
+					downloadGraphSourceFiles(graphId, GRAPH_DIR);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static Graph buildGraph(String graphId) {
+		CommandLineParameters params = new CommandLineParameters();
+		params.build = new File(GRAPH_DIR, graphId);
+		params.inMemory = true;
+		GraphBuilder gbt = GraphBuilder.forDirectory(params, params.build);
+		gbt.run();
+
+		Graph g = gbt.getGraph();
+
+		g.index(new DefaultStreetVertexIndexFactory());
+
+		return g;
+	}
+
+	/**
+	 * Load the shared file of the given graph, fetching the inputs and building the graph first if no worker of this
+	 * machine has done so yet. The workers of the machine take turns with a lock on a file next to the directory of
+	 * the graph, which is not deleted when its inputs are downloaded again. The file is only read, written or deleted
+	 * while holding the lock.
+	 *
+	 * @return the graph, or null if it could not be shared and must be built in memory, in which case its inputs may
+	 * not have been fetched yet.
+	 */
+	private Graph loadSharedGraph(String graphId) {
+		File graphFile = new File(new File(GRAPH_DIR, graphId), SHARED_GRAPH_FILENAME);
+		File lockFile = new File(GRAPH_DIR, graphId + ".lock");
+		Graph built = null;
+		try (FileChannel lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE);
+				FileLock lock = lockChannel.lock()) {
+			// Downloading the inputs again deletes the directory of the graph, and the outdated graph file with it.
+			fetchGraphSourceFiles(graphId);
+			if (graphFile.exists()) {
+				try {
+					return CompactGraphFormat.load(graphFile, LoadLevel.FULL, new DefaultStreetVertexIndexFactory());
+				} catch (Exception e) {
+					// e.g. a file saved by another version of OTP, which is replaced below
+					LOG.warn("Could not load shared graph {}, building it again: {}", graphId, e.getMessage());
+					graphFile.delete();
+				}
+			}
+			built = buildGraph(graphId);
+			// The file only appears once it is complete, the other workers never see it half-written.
+			File tempFile = new File(graphFile.getParentFile(), SHARED_GRAPH_FILENAME + ".tmp");
+			CompactGraphFormat.save(built, tempFile);
+			Files.move(tempFile.toPath(), graphFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			LOG.info("Saved graph {} for the other workers of this machine.", graphId);
+			return built;
+		} catch (IOException e) {
+			// e.g. the lock file could not be opened or locked, before the inputs were fetched
+			LOG.warn("Could not share graph {}, building it in memory: {}", graphId, e.getMessage());
+			return built;
 		}
 	}
 
@@ -0,0 +1,184 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.api.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the requests of one class of web service endpoints (e.g. trip planning or profile routing) on threads of its
+ * own, rather than on the Grizzly worker threads which serve all the endpoints. The endpoints suspend their response
+ * and hand the work over to the executor, so a burst of slow searches only fills the queue of their own endpoint
+ * class while other requests, such as index lookups, are still answered.
+ *
+ * Admission control is done with the queue: a request arriving when all threads are busy and the queue is full is
+ * rejected at once with 503 Service Unavailable, and a request which is not answered within the timeout (including
+ * the time it waited in the queue) gets a 503 as well. A request which times out while still queued is never started.
+ * The rejected and timed out requests are counted, see {@link #getStats()}.
+ */
+public class RequestExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestExecutor.class);
+
+    /** The number of seconds after which clients are told to retry rejected requests. */
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private final String name;
+
+    private final ThreadPoolExecutor executor;
+
+    private final int queueDepth;
+
+    private final int timeoutSeconds;
+
+    private final AtomicLong accepted = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * @param name the name of the endpoint class, used to name the threads and in the statistics.
+     * @param threads the number of requests handled at once.
+     * @param queueDepth the number of requests waiting for a thread at most, zero to reject requests as soon as all
+     *                   threads are busy.
+     * @param timeoutSeconds the time after which a request which has not been answered gets an error, zero for none.
+     */
+    public RequestExecutor(String name, int threads, int queueDepth, int timeoutSeconds) {
+        this.name = name;
+        this.queueDepth = queueDepth;
+        this.timeoutSeconds = timeoutSeconds;
+        BlockingQueue<Runnable> queue = queueDepth > 0 ? new ArrayBlockingQueue<Runnable>(queueDepth)
+                : new SynchronousQueue<Runnable>();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, queue,
+                new ThreadFactoryBuilder().setNameFormat(name + "-request-%d").setDaemon(true).build());
+        LOG.info("Requests of the {} endpoints are handled by {} threads with {} queued at most.", name, threads,
+                queueDepth);
+    }
+
+    /**
+     * Compute the response to a suspended request on a thread of this executor, or answer it at once with an error
+     * if the queue is full. The response is resumed with the result of the task, or with the exception it throws
+     * which is then handled as if the endpoint had thrown it.
+     */
+    public void submit(final AsyncResponse response, final Callable<?> task) {
+        if (timeoutSeconds > 0) {
+            response.setTimeoutHandler(new TimeoutHandler() {
+                @Override
+                public void handleTimeout(AsyncResponse asyncResponse) {
+                    timedOut.incrementAndGet();
+                    asyncResponse.resume(unavailable("The request timed out."));
+                }
+            });
+            response.setTimeout(timeoutSeconds, TimeUnit.SECONDS);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Nobody is waiting for the answer to a request which timed out in the queue.
+                    if (!response.isSuspended()) {
+                        return;
+                    }
+                    try {
+                        if (response.resume(task.call())) {
+                            completed.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        if (response.resume(t)) {
+                            completed.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            accepted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            response.resume(unavailable("The server is too busy to handle the request."));
+        }
+    }
+
+    private static Response unavailable(String message) {
+        return Response.status(Status.SERVICE_UNAVAILABLE).header("Retry-After", RETRY_AFTER_SECONDS)
+                .entity(message).type("text/plain").build();
+    }
+
+    public Stats getStats() {
+        Stats stats = new Stats();
+        stats.name = name;
+        stats.threads = executor.getMaximumPoolSize();
+        stats.active = executor.getActiveCount();
+        stats.queued = executor.getQueue().size();
+        stats.queueDepth = queueDepth;
+        stats.accepted = accepted.get();
+        stats.completed = completed.get();
+        stats.rejected = rejected.get();
+        stats.timedOut = timedOut.get();
+        return stats;
+    }
+
+    /** Stop accepting requests, letting those already accepted finish. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /** The load of an executor and what became of the requests it was given, as reported by the server. */
+    public static class Stats {
+
+        public String name;
+
+        /** The number of requests which can be handled at once. */
+        public int threads;
+
+        /** The number of requests being handled. */
+        public int active;
+
+        /** The number of requests waiting for a thread. */
+        public int queued;
+
+        /** The number of requests which can wait for a thread. */
+        public int queueDepth;
+
+        /** The number of requests admitted since the server started. */
+        public long accepted;
+
+        /** The number of requests answered in time, with a result or an error. */
+        public long completed;
+
+        /** The number of requests turned away because the queue was full. */
+        public long rejected;
+
+        /** The number of requests which were not answered within the timeout. */
+        public long timedOut;
+    }
+
+}
@@ -346,6 +346,20 @@ public abstract class RoutingResource {
      */
     @QueryParam("disableRemainingWeightHeuristic")
     protected Boolean disableRemainingWeightHeuristic;
+
+    /**
+     * If true, street-only searches use the landmark remaining weight heuristic when the graph was built with
+     * landmarks. Currently only implemented for the long distance path service.
+     */
+    @QueryParam("landmarkHeuristic")
+    protected Boolean landmarkHeuristic;
+
+    /**
+     * If true, the number of states created and vertices settled by the searches, and the largest size of their
+     * priority queues, are included in the debug output of the response.
+     */
+    @QueryParam("showSearchStats")
+    protected Boolean showSearchStats;
     
     /* 
      * somewhat ugly bug fix: the graphService is only needed here for fetching per-graph time zones. 
@@ -562,6 +576,9 @@ public abstract class RoutingResource {
         if (disableRemainingWeightHeuristic != null)
             request.disableRemainingWeightHeuristic = disableRemainingWeightHeuristic;
 
+        if (landmarkHeuristic != null)
+            request.landmarkHeuristic = landmarkHeuristic;
+
         //getLocale function returns defaultLocale if locale is null
         request.locale = ResourceBundleSingleton.INSTANCE.getLocale(locale);
         return request;
@@ -41,14 +41,23 @@ public class DebugOutput {
     private List<Long> foundPaths = Lists.newArrayList();
     private long finishedCalculating;
     private long finishedRendering;
+    private long heuristicNanos;
+    private long interleavedHeuristicNanos;
+    SearchCounts counts = new SearchCounts(); // read by SearchMetrics, and not serialized unlike searchCounts
 
     /* Results, public to cause JAX-RS serialization */
     public long precalculationTime;
     public long pathCalculationTime;
     public List<Long> pathTimes = Lists.newArrayList();
     public long renderingTime;
+    /** Time spent on the remaining weight heuristic, before and during the main search. */
+    public long heuristicTime;
+    /** Time spent in the main search, excluding the heuristic work interleaved with it. */
+    public long searchTime;
     public long totalTime;
     public boolean timedOut;
+    /** The work done by the searches, only reported when requested (null fields are not serialized). */
+    public SearchCounts searchCounts;
 
     /**
      * Record the time when we first began calculating a path for this request
@@ -66,6 +75,37 @@ public class DebugOutput {
         finishedPrecalculating = System.currentTimeMillis();
     }
 
+    /**
+     * Record time spent on the remaining weight heuristic.
+     * @param interleaved whether this was during the main search rather than before it.
+     */
+    public void spentOnHeuristic(long nanos, boolean interleaved) {
+        heuristicNanos += nanos;
+        if (interleaved) {
+            interleavedHeuristicNanos += nanos;
+        }
+    }
+
+    /**
+     * Record the work done by a search. This is called once at the end of each search rather than for each state,
+     * so that it costs nothing to leave on.
+     */
+    public void searched(long statesCreated, long verticesSettled, int maxQueueSize) {
+        counts.statesCreated += statesCreated;
+        counts.verticesSettled += verticesSettled;
+        counts.maxQueueSize = Math.max(counts.maxQueueSize, maxQueueSize);
+    }
+
+    /** Add the work done by the searches of another routing context to that of this one. */
+    public void searched(DebugOutput other) {
+        searched(other.counts.statesCreated, other.counts.verticesSettled, other.counts.maxQueueSize);
+    }
+
+    /** Include the work done by the searches in the response. */
+    public void reportSearchCounts() {
+        searchCounts = counts;
+    }
+
     /** Record the time when a path was found. */
     public void foundPath() {
         foundPaths.add(System.currentTimeMillis());
@@ -82,6 +122,11 @@ public class DebugOutput {
         computeSummary();
     }
 
+    /** @return whether the elapsed times have been calculated, which they are when rendering is finished. */
+    boolean isSummarized() {
+        return finishedRendering != 0;
+    }
+
     /** Summarize and calculate elapsed times. */
     private void computeSummary() {
         precalculationTime = finishedPrecalculating - startedCalculating;
@@ -93,6 +138,22 @@ public class DebugOutput {
         }
         LOG.debug("times to find each path: {}", pathTimes);
         renderingTime = finishedRendering - finishedCalculating;
+        heuristicTime = heuristicNanos / 1000000;
+        searchTime = pathCalculationTime - interleavedHeuristicNanos / 1000000;
+        LOG.debug("heuristic time {} msec, main search time {} msec", heuristicTime, searchTime);
         totalTime = finishedRendering - startedCalculating;
     }
+
+    /** The work done by the searches for a request. */
+    public static class SearchCounts {
+
+        /** The number of states created by traversing edges, whether they were enqueued or not. */
+        public long statesCreated;
+
+        /** The number of states taken from the priority queue which were not dominated. */
+        public long verticesSettled;
+
+        /** The largest number of states in the priority queue of a search. */
+        public int maxQueueSize;
+    }
 }
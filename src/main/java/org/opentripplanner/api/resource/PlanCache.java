@@ -0,0 +1,297 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.api.resource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentripplanner.api.model.TripPlan;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.edgetype.TablePatternEdge;
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+import org.opentripplanner.routing.edgetype.TripPattern;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterables;
+
+/**
+ * Keeps the trip plans returned by the planner web service for a while, to answer identical requests without searching
+ * again. Trip planning traffic is very repetitive: clients poll for the same trips, and requests for "now" from the
+ * same places only differ by a few seconds.
+ *
+ * A plan is found again for a request with the same parameters, from and to the same vertices (requests from nearby
+ * coordinates linked to the same streets at the same place share plans), at a time in the same time bucket. To make
+ * the plan valid for all the requests of a bucket, their time is moved to the end of the bucket (or the start of it
+ * for arrive-by requests) before searching, whether the plan is then found in the cache or not.
+ *
+ * A plan is dropped when a real-time update changes the timetables of a pattern it rides, which is checked when the
+ * plan is found again by following the committed timetable snapshots from the one it was planned with.
+ */
+public class PlanCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    public static final int DEFAULT_TIME_BUCKET_SECONDS = 60;
+
+    public static final int DEFAULT_MAX_AGE_SECONDS = 300;
+
+    /** The query parameters which are replaced by the endpoint vertices and time bucket in the keys. */
+    private static final Set<String> LOCATION_AND_TIME_PARAMETERS = new HashSet<String>(
+            Arrays.asList("fromPlace", "toPlace", "date", "time"));
+
+    private final Cache<Key, Entry> cache;
+
+    private final int timeBucketSeconds;
+
+    /** The number of plans found in the cache but dropped because of real-time updates. */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param maxEntries the maximum number of plans kept.
+     * @param timeBucketSeconds the width of the time buckets, zero to only share plans for exactly the same time.
+     * @param maxAgeSeconds how long a plan is kept at most.
+     */
+    public PlanCache(int maxEntries, int timeBucketSeconds, int maxAgeSeconds) {
+        this.timeBucketSeconds = timeBucketSeconds;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxEntries)
+                .expireAfterWrite(maxAgeSeconds, TimeUnit.SECONDS).recordStats().build();
+    }
+
+    /** @return whether the plan for the given request can be cached. */
+    public boolean accepts(RoutingRequest request) {
+        // The intermediate places are not part of the keys, and make the searches start again from each of them.
+        return !request.batch && !request.hasIntermediatePlaces();
+    }
+
+    /**
+     * Move the time of the request to the end of its time bucket, or to its start for an arrive-by request, so that
+     * the itineraries found are possible for any time in the bucket.
+     */
+    public void roundTime(RoutingRequest request) {
+        if (timeBucketSeconds <= 0) {
+            return;
+        }
+        long start = Math.floorDiv(request.dateTime, timeBucketSeconds) * timeBucketSeconds;
+        if (request.arriveBy || start == request.dateTime) {
+            request.dateTime = start;
+        } else {
+            request.dateTime = start + timeBucketSeconds;
+        }
+    }
+
+    /**
+     * @param request a request whose time was rounded, with a routing context.
+     * @param parameters the query parameters of the request.
+     * @return the key of the plan for the request.
+     */
+    public Key key(RoutingRequest request, Map<String, List<String>> parameters) {
+        // The request is built from the query parameters with the defaults of the router, which are the same for all
+        // the keys of this cache. Keeping the parameters rather than the request fields leaves nothing out.
+        TreeMap<String, List<String>> otherParameters = new TreeMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> parameter : parameters.entrySet()) {
+            if (!LOCATION_AND_TIME_PARAMETERS.contains(parameter.getKey())) {
+                otherParameters.put(parameter.getKey(), parameter.getValue());
+            }
+        }
+        return new Key(vertexKey(request.rctx.fromVertex), vertexKey(request.rctx.toVertex), request.from.name,
+                request.to.name, request.dateTime, request.arriveBy, otherParameters);
+    }
+
+    /**
+     * @param snapshot the timetable snapshot the request would be planned with.
+     * @return the plan for the key, or null if there is none or if real-time updates have changed the timetables of
+     *         the patterns it rides since it was planned.
+     */
+    public TripPlan get(Key key, TimetableSnapshot snapshot) {
+        Entry entry = cache.getIfPresent(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isValidFor(snapshot)) {
+            cache.invalidate(key);
+            invalidations.incrementAndGet();
+            return null;
+        }
+        return entry.plan;
+    }
+
+    /**
+     * Keep a plan for later requests with the same key.
+     * @param paths the paths the plan was made of, to find the patterns it rides.
+     * @param snapshot the timetable snapshot it was planned with.
+     */
+    public void put(Key key, TripPlan plan, List<GraphPath> paths, TimetableSnapshot snapshot) {
+        Set<TripPattern> patterns = new HashSet<TripPattern>();
+        for (GraphPath path : paths) {
+            for (State state : path.states) {
+                if (state.getBackEdge() instanceof TablePatternEdge) {
+                    patterns.add(((TablePatternEdge) state.getBackEdge()).getPattern());
+                }
+            }
+        }
+        cache.put(key, new Entry(plan, patterns, snapshot));
+    }
+
+    public Stats getStats() {
+        CacheStats stats = cache.stats();
+        long invalidated = invalidations.get();
+        Stats result = new Stats();
+        result.size = cache.size();
+        // plans dropped because of real-time updates were found in the cache, but counted as misses
+        result.hits = stats.hitCount() - invalidated;
+        result.misses = stats.missCount() + invalidated;
+        result.evictions = stats.evictionCount();
+        result.invalidations = invalidated;
+        return result;
+    }
+
+    /**
+     * @return a key identifying where a request starts or ends: the label of a vertex of the graph, or for the
+     *         temporary vertices linking coordinates to the streets, the vertices they are linked to and their position
+     *         rounded to about a meter.
+     */
+    private static String vertexKey(Vertex vertex) {
+        if (!(vertex instanceof TemporaryVertex)) {
+            return vertex.getLabel();
+        }
+        List<String> linked = new ArrayList<String>();
+        for (Edge edge : Iterables.concat(vertex.getIncoming(), vertex.getOutgoing())) {
+            for (Vertex other : new Vertex[] { edge.getFromVertex(), edge.getToVertex() }) {
+                if (!(other instanceof TemporaryVertex)) {
+                    linked.add(other.getLabel());
+                }
+            }
+        }
+        Collections.sort(linked);
+        return Math.round(vertex.getLat() * 1e5) + "," + Math.round(vertex.getLon() * 1e5) + " " + linked;
+    }
+
+    /** Identifies the plans which can be reused for a request. */
+    public static class Key {
+
+        final String from;
+
+        final String to;
+
+        final String fromName;
+
+        final String toName;
+
+        final long dateTime;
+
+        final boolean arriveBy;
+
+        final Map<String, List<String>> parameters;
+
+        Key(String from, String to, String fromName, String toName, long dateTime, boolean arriveBy,
+                Map<String, List<String>> parameters) {
+            this.from = from;
+            this.to = to;
+            this.fromName = fromName;
+            this.toName = toName;
+            this.dateTime = dateTime;
+            this.arriveBy = arriveBy;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return from.equals(other.from) && to.equals(other.to) && Objects.equal(fromName, other.fromName)
+                    && Objects.equal(toName, other.toName) && dateTime == other.dateTime
+                    && arriveBy == other.arriveBy && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(from, to, fromName, toName, dateTime, arriveBy, parameters);
+        }
+    }
+
+    private static class Entry {
+
+        final TripPlan plan;
+
+        final Set<TripPattern> patterns;
+
+        /** The latest timetable snapshot the plan is known to be valid for. */
+        volatile TimetableSnapshot snapshot;
+
+        Entry(TripPlan plan, Set<TripPattern> patterns, TimetableSnapshot snapshot) {
+            this.plan = plan;
+            this.patterns = patterns;
+            this.snapshot = snapshot;
+        }
+
+        /** @return whether none of the snapshots committed up to the given one changed the patterns of the plan. */
+        boolean isValidFor(TimetableSnapshot current) {
+            TimetableSnapshot checked = snapshot;
+            if (checked == null || current == null) {
+                return checked == current;
+            }
+            while (checked != current) {
+                checked = checked.getNext();
+                if (checked == null) {
+                    return false; // not from the same source of real-time updates
+                }
+                Set<TripPattern> changed = checked.getChangedPatterns();
+                if (changed == null || !Collections.disjoint(changed, patterns)) {
+                    return false;
+                }
+            }
+            // Start from there next time, and let the older snapshots go.
+            snapshot = current;
+            return true;
+        }
+    }
+
+    /** The effectiveness of the cache since it was created, as reported by the planner web service. */
+    public static class Stats {
+
+        /** The number of plans currently kept. */
+        public long size;
+
+        /** The number of requests answered from the cache. */
+        public long hits;
+
+        /** The number of requests which had to be planned. */
+        public long misses;
+
+        /** The number of plans dropped to respect the maximum number of plans or their maximum age. */
+        public long evictions;
+
+        /** The number of plans dropped because real-time updates changed the timetables they ride. */
+        public long invalidations;
+    }
+
+}
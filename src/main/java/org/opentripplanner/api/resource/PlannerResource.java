@@ -17,6 +17,9 @@ import static org.opentripplanner.api.resource.ServerInfo.Q;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.UriInfo;
@@ -33,6 +36,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * This is the primary entry point for the trip planning web service.
@@ -50,9 +54,26 @@ public class PlannerResource extends RoutingResource {
     // We inject info about the incoming request so we can include the incoming query
     // parameters in the outgoing response. This is a TriMet requirement.
     // Jersey uses @Context to inject internal types and @InjectParam or @Resource for DI objects.
+    // The search runs on the threads of the planning endpoints rather than on the Grizzly threads, see RequestExecutor.
     @GET
     @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML + Q, MediaType.TEXT_XML + Q })
-    public Response plan(@Context OTPServer otpServer, @Context UriInfo uriInfo) {
+    public void plan(@Context final OTPServer otpServer, @Context UriInfo uriInfo,
+            @Suspended AsyncResponse asyncResponse) {
+
+        // Create response object, containing a copy of all request parameters. Maybe they should be in the debug section of the response.
+        // The request scoped UriInfo is only read here, while the request is being dispatched.
+        final Response response = new Response(uriInfo);
+        final Map<String, List<String>> queryParameters = uriInfo.getQueryParameters();
+        otpServer.planExecutor.submit(asyncResponse, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return planTrip(otpServer, response, queryParameters);
+            }
+        });
+    }
+
+    /** Plan a trip from the query parameters of the request, filling in the given response. */
+    private Response planTrip(OTPServer otpServer, Response response, Map<String, List<String>> queryParameters) {
 
         /*
          * TODO: add Lang / Locale parameter, and thus get localized content (Messages & more...)
@@ -61,10 +82,10 @@ public class PlannerResource extends RoutingResource {
          * TODO: org.opentripplanner.routing.module.PathServiceImpl has COOORD parsing. Abstract that
          *       out so it's used here too...
          */
-        
-        // Create response object, containing a copy of all request parameters. Maybe they should be in the debug section of the response.
-        Response response = new Response(uriInfo);
+
         RoutingRequest request = null;
+        boolean searched = false;
+        SearchMetrics.Outcome outcome = SearchMetrics.Outcome.OK;
         try {
 
             /* Fill in request fields from query parameters via shared superclass method, catching any errors. */
@@ -73,21 +94,54 @@ public class PlannerResource extends RoutingResource {
             /* Find some good GraphPaths through the OTP Graph. */
             Router router = otpServer.getRouter(request.routerId);
             GraphPathFinder gpFinder = new GraphPathFinder(router); // we could also get a persistent router-scoped GraphPathFinder but there's no setup cost here
+
+            /* Reuse the plan for an identical recent request, from and to the same vertices, if there is one. */
+            PlanCache planCache = router.planCache;
+            PlanCache.Key cacheKey = null;
+            if (planCache != null && planCache.accepts(request)) {
+                planCache.roundTime(request);
+                gpFinder.setRoutingContext(request);
+                cacheKey = planCache.key(request, queryParameters);
+                TripPlan plan = planCache.get(cacheKey, request.rctx.timetableSnapshot);
+                if (plan != null) {
+                    request.rctx.debugOutput.finishedCalculating();
+                    request.rctx.debugOutput.finishedRendering();
+                    response.setPlan(plan);
+                    return response;
+                }
+            }
+            searched = true;
             List<GraphPath> paths = gpFinder.graphPathFinderEntryPoint(request);
 
             /* Convert the internal GraphPaths to a TripPlan object that is included in an OTP web service Response. */
             TripPlan plan = GraphPathToTripPlanConverter.generatePlan(paths, request);
             response.setPlan(plan);
+            if (cacheKey != null) {
+                planCache.put(cacheKey, plan, paths, request.rctx.timetableSnapshot);
+            }
 
         } catch (Exception e) {
             PlannerError error = new PlannerError(e);
             if(!PlannerError.isPlanningError(e.getClass()))
                 LOG.warn("Error while planning path: ", e);
             response.setError(error);
+            outcome = PlannerError.isPlanningError(e.getClass()) ?
+                    SearchMetrics.Outcome.NOT_PLANNED : SearchMetrics.Outcome.FAILED;
         } finally {
             if (request != null) {
                 if (request.rctx != null) {
-                    response.debugOutput = request.rctx.debugOutput;
+                    DebugOutput debugOutput = request.rctx.debugOutput;
+                    /* Plans found in the cache are not recorded, they would only dilute the search metrics. */
+                    if (searched) {
+                        if (debugOutput.timedOut && outcome != SearchMetrics.Outcome.FAILED) {
+                            outcome = SearchMetrics.Outcome.TIMED_OUT;
+                        }
+                        otpServer.searchMetrics.record(debugOutput, outcome);
+                    }
+                    if (showSearchStats != null && showSearchStats) {
+                        debugOutput.reportSearchCounts();
+                    }
+                    response.debugOutput = debugOutput;
                 }
                 request.cleanup(); // TODO verify that this cleanup step is being done on Analyst web services
             }       
@@ -95,4 +149,16 @@ public class PlannerResource extends RoutingResource {
         return response;
     }
 
+    /** @return the hits, misses and evictions of the plan cache of the router, if it has one. */
+    @GET
+    @Path("cache")
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML + Q, MediaType.TEXT_XML + Q })
+    public PlanCache.Stats getCacheStats(@Context OTPServer otpServer) {
+        Router router = otpServer.getRouter(routerId);
+        if (router.planCache == null) {
+            throw new WebApplicationException(javax.ws.rs.core.Response.Status.NOT_FOUND);
+        }
+        return router.planCache.getStats();
+    }
+
 }
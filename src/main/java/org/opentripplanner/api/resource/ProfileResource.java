@@ -3,6 +3,7 @@ package org.opentripplanner.api.resource;
 import com.beust.jcommander.internal.Maps;
 import org.opentripplanner.analyst.SurfaceCache;
 import org.opentripplanner.analyst.TimeSurface;
+import org.opentripplanner.api.common.RequestExecutor;
 import org.opentripplanner.api.param.HourMinuteSecond;
 import org.opentripplanner.api.param.LatLon;
 import org.opentripplanner.api.param.QueryParameter;
@@ -26,11 +27,14 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * A Jersey resource class which exposes OTP profile routing functionality as a web service.
@@ -42,16 +46,23 @@ public class ProfileResource {
     private static final Logger LOG = LoggerFactory.getLogger(ProfileResource.class);
     private Graph graph;
     private SurfaceCache surfaceCache;
+    private RequestExecutor executor;
 
     public ProfileResource (@Context OTPServer otpServer, @PathParam("routerId") String routerId) {
         Router router = otpServer.getRouter(routerId);
         graph = router.graph;
         surfaceCache = otpServer.surfaceCache;
+        executor = otpServer.profileExecutor;
     }
 
+    /**
+     * The parameters are checked right away, but the search runs on the threads of the profile routing endpoint
+     * rather than on the Grizzly threads, see RequestExecutor.
+     */
     @GET
     @Produces({ MediaType.APPLICATION_JSON })
-    public Response profileRoute (
+    public void profileRoute (
+            @Suspended AsyncResponse asyncResponse,
             @QueryParam("from")  LatLon from,
             @QueryParam("to")    LatLon to,
             @QueryParam("analyst")      @DefaultValue("false") boolean analyst,
@@ -77,7 +88,8 @@ public class ProfileResource {
             @QueryParam("egressModes")  @DefaultValue("WALK")         QualifiedModeSet egressModes,
             @QueryParam("directModes")  @DefaultValue("WALK,BICYCLE") QualifiedModeSet directModes,
             @QueryParam("transitModes") @DefaultValue("TRANSIT")      TraverseModeSet transitModes,
-            @QueryParam("banAgency") String banAgency)
+            @QueryParam("banAgency") final String banAgency,
+            @QueryParam("raptorThreads") @DefaultValue("1")   int raptorThreads) // parallel blocks of departure minutes
             throws Exception {
 
         QueryParameter.checkRangeInclusive(limit, 0, Integer.MAX_VALUE);
@@ -94,8 +106,9 @@ public class ProfileResource {
         QueryParameter.checkRangeInclusive(bikeSafe,  0, 1000);
         QueryParameter.checkRangeInclusive(bikeSlope, 0, 1000);
         QueryParameter.checkRangeInclusive(bikeTime,  0, 1000);
+        QueryParameter.checkRangeInclusive(raptorThreads, 1, Runtime.getRuntime().availableProcessors());
 
-        ProfileRequest req = new ProfileRequest();
+        final ProfileRequest req = new ProfileRequest();
         req.fromLat      = from.lat;
         req.fromLon      = from.lon;
         // In analyst requests the 'to' coordinates may be null.
@@ -126,7 +139,17 @@ public class ProfileResource {
         req.bikeSlope    = bikeSlope;
         req.bikeTime     = bikeTime;
         req.suboptimalMinutes = suboptimalMinutes;
+        req.raptorThreads = raptorThreads;
 
+        executor.submit(asyncResponse, new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return route(req, banAgency);
+            }
+        });
+    }
+
+    private Response route (ProfileRequest req, String banAgency) throws Exception {
         if (req.analyst) {
             if (surfaceCache == null) {
                 LOG.error ("You must run OTP with the --analyst option to enable spatial analysis features.");
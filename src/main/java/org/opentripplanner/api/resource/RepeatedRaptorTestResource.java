@@ -12,7 +12,6 @@ import org.opentripplanner.profile.RepeatedRaptorProfileRouter;
 import org.opentripplanner.routing.core.TraverseModeSet;
 import org.opentripplanner.routing.error.VertexNotFoundException;
 import org.opentripplanner.routing.graph.Graph;
-import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.standalone.OTPServer;
 import org.opentripplanner.standalone.Router;
 import org.slf4j.Logger;
@@ -119,13 +118,14 @@ public class RepeatedRaptorTestResource {
         decreased = false;
         TimeSurface.RangeSet timeSurfaces_a = router_a.timeSurfaceRangeSet;
         TimeSurface.RangeSet timeSurfaces_b = router_b.timeSurfaceRangeSet;
-        for (Vertex destVertex : timeSurfaces_a.min.times.keySet()) {
-            int min_a = timeSurfaces_a.min.getTime(destVertex);
-            int max_a = timeSurfaces_a.max.getTime(destVertex);
-            int avg_a = timeSurfaces_a.avg.getTime(destVertex);
-            int min_b = timeSurfaces_b.min.getTime(destVertex);
-            int max_b = timeSurfaces_b.max.getTime(destVertex);
-            int avg_b = timeSurfaces_b.avg.getTime(destVertex);
+        for (int destIndex = 0; destIndex < timeSurfaces_a.min.times.indexLimit(); destIndex++) {
+            int min_a = timeSurfaces_a.min.getTime(destIndex);
+            if (min_a == TimeSurface.UNREACHABLE) continue;
+            int max_a = timeSurfaces_a.max.getTime(destIndex);
+            int avg_a = timeSurfaces_a.avg.getTime(destIndex);
+            int min_b = timeSurfaces_b.min.getTime(destIndex);
+            int max_b = timeSurfaces_b.max.getTime(destIndex);
+            int avg_b = timeSurfaces_b.avg.getTime(destIndex);
             long min_diff = (long) min_b - min_a;
             long max_diff = (long) max_b - max_a;
             long avg_diff = (long) avg_b - avg_a;
@@ -140,7 +140,7 @@ public class RepeatedRaptorTestResource {
                 sum_decrease += max_diff;
                 // Time decreased due to banning a route. This is bad, print it out.
                 System.out.printf("\"%s\",%d,%d,%d,%d,%d,%d\n",
-                        destVertex.getName(), min_a, min_b, min_diff, max_a, max_b, max_diff);
+                        graph.getVertexById(destIndex).getName(), min_a, min_b, min_diff, max_a, max_b, max_diff);
                 decreased = true;
             } else if (avg_diff > 0) {
                 n_increase += 1;
@@ -0,0 +1,110 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.api.resource;
+
+import static org.opentripplanner.util.monitoring.Histogram.exponentialBuckets;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opentripplanner.util.monitoring.Histogram;
+
+/**
+ * Aggregates the work done and the time taken by the trip planning requests of a server, as recorded in the
+ * DebugOutput of each request, into histograms which can be scraped by Prometheus. Recording a request only adds to a
+ * few counters, the searches themselves only count states in local fields, so this is always on.
+ */
+public class SearchMetrics {
+
+    /** How a request ended. */
+    public enum Outcome {
+        /** Itineraries were found, and the searches did not time out. */
+        OK,
+        /** A search timed out, and the itineraries found until then (if any) were returned. */
+        TIMED_OUT,
+        /** The request could not be planned, e.g. no path was found or a place was not found. */
+        NOT_PLANNED,
+        /** The request failed on an unexpected error. */
+        FAILED
+    }
+
+    private static final double[] TIME_BUCKETS = { 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private final Histogram statesCreated = new Histogram("otp_plan_states_created",
+            "States created by traversing edges, per request.", exponentialBuckets(100, 4, 10));
+
+    private final Histogram verticesSettled = new Histogram("otp_plan_vertices_settled",
+            "States taken from the priority queues, per request.", exponentialBuckets(100, 4, 10));
+
+    private final Histogram maxQueueSize = new Histogram("otp_plan_max_queue_size",
+            "Largest size of the priority queue of a search, per request.", exponentialBuckets(16, 4, 9));
+
+    private final Histogram heuristicSeconds = new Histogram("otp_plan_heuristic_seconds",
+            "Time spent on the remaining weight heuristic, per request.", TIME_BUCKETS);
+
+    private final Histogram searchSeconds = new Histogram("otp_plan_search_seconds",
+            "Time spent in the path searches apart from the heuristic, per request.", TIME_BUCKETS);
+
+    private final Histogram renderingSeconds = new Histogram("otp_plan_rendering_seconds",
+            "Time spent converting paths to itineraries, per request.", TIME_BUCKETS);
+
+    private final Histogram totalSeconds = new Histogram("otp_plan_total_seconds",
+            "Time spent planning, per request.", TIME_BUCKETS);
+
+    private final LongAdder[] outcomes = new LongAdder[Outcome.values().length];
+
+    public SearchMetrics() {
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Record a request which was searched for, with the debug output of its routing context. The times are only
+     * recorded for the requests which went through to the end, with or without itineraries.
+     */
+    public void record(DebugOutput debugOutput, Outcome outcome) {
+        outcomes[outcome.ordinal()].increment();
+        DebugOutput.SearchCounts counts = debugOutput.counts;
+        statesCreated.observe(counts.statesCreated);
+        verticesSettled.observe(counts.verticesSettled);
+        maxQueueSize.observe(counts.maxQueueSize);
+        if (debugOutput.isSummarized()) {
+            heuristicSeconds.observe(debugOutput.heuristicTime / 1000.0);
+            searchSeconds.observe(debugOutput.searchTime / 1000.0);
+            renderingSeconds.observe(debugOutput.renderingTime / 1000.0);
+            totalSeconds.observe(debugOutput.totalTime / 1000.0);
+        }
+    }
+
+    /** @return the number of requests recorded with the given outcome. */
+    public long getCount(Outcome outcome) {
+        return outcomes[outcome.ordinal()].sum();
+    }
+
+    /** Write all the metrics in the Prometheus text format. */
+    public void write(PrintWriter writer) {
+        writer.print("# HELP otp_plan_requests_total Trip planning requests searched for, by outcome.\n");
+        writer.print("# TYPE otp_plan_requests_total counter\n");
+        for (Outcome outcome : Outcome.values()) {
+            writer.printf("otp_plan_requests_total{outcome=\"%s\"} %d\n", outcome.name().toLowerCase(),
+                    getCount(outcome));
+        }
+        for (Histogram histogram : new Histogram[] { statesCreated, verticesSettled, maxQueueSize,
+                heuristicSeconds, searchSeconds, renderingSeconds, totalSeconds }) {
+            histogram.write(writer);
+        }
+    }
+
+}
@@ -13,11 +13,14 @@
 
 package org.opentripplanner.api.resource;
 
+import org.opentripplanner.api.common.RequestExecutor;
 import org.opentripplanner.common.MavenVersion;
+import org.opentripplanner.standalone.OTPServer;
 
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
@@ -25,7 +28,11 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
 
 @Path("/")
 @XmlRootElement 
@@ -41,6 +48,54 @@ public class ServerInfo {
     public static ServerInfo getServerInfo() {
         return SERVER_INFO;
     }    
+
+    /** @return the load of the threads handling the routing endpoints, and the requests they rejected or timed out. */
+    @GET
+    @Path("executors")
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML + Q, MediaType.TEXT_XML + Q })
+    public static List<RequestExecutor.Stats> getExecutorStats(@Context OTPServer otpServer) {
+        List<RequestExecutor.Stats> stats = new ArrayList<RequestExecutor.Stats>();
+        for (RequestExecutor executor : otpServer.getRequestExecutors()) {
+            stats.add(executor.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return the trip planning metrics and the executor counts in the Prometheus text format, to be scraped by
+     *         Prometheus or any compatible monitoring system.
+     */
+    @GET
+    @Path("metrics")
+    @Produces("text/plain; version=0.0.4")
+    public static String getMetrics(@Context OTPServer otpServer) {
+        StringWriter buffer = new StringWriter();
+        PrintWriter writer = new PrintWriter(buffer);
+        otpServer.searchMetrics.write(writer);
+        List<RequestExecutor.Stats> executors = getExecutorStats(otpServer);
+        writer.print("# HELP otp_executor_requests_total Requests given to the executors of the routing endpoints.\n");
+        writer.print("# TYPE otp_executor_requests_total counter\n");
+        for (RequestExecutor.Stats stats : executors) {
+            writer.printf("otp_executor_requests_total{executor=\"%s\",result=\"completed\"} %d\n", stats.name,
+                    stats.completed);
+            writer.printf("otp_executor_requests_total{executor=\"%s\",result=\"rejected\"} %d\n", stats.name,
+                    stats.rejected);
+            writer.printf("otp_executor_requests_total{executor=\"%s\",result=\"timed_out\"} %d\n", stats.name,
+                    stats.timedOut);
+        }
+        writer.print("# HELP otp_executor_queued Requests waiting for a thread of the executors.\n");
+        writer.print("# TYPE otp_executor_queued gauge\n");
+        for (RequestExecutor.Stats stats : executors) {
+            writer.printf("otp_executor_queued{executor=\"%s\"} %d\n", stats.name, stats.queued);
+        }
+        writer.print("# HELP otp_executor_active Requests being handled by the executors.\n");
+        writer.print("# TYPE otp_executor_active gauge\n");
+        for (RequestExecutor.Stats stats : executors) {
+            writer.printf("otp_executor_active{executor=\"%s\"} %d\n", stats.name, stats.active);
+        }
+        writer.flush();
+        return buffer.toString();
+    }
     
     // Fields must be public or have a public getter to be auto-serialized to JSON;
     // they are annotated with @XmlElement to be serialized to XML elements (as opposed to attributes).
@@ -146,6 +146,11 @@ public class SurfaceResource extends RoutingResource {
         final TimeSurface surf = otpServer.surfaceCache.get(surfaceId);
         if (surf == null) return badRequest("Invalid TimeSurface ID.");
         if (spacing < 1) spacing = 30;
+        if (surf.sampleGrid == null) {
+            // surfaces from profile requests get their sample grid on first use, which makes them much bigger
+            surf.makeSampleGridWithoutSPT();
+            otpServer.surfaceCache.reweigh(surf);
+        }
         List<IsochroneData> isochrones = getIsochronesAccumulative(surf, spacing, nMax);
         // NOTE that cutoffMinutes in the surface must be properly set for the following call to work
         final FeatureCollection fc = LIsochrone.makeContourFeatures(isochrones);
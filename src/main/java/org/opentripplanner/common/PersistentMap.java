@@ -0,0 +1,151 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * An immutable map from which new versions with some entries changed can be derived cheaply, sharing most of their
+ * storage with the original. It is meant for data that is read concurrently by many threads while a single writer
+ * derives new versions from time to time, like real-time timetable snapshots.
+ *
+ * A version is a stack of hash maps (layers) that are never modified once created: each derived version adds a layer
+ * holding only the changed entries, and lookups go from the newest to the oldest layer. To keep lookups fast, a new
+ * layer is merged with the one below it whenever that one is less than MERGE_RATIO times larger, as in a binary
+ * counter. This keeps the number of layers logarithmic in the number of entries, and each entry is copied a
+ * logarithmic number of times over its lifetime, so the cost of deriving a version is proportional to the number of
+ * changed entries (amortized).
+ */
+public final class PersistentMap<K, V> {
+
+    private static final int MERGE_RATIO = 4;
+
+    /** Marks an entry removed in a layer, hiding any value in the layers below. */
+    private static final Object REMOVED = new Object();
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(Collections.emptyList(), 0);
+
+    /** The layers, oldest first. The oldest layer contains no REMOVED markers. */
+    private final List<Map<K, Object>> layers;
+
+    private final int size;
+
+    private PersistentMap(List<Map<K, Object>> layers, int size) {
+        this.layers = layers;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        for (int i = layers.size() - 1; i >= 0; i--) {
+            Object value = layers.get(i).get(key);
+            if (value != null) {
+                return value == REMOVED ? null : (V) value;
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** @return the number of layers, which lookups have to go through in the worst case. */
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    /**
+     * Derive a new version of this map with the given changes applied. A null value in the changes removes the key.
+     * Neither this map nor the changes are modified.
+     */
+    public PersistentMap<K, V> plus(Map<K, V> changes) {
+        if (changes.isEmpty()) {
+            return this;
+        }
+        Map<K, Object> layer = new HashMap<>(changes.size() * 2);
+        int newSize = size;
+        for (Entry<K, V> entry : changes.entrySet()) {
+            boolean present = get(entry.getKey()) != null;
+            if (entry.getValue() == null) {
+                if (present) {
+                    layer.put(entry.getKey(), REMOVED);
+                    newSize--;
+                }
+            } else {
+                layer.put(entry.getKey(), entry.getValue());
+                if (!present) {
+                    newSize++;
+                }
+            }
+        }
+        if (layer.isEmpty()) {
+            return this;
+        }
+        List<Map<K, Object>> newLayers = new ArrayList<>(layers.size() + 1);
+        newLayers.addAll(layers);
+        newLayers.add(layer);
+        while (newLayers.size() > 1) {
+            Map<K, Object> newest = newLayers.get(newLayers.size() - 1);
+            Map<K, Object> older = newLayers.get(newLayers.size() - 2);
+            if (newest.size() * MERGE_RATIO < older.size()) {
+                break;
+            }
+            Map<K, Object> merged = new HashMap<>(older);
+            merged.putAll(newest);
+            if (newLayers.size() == 2) {
+                // nothing left to hide below the oldest layer
+                merged.values().removeAll(Collections.singleton(REMOVED));
+            }
+            newLayers.remove(newLayers.size() - 1);
+            newLayers.set(newLayers.size() - 1, merged);
+        }
+        return new PersistentMap<>(newLayers, newSize);
+    }
+
+    /** @return a new mutable map with all the entries of this one. */
+    @SuppressWarnings("unchecked")
+    public Map<K, V> toMap() {
+        Map<K, V> map = new HashMap<>(size * 2);
+        for (Map<K, Object> layer : layers) {
+            for (Entry<K, Object> entry : layer.entrySet()) {
+                if (entry.getValue() == REMOVED) {
+                    map.remove(entry.getKey());
+                } else {
+                    map.put(entry.getKey(), (V) entry.getValue());
+                }
+            }
+        }
+        return map;
+    }
+
+}
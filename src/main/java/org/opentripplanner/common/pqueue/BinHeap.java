@@ -37,6 +37,14 @@ public class BinHeap<T> {
         size = 0;
         prio[0] = Double.NEGATIVE_INFINITY;    // set sentinel
     }
+
+    /** Make a copy of another queue, which can then be changed independently of it. */
+    public BinHeap(BinHeap<T> other) {
+        this.capacity = other.capacity;
+        this.size = other.size;
+        this.elem = Arrays.copyOf(other.elem, other.elem.length);
+        this.prio = Arrays.copyOf(other.prio, other.prio.length);
+    }
     
     public int size() {
     	return size;
@@ -117,6 +125,20 @@ public class BinHeap<T> {
     	size=0;
     } 
 
+    /**
+     * Empty the queue and release references to the elements it held, keeping the allocated arrays so the heap
+     * can be reused for another search without growing again. Slots beyond the current size may still hold
+     * extracted elements, so the whole array is cleared.
+     */
+    public void clear() {
+        Arrays.fill(elem, null);
+        size = 0;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
     public void insert(T e, double p) {
         int i;
         size += 1;
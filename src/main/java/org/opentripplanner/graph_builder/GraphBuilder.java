@@ -15,11 +15,15 @@ package org.opentripplanner.graph_builder;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.google.common.collect.Lists;
+import org.opentripplanner.graph_builder.linking.StreetLinkingCache;
 import org.opentripplanner.graph_builder.model.GtfsBundle;
+import org.opentripplanner.graph_builder.module.ContractionHierarchyModule;
 import org.opentripplanner.graph_builder.module.DirectTransferGenerator;
 import org.opentripplanner.graph_builder.module.EmbedConfig;
 import org.opentripplanner.graph_builder.module.GtfsModule;
+import org.opentripplanner.graph_builder.module.LandmarkModule;
 import org.opentripplanner.graph_builder.module.PruneFloatingIslands;
+import org.opentripplanner.graph_builder.module.StreetGraphSnapshot;
 import org.opentripplanner.graph_builder.module.StreetLinkerModule;
 import org.opentripplanner.graph_builder.module.TransitToTaggedStopsModule;
 import org.opentripplanner.graph_builder.module.map.BusRouteStreetMatcher;
@@ -36,6 +40,7 @@ import org.opentripplanner.openstreetmap.impl.AnyFileBasedOpenStreetMapProviderI
 import org.opentripplanner.openstreetmap.services.OpenStreetMapProvider;
 import org.opentripplanner.reflect.ReflectionLibrary;
 import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.CompactGraphFormat;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Graph.LoadLevel;
 import org.opentripplanner.standalone.CommandLineParameters;
@@ -82,6 +87,9 @@ public class GraphBuilder implements Runnable {
     /** Should the graph be serialized to disk after being created or not? */
     public boolean serializeGraph = true;
 
+    /** Should the graph be saved in the compact columnar format rather than with Java serialization? */
+    public boolean compactGraphFormat = false;
+
     public void addModule(GraphBuilderModule loader) {
         _graphBuilderModules.add(loader);
     }
@@ -156,13 +164,21 @@ public class GraphBuilder implements Runnable {
         }
         
         HashMap<Class<?>, Object> extra = new HashMap<Class<?>, Object>();
-        for (GraphBuilderModule load : _graphBuilderModules)
+        for (GraphBuilderModule load : _graphBuilderModules) {
+            long moduleStartTime = System.currentTimeMillis();
             load.buildGraph(graph, extra);
+            LOG.info(String.format("%s took %.1f seconds.", load.getClass().getSimpleName(),
+                    (System.currentTimeMillis() - moduleStartTime) / 1000.0));
+        }
 
         graph.summarizeBuilderAnnotations();
         if (serializeGraph) {
             try {
-                graph.save(graphFile);
+                if (compactGraphFormat) {
+                    CompactGraphFormat.save(graph, graphFile);
+                } else {
+                    graph.save(graphFile);
+                }
             } catch (Exception ex) {
                 throw new IllegalStateException(ex);
             }
@@ -230,7 +246,60 @@ public class GraphBuilder implements Runnable {
             LOG.error("Found no input files from which to build a graph in {}", dir);
             return null;
         }
-        if ( hasOSM ) {
+        // Load elevation data and apply it to the streets.
+        // We want to do run this module after loading the OSM street network but before finding transfers.
+        ElevationModule elevationBuilder = null;
+        if (builderParams.elevationBucket != null) {
+            // Download the elevation tiles from an Amazon S3 bucket
+            S3BucketConfig bucketConfig = builderParams.elevationBucket;
+            File cacheDirectory = new File(params.cacheDirectory, "ned");
+            DegreeGridNEDTileSource awsTileSource = new DegreeGridNEDTileSource();
+            awsTileSource = new DegreeGridNEDTileSource();
+            awsTileSource.awsAccessKey = bucketConfig.accessKey;
+            awsTileSource.awsSecretKey = bucketConfig.secretKey;
+            awsTileSource.awsBucketName = bucketConfig.bucketName;
+            NEDGridCoverageFactoryImpl gcf = new NEDGridCoverageFactoryImpl(cacheDirectory);
+            gcf.tileSource = awsTileSource;
+            elevationBuilder = new ElevationModule(gcf);
+        } else if (builderParams.fetchElevationUS) {
+            // Download the elevation tiles from the official web service
+            File cacheDirectory = new File(params.cacheDirectory, "ned");
+            ElevationGridCoverageFactory gcf = new NEDGridCoverageFactoryImpl(cacheDirectory);
+            elevationBuilder = new ElevationModule(gcf);
+        } else if (demFile != null) {
+            // Load the elevation from a file in the graph inputs directory
+            ElevationGridCoverageFactory gcf = new GeotiffGridCoverageFactoryImpl(demFile);
+            elevationBuilder = new ElevationModule(gcf);
+        }
+        if (elevationBuilder != null) {
+            elevationBuilder.tiled = builderParams.tiledElevation;
+        }
+        // In incremental mode the street layer is built first and saved, or loaded from a previous build of the same
+        // street inputs, and only the transit modules are run on top of it. This requires the elevation to be
+        // applied before the stops are linked rather than after.
+        StreetGraphSnapshot streetSnapshot = null;
+        if (hasOSM && builderParams.incrementalBuild) {
+            List<File> streetInputs = Lists.newArrayList(osmFiles);
+            if (demFile != null) {
+                streetInputs.add(demFile);
+            }
+            try {
+                String inputHash = StreetGraphSnapshot.hashInputs(streetInputs, builderConfig);
+                streetSnapshot = new StreetGraphSnapshot(new File(params.cacheDirectory, "streets"), inputHash);
+            } catch (IOException e) {
+                LOG.warn("Could not hash the street inputs, building the whole graph: {}", e.getMessage());
+            }
+        }
+        boolean streetsFromSnapshot = false;
+        if (streetSnapshot != null && streetSnapshot.exists()) {
+            Graph streetGraph = streetSnapshot.load();
+            if (streetGraph != null) {
+                LOG.info("Reusing the streets of a previous build, only transit will be built.");
+                graphBuilder.graph = streetGraph;
+                streetsFromSnapshot = true;
+            }
+        }
+        if ( hasOSM && !streetsFromSnapshot ) {
             List<OpenStreetMapProvider> osmProviders = Lists.newArrayList();
             for (File osmFile : osmFiles) {
                 OpenStreetMapProvider osmProvider = new AnyFileBasedOpenStreetMapProviderImpl(osmFile);
@@ -247,8 +316,15 @@ public class GraphBuilder implements Runnable {
             osmModule.staticBikeRental = builderParams.staticBikeRental;
             osmModule.staticBikeParkAndRide = builderParams.staticBikeParkAndRide;
             osmModule.staticParkAndRide = builderParams.staticParkAndRide;
+            osmModule.nodeStorage = builderParams.osmNodeStorage;
             graphBuilder.addModule(osmModule);
             graphBuilder.addModule(new PruneFloatingIslands());
+            if (streetSnapshot != null) {
+                if (elevationBuilder != null) {
+                    graphBuilder.addModule(elevationBuilder);
+                }
+                graphBuilder.addModule(streetSnapshot);
+            }
         }
         if ( hasGTFS ) {
             List<GtfsBundle> gtfsBundles = Lists.newArrayList();
@@ -274,32 +350,18 @@ public class GraphBuilder implements Runnable {
         }
         // This module is outside the hasGTFS conditional block because it also links things like bike rental
         // which need to be handled even when there's no transit.
-        graphBuilder.addModule(new StreetLinkerModule());
-        // Load elevation data and apply it to the streets.
-        // We want to do run this module after loading the OSM street network but before finding transfers.
-        if (builderParams.elevationBucket != null) {
-            // Download the elevation tiles from an Amazon S3 bucket
-            S3BucketConfig bucketConfig = builderParams.elevationBucket;
-            File cacheDirectory = new File(params.cacheDirectory, "ned");
-            DegreeGridNEDTileSource awsTileSource = new DegreeGridNEDTileSource();
-            awsTileSource = new DegreeGridNEDTileSource();
-            awsTileSource.awsAccessKey = bucketConfig.accessKey;
-            awsTileSource.awsSecretKey = bucketConfig.secretKey;
-            awsTileSource.awsBucketName = bucketConfig.bucketName;
-            NEDGridCoverageFactoryImpl gcf = new NEDGridCoverageFactoryImpl(cacheDirectory);
-            gcf.tileSource = awsTileSource;
-            GraphBuilderModule elevationBuilder = new ElevationModule(gcf);
-            graphBuilder.addModule(elevationBuilder);
-        } else if (builderParams.fetchElevationUS) {
-            // Download the elevation tiles from the official web service
-            File cacheDirectory = new File(params.cacheDirectory, "ned");
-            ElevationGridCoverageFactory gcf = new NEDGridCoverageFactoryImpl(cacheDirectory);
-            GraphBuilderModule elevationBuilder = new ElevationModule(gcf);
-            graphBuilder.addModule(elevationBuilder);
-        } else if (demFile != null) {
-            // Load the elevation from a file in the graph inputs directory
-            ElevationGridCoverageFactory gcf = new GeotiffGridCoverageFactoryImpl(demFile);
-            GraphBuilderModule elevationBuilder = new ElevationModule(gcf);
+        StreetLinkerModule streetLinkerModule = new StreetLinkerModule();
+        if (hasOSM && builderParams.streetLinkingCache) {
+            try {
+                String inputHash = StreetLinkingCache.hashInputs(osmFiles, String.valueOf(builderConfig));
+                streetLinkerModule.cache = new StreetLinkingCache(new File(params.cacheDirectory, "linking"),
+                        inputHash);
+            } catch (IOException e) {
+                LOG.warn("Could not hash the OSM inputs, not using the street linking cache: {}", e.getMessage());
+            }
+        }
+        graphBuilder.addModule(streetLinkerModule);
+        if (elevationBuilder != null && streetSnapshot == null) {
             graphBuilder.addModule(elevationBuilder);
         }
         if ( hasGTFS ) {
@@ -309,11 +371,18 @@ public class GraphBuilder implements Runnable {
                 graphBuilder.addModule(new DirectTransferGenerator());
             }
         }
+        if (builderParams.landmarks > 0) {
+            graphBuilder.addModule(new LandmarkModule(builderParams.landmarks, LandmarkModule.DEFAULT_MODES));
+        }
+        if (builderParams.contractionHierarchies) {
+            graphBuilder.addModule(new ContractionHierarchyModule(ContractionHierarchyModule.DEFAULT_MODES));
+        }
         graphBuilder.addModule(new EmbedConfig(builderConfig, routerConfig));
         if (builderParams.htmlAnnotations) {
             graphBuilder.addModule(new AnnotationsToHTML(new File(params.build, "report.html")));
         }
         graphBuilder.serializeGraph = ( ! params.inMemory ) || params.preFlight;
+        graphBuilder.compactGraphFormat = builderParams.compactGraphFormat;
         return graphBuilder;
     }
 
@@ -36,9 +36,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * This class links transit stops to streets by splitting the streets (unless the stop is extremely close to the street
@@ -70,13 +73,34 @@ public class SimpleStreetSplitter {
 
     private static GeometryFactory geometryFactory = GeometryUtils.getGeometryFactory();
 
+    /** The links of a previous graph build, or null to always search for the streets to link to. */
+    private StreetLinkingCache cache;
+
+    /** When using a cache, the two edges each split edge was replaced with. */
+    private Map<StreetEdge, P2<StreetEdge>> splitEdges = new HashMap<StreetEdge, P2<StreetEdge>>();
+
+    /** When using a cache, the edge of the unsplit street network each edge created by a split comes from. */
+    private Map<StreetEdge, StreetEdge> originalEdges = new HashMap<StreetEdge, StreetEdge>();
+
+    /** When using a cache, the edges of the unsplit street network which have been split, by edge key. */
+    private Map<String, StreetEdge> splitOriginalEdges = new HashMap<String, StreetEdge>();
+
     /**
      * Construct a new SimpleStreetSplitter. Be aware that only one SimpleStreetSplitter should be
      * active on a graph at any given time.
      * @param graph
      */
     public SimpleStreetSplitter (Graph graph) {
+        this(graph, null);
+    }
+
+    /**
+     * Construct a new SimpleStreetSplitter that links the vertices found in the cache to the streets recorded there,
+     * and records the streets all vertices are linked to in the cache.
+     */
+    public SimpleStreetSplitter (Graph graph, StreetLinkingCache cache) {
         this.graph = graph;
+        this.cache = cache;
 
         // build a nice private spatial index, since we're adding and removing edges
         idx = new HashGridSpatialIndex<StreetEdge>();
@@ -118,13 +142,29 @@ public class SimpleStreetSplitter {
 
         double duplicateDeg = SphericalDistanceLibrary.metersToDegrees(DUPLICATE_WAY_EPSILON_METERS);
 
+        // When the vertex was linked in a previous build of the same streets, the edges it was linked to (or what
+        // remains of them after other splits) are the only candidates a search could find.
+        String vertexKey = null;
+        List<StreetEdge> cachedEdges = null;
+        if (cache != null) {
+            vertexKey = StreetLinkingCache.vertexKey(vertex);
+            String[] edgeKeys = cache.get(vertexKey);
+            if (edgeKeys != null) {
+                cachedEdges = getCurrentEdges(edgeKeys);
+                if (cachedEdges == null) {
+                    cache.invalidate();
+                }
+            }
+        }
+
         // We sort the list of candidate edges by distance to the stop
         // This should remove any issues with things coming out of the spatial index in different orders
         // Then we link to everything that is within DUPLICATE_WAY_EPSILON_METERS of of the best distance
         // so that we capture back edges and duplicate ways.
         // TODO all the code below looks like a good candidate for Java 8 streams and lambdas
+        Collection<StreetEdge> queriedEdges = cachedEdges != null ? cachedEdges : idx.query(env);
         List<StreetEdge> candidateEdges = new ArrayList<StreetEdge>(
-                Collections2.filter(idx.query(env), new Predicate<StreetEdge>() {
+                Collections2.filter(queriedEdges, new Predicate<StreetEdge>() {
 
                     @Override
                     public boolean apply(StreetEdge edge) {
@@ -176,6 +216,15 @@ public class SimpleStreetSplitter {
         } while (i < candidateEdges.size() &&
                 distances.get(candidateEdges.get(i).getId()) - distances.get(candidateEdges.get(i - 1).getId()) < duplicateDeg);
 
+        if (cache != null) {
+            String[] edgeKeys = new String[bestEdges.size()];
+            for (int j = 0; j < edgeKeys.length; j++) {
+                StreetEdge original = originalEdges.get(bestEdges.get(j));
+                edgeKeys[j] = StreetLinkingCache.edgeKey(original != null ? original : bestEdges.get(j));
+            }
+            cache.put(vertexKey, edgeKeys);
+        }
+
         for (StreetEdge edge : bestEdges) {
             link(vertex, edge, xscale);
         }
@@ -183,6 +232,45 @@ public class SimpleStreetSplitter {
         return true;
     }
 
+    /**
+     * @return the edges currently in the graph which are, or come from splitting, the edges of the unsplit street
+     *         network with the given keys, or null if one of them cannot be found.
+     */
+    private List<StreetEdge> getCurrentEdges(String[] edgeKeys) {
+        List<StreetEdge> edges = new ArrayList<StreetEdge>();
+        for (String edgeKey : edgeKeys) {
+            StreetEdge original = splitOriginalEdges.get(edgeKey);
+            if (original == null) {
+                String[] fields = edgeKey.split("\t");
+                Vertex from = graph.getVertex(fields[0]);
+                if (from == null) {
+                    return null;
+                }
+                for (StreetEdge edge : Iterables.filter(from.getOutgoing(), StreetEdge.class)) {
+                    if (edgeKey.equals(StreetLinkingCache.edgeKey(edge))) {
+                        original = edge;
+                        break;
+                    }
+                }
+                if (original == null) {
+                    return null;
+                }
+            }
+            addCurrentEdges(original, edges);
+        }
+        return edges.isEmpty() ? null : edges;
+    }
+
+    private void addCurrentEdges(StreetEdge edge, List<StreetEdge> edges) {
+        P2<StreetEdge> pieces = splitEdges.get(edge);
+        if (pieces == null) {
+            edges.add(edge);
+        } else {
+            addCurrentEdges(pieces.first, edges);
+            addCurrentEdges(pieces.second, edges);
+        }
+    }
+
     /** split the edge and link in the transit stop */
     private void link (Vertex tstop, StreetEdge edge, double xscale) {
         // TODO: we've already built this line string, we should save it
@@ -235,6 +323,17 @@ public class SimpleStreetSplitter {
         idx.insert(edges.first.getGeometry().getEnvelopeInternal(), edges.first);
         idx.insert(edges.second.getGeometry().getEnvelopeInternal(), edges.second);
 
+        if (cache != null) {
+            StreetEdge original = originalEdges.get(edge);
+            if (original == null) {
+                original = edge;
+                splitOriginalEdges.put(StreetLinkingCache.edgeKey(edge), edge);
+            }
+            splitEdges.put(edge, edges);
+            originalEdges.put(edges.first, original);
+            originalEdges.put(edges.second, original);
+        }
+
         // (no need to remove original edge, we filter it when it comes out of the index)
 
         // remove original edge
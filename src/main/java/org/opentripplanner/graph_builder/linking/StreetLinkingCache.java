@@ -0,0 +1,184 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.linking;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Remembers which streets the stops, bike rental stations and bike parks were linked to in a previous graph build,
+ * so that SimpleStreetSplitter can link them again without searching the spatial index when the street network has
+ * not changed. The cache file is named after a hash of the street inputs and of the build parameters, so a cache is
+ * only ever used with exactly the same streets. A vertex is found again in the cache only if it has the same type,
+ * label and coordinates; new and moved vertices are linked with a spatial search as usual.
+ *
+ * The streets are recorded as they were before any of them was split for linking, so a vertex can be linked again
+ * whatever other vertices have been linked, or not, before it.
+ */
+public class StreetLinkingCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreetLinkingCache.class);
+
+    /** Change this when the linking logic or the cache format changes, to ignore older caches. */
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    /** The streets each vertex was linked to in the previous build. */
+    private final Map<String, String[]> previous;
+
+    /** The streets each vertex was linked to in this build, which will be saved for the next one. */
+    private final Map<String, String[]> current = new HashMap<String, String[]>();
+
+    private int hits = 0;
+
+    private int misses = 0;
+
+    /**
+     * @param directory where the cache files are kept.
+     * @param inputHash a hash of the street inputs and build parameters, see {@link #hashInputs}.
+     */
+    public StreetLinkingCache(File directory, String inputHash) {
+        this.file = new File(directory, "linking-" + inputHash + ".bin.gz");
+        this.previous = load(file);
+    }
+
+    /** @return a hash of the contents of the given files and of the given parameters. */
+    public static String hashInputs(Collection<File> inputs, String parameters) throws IOException {
+        List<File> sortedInputs = new ArrayList<File>(inputs);
+        Collections.sort(sortedInputs);
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putInt(VERSION);
+        for (File input : sortedInputs) {
+            hasher.putString(input.getName(), StandardCharsets.UTF_8);
+            hasher.putBytes(Files.hash(input, Hashing.sha1()).asBytes());
+        }
+        hasher.putString(parameters, StandardCharsets.UTF_8);
+        hasher.putDouble(SimpleStreetSplitter.MAX_SEARCH_RADIUS_METERS);
+        hasher.putDouble(SimpleStreetSplitter.DUPLICATE_WAY_EPSILON_METERS);
+        return hasher.hash().toString();
+    }
+
+    /** @return the key under which the streets a vertex is linked to are kept. */
+    public static String vertexKey(Vertex vertex) {
+        return vertex.getClass().getSimpleName() + "\t" + vertex.getLabel() + "\t" + vertex.getLat() + "\t"
+                + vertex.getLon();
+    }
+
+    /** @return a key identifying a street edge of the unsplit street network across graph builds. */
+    public static String edgeKey(StreetEdge edge) {
+        return edge.getFromVertex().getLabel() + "\t" + edge.getToVertex().getLabel() + "\t"
+                + Math.round(edge.getDistance() * 1000);
+    }
+
+    /** @return the keys of the streets the vertex was linked to in the previous build, or null if it was not. */
+    public String[] get(String vertexKey) {
+        String[] edgeKeys = previous.get(vertexKey);
+        if (edgeKeys == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return edgeKeys;
+    }
+
+    /** Record the streets a vertex was linked to in this build. */
+    public void put(String vertexKey, String[] edgeKeys) {
+        current.put(vertexKey, edgeKeys);
+    }
+
+    /** A vertex found in the cache had to be linked with a spatial search anyway. */
+    void invalidate() {
+        hits--;
+        misses++;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    /** Replace the cache file with the links of this build, and log the hit rate. */
+    public void save() {
+        int lookups = hits + misses;
+        LOG.info("Street linking cache: {} hits out of {} lookups ({}%)", hits, lookups,
+                lookups == 0 ? 0 : hits * 100 / lookups);
+        file.getParentFile().mkdirs();
+        try {
+            ObjectOutputStream out = new ObjectOutputStream(new GZIPOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file))));
+            try {
+                out.writeInt(VERSION);
+                out.writeObject(current);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not save the street linking cache to {}: {}", file, e.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String[]> load(File file) {
+        if (!file.exists()) {
+            LOG.info("No street linking cache for these street inputs, all vertices will be linked by search.");
+            return Collections.emptyMap();
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new GZIPInputStream(new BufferedInputStream(
+                    new FileInputStream(file))));
+            try {
+                if (in.readInt() != VERSION) {
+                    return Collections.emptyMap();
+                }
+                Map<String, String[]> links = (Map<String, String[]>) in.readObject();
+                LOG.info("Loaded the links of {} vertices from the street linking cache {}", links.size(), file);
+                return links;
+            } finally {
+                in.close();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            LOG.warn("Could not load the street linking cache {}: {}", file, e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.util.HashMap;
+
+import org.opentripplanner.graph_builder.services.GraphBuilderModule;
+import org.opentripplanner.routing.contraction.ContractionHierarchies;
+import org.opentripplanner.routing.contraction.ContractionHierarchy;
+import org.opentripplanner.routing.contraction.ContractionHierarchyBuilder;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.graph.Graph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a contraction hierarchy over the street network for each of the given modes and stores them in the graph as
+ * a ContractionHierarchies service, which GraphPathFinder then uses for street-only requests. The street weights are
+ * those of a default routing request for each mode. This should run after all the street edges and turn restrictions
+ * have been created.
+ */
+public class ContractionHierarchyModule implements GraphBuilderModule {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContractionHierarchyModule.class);
+
+    public static final TraverseMode[] DEFAULT_MODES = { TraverseMode.WALK, TraverseMode.BICYCLE, TraverseMode.CAR };
+
+    private final TraverseMode[] modes;
+
+    public ContractionHierarchyModule(TraverseMode... modes) {
+        this.modes = modes;
+    }
+
+    @Override
+    public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+        ContractionHierarchies hierarchies = new ContractionHierarchies();
+        for (TraverseMode mode : modes) {
+            LOG.info("Building the contraction hierarchy for {}...", mode);
+            ContractionHierarchy.Metric metric = new ContractionHierarchy.Metric(new RoutingRequest(mode));
+            hierarchies.put(new ContractionHierarchyBuilder(graph, mode, metric).build());
+        }
+        graph.putService(ContractionHierarchies.class, hierarchies);
+    }
+
+    @Override
+    public void checkInputs() {
+        // no inputs
+    }
+
+}
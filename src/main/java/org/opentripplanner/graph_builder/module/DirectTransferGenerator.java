@@ -14,6 +14,7 @@
 package org.opentripplanner.graph_builder.module;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import org.opentripplanner.graph_builder.annotation.StopNotLinkedForTransfers;
 import org.opentripplanner.graph_builder.services.GraphBuilderModule;
 import org.opentripplanner.routing.edgetype.PathwayEdge;
@@ -25,11 +26,17 @@ import org.opentripplanner.routing.vertextype.TransitStop;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * {@link org.opentripplanner.graph_builder.services.GraphBuilderModule} module that links up the stops of a transit network among themselves. This is necessary for
@@ -46,6 +53,9 @@ public class DirectTransferGenerator implements GraphBuilderModule {
 
     int maxDuration = 60 * 10;
 
+    /** The number of threads searching for the stops near each stop. */
+    int nThreads = Runtime.getRuntime().availableProcessors();
+
     public List<String> provides() {
         return Arrays.asList("linking");
     }
@@ -60,25 +70,63 @@ public class DirectTransferGenerator implements GraphBuilderModule {
         if (graph.index == null) {
             graph.index = new GraphIndex(graph);
         }
+        /* Initialize the lazily computed state the searches read, before they run concurrently. */
+        graph.getTimeZone();
 
         /* The linker will use streets if they are available, or straight-line distance otherwise. */
-        NearbyStopFinder nearbyStopFinder = new NearbyStopFinder(graph, maxDuration);
-        if (nearbyStopFinder.useStreets) {
+        final boolean useStreets = graph.hasStreets;
+        if (useStreets) {
             LOG.info("Creating direct transfer edges between stops using the street network from OSM...");
         } else {
             LOG.info("Creating direct transfer edges between stops using straight line distance (not streets)...");
         }
+        long startTime = System.currentTimeMillis();
 
-        int nTransfersTotal = 0;
-        int nLinkableStops = 0;
-
+        /* Skip stops that are entrances to stations or whose entrances are coded separately */
+        List<TransitStop> linkableStops = new ArrayList<TransitStop>();
         for (TransitStop ts0 : Iterables.filter(graph.getVertices(), TransitStop.class)) {
+            if (ts0.isStreetLinkable()) linkableStops.add(ts0);
+        }
 
-            /* Skip stops that are entrances to stations or whose entrances are coded separately */
-            if (!ts0.isStreetLinkable()) continue;
-            if (++nLinkableStops % 1000 == 0) {
-                LOG.info("Linked {} stops", nLinkableStops);
+        /*
+         * Find the nearby stops of all the stops in parallel, each thread with its own stop finder and search state.
+         * The searches only follow street and link edges, so they do not depend on the transfers created below.
+         */
+        final ThreadLocal<NearbyStopFinder> nearbyStopFinders = new ThreadLocal<NearbyStopFinder>() {
+            @Override
+            protected NearbyStopFinder initialValue() {
+                return new NearbyStopFinder(graph, maxDuration, useStreets);
             }
+        };
+        final AtomicInteger nSearched = new AtomicInteger();
+        List<Callable<Set<NearbyStopFinder.StopAtDistance>>> searches = Lists.newArrayList();
+        for (final TransitStop ts0 : linkableStops) {
+            searches.add(new Callable<Set<NearbyStopFinder.StopAtDistance>>() {
+                @Override
+                public Set<NearbyStopFinder.StopAtDistance> call() {
+                    LOG.debug("Finding stops near stop '{}' {}", ts0.getStop(), ts0);
+                    Set<NearbyStopFinder.StopAtDistance> nearbyStops =
+                            nearbyStopFinders.get().findNearbyStopsConsideringPatterns(ts0);
+                    int n = nSearched.incrementAndGet();
+                    if (n % 1000 == 0) {
+                        LOG.info("Found the nearby stops of {} stops", n);
+                    }
+                    return nearbyStops;
+                }
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        List<Future<Set<NearbyStopFinder.StopAtDistance>>> results;
+        try {
+            results = pool.invokeAll(searches);
+        } finally {
+            pool.shutdown();
+        }
+
+        /* Create the transfers in the order of the stops, so the graph is the same as with a single thread. */
+        int nTransfersTotal = 0;
+        for (int i = 0; i < linkableStops.size(); i++) {
+            TransitStop ts0 = linkableStops.get(i);
             LOG.debug("Linking stop '{}' {}", ts0.getStop(), ts0);
 
             /* Determine the set of stops that are already reachable via other pathways or transfers */
@@ -94,7 +142,7 @@ public class DirectTransferGenerator implements GraphBuilderModule {
 
             /* Make transfers to each nearby stop that is the closest stop on some trip pattern. */
             int n = 0;
-            for (NearbyStopFinder.StopAtDistance sd : nearbyStopFinder.findNearbyStopsConsideringPatterns(ts0)) {
+            for (NearbyStopFinder.StopAtDistance sd : getResult(results.get(i))) {
                 /* Skip the origin stop, loop transfers are not needed. */
                 if (sd.tstop == ts0 || pathwayDestinations.contains(sd.tstop)) continue;
                 new SimpleTransfer(ts0, sd.tstop, sd.dist, sd.geom);
@@ -106,10 +154,22 @@ public class DirectTransferGenerator implements GraphBuilderModule {
             }
             nTransfersTotal += n;
         }
-        LOG.info("Done connecting stops to one another. Created a total of {} transfers from {} stops.", nTransfersTotal, nLinkableStops);
+        LOG.info("Done connecting stops to one another. Created a total of {} transfers from {} stops in {} sec using {} threads.",
+                nTransfersTotal, linkableStops.size(), (System.currentTimeMillis() - startTime) / 1000, nThreads);
         graph.hasDirectTransfers = true;
     }
 
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     @Override
     public void checkInputs() {
         // No inputs
@@ -0,0 +1,167 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.graph_builder.services.GraphBuilderModule;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkDistances;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.OnboardEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Picks landmark vertices in the street network and computes the distances from every vertex to and from each of
+ * them, for use by the LandmarkRemainingWeightHeuristic. The distances are stored in the graph as a LandmarkDistances
+ * service, with one table per street mode. This should run after all the vertices and street edges have been created,
+ * vertices created afterward are not covered by the tables.
+ *
+ * Landmarks are chosen with the usual "farthest" strategy: each new landmark is the vertex whose distance from the
+ * landmarks already chosen is the largest. Landmarks on the edges of the graph give good bounds for most pairs of
+ * vertices.
+ */
+public class LandmarkModule implements GraphBuilderModule {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LandmarkModule.class);
+
+    public static final TraverseMode[] DEFAULT_MODES = { TraverseMode.WALK, TraverseMode.BICYCLE, TraverseMode.CAR };
+
+    private final int nLandmarks;
+
+    private final TraverseMode[] modes;
+
+    public LandmarkModule(int nLandmarks, TraverseMode... modes) {
+        this.nLandmarks = nLandmarks;
+        this.modes = modes;
+    }
+
+    @Override
+    public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+        int maxIndex = -1;
+        for (Vertex v : graph.getVertices()) {
+            maxIndex = Math.max(maxIndex, v.getIndex());
+        }
+        Vertex[] vertices = new Vertex[maxIndex + 1];
+        Vertex start = null;
+        for (Vertex v : graph.getVertices()) {
+            vertices[v.getIndex()] = v;
+            if (v instanceof StreetVertex && (start == null || v.getIndex() < start.getIndex())) {
+                start = v;
+            }
+        }
+        if (start == null) {
+            LOG.info("No streets in the graph, not computing landmark distances.");
+            return;
+        }
+        LandmarkDistances distances = new LandmarkDistances(vertices, nLandmarks);
+        for (TraverseMode mode : modes) {
+            LOG.info("Computing street distances to and from {} landmarks for {}...", nLandmarks, mode);
+            distances.putTable(mode, buildTable(vertices, start, mode));
+        }
+        graph.putService(LandmarkDistances.class, distances);
+    }
+
+    private LandmarkDistances.Table buildTable(Vertex[] vertices, Vertex start, TraverseMode mode) {
+        char[] fromLandmarks = new char[vertices.length * nLandmarks];
+        char[] toLandmarks = new char[vertices.length * nLandmarks];
+        Vertex[] landmarks = new Vertex[nLandmarks];
+        // The distance from the closest landmark so far to each vertex, the next landmark is the farthest vertex.
+        double[] fromClosest = distances(vertices, start, mode, false);
+        for (int l = 0; l < nLandmarks; l++) {
+            Vertex landmark = start;
+            for (int v = 0; v < vertices.length; v++) {
+                if (fromClosest[v] != Double.POSITIVE_INFINITY && fromClosest[v] > fromClosest[landmark.getIndex()]) {
+                    landmark = vertices[v];
+                }
+            }
+            landmarks[l] = landmark;
+            double[] from = distances(vertices, landmark, mode, false);
+            double[] to = distances(vertices, landmark, mode, true);
+            for (int v = 0; v < vertices.length; v++) {
+                fromLandmarks[v * nLandmarks + l] = LandmarkDistances.encode(from[v]);
+                toLandmarks[v * nLandmarks + l] = LandmarkDistances.encode(to[v]);
+                if (l == 0 || from[v] < fromClosest[v]) {
+                    fromClosest[v] = from[v];
+                }
+            }
+            LOG.debug("Landmark {} for {}: {}", l, mode, landmark);
+        }
+        return new LandmarkDistances.Table(landmarks, fromLandmarks, toLandmarks);
+    }
+
+    /**
+     * A Dijkstra search on edge lengths, from the origin to all vertices or from all vertices to the origin if reverse
+     * is true.
+     * @return the distance in meters for each vertex index, infinite for unreachable vertices.
+     */
+    private static double[] distances(Vertex[] vertices, Vertex origin, TraverseMode mode, boolean reverse) {
+        double[] distances = new double[vertices.length];
+        Arrays.fill(distances, Double.POSITIVE_INFINITY);
+        BinHeap<Vertex> queue = new BinHeap<Vertex>();
+        distances[origin.getIndex()] = 0;
+        queue.insert(origin, 0);
+        while (!queue.empty()) {
+            double distance = queue.peek_min_key();
+            Vertex v = queue.extract_min();
+            if (distance > distances[v.getIndex()]) {
+                continue; // already reached by a shorter path
+            }
+            for (Edge e : reverse ? v.getIncoming() : v.getOutgoing()) {
+                double length = length(e, mode);
+                Vertex next = reverse ? e.getFromVertex() : e.getToVertex();
+                if (length < 0 || next.getIndex() >= vertices.length || vertices[next.getIndex()] != next) {
+                    continue;
+                }
+                if (distance + length < distances[next.getIndex()]) {
+                    distances[next.getIndex()] = distance + length;
+                    queue.insert(next, distance + length);
+                }
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * @return the length of the edge for the given mode, or -1 if the edge cannot be used. To keep the distances
+     *         lower bounds, edges that may be usable are kept, and edges with no length of their own count as zero.
+     */
+    private static double length(Edge e, TraverseMode mode) {
+        if (e instanceof OnboardEdge) {
+            return -1;
+        }
+        if (e instanceof StreetEdge) {
+            StreetTraversalPermission permission = ((StreetEdge) e).getPermission();
+            // bicycles can be walked on pedestrian streets
+            boolean allowed = permission.allows(mode)
+                    || (mode == TraverseMode.BICYCLE && permission.allows(TraverseMode.WALK));
+            return allowed ? e.getDistance() : -1;
+        }
+        return e.getDistance();
+    }
+
+    @Override
+    public void checkInputs() {
+        // no inputs
+    }
+
+}
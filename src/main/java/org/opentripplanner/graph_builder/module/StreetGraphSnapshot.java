@@ -0,0 +1,166 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.opentripplanner.graph_builder.services.GraphBuilderModule;
+import org.opentripplanner.routing.graph.CompactGraphFormat;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Graph.LoadLevel;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * Saves the street layer of a graph (the result of the OSM, island pruning and elevation modules) so that later builds
+ * from the same street inputs can start from it and only run the transit modules. The snapshot is written in the
+ * compact graph format, which is memory-mapped and loads much faster than a serialized graph, and is named after a
+ * hash of the street inputs and of the build parameters that affect the streets. Changing the OSM or elevation files
+ * or one of those parameters therefore leads to a full build, which replaces the snapshot.
+ *
+ * This module must be run before any transit data is added to the graph.
+ */
+public class StreetGraphSnapshot implements GraphBuilderModule {
+
+    private static final Logger LOG = LoggerFactory.getLogger(StreetGraphSnapshot.class);
+
+    /** Change this when the street modules change in a way that makes existing snapshots wrong. */
+    private static final int VERSION = 1;
+
+    /** Build parameters which have no effect on the street layer, so that changing them keeps the snapshot. */
+    private static final Set<String> TRANSIT_PARAMETERS = new HashSet<String>(Arrays.asList("htmlAnnotations",
+            "transit", "useTransfersTxt", "parentStopLinking", "stationTransfers", "subwayAccessTime",
+            "embedRouterConfig", "matchBusRoutesToStreets", "fares", "compactGraphFormat", "landmarks",
+            "contractionHierarchies", "osmNodeStorage", "streetLinkingCache", "incrementalBuild", "tiledElevation"));
+
+    private final File file;
+
+    /**
+     * @param directory where the snapshots are kept.
+     * @param inputHash a hash of the street inputs and build parameters, see {@link #hashInputs}.
+     */
+    public StreetGraphSnapshot(File directory, String inputHash) {
+        this.file = new File(directory, "streets-" + inputHash + ".bin");
+    }
+
+    /**
+     * @return a hash of the contents of the given street input files and of the build parameters, apart from those
+     *         which only affect transit.
+     */
+    public static String hashInputs(Collection<File> inputs, JsonNode builderConfig) throws IOException {
+        List<File> sortedInputs = new ArrayList<File>(inputs);
+        Collections.sort(sortedInputs);
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putInt(VERSION);
+        for (File input : sortedInputs) {
+            hasher.putString(input.getName(), StandardCharsets.UTF_8);
+            hasher.putBytes(Files.hash(input, Hashing.sha1()).asBytes());
+        }
+        if (builderConfig != null && builderConfig.isObject()) {
+            ObjectNode streetConfig = ((ObjectNode) builderConfig).deepCopy();
+            for (Iterator<String> it = streetConfig.fieldNames(); it.hasNext(); ) {
+                if (TRANSIT_PARAMETERS.contains(it.next())) {
+                    it.remove();
+                }
+            }
+            hasher.putString(streetConfig.toString(), StandardCharsets.UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /** @return whether there is a snapshot of the same street inputs. */
+    public boolean exists() {
+        return file.exists();
+    }
+
+    /**
+     * @return a new graph with the streets of the snapshot, to which transit can be added, or null if the snapshot
+     *         cannot be read, in which case the streets have to be built again.
+     */
+    public Graph load() {
+        try {
+            long startTime = System.currentTimeMillis();
+            Graph graph = CompactGraphFormat.load(file, LoadLevel.FULL, new DefaultStreetVertexIndexFactory());
+            // Loading indexes the graph, which only has streets yet. Drop the indexes so that the transit modules build
+            // them with the stops and patterns, as they would on a freshly built graph.
+            graph.index = null;
+            graph.streetIndex = null;
+            LOG.info(String.format("Loaded the street graph snapshot %s in %.1f seconds.", file.getName(),
+                    (System.currentTimeMillis() - startTime) / 1000.0));
+            return graph;
+        } catch (Exception e) {
+            LOG.warn("Could not load the street graph snapshot {}, building the streets again: {}", file,
+                    e.getMessage());
+            return null;
+        }
+    }
+
+    public List<String> provides() {
+        return Arrays.asList("street snapshot");
+    }
+
+    public List<String> getPrerequisites() {
+        return Arrays.asList("streets");
+    }
+
+    @Override
+    public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
+        File directory = file.getParentFile();
+        directory.mkdirs();
+        // Write to a temporary file first, so that an interrupted build never leaves an incomplete snapshot behind.
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        try {
+            CompactGraphFormat.save(graph, tempFile);
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                if (!tempFile.renameTo(file)) {
+                    throw new IOException("Could not rename " + tempFile + " to " + file);
+                }
+            }
+            LOG.info("Saved the street graph snapshot {}", file);
+            // Snapshots of other street inputs are only useful to go back to older inputs, and are large.
+            for (File other : directory.listFiles()) {
+                if (other.getName().startsWith("streets-") && !other.equals(file)) {
+                    other.delete();
+                }
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            LOG.warn("Could not save the street graph snapshot {}: {}", file, e.getMessage());
+        }
+    }
+
+    @Override
+    public void checkInputs() {
+        // no inputs
+    }
+}
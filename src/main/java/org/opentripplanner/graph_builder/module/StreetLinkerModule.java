@@ -18,6 +18,7 @@ import java.util.HashMap;
 import java.util.List;
 
 import org.opentripplanner.graph_builder.linking.SimpleStreetSplitter;
+import org.opentripplanner.graph_builder.linking.StreetLinkingCache;
 import org.opentripplanner.graph_builder.services.GraphBuilderModule;
 import org.opentripplanner.routing.graph.Graph;
 import org.slf4j.Logger;
@@ -33,6 +34,9 @@ public class StreetLinkerModule implements GraphBuilderModule {
 
     private static final Logger LOG = LoggerFactory.getLogger(StreetLinkerModule.class);
 
+    /** The links of a previous build of the same streets, or null to link everything with a spatial search. */
+    public StreetLinkingCache cache;
+
     public List<String> provides() {
         return Arrays.asList("street to transit", "linking");
     }
@@ -47,8 +51,11 @@ public class StreetLinkerModule implements GraphBuilderModule {
     public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
         if(graph.hasStreets) {
             LOG.info("Linking transit stops, bike rental stations, bike parking areas, and park-and-rides to graph . . .");
-            SimpleStreetSplitter linker = new SimpleStreetSplitter(graph);
+            SimpleStreetSplitter linker = new SimpleStreetSplitter(graph, cache);
             linker.link();
+            if (cache != null) {
+                cache.save();
+            }
         }
         //Calculates convex hull of a graph which is shown in routerInfo API point
         graph.calculateConvexHull();
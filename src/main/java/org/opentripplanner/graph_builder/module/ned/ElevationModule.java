@@ -35,13 +35,23 @@ import org.opentripplanner.routing.graph.Vertex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
 import javax.media.jai.InterpolationBilinear;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * {@link org.opentripplanner.graph_builder.services.GraphBuilderModule} plugin that applies elevation data to street data that has already
@@ -61,9 +71,12 @@ public class ElevationModule implements GraphBuilderModule {
 
     private Coverage coverage;
 
-    // Keep track of the proportion of elevation fetch operations that fail so we can issue warnings.
-    private int nPointsEvaluated = 0;
-    private int nPointsOutsideDEM = 0;
+    // Keep track of the proportion of elevation fetch operations that fail so we can issue warnings. These are updated
+    // by the sampling threads in tiled mode.
+    private final LongAdder nPointsEvaluated = new LongAdder();
+    private final LongAdder nPointsOutsideDEM = new LongAdder();
+    // The points which were evaluated on the coverage rather than in a raster block, in tiled mode.
+    private final LongAdder nPointsEvaluatedOnCoverage = new LongAdder();
 
     /**
      * The distance between samples in meters. Defaults to 10m, the approximate resolution of 1/3
@@ -71,6 +84,13 @@ public class ElevationModule implements GraphBuilderModule {
      */
     private double distanceBetweenSamplesM = 10;
 
+    /** Whether to sample the elevation in raster blocks on several threads, see {@link TiledElevationSampler}. */
+    public boolean tiled = false;
+
+    int nThreads = Runtime.getRuntime().availableProcessors();
+
+    private static final int EDGES_PER_TASK = 1000;
+
     public ElevationModule() { /* This makes me a "bean" */ };
     
     public ElevationModule(ElevationGridCoverageFactory factory) {
@@ -105,25 +125,24 @@ public class ElevationModule implements GraphBuilderModule {
                 (GridCoverage2D) gridCov, new InterpolationBilinear()) : gridCov;
         log.info("Setting street elevation profiles from digital elevation model...");
         List<StreetEdge> edgesWithElevation = new ArrayList<StreetEdge>();
-        int nProcessed = 0;
-        int nTotal = graph.countEdges();
-        for (Vertex gv : graph.getVertices()) {
-            for (Edge ee : gv.getOutgoing()) {
-                if (ee instanceof StreetWithElevationEdge) {
-                    StreetWithElevationEdge edgeWithElevation = (StreetWithElevationEdge) ee;
-                    processEdge(graph, edgeWithElevation);
-                    if (edgeWithElevation.getElevationProfile() != null && !edgeWithElevation.isElevationFlattened()) {
-                        edgesWithElevation.add(edgeWithElevation);
-                    }
-                    nProcessed += 1;
-                    if (nProcessed % 50000 == 0) {
-                        log.info("set elevation on {}/{} edges", nProcessed, nTotal);
-                        double failurePercentage = nPointsOutsideDEM / nPointsEvaluated * 100;
-                        if (failurePercentage > 50) {
-                            log.warn("Fetching elevation failed at {}/{} points ({}%)",
-                                    nPointsOutsideDEM, nPointsEvaluated, failurePercentage);
-                            log.warn("Elevation is missing at a large number of points. DEM may be for the wrong region. " +
-                                    "If it is unprojected, perhaps the axes are not in (longitude, latitude) order.");
+        TiledElevationSampler sampler = tiled ? TiledElevationSampler.forCoverage(coverage) : null;
+        if (sampler != null) {
+            processEdgesInBlocks(graph, sampler, edgesWithElevation);
+        } else {
+            int nProcessed = 0;
+            int nTotal = graph.countEdges();
+            for (Vertex gv : graph.getVertices()) {
+                for (Edge ee : gv.getOutgoing()) {
+                    if (ee instanceof StreetWithElevationEdge) {
+                        StreetWithElevationEdge edgeWithElevation = (StreetWithElevationEdge) ee;
+                        processEdge(graph, edgeWithElevation);
+                        if (edgeWithElevation.getElevationProfile() != null && !edgeWithElevation.isElevationFlattened()) {
+                            edgesWithElevation.add(edgeWithElevation);
+                        }
+                        nProcessed += 1;
+                        if (nProcessed % 50000 == 0) {
+                            log.info("set elevation on {}/{} edges", nProcessed, nTotal);
+                            warnIfManyPointsOutsideDEM();
                         }
                     }
                 }
@@ -330,6 +349,112 @@ public class ElevationModule implements GraphBuilderModule {
         }
     }
 
+    /**
+     * Sample the elevation along all the street edges without an elevation profile, one raster block at a time, on
+     * several threads. The profiles are then assigned in the same order as in processEdge(), so the graph ends up
+     * exactly the same.
+     */
+    private void processEdgesInBlocks(Graph graph, final TiledElevationSampler sampler,
+            List<StreetEdge> edgesWithElevation) {
+        long startTime = System.currentTimeMillis();
+        final List<StreetWithElevationEdge> edges = new ArrayList<StreetWithElevationEdge>();
+        for (Vertex gv : graph.getVertices()) {
+            for (Edge ee : gv.getOutgoing()) {
+                if (ee instanceof StreetWithElevationEdge) {
+                    edges.add((StreetWithElevationEdge) ee);
+                }
+            }
+        }
+        // Group the edges by the raster block their first point is in. Most edges lie entirely within that block,
+        // the other points are evaluated on the coverage.
+        Map<Long, TIntList> edgesByBlock = new LinkedHashMap<Long, TIntList>();
+        for (int e = 0; e < edges.size(); e++) {
+            StreetWithElevationEdge ee = edges.get(e);
+            if (ee.getElevationProfile() != null) {
+                continue;
+            }
+            Coordinate start = ee.getGeometry().getCoordinateN(0);
+            long key = sampler.blockKey(start.x, start.y);
+            TIntList blockEdges = edgesByBlock.get(key);
+            if (blockEdges == null) {
+                blockEdges = new TIntArrayList();
+                edgesByBlock.put(key, blockEdges);
+            }
+            blockEdges.add(e);
+        }
+        log.info("Sampling elevation for {} edges in {} raster blocks on {} threads", edges.size(),
+                edgesByBlock.size(), nThreads);
+
+        final PackedCoordinateSequence[] profiles = new PackedCoordinateSequence[edges.size()];
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        try {
+            int nBlocks = 0;
+            for (Map.Entry<Long, TIntList> entry : edgesByBlock.entrySet()) {
+                final TiledElevationSampler.Block block = entry.getKey() < 0 ? null
+                        : sampler.loadBlock(entry.getKey());
+                final TIntList blockEdges = entry.getValue();
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+                for (int from = 0; from < blockEdges.size(); from += EDGES_PER_TASK) {
+                    final int taskFrom = from;
+                    final int taskTo = Math.min(from + EDGES_PER_TASK, blockEdges.size());
+                    tasks.add(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            for (int i = taskFrom; i < taskTo; i++) {
+                                int e = blockEdges.get(i);
+                                profiles[e] = computeProfile(edges.get(e), sampler, block);
+                            }
+                            return null;
+                        }
+                    });
+                }
+                for (Future<Void> future : pool.invokeAll(tasks)) {
+                    future.get();
+                }
+                if (++nBlocks % 10 == 0) {
+                    log.info("sampled elevation in {}/{} raster blocks", nBlocks, edgesByBlock.size());
+                    warnIfManyPointsOutsideDEM();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        for (int e = 0; e < edges.size(); e++) {
+            StreetWithElevationEdge ee = edges.get(e);
+            if (profiles[e] != null && ee.setElevationProfile(profiles[e], false)) {
+                log.trace(graph.addBuilderAnnotation(new ElevationFlattened(ee)));
+            }
+            if (ee.getElevationProfile() != null && !ee.isElevationFlattened()) {
+                edgesWithElevation.add(ee);
+            }
+        }
+        log.info(String.format("Set elevation on %d edges in %.1f seconds, %d points were evaluated outside the "
+                + "raster blocks.", edges.size(), (System.currentTimeMillis() - startTime) / 1000.0,
+                nPointsEvaluatedOnCoverage.sum()));
+        warnIfManyPointsOutsideDEM();
+    }
+
+    /** Warn when more than half of the elevation lookups so far were outside the DEM. */
+    private void warnIfManyPointsOutsideDEM() {
+        long evaluated = nPointsEvaluated.sum();
+        long outside = nPointsOutsideDEM.sum();
+        if (evaluated == 0) {
+            return;
+        }
+        double failurePercentage = outside * 100.0 / evaluated;
+        if (failurePercentage > 50) {
+            log.warn("Fetching elevation failed at {}/{} points ({}%)", outside, evaluated, failurePercentage);
+            log.warn("Elevation is missing at a large number of points. DEM may be for the wrong region. " +
+                    "If it is unprojected, perhaps the axes are not in (longitude, latitude) order.");
+        }
+    }
+
     /**
      * Processes a single street edge, creating and assigning the elevation profile.
      * 
@@ -340,6 +465,21 @@ public class ElevationModule implements GraphBuilderModule {
         if (ee.getElevationProfile() != null) {
             return; /* already set up */
         }
+        PackedCoordinateSequence elevPCS = computeProfile(ee, null, null);
+        if(ee.setElevationProfile(elevPCS, false)) {
+            log.trace(graph.addBuilderAnnotation(new ElevationFlattened(ee)));
+        }
+    }
+
+    /**
+     * Samples the elevation along a street edge.
+     *
+     * @param sampler the sampler to use with the given block, or null to evaluate all points on the coverage
+     * @param block the raster block containing most of the edge, or null
+     * @return the elevation profile of the edge
+     */
+    private PackedCoordinateSequence computeProfile(StreetWithElevationEdge ee, TiledElevationSampler sampler,
+            TiledElevationSampler.Block block) {
         Geometry g = ee.getGeometry();
         Coordinate[] coords = g.getCoordinates();
 
@@ -353,7 +493,7 @@ public class ElevationModule implements GraphBuilderModule {
         }
 
         // initial sample (x = 0)
-        coordList.add(new Coordinate(0, getElevation(coords[0])));
+        coordList.add(new Coordinate(0, getElevation(sampler, block, coords[0])));
 
         // loop for edge-internal samples
         for (double x = distanceBetweenSamplesM; x < edgeLenM; x += distanceBetweenSamplesM) {
@@ -363,20 +503,15 @@ public class ElevationModule implements GraphBuilderModule {
             }
 
             Coordinate internal = getPointAlongEdge(coords, edgeLenM, x / edgeLenM);
-            coordList.add(new Coordinate(x, getElevation(internal)));
+            coordList.add(new Coordinate(x, getElevation(sampler, block, internal)));
         }
 
         // final sample (x = edge length)
-        coordList.add(new Coordinate(edgeLenM, getElevation(coords[coords.length - 1])));
+        coordList.add(new Coordinate(edgeLenM, getElevation(sampler, block, coords[coords.length - 1])));
 
         // construct the PCS
         Coordinate coordArr[] = new Coordinate[coordList.size()];
-        PackedCoordinateSequence elevPCS = new PackedCoordinateSequence.Double(
-                coordList.toArray(coordArr));
-
-        if(ee.setElevationProfile(elevPCS, false)) {
-            log.trace(graph.addBuilderAnnotation(new ElevationFlattened(ee)));
-        }
+        return new PackedCoordinateSequence.Double(coordList.toArray(coordArr));
     }
 
     /**
@@ -434,6 +569,21 @@ public class ElevationModule implements GraphBuilderModule {
         return getElevation(c.x, c.y);
     }
 
+    /** @return the elevation at the given Coordinate, interpolated in the given raster block if possible. */
+    private double getElevation(TiledElevationSampler sampler, TiledElevationSampler.Block block, Coordinate c) {
+        if (block != null) {
+            double elevation = sampler.sample(block, c.x, c.y);
+            if (!Double.isNaN(elevation)) {
+                nPointsEvaluated.increment();
+                return elevation;
+            }
+        }
+        if (sampler != null) {
+            nPointsEvaluatedOnCoverage.increment();
+        }
+        return getElevation(c.x, c.y);
+    }
+
     /**
      * Method for retrieving the elevation at a given (x, y) pair.
      * 
@@ -449,11 +599,16 @@ public class ElevationModule implements GraphBuilderModule {
             // GeoTIFFs in various projections. Note that GeoTools defaults to strict EPSG axis ordering of (lat, long)
             // for DefaultGeographicCRS.WGS84, but OTP is using (long, lat) throughout and assumes unprojected DEM
             // rasters to also use (long, lat).
-            coverage.evaluate(new DirectPosition2D(GeometryUtils.WGS84_XY, x, y), values);
+            // The coverages are not thread safe, and are only evaluated concurrently for the points outside the raster
+            // blocks in tiled mode.
+            DirectPosition2D position = new DirectPosition2D(GeometryUtils.WGS84_XY, x, y);
+            synchronized (coverage) {
+                coverage.evaluate(position, values);
+            }
         } catch (org.opengis.coverage.PointOutsideCoverageException e) {
-            nPointsOutsideDEM += 1;
+            nPointsOutsideDEM.increment();
         }
-        nPointsEvaluated += 1;
+        nPointsEvaluated.increment();
         return values[0];
     }
 
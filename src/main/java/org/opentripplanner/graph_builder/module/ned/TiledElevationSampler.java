@@ -0,0 +1,276 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.ned;
+
+import java.awt.Rectangle;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.media.jai.InterpolationBilinear;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.Interpolator2D;
+import org.geotools.referencing.CRS;
+import org.opengis.coverage.Coverage;
+import org.opengis.geometry.Envelope;
+import org.opengis.metadata.spatial.PixelOrientation;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.MathTransform2D;
+import org.opengis.referencing.operation.TransformException;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples an elevation coverage from blocks of its raster copied into primitive arrays, rather than through
+ * Coverage.evaluate(), which goes through several layers of GeoTools objects for every point and is synchronized. A
+ * block can be sampled by any number of threads at once.
+ *
+ * The interpolation reproduces exactly what the bilinear Interpolator2D wrapping each raster does for float and double
+ * rasters, including the float precision of the fractional pixel offsets, and UnifiedGridCoverage's choice of region
+ * and vertical datum adjustment. Points which a block cannot interpolate by itself (at the edges of the block or of
+ * the raster, or outside any region) are reported as NaN and must be evaluated on the coverage instead, so the
+ * elevations are always those the coverage would give.
+ */
+public class TiledElevationSampler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TiledElevationSampler.class);
+
+    /** The width and height in pixels of the blocks. A block of floats takes 4MB. */
+    static final int BLOCK_SIZE = 1024;
+
+    private final List<Region> regions;
+
+    private final List<VerticalDatum> datums;
+
+    private TiledElevationSampler(List<Region> regions, List<VerticalDatum> datums) {
+        this.regions = regions;
+        this.datums = datums;
+    }
+
+    /**
+     * @return a sampler for the given coverage, or null if the coverage is not made of bilinear interpolations of
+     *         float or double rasters, in which case it must be sampled with Coverage.evaluate().
+     */
+    public static TiledElevationSampler forCoverage(Coverage coverage) {
+        List<Coverage> coverages;
+        List<VerticalDatum> datums;
+        if (coverage instanceof UnifiedGridCoverage) {
+            coverages = ((UnifiedGridCoverage) coverage).getRegions();
+            datums = ((UnifiedGridCoverage) coverage).getDatums();
+        } else {
+            coverages = Collections.singletonList(coverage);
+            datums = null;
+        }
+        List<Region> regions = new ArrayList<Region>();
+        for (Coverage regionCoverage : coverages) {
+            if (!(regionCoverage instanceof Interpolator2D)
+                    || !(((Interpolator2D) regionCoverage).getInterpolation() instanceof InterpolationBilinear)) {
+                LOG.info("Elevation coverage is not a bilinear grid coverage, it will not be sampled in tiles.");
+                return null;
+            }
+            GridCoverage2D grid = (GridCoverage2D) regionCoverage;
+            int dataType = grid.getRenderedImage().getSampleModel().getDataType();
+            if (dataType != DataBuffer.TYPE_FLOAT && dataType != DataBuffer.TYPE_DOUBLE) {
+                LOG.info("Elevation coverage does not hold floating point values, it will not be sampled in tiles.");
+                return null;
+            }
+            try {
+                regions.add(new Region(grid, dataType == DataBuffer.TYPE_DOUBLE));
+            } catch (FactoryException e) {
+                LOG.warn("Cannot transform coordinates to the elevation coverage CRS, it will not be sampled in "
+                        + "tiles: {}", e.getMessage());
+                return null;
+            }
+        }
+        return new TiledElevationSampler(regions, datums);
+    }
+
+    /**
+     * @return the key of the block in which the coverage would look up the elevation at the given point, or -1 if
+     *         the point is in no region.
+     */
+    public long blockKey(double x, double y) {
+        int regionIndex = regionIndex(x, y);
+        if (regionIndex < 0) {
+            return -1;
+        }
+        double[] pixel = regions.get(regionIndex).toPixel(x, y);
+        if (pixel == null) {
+            return -1;
+        }
+        GridEnvelope2D range = regions.get(regionIndex).range;
+        long blockX = (long) Math.floor((pixel[0] - range.x) / BLOCK_SIZE);
+        long blockY = (long) Math.floor((pixel[1] - range.y) / BLOCK_SIZE);
+        if (blockX < 0 || blockY < 0 || blockX >= 1 << 20 || blockY >= 1 << 20) {
+            return -1;
+        }
+        return ((long) regionIndex << 40) | (blockX << 20) | blockY;
+    }
+
+    /** Copy the samples of a block of the raster, with one more column and row to interpolate up to its edges. */
+    public Block loadBlock(long key) {
+        int regionIndex = (int) (key >>> 40);
+        Region region = regions.get(regionIndex);
+        GridEnvelope2D range = region.range;
+        int x0 = range.x + (int) ((key >>> 20) & 0xFFFFF) * BLOCK_SIZE;
+        int y0 = range.y + (int) (key & 0xFFFFF) * BLOCK_SIZE;
+        int width = Math.min(BLOCK_SIZE + 1, range.x + range.width - x0);
+        int height = Math.min(BLOCK_SIZE + 1, range.y + range.height - y0);
+        Raster raster = region.grid.getRenderedImage().getData(new Rectangle(x0, y0, width, height));
+        Block block = new Block(regionIndex, x0, y0, width, height);
+        if (region.doubles) {
+            block.doubles = raster.getSamples(x0, y0, width, height, 0, (double[]) null);
+        } else {
+            block.floats = raster.getSamples(x0, y0, width, height, 0, (float[]) null);
+        }
+        return block;
+    }
+
+    /**
+     * @return the elevation at the given point interpolated in the given block, or NaN if the coverage would not
+     *         use that block or the block does not contain all the pixels needed.
+     */
+    public double sample(Block block, double x, double y) {
+        if (regionIndex(x, y) != block.region) {
+            return Double.NaN;
+        }
+        double[] pixel = regions.get(block.region).toPixel(x, y);
+        if (pixel == null) {
+            return Double.NaN;
+        }
+        // as in Interpolator2D, which works with pixel centers
+        double px = pixel[0] - 0.5;
+        double py = pixel[1] - 0.5;
+        int ix = (int) Math.floor(px);
+        int iy = (int) Math.floor(py);
+        int bx = ix - block.x0;
+        int by = iy - block.y0;
+        if (bx < 0 || by < 0 || bx + 1 >= block.width || by + 1 >= block.height) {
+            return Double.NaN;
+        }
+        float xfrac = (float) (px - ix);
+        float yfrac = (float) (py - iy);
+        int i = by * block.width + bx;
+        double elevation;
+        // the same operations, in the same precision, as InterpolationBilinear
+        if (block.doubles != null) {
+            double s00 = block.doubles[i], s01 = block.doubles[i + 1];
+            double s10 = block.doubles[i + block.width], s11 = block.doubles[i + block.width + 1];
+            double s0 = (s01 - s00) * xfrac + s00;
+            double s1 = (s11 - s10) * xfrac + s10;
+            elevation = (s1 - s0) * yfrac + s0;
+        } else {
+            float s00 = block.floats[i], s01 = block.floats[i + 1];
+            float s10 = block.floats[i + block.width], s11 = block.floats[i + block.width + 1];
+            float s0 = (s01 - s00) * xfrac + s00;
+            float s1 = (s11 - s10) * xfrac + s10;
+            elevation = (s1 - s0) * yfrac + s0;
+        }
+        if (datums != null) {
+            for (VerticalDatum datum : datums) {
+                if (datum.covers(x, y)) {
+                    return elevation + datum.interpolatedHeight(x, y);
+                }
+            }
+            // let the coverage report the missing datum
+            return Double.NaN;
+        }
+        return elevation;
+    }
+
+    /** @return the index of the first region whose envelope contains the point, as in UnifiedGridCoverage. */
+    private int regionIndex(double x, double y) {
+        for (int r = 0; r < regions.size(); r++) {
+            Region region = regions.get(r);
+            if (x >= region.minX && x <= region.maxX && y >= region.minY && y <= region.maxY) {
+                return r;
+            }
+        }
+        return -1;
+    }
+
+    /** A raster making up the coverage. */
+    private static class Region {
+
+        final GridCoverage2D grid;
+
+        final boolean doubles;
+
+        final GridEnvelope2D range;
+
+        final double minX, minY, maxX, maxY;
+
+        /** From WGS84 longitude and latitude to the CRS of the raster, or null if they are the same. */
+        final MathTransform toCrs;
+
+        final MathTransform2D toGrid;
+
+        Region(GridCoverage2D grid, boolean doubles) throws FactoryException {
+            this.grid = grid;
+            this.doubles = doubles;
+            this.range = grid.getGridGeometry().getGridRange2D();
+            Envelope envelope = grid.getEnvelope();
+            minX = envelope.getMinimum(0);
+            minY = envelope.getMinimum(1);
+            maxX = envelope.getMaximum(0);
+            maxY = envelope.getMaximum(1);
+            CoordinateReferenceSystem crs = grid.getCoordinateReferenceSystem2D();
+            toCrs = CRS.equalsIgnoreMetadata(GeometryUtils.WGS84_XY, crs) ? null
+                    : CRS.findMathTransform(GeometryUtils.WGS84_XY, crs, true);
+            toGrid = grid.getGridGeometry().getCRSToGrid2D(PixelOrientation.UPPER_LEFT);
+        }
+
+        /** @return the position of the point in the raster, in pixels from its upper left corner. */
+        double[] toPixel(double x, double y) {
+            double[] point = new double[] { x, y };
+            try {
+                if (toCrs != null) {
+                    toCrs.transform(point, 0, point, 0, 1);
+                }
+                toGrid.transform(point, 0, point, 0, 1);
+            } catch (TransformException e) {
+                return null;
+            }
+            return point;
+        }
+    }
+
+    /** The samples of a block of a raster. */
+    public static class Block {
+
+        final int region;
+
+        final int x0, y0, width, height;
+
+        float[] floats;
+
+        double[] doubles;
+
+        Block(int region, int x0, int y0, int width, int height) {
+            this.region = region;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+}
@@ -111,4 +111,13 @@ public class UnifiedGridCoverage extends AbstractCoverage {
         regions.add(regionCoverage);
     }
 
+    /** @return the coverages stitched together, in the order in which they are searched for a point. */
+    List<Coverage> getRegions() {
+        return regions;
+    }
+
+    List<VerticalDatum> getDatums() {
+        return datums;
+    }
+
 }
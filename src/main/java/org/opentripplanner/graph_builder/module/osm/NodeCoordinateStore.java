@@ -0,0 +1,260 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.osm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opentripplanner.openstreetmap.model.OSMNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The ids and coordinates of OSM nodes without tags, kept in primitive arrays sorted by node id rather than as
+ * OSMNode objects in a map. This takes 16 bytes per node instead of more than a hundred, and the arrays can be
+ * memory-mapped files so that they do not take any heap space at all. Coordinates are stored as fixed point numbers
+ * with the 1e-7 degree precision of OSM data.
+ *
+ * Nodes are appended in any order (OSM files usually list them by increasing id) and the arrays are sorted again when
+ * needed before a lookup. OSMNode objects are only created when a node is looked up, and are not kept.
+ */
+public class NodeCoordinateStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(NodeCoordinateStore.class);
+
+    private static final int CHUNK_BITS = 20;
+
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private static final double PRECISION = 1e7;
+
+    /** Where to create the memory-mapped files, or null to keep the arrays on the heap. */
+    private final File directory;
+
+    private final List<LongBuffer> ids = new ArrayList<LongBuffer>();
+
+    private final List<IntBuffer> lats = new ArrayList<IntBuffer>();
+
+    private final List<IntBuffer> lons = new ArrayList<IntBuffer>();
+
+    private final List<File> files = new ArrayList<File>();
+
+    private int size = 0;
+
+    private boolean sorted = true;
+
+    /** Keep the arrays on the heap. */
+    public NodeCoordinateStore() {
+        this(null);
+    }
+
+    /** @param directory where to create the memory-mapped files backing the arrays, or null to use the heap. */
+    public NodeCoordinateStore(File directory) {
+        this.directory = directory;
+    }
+
+    public void add(long id, double lat, double lon) {
+        if (size > 0 && sorted) {
+            long lastId = getId(size - 1);
+            if (id == lastId) {
+                return;
+            }
+            if (id < lastId) {
+                sorted = false;
+            }
+        }
+        if ((size >>> CHUNK_BITS) == ids.size()) {
+            addChunk();
+        }
+        int chunk = size >>> CHUNK_BITS, offset = size & CHUNK_MASK;
+        ids.get(chunk).put(offset, id);
+        lats.get(chunk).put(offset, (int) Math.round(lat * PRECISION));
+        lons.get(chunk).put(offset, (int) Math.round(lon * PRECISION));
+        size++;
+        if (size % 1000000 == 0) {
+            LOG.debug("stored node coordinates={}", size);
+        }
+    }
+
+    public boolean contains(long id) {
+        return find(id) >= 0;
+    }
+
+    /** @return a new OSMNode without tags at the location of the node with the given id, or null if there is none. */
+    public OSMNode getNode(long id) {
+        int index = find(id);
+        if (index < 0) {
+            return null;
+        }
+        int chunk = index >>> CHUNK_BITS, offset = index & CHUNK_MASK;
+        OSMNode node = new OSMNode();
+        node.setId(id);
+        node.lat = lats.get(chunk).get(offset) / PRECISION;
+        node.lon = lons.get(chunk).get(offset) / PRECISION;
+        return node;
+    }
+
+    /** @return the number of distinct nodes stored, once sorted. */
+    public int size() {
+        if (!sorted) {
+            sort();
+        }
+        return size;
+    }
+
+    /** Release the memory-mapped files. The store must not be used afterwards. */
+    public void close() {
+        ids.clear();
+        lats.clear();
+        lons.clear();
+        for (File file : files) {
+            if (!file.delete()) {
+                LOG.warn("Could not delete node coordinate file {}", file);
+            }
+        }
+        files.clear();
+        size = 0;
+    }
+
+    private int find(long id) {
+        if (!sorted) {
+            sort();
+        }
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midId = getId(mid);
+            if (midId < id) {
+                low = mid + 1;
+            } else if (midId > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private long getId(int index) {
+        return ids.get(index >>> CHUNK_BITS).get(index & CHUNK_MASK);
+    }
+
+    private void addChunk() {
+        if (directory == null) {
+            ids.add(LongBuffer.allocate(CHUNK_SIZE));
+            lats.add(IntBuffer.allocate(CHUNK_SIZE));
+            lons.add(IntBuffer.allocate(CHUNK_SIZE));
+            return;
+        }
+        try {
+            File file = File.createTempFile("nodes", ".bin", directory);
+            file.deleteOnExit();
+            files.add(file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE * 16L)
+                        .order(ByteOrder.nativeOrder());
+                ids.add(slice(buffer, 0, CHUNK_SIZE * 8).asLongBuffer());
+                lats.add(slice(buffer, CHUNK_SIZE * 8, CHUNK_SIZE * 4).asIntBuffer());
+                lons.add(slice(buffer, CHUNK_SIZE * 12, CHUNK_SIZE * 4).asIntBuffer());
+            } finally {
+                // the mapping remains valid after the file is closed
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not map node coordinate file in " + directory, e);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(position);
+        duplicate.limit(position + length);
+        return duplicate.slice().order(buffer.order());
+    }
+
+    /** Sort the nodes by id, dropping the duplicates a node read from several files leaves. */
+    private void sort() {
+        long startTime = System.currentTimeMillis();
+        quickSort(0, size - 1);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || getId(i) != getId(distinct - 1)) {
+                if (i != distinct) {
+                    copy(i, distinct);
+                }
+                distinct++;
+            }
+        }
+        LOG.debug("Sorted {} node coordinates ({} distinct) in {} msec", size, distinct,
+                System.currentTimeMillis() - startTime);
+        size = distinct;
+        sorted = true;
+    }
+
+    private void quickSort(int low, int high) {
+        // recurse on the smaller part so the stack stays shallow
+        while (low < high) {
+            long pivot = getId((low + high) >>> 1);
+            int i = low, j = high;
+            while (i <= j) {
+                while (getId(i) < pivot) i++;
+                while (getId(j) > pivot) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            if (j - low < high - i) {
+                quickSort(low, j);
+                low = i;
+            } else {
+                quickSort(i, high);
+                high = j;
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        int chunkA = a >>> CHUNK_BITS, offsetA = a & CHUNK_MASK;
+        int chunkB = b >>> CHUNK_BITS, offsetB = b & CHUNK_MASK;
+        long id = ids.get(chunkA).get(offsetA);
+        ids.get(chunkA).put(offsetA, ids.get(chunkB).get(offsetB));
+        ids.get(chunkB).put(offsetB, id);
+        int lat = lats.get(chunkA).get(offsetA);
+        lats.get(chunkA).put(offsetA, lats.get(chunkB).get(offsetB));
+        lats.get(chunkB).put(offsetB, lat);
+        int lon = lons.get(chunkA).get(offsetA);
+        lons.get(chunkA).put(offsetA, lons.get(chunkB).get(offsetB));
+        lons.get(chunkB).put(offsetB, lon);
+    }
+
+    private void copy(int from, int to) {
+        int chunkFrom = from >>> CHUNK_BITS, offsetFrom = from & CHUNK_MASK;
+        int chunkTo = to >>> CHUNK_BITS, offsetTo = to & CHUNK_MASK;
+        ids.get(chunkTo).put(offsetTo, ids.get(chunkFrom).get(offsetFrom));
+        lats.get(chunkTo).put(offsetTo, lats.get(chunkFrom).get(offsetFrom));
+        lons.get(chunkTo).put(offsetTo, lons.get(chunkFrom).get(offsetFrom));
+    }
+
+}
@@ -13,6 +13,7 @@
 
 package org.opentripplanner.graph_builder.module.osm;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -60,6 +61,9 @@ import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
 public class OSMDatabase implements OpenStreetMapContentHandler {
 
     private static Logger LOG = LoggerFactory.getLogger(OSMDatabase.class);
@@ -103,10 +107,16 @@ public class OSMDatabase implements OpenStreetMapContentHandler {
     private Set<Long> areaWayIds = new HashSet<Long>();
 
     /* Set of all node IDs of kept ways. Needed to mark which nodes to keep in stage 3. */
-    private Set<Long> waysNodeIds = new HashSet<Long>();
+    private TLongSet waysNodeIds = new TLongHashSet();
 
     /* Set of all node IDs of kept areas. Needed to mark which nodes to keep in stage 3. */
-    private Set<Long> areaNodeIds = new HashSet<Long>();
+    private TLongSet areaNodeIds = new TLongHashSet();
+
+    /*
+     * The coordinates of the way nodes without tags which are not part of areas, when they are not kept as OSMNode
+     * objects in nodesById. Null if all the nodes are kept as objects.
+     */
+    private NodeCoordinateStore nodeCoordinates;
 
     /* Track which vertical level each OSM way belongs to, for building elevators etc. */
     private Map<OSMWithTags, OSMLevel> wayLevels = new HashMap<OSMWithTags, OSMLevel>();
@@ -139,8 +149,46 @@ public class OSMDatabase implements OpenStreetMapContentHandler {
      */
     public boolean noZeroLevels = true;
 
+    /** How the nodes of the ways are kept while building the graph. */
+    public enum NodeStorage {
+        /** As OSMNode objects. */
+        OBJECTS,
+        /** The nodes without tags as coordinates in primitive arrays on the heap, the others as objects. */
+        ARRAYS,
+        /** The nodes without tags as coordinates in memory-mapped files, the others as objects. */
+        MAPPED
+    }
+
+    public OSMDatabase() {
+        this(NodeStorage.OBJECTS);
+    }
+
+    /**
+     * @param nodeStorage how to keep the way nodes. With ARRAYS or MAPPED the nodes without tags are only created as
+     *        OSMNode objects when they are looked up, and each lookup creates a new object. The area nodes are always
+     *        kept as objects.
+     */
+    public OSMDatabase(NodeStorage nodeStorage) {
+        if (nodeStorage == NodeStorage.ARRAYS) {
+            nodeCoordinates = new NodeCoordinateStore();
+        } else if (nodeStorage == NodeStorage.MAPPED) {
+            nodeCoordinates = new NodeCoordinateStore(new File(System.getProperty("java.io.tmpdir")));
+        }
+    }
+
     public OSMNode getNode(Long nodeId) {
-        return nodesById.get(nodeId);
+        OSMNode node = nodesById.get(nodeId);
+        if (node == null && nodeCoordinates != null) {
+            node = nodeCoordinates.getNode(nodeId);
+        }
+        return node;
+    }
+
+    /** Release the storage of the nodes, once the graph has been built. */
+    public void close() {
+        if (nodeCoordinates != null) {
+            nodeCoordinates.close();
+        }
     }
 
     public Collection<OSMWay> getWays() {
@@ -220,6 +268,12 @@ public class OSMDatabase implements OpenStreetMapContentHandler {
         if (nodesById.containsKey(node.getId()))
             return;
 
+        if (nodeCoordinates != null && (node.getTags() == null || node.getTags().isEmpty())
+                && !areaNodeIds.contains(node.getId())) {
+            nodeCoordinates.add(node.getId(), node.lat, node.lon);
+            return;
+        }
+
         nodesById.put(node.getId(), node);
 
         if (nodesById.size() % 100000 == 0)
@@ -396,8 +450,8 @@ public class OSMDatabase implements OpenStreetMapContentHandler {
 
             // For each segment of the way
             for (int i = 0; i < way.getNodeRefs().size() - 1; i++) {                
-                OSMNode nA = nodesById.get(way.getNodeRefs().get(i));
-                OSMNode nB = nodesById.get(way.getNodeRefs().get(i + 1));
+                OSMNode nA = getNode(way.getNodeRefs().get(i));
+                OSMNode nB = getNode(way.getNodeRefs().get(i + 1));
                 if (nA == null || nB == null) {
                     continue;
                 }
@@ -604,7 +658,7 @@ public class OSMDatabase implements OpenStreetMapContentHandler {
         }
     }
 
-    private void markNodesForKeeping(Collection<OSMWay> osmWays, Set<Long> nodeSet) {
+    private void markNodesForKeeping(Collection<OSMWay> osmWays, TLongSet nodeSet) {
         for (Iterator<OSMWay> it = osmWays.iterator(); it.hasNext();) {
             OSMWay way = it.next();
             // Since the way is kept, update nodes-with-neighbors
@@ -923,6 +977,7 @@ public class OSMDatabase implements OpenStreetMapContentHandler {
                 else
                     LOG.warn("Too many areas in relation " + relation.getId());
             } else if ("node".equals(member.getType()) && nodesById.containsKey(member.getRef())) {
+                // stops have tags, so they are always kept as objects
                 platformsNodes.add(nodesById.get(member.getRef()));
             }
         }
@@ -146,6 +146,12 @@ public class OpenStreetMapModule implements GraphBuilderModule {
      */
     public boolean staticBikeParkAndRide;
 
+    /**
+     * How the OSM nodes are kept in memory while building the graph. Keeping the nodes without tags in primitive
+     * arrays rather than as objects takes much less heap for large extracts. (default OBJECTS)
+     */
+    public OSMDatabase.NodeStorage nodeStorage = OSMDatabase.NodeStorage.OBJECTS;
+
     public List<String> provides() {
         return Arrays.asList("streets", "turns");
     }
@@ -189,7 +195,7 @@ public class OpenStreetMapModule implements GraphBuilderModule {
 
     @Override
     public void buildGraph(Graph graph, HashMap<Class<?>, Object> extra) {
-        OSMDatabase osmdb = new OSMDatabase();
+        OSMDatabase osmdb = new OSMDatabase(nodeStorage);
         Handler handler = new Handler(graph, osmdb);
         for (OpenStreetMapProvider provider : _providers) {
             LOG.info("Gathering OSM from provider: " + provider);
@@ -201,6 +207,7 @@ public class OpenStreetMapModule implements GraphBuilderModule {
         }
         LOG.info("Building street graph from OSM");
         handler.buildGraph(extra);
+        osmdb.close();
         graph.hasStreets = true;
         //Calculates envelope for OSM
         graph.calculateEnvelope();
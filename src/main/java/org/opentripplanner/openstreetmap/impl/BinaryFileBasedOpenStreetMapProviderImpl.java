@@ -17,13 +17,11 @@ import org.opentripplanner.openstreetmap.services.OpenStreetMapContentHandler;
 import org.opentripplanner.openstreetmap.services.OpenStreetMapProvider;
 
 import java.io.File;
-import java.io.FileInputStream;
-
-import crosby.binary.file.BlockInputStream;
 
 /**
  * Parser for the OpenStreetMap PBF format. Parses files in three passes:
  * First the relations, then the ways, then the nodes are also loaded.
+ * The blocks of the file are decoded on several threads, see {@link ParallelPbfReader}.
  *
  * @see http://wiki.openstreetmap.org/wiki/PBF_Format
  * @see org.opentripplanner.openstreetmap.services.graph_builder.services.osm.OpenStreetMapContentHandler#biPhase
@@ -33,26 +31,26 @@ public class BinaryFileBasedOpenStreetMapProviderImpl implements OpenStreetMapPr
 
     private File _path;
 
+    private int _threads = Runtime.getRuntime().availableProcessors();
+
     public void readOSM(OpenStreetMapContentHandler handler) {
         try {
             BinaryOpenStreetMapParser parser = new BinaryOpenStreetMapParser(handler);
+            ParallelPbfReader reader = new ParallelPbfReader(_path, _threads);
 
-            FileInputStream input = new FileInputStream(_path);
             parser.setParseNodes(false);
             parser.setParseWays(false);
-            (new BlockInputStream(input, parser)).process();
+            reader.read(parser);
             handler.doneFirstPhaseRelations();
 
-            input = new FileInputStream(_path);
             parser.setParseRelations(false);
             parser.setParseWays(true);
-            (new BlockInputStream(input, parser)).process();
+            reader.read(parser);
             handler.doneSecondPhaseWays();
 
-            input = new FileInputStream(_path);
             parser.setParseNodes(true);
             parser.setParseWays(false);
-            (new BlockInputStream(input, parser)).process();
+            reader.read(parser);
             handler.doneThirdPhaseNodes();
         } catch (Exception ex) {
             throw new IllegalStateException("error loading OSM from path " + _path, ex);        }
@@ -62,6 +60,11 @@ public class BinaryFileBasedOpenStreetMapProviderImpl implements OpenStreetMapPr
         _path = path;
     }
 
+    /** Set the number of threads decoding the blocks of the file. */
+    public void setThreads(int threads) {
+        _threads = threads;
+    }
+
     public String toString() {
         return "BinaryFileBasedOpenStreetMapProviderImpl(" + _path + ")";
     }
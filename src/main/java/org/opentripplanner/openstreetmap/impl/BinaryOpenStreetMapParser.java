@@ -243,4 +243,16 @@ public class BinaryOpenStreetMapParser extends BinaryParser {
     public void setParseNodes(boolean parseNodes) {
         _parseNodes = parseNodes;
     }
+
+    public boolean isParseWays() {
+        return _parseWays;
+    }
+
+    public boolean isParseRelations() {
+        return _parseRelations;
+    }
+
+    public boolean isParseNodes() {
+        return _parseNodes;
+    }
 }
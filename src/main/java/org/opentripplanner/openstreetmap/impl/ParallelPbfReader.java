@@ -0,0 +1,237 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.openstreetmap.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import crosby.binary.Fileformat;
+import crosby.binary.Osmformat;
+
+/**
+ * Reads an OSM PBF file for a BinaryOpenStreetMapParser, inflating and decoding its blocks on a pool of threads.
+ * The blocks are still given to the parser one at a time, in the order of the file, on the calling thread, so the
+ * content handler sees exactly what it would see with a crosby.binary BlockInputStream.
+ *
+ * The file is usually read several times, once for each type of entity. The first read remembers where the blocks
+ * are and which types of entities they contain, so that later reads skip the blocks which only contain entities the
+ * parser ignores without reading or inflating them.
+ *
+ * @see http://wiki.openstreetmap.org/wiki/PBF_Format
+ */
+public class ParallelPbfReader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ParallelPbfReader.class);
+
+    private final File file;
+
+    private final int nThreads;
+
+    /** The blocks of the file, once it has been read completely. */
+    private List<Block> blocks;
+
+    public ParallelPbfReader(File file) {
+        this(file, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelPbfReader(File file, int nThreads) {
+        this.file = file;
+        this.nThreads = nThreads;
+    }
+
+    /** Give the parser all the blocks of the file which may contain the types of entities it parses. */
+    public void read(BinaryOpenStreetMapParser parser) throws IOException {
+        long startTime = System.currentTimeMillis();
+        long bytesRead = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads,
+                new ThreadFactoryBuilder().setNameFormat("pbf-decoder-%d").setDaemon(true).build());
+        // decoded blocks waiting to be parsed, in the order of the file
+        Deque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+        int maxPending = nThreads * 4;
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            if (blocks == null) {
+                List<Block> allBlocks = new ArrayList<Block>();
+                while (input.getFilePointer() < input.length()) {
+                    Block block = readBlock(input);
+                    bytesRead += block.size;
+                    allBlocks.add(block);
+                    pending.add(executor.submit(block));
+                    if (pending.size() >= maxPending) {
+                        parse(parser, pending.removeFirst());
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    parse(parser, pending.removeFirst());
+                }
+                blocks = allBlocks;
+            } else {
+                for (Block block : blocks) {
+                    if (!block.isUsedBy(parser)) {
+                        continue;
+                    }
+                    input.seek(block.position);
+                    Block reread = readBlock(input);
+                    bytesRead += reread.size;
+                    pending.add(executor.submit(reread));
+                    if (pending.size() >= maxPending) {
+                        parse(parser, pending.removeFirst());
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    parse(parser, pending.removeFirst());
+                }
+            }
+        } finally {
+            for (Future<Block> future : pending) {
+                future.cancel(true);
+            }
+            executor.shutdownNow();
+            input.close();
+        }
+        parser.complete();
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        LOG.info(String.format("Decoded %.1f MB of %s in %.1f sec (%.1f MB/s) using %d threads",
+                bytesRead / 1e6, file.getName(), elapsed / 1000.0, bytesRead / 1e3 / elapsed, nThreads));
+    }
+
+    /** Read the header and the still compressed blob of the block at the current position of the file. */
+    private static Block readBlock(RandomAccessFile input) throws IOException {
+        long position = input.getFilePointer();
+        int headerSize = input.readInt();
+        byte[] headerBytes = new byte[headerSize];
+        input.readFully(headerBytes);
+        Fileformat.BlobHeader header = Fileformat.BlobHeader.parseFrom(headerBytes);
+        byte[] blob = new byte[header.getDatasize()];
+        input.readFully(blob);
+        return new Block(position, input.getFilePointer() - position, header.getType(), blob);
+    }
+
+    private static void parse(BinaryOpenStreetMapParser parser, Future<Block> future) throws IOException {
+        Block block;
+        try {
+            block = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not decode PBF block", e.getCause());
+        }
+        if (block.headerBlock != null) {
+            parser.parse(block.headerBlock);
+        } else if (block.primitiveBlock != null) {
+            parser.parse(block.primitiveBlock);
+        }
+        block.clear();
+    }
+
+    /**
+     * A block of the file. It is its own decoding task, and keeps the decoded block until it is parsed. Only the
+     * position and the types of entities contained are kept afterwards.
+     */
+    private static class Block implements Callable<Block> {
+
+        final long position;
+
+        final long size;
+
+        final String type;
+
+        byte[] blob;
+
+        Osmformat.HeaderBlock headerBlock;
+
+        Osmformat.PrimitiveBlock primitiveBlock;
+
+        boolean hasNodes, hasWays, hasRelations;
+
+        Block(long position, long size, String type, byte[] blob) {
+            this.position = position;
+            this.size = size;
+            this.type = type;
+            this.blob = blob;
+        }
+
+        /** Inflate and decode the blob. */
+        @Override
+        public Block call() throws IOException, DataFormatException {
+            if ("OSMHeader".equals(type)) {
+                headerBlock = Osmformat.HeaderBlock.parseFrom(inflate(blob));
+            } else if ("OSMData".equals(type)) {
+                primitiveBlock = Osmformat.PrimitiveBlock.parseFrom(inflate(blob));
+                for (Osmformat.PrimitiveGroup group : primitiveBlock.getPrimitivegroupList()) {
+                    hasNodes |= group.getNodesCount() > 0 || group.hasDense();
+                    hasWays |= group.getWaysCount() > 0;
+                    hasRelations |= group.getRelationsCount() > 0;
+                }
+            } else {
+                LOG.warn("Skipping unknown PBF block type {}", type);
+            }
+            blob = null;
+            return this;
+        }
+
+        /** @return whether the parser needs this block, which must have been decoded once. */
+        boolean isUsedBy(BinaryOpenStreetMapParser parser) {
+            return "OSMHeader".equals(type) || (hasNodes && parser.isParseNodes())
+                    || (hasWays && parser.isParseWays()) || (hasRelations && parser.isParseRelations());
+        }
+
+        void clear() {
+            headerBlock = null;
+            primitiveBlock = null;
+        }
+
+        private static byte[] inflate(byte[] bytes) throws InvalidProtocolBufferException, DataFormatException {
+            Fileformat.Blob blob = Fileformat.Blob.parseFrom(bytes);
+            if (blob.hasRaw()) {
+                return blob.getRaw().toByteArray();
+            }
+            if (!blob.hasZlibData()) {
+                throw new IllegalStateException("Unsupported PBF block compression");
+            }
+            byte[] data = new byte[blob.getRawSize()];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(blob.getZlibData().toByteArray());
+                inflater.inflate(data);
+                if (!inflater.finished()) {
+                    throw new DataFormatException("PBF block is larger than its declared size");
+                }
+            } finally {
+                inflater.end();
+            }
+            return data;
+        }
+    }
+
+}
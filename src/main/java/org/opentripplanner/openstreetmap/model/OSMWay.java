@@ -16,12 +16,16 @@
 
 package org.opentripplanner.openstreetmap.model;
 
-import java.util.ArrayList;
+import gnu.trove.TDecorators;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+
 import java.util.List;
 
 public class OSMWay extends OSMWithTags {
 
-    private List<Long> _nodes = new ArrayList<Long>();
+    /* Primitive longs rather than boxed ones, there are billions of them in a country. */
+    private TLongList _nodes = new TLongArrayList(4);
 
     public void addNodeRef(OSMNodeRef nodeRef) {
         _nodes.add(nodeRef.getRef());
@@ -35,8 +39,9 @@ public class OSMWay extends OSMWithTags {
         _nodes.add(index, nodeRef);
     }
 
+    /** @return a view of the node refs of this way, which can be modified. */
     public List<Long> getNodeRefs() {
-        return _nodes;
+        return TDecorators.wrap(_nodes);
     }
 
     public String toString() {
@@ -23,12 +23,18 @@ import org.opentripplanner.util.I18NString;
 import org.opentripplanner.util.NonLocalizedString;
 import org.opentripplanner.util.TranslatedString;
 
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
 /**
  * A base class for OSM entities containing common methods.
  */
 
 public class OSMWithTags {
 
+    /* The same keys and values appear on millions of entities, share them to save memory. */
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
     /* To save memory this is only created when an entity actually has tags. */
     private Map<String, String> _tags;
 
@@ -57,7 +63,7 @@ public class OSMWithTags {
         if (_tags == null)
             _tags = new HashMap<String, String>();
 
-        _tags.put(tag.getK().toLowerCase(), tag.getV());
+        _tags.put(STRINGS.intern(tag.getK().toLowerCase()), intern(tag.getV()));
     }
 
     /**
@@ -70,7 +76,11 @@ public class OSMWithTags {
         if (_tags == null)
             _tags = new HashMap<String, String>();
 
-        _tags.put(key.toLowerCase(), value);
+        _tags.put(STRINGS.intern(key.toLowerCase()), intern(value));
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : STRINGS.intern(value);
     }
 
     /**
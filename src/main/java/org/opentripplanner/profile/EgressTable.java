@@ -0,0 +1,53 @@
+package org.opentripplanner.profile;
+
+import java.util.Arrays;
+
+/**
+ * The walking times from each transit stop to the targets near it, for the walk speed of one request. This is a copy
+ * of the (target, distance) pairs in RaptorWorkerData with the distances already converted to seconds, stored as two
+ * parallel arrays rather than interleaved, so that propagating a stop to its targets is a simple loop without
+ * divisions. The targets of each stop are sorted, so the writes to the per-target results move forward through memory.
+ *
+ * It is immutable once built and can be shared by RaptorWorkers running in parallel.
+ */
+public class EgressTable {
+
+    /** Offsets into targets and seconds for each stop, nStops + 1 entries. */
+    final int[] offsets;
+
+    /** The targets near all stops, sorted within each stop. */
+    final int[] targets;
+
+    /** The walking time in seconds to each target, parallel to targets. */
+    final int[] seconds;
+
+    public EgressTable (RaptorWorkerData data, float walkSpeed) {
+        int[] pairs = data.targetsForStopPairs;
+        offsets = new int[data.nStops + 1];
+        targets = new int[pairs.length / 2];
+        seconds = new int[pairs.length / 2];
+        long[] sorted = new long[0];
+        for (int s = 0; s < data.nStops; s++) {
+            int firstPair = data.targetsForStopOffsets[s];
+            int nPairs = (data.targetsForStopOffsets[s + 1] - firstPair) / 2;
+            offsets[s + 1] = offsets[s] + nPairs;
+            if (sorted.length < nPairs) {
+                sorted = new long[nPairs];
+            }
+            // Pack each target with its time so they are sorted together. Both are non-negative.
+            for (int i = 0; i < nPairs; i++) {
+                int target = pairs[firstPair + i * 2];
+                int distance = pairs[firstPair + i * 2 + 1];
+                // distance in meters over walk speed in meters per second --> seconds
+                int egressWalkTimeSeconds = (int) (distance / walkSpeed);
+                sorted[i] = ((long) target << 32) | egressWalkTimeSeconds;
+            }
+            Arrays.sort(sorted, 0, nPairs);
+            for (int i = 0; i < nPairs; i++) {
+                targets[offsets[s] + i] = (int) (sorted[i] >>> 32);
+                seconds[offsets[s] + i] = (int) sorted[i];
+            }
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package org.opentripplanner.profile;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Writes the travel times to all targets for every departure minute of a repeated RAPTOR search to a stream, for
+ * callers that need the full minutes x targets matrix without keeping it in memory.
+ *
+ * Travel times to a target usually change little from one minute to the next, so each minute is written as the
+ * differences with the minute written before it, as zigzag variable-width integers (the protobuf encoding of sint32).
+ * Every minute is preceded by its index, so minutes may be written in any order, for instance by parallel workers.
+ */
+public class MinuteTimesSpill {
+
+    /** Unreached targets are written as -1 rather than Integer.MAX_VALUE to keep the differences small. */
+    private static final int UNREACHED = -1;
+
+    private final OutputStream outputStream;
+
+    private final CodedOutputStream out;
+
+    /** The times in the last minute written, as written (i.e. with UNREACHED). */
+    private final int[] previous;
+
+    public MinuteTimesSpill (OutputStream outputStream, int nTargets) throws IOException {
+        this.outputStream = outputStream;
+        this.out = CodedOutputStream.newInstance(outputStream);
+        this.previous = new int[nTargets];
+        out.writeUInt32NoTag(nTargets);
+    }
+
+    /** Write the travel times to all targets for the departure minute with the given index. */
+    public synchronized void writeMinute (int minute, int[] timesAtTargets) throws IOException {
+        out.writeUInt32NoTag(minute);
+        for (int t = 0; t < previous.length; t++) {
+            int time = timesAtTargets[t] == RaptorWorker.UNREACHED ? UNREACHED : timesAtTargets[t];
+            out.writeSInt32NoTag(time - previous[t]);
+            previous[t] = time;
+        }
+    }
+
+    /** Flush all the minutes written so far to the underlying stream, which is not closed. */
+    public synchronized void flush () throws IOException {
+        out.flush();
+        outputStream.flush();
+    }
+
+    /** Reads back the minutes written by a MinuteTimesSpill, one at a time and in the order they were written. */
+    public static class Reader {
+
+        private final CodedInputStream in;
+
+        private final int[] times;
+
+        private int minute = -1;
+
+        public Reader (InputStream inputStream) throws IOException {
+            in = CodedInputStream.newInstance(inputStream);
+            in.setSizeLimit(Integer.MAX_VALUE);
+            times = new int[in.readRawVarint32()];
+        }
+
+        /** @return the number of targets. */
+        public int getTargetCount () {
+            return times.length;
+        }
+
+        /** Read the next minute, returning false at the end of the stream. */
+        public boolean next () throws IOException {
+            // The input stream enforces a limit on the total size read, reset it so large matrices can be read.
+            in.resetSizeCounter();
+            if (in.isAtEnd())
+                return false;
+
+            minute = in.readRawVarint32();
+            for (int t = 0; t < times.length; t++) {
+                int previous = times[t] == RaptorWorker.UNREACHED ? UNREACHED : times[t];
+                int time = previous + in.readSInt32();
+                times[t] = time == UNREACHED ? RaptorWorker.UNREACHED : time;
+            }
+            return true;
+        }
+
+        /** @return the index of the departure minute read by the last call to next. */
+        public int getMinute () {
+            return minute;
+        }
+
+        /** @return the travel times to all targets read by the last call to next. Overwritten by the next call. */
+        public int[] getTimes () {
+            return times;
+        }
+    }
+
+}
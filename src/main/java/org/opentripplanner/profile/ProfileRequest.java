@@ -104,6 +104,18 @@ public class ProfileRequest implements Serializable, Cloneable {
 
     /** A non-destructive scenario to apply when executing this request */
     public Scenario scenario;
+
+    /**
+     * The number of blocks of departure minutes searched in parallel by repeated RAPTOR, which should not exceed
+     * the number of available cores. Values below 2 search all the minutes serially.
+     */
+    public int raptorThreads = 1;
+
+    /**
+     * If positive, repeated RAPTOR also keeps a histogram of travel times to each target over the departure minutes,
+     * with bins of this many seconds, from which percentiles can be read. Memory use grows with the number of bins.
+     */
+    public int travelTimeHistogramBinSeconds = 0;
     
     public ProfileRequest clone () throws CloneNotSupportedException {
         return (ProfileRequest) super.clone();
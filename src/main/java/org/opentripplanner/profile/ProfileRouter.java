@@ -610,6 +610,9 @@ public class ProfileRouter {
             }
         }
         LOG.info("Done with propagation.");
+        minSurface.times.compact();
+        maxSurface.times.compact();
+        avgSurface.times.compact();
         /* Store the results in a field in the router object. */
         timeSurfaceRangeSet = new TimeSurface.RangeSet();
         timeSurfaceRangeSet.min = minSurface;
@@ -30,6 +30,11 @@ import java.util.Arrays;
  *
  * When exploring single-point (one-to-many) query results it would be great to have all these stored or produced on
  * demand for visualization.
+ *
+ * The times for each departure minute are merged in as soon as they are produced (see mergeMinute), so memory use only
+ * depends on the number of targets, not on the number of minutes. Histograms of travel times per target, from which
+ * approximate percentiles can be read, are only kept when requested with keepHistograms. Callers that need every
+ * minute's times can have them written to a MinuteTimesSpill instead of keeping them in memory.
  */
 public class PropagatedTimesStore {
 
@@ -41,6 +46,13 @@ public class PropagatedTimesStore {
     int size;
     int[] mins, maxs, sums, counts;
 
+    /** The width of the histogram bins in seconds, the last bin holding all longer times. */
+    int histogramBinSeconds;
+    int nBins;
+
+    /** The number of departure minutes in each histogram bin, nBins consecutive entries for each target. Null if not kept. */
+    short[] histograms;
+
     public PropagatedTimesStore(Graph graph) {
         this(graph, Vertex.getMaxIndex());
     }
@@ -56,24 +68,112 @@ public class PropagatedTimesStore {
         Arrays.fill(mins, Integer.MAX_VALUE);
     }
 
+    /**
+     * Also keep a histogram of the travel times to each target, with bins of the given width up to maxSeconds and one
+     * more bin for all longer times. Must be called before any times are merged in.
+     * Counts are stored as shorts, so at most Short.MAX_VALUE minutes may be merged in.
+     */
+    public void keepHistograms(int binSeconds, int maxSeconds) {
+        histogramBinSeconds = binSeconds;
+        nBins = (maxSeconds + binSeconds - 1) / binSeconds + 1;
+        histograms = new short[size * nBins];
+    }
+
     public void setFromArray(int[][] times) {
         for (int i = 0; i < times.length; i++) {
-            for (int v = 0; v < times[i].length; v++) {
-                int newValue = times[i][v];
-
-                if (newValue == RaptorWorker.UNREACHED)
-                    continue;
-
-                if (mins[v] > newValue) {
-                    mins[v] = newValue;
-                }
-                if (maxs[v] < newValue) {
-                    maxs[v] = newValue;
-                }
-                sums[v] += newValue;
-                counts[v] += 1;
+            mergeMinute(times[i]);
+        }
+    }
+
+    /** Merge in the travel times to all targets for one departure minute. Unreached targets are skipped. */
+    public void mergeMinute(int[] times) {
+        for (int v = 0; v < times.length; v++) {
+            int newValue = times[v];
+
+            if (newValue == RaptorWorker.UNREACHED)
+                continue;
+
+            if (mins[v] > newValue) {
+                mins[v] = newValue;
+            }
+            if (maxs[v] < newValue) {
+                maxs[v] = newValue;
+            }
+            sums[v] += newValue;
+            counts[v] += 1;
+
+            if (histograms != null) {
+                histograms[v * nBins + Math.min(newValue / histogramBinSeconds, nBins - 1)]++;
+            }
+        }
+    }
+
+    /**
+     * Merge in the statistics accumulated by another store over other departure minutes, for instance by another
+     * thread. The result is the same as if all the minutes had been merged into this store.
+     */
+    public void mergeStore(PropagatedTimesStore other) {
+        for (int v = 0; v < size; v++) {
+            if (other.counts[v] == 0)
+                continue;
+
+            if (mins[v] > other.mins[v]) {
+                mins[v] = other.mins[v];
+            }
+            if (maxs[v] < other.maxs[v]) {
+                maxs[v] = other.maxs[v];
             }
+            sums[v] += other.sums[v];
+            counts[v] += other.counts[v];
+        }
+        if (histograms != null) {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] += other.histograms[i];
+            }
+        }
+    }
+
+    /** @return a new store for the same targets, keeping the same statistics as this one. */
+    public PropagatedTimesStore emptyCopy() {
+        PropagatedTimesStore copy = new PropagatedTimesStore(graph, size);
+        if (histograms != null) {
+            copy.histogramBinSeconds = histogramBinSeconds;
+            copy.nBins = nBins;
+            copy.histograms = new short[histograms.length];
+        }
+        return copy;
+    }
+
+    /** @return the number of departure minutes in each bin of the travel time histogram of the given target. */
+    public int[] getHistogram(int target) {
+        if (histograms == null)
+            throw new IllegalStateException("Travel time histograms were not kept.");
+
+        int[] histogram = new int[nBins];
+        for (int b = 0; b < nBins; b++) {
+            histogram[b] = histograms[target * nBins + b];
+        }
+        return histogram;
+    }
+
+    /**
+     * Get an upper bound of the given percentile (0 - 100) of the travel times to the given target over all departure
+     * minutes: the end of the histogram bin containing it, or the maximum travel time if that is lower.
+     * @return the travel time in seconds, or RaptorWorker.UNREACHED if the target was never reached.
+     */
+    public int getPercentile(int target, double percentile) {
+        int[] histogram = getHistogram(target);
+        if (counts[target] == 0)
+            return RaptorWorker.UNREACHED;
+
+        int rank = Math.max(1, (int) Math.ceil(percentile / 100 * counts[target]));
+        int cumulative = 0;
+        for (int b = 0; b < nBins - 1; b++) {
+            cumulative += histogram[b];
+            if (cumulative >= rank)
+                return Math.min((b + 1) * histogramBinSeconds, maxs[target]);
         }
+        return maxs[target];
     }
 
     /**
@@ -121,17 +221,18 @@ public class PropagatedTimesStore {
     /** You need to pass in a pre-constructed rangeSet because it requires a reference to the profile router. */
     public void makeSurfaces(TimeSurface.RangeSet rangeSet) {
         for (Vertex vertex : graph.index.vertexForId.values()) {
-            int min = mins[vertex.getIndex()];
-            int max = maxs[vertex.getIndex()];
-            int sum = sums[vertex.getIndex()];
-            int count = counts[vertex.getIndex()];
+            int index = vertex.getIndex();
+            int count = counts[index];
             if (count <= 0)
                 continue;
             // Count is positive, extrema and sum must also be present
-            rangeSet.min.times.put(vertex, min);
-            rangeSet.max.times.put(vertex, max);
-            rangeSet.avg.times.put(vertex, sum / count);
+            rangeSet.min.times.put(index, mins[index]);
+            rangeSet.max.times.put(index, maxs[index]);
+            rangeSet.avg.times.put(index, sums[index] / count);
         }
+        rangeSet.min.times.compact();
+        rangeSet.max.times.compact();
+        rangeSet.avg.times.compact();
     }
 
     /** Make a ResultSet directly given a sample set (must have constructed RaptorWorkerData from the same sampleset) */
@@ -1,19 +1,25 @@
 package org.opentripplanner.profile;
 
-import com.google.protobuf.CodedOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import org.opentripplanner.routing.graph.Graph;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * A RaptorWorker carries out RAPTOR searches on a pre-filtered, compacted representation of all the trips running
@@ -47,6 +53,24 @@ public class RaptorWorker {
     BitSet stopsTouched;
     BitSet patternsTouched;
 
+    /**
+     * If set, the travel times to all targets for every departure minute are also written to this spill, for callers
+     * that need them all and not just the statistics kept by the PropagatedTimesStore.
+     */
+    public MinuteTimesSpill spill;
+
+    /** Walking times from stops to targets for this request, shared with the workers of parallel blocks. */
+    EgressTable egress;
+
+    /**
+     * The earliest clock time at which each target is reached via transit (without the walk-only times), carried over
+     * from one departure minute to the next. It can only improve as departure minutes get earlier.
+     */
+    private int[] transitTimesAtTargets;
+
+    /** The bestNonTransferTimes that have already been propagated into transitTimesAtTargets. */
+    private int[] propagatedTimes;
+
     private ProfileRequest req;
 
     public RaptorWorker(RaptorWorkerData data, ProfileRequest req) {
@@ -82,85 +106,277 @@ public class RaptorWorker {
         }
 
         PropagatedTimesStore propagatedTimesStore = new PropagatedTimesStore(graph, data.nTargets);
+        if (req.travelTimeHistogramBinSeconds > 0) {
+            propagatedTimesStore.keepHistograms(req.travelTimeHistogramBinSeconds, MAX_DURATION);
+        }
+        egress = new EgressTable(data, req.walkSpeed);
 
         int iterations = (req.toTime - req.fromTime - 60) / 60 + 1;
 
-        // Iterate backward through minutes (range-raptor) taking a snapshot of router state after each call
-        int[][] timesAtTargetsEachMinute = new int[iterations][data.nTargets];
-
-        for (int departureTime = req.toTime - 60, n = 0; departureTime >= req.fromTime; departureTime -= 60, n++) {
-            if (n % 15 == 0) {
-                LOG.info("minute {}", n);
-            }
-            this.runRaptor(initialStops, departureTime);
-            long beginPropagationTime = System.currentTimeMillis();
-            int[] timesAtTargets = timesAtTargetsEachMinute[n];
-
-            // Record distances to each sample or intersection
-            // We need to propagate all the way to samples (or intersections if there are no samples)
-            // when doing repeated RAPTOR.
-            // Consider the situation where there are two parallel transit lines on
-            // 5th Street and 6th Street, and you live on A Street halfway between 5th and 6th.
-            // Both lines run at 30 minute headways, but they are exactly out of phase, and for the
-            // purposes of this conversation both go the same place with the same in-vehicle travel time.
-            // Thus, even though the lines run every 30 minutes, you never experience a wait of more than
-            // 15 minutes because you are clever when you choose which line to take. The worst case at each
-            // transit stop is much worse than the worst case at samples. While unlikely, it is possible that
-            // a sample would be able to reach these two stops within the walk limit, but that the two
-            // intersections it is connected to cannot reach both.
-
-            // We include the walk-only times to access transit in the results so that there are not increases in time
-            // to reach blocks around the origin due to being forced to ride transit.
-            // Use timesAtTargets.length not walkTimes.length due to temp vertices
-            System.arraycopy(walkTimes, 0, timesAtTargets, 0, timesAtTargets.length);
-
-            for (int s = 0; s < data.nStops; s++) {
-                // it's safe to use the best time at this stop for any number of transfers, even in range-raptor,
-                // because we allow unlimited transfers. this is slightly different from the original RAPTOR implementation:
-                // we do not necessarily compute all pareto-optimal paths on (journey time, number of transfers).
-                int baseTimeSeconds = bestNonTransferTimes[s];
-                if (baseTimeSeconds != UNREACHED) {
-                    baseTimeSeconds -= departureTime; // convert to travel time rather than clock time
-                    int[] targets = data.targetsForStop.get(s);
-                    for (int i = 0; i < targets.length; i++) {
-                        int targetIndex = targets[i++]; // increment i after read
-                        int distance = targets[i]; // i will be incremented at loop end
-                        // distance in meters over walk speed in meters per second --> seconds
-                        int egressWalkTimeSeconds = (int) (distance / req.walkSpeed);
-                        int propagated_time = baseTimeSeconds + egressWalkTimeSeconds;
-                        if (timesAtTargets[targetIndex] > propagated_time) {
-                            timesAtTargets[targetIndex] = propagated_time;
-                        }
-                    }
+        if (req.raptorThreads > 1 && iterations > 1) {
+            totalPropagationTime = runRaptorParallel(initialStops, walkTimes, iterations, propagatedTimesStore);
+        } else {
+            // Iterate backward through minutes (range-raptor), merging the times at targets after each call
+            int[] timesAtTargets = new int[data.nTargets];
+            for (int departureTime = req.toTime - 60, n = 0; departureTime >= req.fromTime; departureTime -= 60, n++) {
+                if (n % 15 == 0) {
+                    LOG.info("minute {}", n);
                 }
+                this.runRaptor(initialStops, departureTime);
+                long beginPropagationTime = System.currentTimeMillis();
+                propagate(departureTime, walkTimes, timesAtTargets);
+                recordMinute(n, timesAtTargets, propagatedTimesStore);
+                totalPropagationTime += (System.currentTimeMillis() - beginPropagationTime);
             }
-            totalPropagationTime += (System.currentTimeMillis() - beginPropagationTime);
         }
+        flushSpill();
         long calcTime = System.currentTimeMillis() - beginCalcTime;
         LOG.info("calc time {}sec", calcTime / 1000.0);
         LOG.info("  propagation {}sec", totalPropagationTime / 1000.0);
         LOG.info("  raptor {}sec", (calcTime - totalPropagationTime) / 1000.0);
-        //dumpVariableByte(timesAtTargetsEachMinute);
-        propagatedTimesStore.setFromArray(timesAtTargetsEachMinute);
         return propagatedTimesStore;
     }
 
-    public void dumpVariableByte(int[][] array) {
+    /** Merge the times at targets for minute n into the given store, and write them to the spill if there is one. */
+    private void recordMinute (int n, int[] timesAtTargets, PropagatedTimesStore propagatedTimesStore) {
+        propagatedTimesStore.mergeMinute(timesAtTargets);
+        if (spill != null) {
+            try {
+                spill.writeMinute(n, timesAtTargets);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private void flushSpill () {
+        if (spill != null) {
+            try {
+                spill.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Split the departure minutes into contiguous blocks and run range-RAPTOR over each block on its own RaptorWorker,
+     * on a pool of req.raptorThreads threads. The results are the same as those of a serial search.
+     *
+     * In a serial search the state at the start of a block is left over from all the later departure minutes. Each
+     * block is seeded with a search at the minute just after it (whose results are not recorded) so that pruning
+     * remains effective from its first minute, but the arrivals left over by the other later minutes are missing. The
+     * best non-transfer times only ever decrease, and the serial state at any minute is the elementwise minimum of the
+     * block's own state and the final states of the blocks of later minutes. So the RAPTOR searches of all the blocks
+     * are run first, recording the stops improved by every minute, and then each block propagates its minutes to the
+     * targets starting from the times left over by the blocks of later minutes.
+     *
+     * @return the total time spent propagating to the targets, summed over all blocks, in milliseconds.
+     */
+    private long runRaptorParallel (final TIntIntMap initialStops, final int[] walkTimes, final int iterations,
+                                    final PropagatedTimesStore propagatedTimesStore) {
+        int nBlocks = Math.min(req.raptorThreads, iterations);
+        LOG.info("Running {} minutes in {} parallel blocks", iterations, nBlocks);
+        ExecutorService executor = Executors.newFixedThreadPool(nBlocks,
+                new ThreadFactoryBuilder().setNameFormat("raptor-block-%d").setDaemon(true).build());
         try {
-            FileOutputStream fos = new FileOutputStream("/Users/abyrd/results.dat");
-            CodedOutputStream cos = CodedOutputStream.newInstance(fos);
-            cos.writeUInt32NoTag(array.length);
-            for (int[] subArray : array) {
-                cos.writeUInt32NoTag(subArray.length);
-                for (int val : subArray) {
-                    cos.writeInt32NoTag(val);
+            List<MinuteBlock> blocks = new ArrayList<MinuteBlock>();
+            List<Callable<Void>> searches = new ArrayList<Callable<Void>>();
+            for (int b = 0; b < nBlocks; b++) {
+                // minute n departs at toTime - 60 * (n + 1), so the first minutes of the window are the last ones run
+                final MinuteBlock block = new MinuteBlock(b * iterations / nBlocks, (b + 1) * iterations / nBlocks);
+                blocks.add(block);
+                searches.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        block.search(initialStops);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> future : executor.invokeAll(searches)) {
+                future.get();
+            }
+
+            List<Callable<Long>> propagations = new ArrayList<Callable<Long>>();
+            int[] laterTimes = new int[data.nStops];
+            Arrays.fill(laterTimes, UNREACHED);
+            for (final MinuteBlock block : blocks) {
+                final int[] initialTimes = laterTimes.clone();
+                propagations.add(new Callable<Long>() {
+                    @Override
+                    public Long call() {
+                        PropagatedTimesStore blockStore = propagatedTimesStore.emptyCopy();
+                        long propagationTime = block.propagate(initialTimes, walkTimes, blockStore);
+                        synchronized (propagatedTimesStore) {
+                            propagatedTimesStore.mergeStore(blockStore);
+                        }
+                        return propagationTime;
+                    }
+                });
+                for (int s = 0; s < data.nStops; s++) {
+                    laterTimes[s] = Math.min(laterTimes[s], block.finalTimes[s]);
+                }
+            }
+            long totalPropagationTime = 0;
+            for (Future<Long> future : executor.invokeAll(propagations)) {
+                totalPropagationTime += future.get();
+            }
+            return totalPropagationTime;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while searching departure minutes in parallel", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not search departure minutes in parallel", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A contiguous block of departure minutes of a parallel search. Its RAPTOR searches record the stops whose best
+     * non-transfer time improved at each minute, so the times at targets can be propagated afterwards from the state
+     * left over by the blocks of later minutes.
+     */
+    private class MinuteBlock {
+
+        final int firstMinute;
+        final int endMinute;
+
+        /** For each minute of the block, the stops improved by its search and their new best non-transfer times. */
+        final int[][] improvedStopTimes;
+
+        /** The best non-transfer times at all stops after the last minute of the block. */
+        int[] finalTimes;
+
+        MinuteBlock (int firstMinute, int endMinute) {
+            this.firstMinute = firstMinute;
+            this.endMinute = endMinute;
+            this.improvedStopTimes = new int[endMinute - firstMinute][];
+        }
+
+        /** Run the RAPTOR searches for the minutes of this block, seeded with a search at the minute just after it. */
+        void search (TIntIntMap initialStops) {
+            RaptorWorker worker = new RaptorWorker(data, req);
+            if (firstMinute > 0) {
+                worker.runRaptor(initialStops, departureTimeForMinute(firstMinute - 1));
+            }
+            int[] times = worker.bestNonTransferTimes.clone();
+            TIntArrayList improved = new TIntArrayList();
+            for (int n = firstMinute; n < endMinute; n++) {
+                worker.runRaptor(initialStops, departureTimeForMinute(n));
+                improved.resetQuick();
+                for (int s = 0; s < data.nStops; s++) {
+                    int time = worker.bestNonTransferTimes[s];
+                    if (time != times[s]) {
+                        improved.add(s);
+                        improved.add(time);
+                        times[s] = time;
+                    }
+                }
+                improvedStopTimes[n - firstMinute] = improved.toArray();
+            }
+            finalTimes = times;
+        }
+
+        /**
+         * Propagate the best times at stops for every minute of this block to the targets, and merge them into the
+         * given store.
+         *
+         * @param laterTimes the elementwise minimum of the final best non-transfer times of all the blocks of later
+         *                   minutes, which is updated in place.
+         * @return the time spent propagating, in milliseconds.
+         */
+        long propagate (int[] laterTimes, int[] walkTimes, PropagatedTimesStore blockStore) {
+            long beginPropagationTime = System.currentTimeMillis();
+            RaptorWorker worker = new RaptorWorker(data, req);
+            worker.egress = egress;
+            worker.spill = spill;
+            worker.bestNonTransferTimes = laterTimes;
+            int[] timesAtTargets = new int[data.nTargets];
+            for (int n = firstMinute; n < endMinute; n++) {
+                int[] improved = improvedStopTimes[n - firstMinute];
+                for (int i = 0; i < improved.length; i++) {
+                    int stop = improved[i++]; // increment i
+                    int time = improved[i]; // i will be incremented at the end of the loop
+                    if (time < laterTimes[stop]) {
+                        laterTimes[stop] = time;
+                    }
                 }
+                worker.propagate(departureTimeForMinute(n), walkTimes, timesAtTargets);
+                worker.recordMinute(n, timesAtTargets, blockStore);
+            }
+            return System.currentTimeMillis() - beginPropagationTime;
+        }
+    }
+
+    private int departureTimeForMinute (int n) {
+        return req.toTime - 60 - n * 60;
+    }
+
+    /**
+     * Propagate the best times at transit stops found by the last RAPTOR search out to the targets.
+     *
+     * This is incremental over the departure minutes run by this worker: arrival clock times at targets are kept from
+     * one call to the next, and only stops whose best time changed since the previous call are propagated again.
+     * The best times at stops only decrease, so the result is the same as propagating all stops every time.
+     *
+     * @param timesAtTargets receives the travel times to all targets for the given departure time.
+     */
+    void propagate (int departureTime, int[] walkTimes, int[] timesAtTargets) {
+        // Record distances to each sample or intersection
+        // We need to propagate all the way to samples (or intersections if there are no samples)
+        // when doing repeated RAPTOR.
+        // Consider the situation where there are two parallel transit lines on
+        // 5th Street and 6th Street, and you live on A Street halfway between 5th and 6th.
+        // Both lines run at 30 minute headways, but they are exactly out of phase, and for the
+        // purposes of this conversation both go the same place with the same in-vehicle travel time.
+        // Thus, even though the lines run every 30 minutes, you never experience a wait of more than
+        // 15 minutes because you are clever when you choose which line to take. The worst case at each
+        // transit stop is much worse than the worst case at samples. While unlikely, it is possible that
+        // a sample would be able to reach these two stops within the walk limit, but that the two
+        // intersections it is connected to cannot reach both.
+
+        if (egress == null) {
+            egress = new EgressTable(data, req.walkSpeed);
+        }
+        if (transitTimesAtTargets == null) {
+            transitTimesAtTargets = new int[data.nTargets];
+            Arrays.fill(transitTimesAtTargets, UNREACHED);
+            propagatedTimes = new int[data.nStops];
+            Arrays.fill(propagatedTimes, UNREACHED);
+        }
+
+        int[] targets = egress.targets;
+        int[] seconds = egress.seconds;
+        for (int s = 0; s < data.nStops; s++) {
+            // it's safe to use the best time at this stop for any number of transfers, even in range-raptor,
+            // because we allow unlimited transfers. this is slightly different from the original RAPTOR implementation:
+            // we do not necessarily compute all pareto-optimal paths on (journey time, number of transfers).
+            int baseTime = bestNonTransferTimes[s];
+            if (baseTime == propagatedTimes[s]) {
+                continue; // unchanged since the previous minute (or still unreached)
+            }
+            propagatedTimes[s] = baseTime;
+            for (int i = egress.offsets[s]; i < egress.offsets[s + 1]; i++) {
+                int propagatedTime = baseTime + seconds[i];
+                if (transitTimesAtTargets[targets[i]] > propagatedTime) {
+                    transitTimesAtTargets[targets[i]] = propagatedTime;
+                }
+            }
+        }
+
+        // We include the walk-only times to access transit in the results so that there are not increases in time
+        // to reach blocks around the origin due to being forced to ride transit.
+        // Use timesAtTargets.length not walkTimes.length due to temp vertices
+        for (int t = 0; t < timesAtTargets.length; t++) {
+            int transitTime = transitTimesAtTargets[t];
+            // convert to travel time rather than clock time
+            if (transitTime != UNREACHED && transitTime - departureTime < walkTimes[t]) {
+                timesAtTargets[t] = transitTime - departureTime;
+            } else {
+                timesAtTargets[t] = walkTimes[t];
             }
-            fos.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
@@ -193,7 +409,9 @@ public class RaptorWorker {
             //LOG.info("pattern {} {}", p, data.patternNames.get(p));
             int onTrip = -1;
             RaptorWorkerTimetable timetable = data.timetablesForPattern.get(p);
-            int[] stops = data.stopsForPattern.get(p);
+            int[] stops = data.stopsForPatternStops;
+            int firstStop = data.stopsForPatternOffsets[p];
+            int endStop = data.stopsForPatternOffsets[p + 1];
             int stopPositionInPattern = -1; // first increment will land this at zero
 
             int bestFreqBoardTime = Integer.MAX_VALUE;
@@ -201,7 +419,8 @@ public class RaptorWorker {
             int bestFreq = -1;
 
             // first look for a frequency entry
-            for (int stopIndex : stops) {
+            for (int i = firstStop; i < endStop; i++) {
+                int stopIndex = stops[i];
                 stopPositionInPattern += 1;
 
                 // the time at this stop if we remain on board a vehicle we had already boarded
@@ -258,7 +477,8 @@ public class RaptorWorker {
 
             stopPositionInPattern = -1;
 
-            for (int stopIndex : stops) {
+            for (int i = firstStop; i < endStop; i++) {
+                int stopIndex = stops[i];
                 stopPositionInPattern += 1;
                 if (onTrip == -1) {
                     // We haven't boarded yet
@@ -309,8 +529,8 @@ public class RaptorWorker {
             // TODO this is reboarding every trip at every stop.
             markPatternsForStop(stop);
             int fromTime = bestNonTransferTimes[stop];
-            int[] transfers = data.transfersForStop.get(stop);
-            for (int i = 0; i < transfers.length; i++) {
+            int[] transfers = data.transfersForStopPairs;
+            for (int i = data.transfersForStopOffsets[stop]; i < data.transfersForStopOffsets[stop + 1]; i++) {
                 int toStop = transfers[i++]; // increment i
                 int distance = transfers[i]; // i will be incremented at the end of the loop
                 int toTime = fromTime + (int) (distance / req.walkSpeed);
@@ -324,9 +544,9 @@ public class RaptorWorker {
 
     /** Mark all the patterns passing through the given stop. */
     private void markPatternsForStop(int stop) {
-        int[] patterns = data.patternsForStop.get(stop);
-        for (int pattern : patterns) {
-            patternsTouched.set(pattern);
+        int[] patterns = data.patternsForStopPatterns;
+        for (int i = data.patternsForStopOffsets[stop]; i < data.patternsForStopOffsets[stop + 1]; i++) {
+            patternsTouched.set(patterns[i]);
         }
     }
 
@@ -2,6 +2,8 @@ package org.opentripplanner.profile;
 
 import com.beust.jcommander.internal.Lists;
 import com.google.common.collect.Iterables;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.iterator.TIntIterator;
 import gnu.trove.iterator.TObjectIntIterator;
@@ -35,12 +37,26 @@ import org.opentripplanner.routing.vertextype.TransitStop;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 
+/**
+ * The transit data used by a RaptorWorker, restricted to the patterns running in a time window and indexed with
+ * 0-based stop and pattern indices that are specific to this object.
+ *
+ * The relations between stops, patterns and targets are built as lists of arrays, then flattened into a compressed
+ * sparse row (CSR) layout: for each relation there is one array of offsets and one contiguous payload array, and the
+ * entries for element i are found in the payload between offsets[i] (inclusive) and offsets[i + 1] (exclusive).
+ * Only the flat layout is kept, which avoids chasing a pointer to a separate array for every stop or pattern visited.
+ * It is serialized using variable-width integers to ship this data to cluster workers.
+ */
 public class RaptorWorkerData implements Serializable {
     public static final Logger LOG = LoggerFactory.getLogger(RaptorWorkerData.class);
 
@@ -54,14 +70,36 @@ public class RaptorWorkerData implements Serializable {
     /** The number of targets (vertices or samples) */
     public final int nTargets;
 
-    /** For every stop, one pair of ints (targetStopIndex, distanceMeters) for each transfer out of that stop. This uses 0-based stop indices that are specific to RaptorData */
-    public final List<int[]> transfersForStop = new ArrayList<>();
+    /* The relations between stops, patterns and targets in CSR layout (see class comment). Stops and patterns use
+     * 0-based indices that are specific to RaptorData. Offsets into pair arrays count ints, not pairs. */
 
-    /** A list of pattern indexes passing through each stop, again using Raptor indices. */
-    public final List<int[]> patternsForStop = new ArrayList<>();
+    /** Offsets into stopsForPatternStops for each pattern, nPatterns + 1 entries. */
+    public transient int[] stopsForPatternOffsets;
 
-    /** An ordered list of stops indices (in the Raptor data) visited by each pattern. */
-    public final List<int[]> stopsForPattern = new ArrayList<>();
+    /** The ordered stop indices visited by all patterns. */
+    public transient int[] stopsForPatternStops;
+
+    /** Offsets into patternsForStopPatterns for each stop, nStops + 1 entries. */
+    public transient int[] patternsForStopOffsets;
+
+    /** The indices of the patterns passing through all stops. */
+    public transient int[] patternsForStopPatterns;
+
+    /** Offsets into transfersForStopPairs for each stop, nStops + 1 entries. */
+    public transient int[] transfersForStopOffsets;
+
+    /** (targetStopIndex, distanceMeters) pairs for the transfers out of all stops. */
+    public transient int[] transfersForStopPairs;
+
+    /** Offsets into targetsForStopPairs for each stop, nStops + 1 entries. */
+    public transient int[] targetsForStopOffsets;
+
+    /**
+     * (targetID, distanceMeters) pairs for the destinations near all stops.
+     * For generic TimeSurfaces these are street intersections. They could be anything though since the worker doesn't
+     * care what the IDs stand for. For example, they could be point indexes in a pointset.
+     */
+    public transient int[] targetsForStopPairs;
 
     /** For each pattern, a 2D array of stoptimes for each trip on the pattern. */
     public List<RaptorWorkerTimetable> timetablesForPattern = new ArrayList<>();
@@ -71,13 +109,6 @@ public class RaptorWorkerData implements Serializable {
      */
     public TObjectIntMap<AddTripPattern.TemporaryStop> addedStops = new TObjectIntHashMap<AddTripPattern.TemporaryStop>();
 
-    /**
-     * For each stop, one pair of ints (targetID, distanceMeters) for each destination near that stop.
-     * For generic TimeSurfaces these are street intersections. They could be anything though since the worker doesn't
-     * care what the IDs stand for. For example, they could be point indexes in a pointset.
-     */
-    public final List<int[]> targetsForStop = new ArrayList<>();
-
     /** The 0-based RAPTOR indices of each stop from their vertex IDs */
     public transient final TIntIntMap indexForStop;
      /** Optional debug data: the name of each stop. */
@@ -99,6 +130,16 @@ public class RaptorWorkerData implements Serializable {
         indexForStop = new TIntIntHashMap(totalStops, 0.75f, Integer.MIN_VALUE, -1);
         TIntList stopForIndex = new TIntArrayList(totalStops, Integer.MIN_VALUE);
 
+        // The relations are built as lists of arrays, then flattened into the CSR fields and dropped.
+        // An ordered list of stops indices (in the Raptor data) visited by each pattern.
+        List<int[]> stopsForPattern = new ArrayList<>();
+        // A list of pattern indexes passing through each stop, again using Raptor indices.
+        List<int[]> patternsForStop = new ArrayList<>();
+        // For every stop, one pair of ints (targetStopIndex, distanceMeters) for each transfer out of that stop.
+        List<int[]> transfersForStop = new ArrayList<>();
+        // For each stop, one pair of ints (targetID, distanceMeters) for each destination near that stop.
+        List<int[]> targetsForStop = new ArrayList<>();
+
         /* Make timetables for active trip patterns and record the stops each active pattern uses. */
         for (TripPattern originalPattern : graph.index.patternForId.values()) {
             Collection<TripPattern> patterns = Arrays.asList(originalPattern);
@@ -290,6 +331,11 @@ public class RaptorWorkerData implements Serializable {
         for (int stop = 0; stop < stopForIndex.size(); stop++) {
             patternsForStop.add(patternsForStopList.get(stop).toArray());
         }
+        stopsForPatternOffsets = offsets(stopsForPattern);
+        stopsForPatternStops = concatenate(stopsForPattern, stopsForPatternOffsets);
+        patternsForStopOffsets = offsets(patternsForStop);
+        patternsForStopPatterns = concatenate(patternsForStop, patternsForStopOffsets);
+        stopsForPattern = patternsForStop = null;
 
         /** Record transfers between all used stops. */
         for (TIntIterator it = stopForIndex.iterator(); it.hasNext();) {
@@ -325,6 +371,9 @@ public class RaptorWorkerData implements Serializable {
             else
                 transfersForStop.add(EMPTY_INT_ARRAY);
         }
+        transfersForStopOffsets = offsets(transfersForStop);
+        transfersForStopPairs = concatenate(transfersForStop, transfersForStopOffsets);
+        transfersForStop = null;
 
         StopTreeCache stc = graph.index.getStopTreeCache();
 
@@ -439,6 +488,27 @@ public class RaptorWorkerData implements Serializable {
 
         nStops = stopForIndex.size();
         nPatterns = patternForIndex.size();
+
+        targetsForStopOffsets = offsets(targetsForStop);
+        targetsForStopPairs = concatenate(targetsForStop, targetsForStopOffsets);
+    }
+
+    /** Make the CSR offsets for a list of arrays: the position of each array in the concatenated payload, then its length. */
+    private static int[] offsets (List<int[]> arrays) {
+        int[] offsets = new int[arrays.size() + 1];
+        for (int i = 0; i < arrays.size(); i++) {
+            offsets[i + 1] = offsets[i] + arrays.get(i).length;
+        }
+        return offsets;
+    }
+
+    /** Make the CSR payload for a list of arrays, given the offsets made for them. */
+    private static int[] concatenate (List<int[]> arrays, int[] offsets) {
+        int[] payload = new int[offsets[arrays.size()]];
+        for (int i = 0; i < arrays.size(); i++) {
+            System.arraycopy(arrays.get(i), 0, payload, offsets[i], arrays.get(i).length);
+        }
+        return payload;
     }
 
     /** find stops from a given SPT, including temporary stops */
@@ -498,6 +568,75 @@ public class RaptorWorkerData implements Serializable {
         return accessTimes;
     }
 
+    /* SERIALIZATION */
+
+    /**
+     * Write the CSR arrays as variable-width integers, storing offsets as deltas (i.e. the number of entries for each
+     * stop or pattern). Most of the values are small, so this is much more compact than a plain int array.
+     */
+    private void writeObject (ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        CodedOutputStream cos = CodedOutputStream.newInstance(buffer);
+        writeOffsets(cos, stopsForPatternOffsets);
+        writeValues(cos, stopsForPatternStops);
+        writeOffsets(cos, patternsForStopOffsets);
+        writeValues(cos, patternsForStopPatterns);
+        writeOffsets(cos, transfersForStopOffsets);
+        writeValues(cos, transfersForStopPairs);
+        writeOffsets(cos, targetsForStopOffsets);
+        writeValues(cos, targetsForStopPairs);
+        cos.flush();
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+
+    private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byte[] buffer = new byte[in.readInt()];
+        in.readFully(buffer);
+        CodedInputStream cis = CodedInputStream.newInstance(buffer);
+        cis.setSizeLimit(buffer.length);
+        stopsForPatternOffsets = readOffsets(cis);
+        stopsForPatternStops = readValues(cis);
+        patternsForStopOffsets = readOffsets(cis);
+        patternsForStopPatterns = readValues(cis);
+        transfersForStopOffsets = readOffsets(cis);
+        transfersForStopPairs = readValues(cis);
+        targetsForStopOffsets = readOffsets(cis);
+        targetsForStopPairs = readValues(cis);
+    }
+
+    private static void writeOffsets (CodedOutputStream cos, int[] offsets) throws IOException {
+        cos.writeUInt32NoTag(offsets.length);
+        for (int i = 1; i < offsets.length; i++) {
+            cos.writeUInt32NoTag(offsets[i] - offsets[i - 1]);
+        }
+    }
+
+    private static int[] readOffsets (CodedInputStream cis) throws IOException {
+        int[] offsets = new int[cis.readRawVarint32()];
+        for (int i = 1; i < offsets.length; i++) {
+            offsets[i] = offsets[i - 1] + cis.readRawVarint32();
+        }
+        return offsets;
+    }
+
+    private static void writeValues (CodedOutputStream cos, int[] values) throws IOException {
+        cos.writeUInt32NoTag(values.length);
+        for (int value : values) {
+            cos.writeInt32NoTag(value);
+        }
+    }
+
+    private static int[] readValues (CodedInputStream cis) throws IOException {
+        int[] values = new int[cis.readRawVarint32()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = cis.readInt32();
+        }
+        return values;
+    }
+
     /** half a sample: the index in the sample set, and the distance to one of the vertices */
     private static class HalfSample {
         public HalfSample(int index, float distance) {
@@ -36,14 +36,18 @@ public class RaptorWorkerTimetable implements Serializable {
 
     private static final Logger LOG = LoggerFactory.getLogger(RaptorWorkerTimetable.class);
 
-    // TODO put stop indexes in array here
     // TODO serialize using deltas and variable-width from Protobuf libs ?
 
-    /* Times for schedule-based trips/patterns are stored in a 2D array. */
+    /*
+     * Times for schedule-based trips/patterns are stored stop-major in a single array: all the (arrival, departure)
+     * pairs at the first stop of the pattern, one per trip in order, then all the pairs at the second stop, and so on.
+     * Looking for a departure at a stop thus scans a contiguous region of memory.
+     */
 
+    /** The number of scheduled trips, and twice the number of stops in the pattern (one arrival and one departure). */
     int nTrips, nStops;
 
-    private int[][] timesPerTrip;
+    private int[] times;
 
     /* Times for frequency-based trips are stored in parallel arrays (a column store). */
 
@@ -65,7 +69,7 @@ public class RaptorWorkerTimetable implements Serializable {
     private RaptorWorkerTimetable(int nTrips, int nStops) {
         this.nTrips = nTrips;
         this.nStops = nStops;
-        timesPerTrip = new int[nTrips][];
+        times = new int[nTrips * nStops];
     }
 
     /**
@@ -73,8 +77,9 @@ public class RaptorWorkerTimetable implements Serializable {
      * MIN_BOARD_TIME_SECONDS seconds of slack. 
      */
     public int findDepartureAfter(int stop, int time) {
-        for (int trip = 0; trip < timesPerTrip.length; trip++) {
-            if (getDeparture(trip, stop) > time + MIN_BOARD_TIME_SECONDS) {
+        int firstDeparture = stop * nTrips * 2 + 1;
+        for (int trip = 0; trip < nTrips; trip++) {
+            if (times[firstDeparture + trip * 2] > time + MIN_BOARD_TIME_SECONDS) {
                 return trip;
             }
         }
@@ -82,11 +87,24 @@ public class RaptorWorkerTimetable implements Serializable {
     }
 
     public int getArrival (int trip, int stop) {
-        return timesPerTrip[trip][stop * 2];
+        return times[(stop * nTrips + trip) * 2];
     }
 
     public int getDeparture (int trip, int stop) {
-        return timesPerTrip[trip][stop * 2 + 1];
+        return times[(stop * nTrips + trip) * 2 + 1];
+    }
+
+    /** Get the number of scheduled (non-frequency) trips on this pattern. */
+    public int getTripCount () {
+        return nTrips;
+    }
+
+    /** Copy the (arrival, departure) pairs for one trip, laid out trip-major, into the stop-major table. */
+    private void setTimes (int trip, int[] tripTimes) {
+        for (int s = 0; s < nStops / 2; s++) {
+            times[(s * nTrips + trip) * 2] = tripTimes[s * 2];
+            times[(s * nTrips + trip) * 2 + 1] = tripTimes[s * 2 + 1];
+        }
     }
 
     /**
@@ -204,7 +222,7 @@ public class RaptorWorkerTimetable implements Serializable {
                 times[s * 2] = arrival;
                 times[s * 2 + 1] = departure;
             }
-            rwtt.timesPerTrip[t++] = times;
+            rwtt.setTimes(t++, times);
         }
 
         // save frequency times
@@ -268,7 +286,7 @@ public class RaptorWorkerTimetable implements Serializable {
         // create timetabled trips
         int t = 0;
         for (AddTripPattern.PatternTimetable pt : timetables) {
-            rwtt.timesPerTrip[t++] = timesForPatternTimetable(atp, pt);
+            rwtt.setTimes(t++, timesForPatternTimetable(atp, pt));
         }
 
         // create frequency trips
@@ -221,6 +221,8 @@ public class RepeatedRaptorProfileRouter {
 
         rr.numItineraries = 1;
         rr.longDistance = true;
+        // This batch search reaches a large part of the graph, so address its states by vertex index.
+        rr.vertexIndexedShortestPathTree = true;
 
         // make a list of the stops
         Collection<AddTripPattern.TemporaryStop> stops;
@@ -40,6 +40,8 @@ import com.beust.jcommander.internal.Lists;
  *
  * NOTE this is now per-request scoped, which has caused some threading problems in the past.
  * Always make one new instance of this class per request, it contains a lot of state fields.
+ * The large arrays used by the search (priority queue, shortest path tree storage) can nonetheless be reused
+ * across requests by supplying a {@link SearchContext}.
  */
 public class AStar {
 
@@ -52,6 +54,9 @@ public class AStar {
 
     private TraverseVisitor traverseVisitor;
 
+    /** If non-null, the priority queue and SPT storage are taken from this context instead of being allocated. */
+    private SearchContext searchContext;
+
     enum RunStatus {
         RUNNING, STOPPED
     }
@@ -65,6 +70,9 @@ public class AStar {
         RemainingWeightHeuristic heuristic;
         public RoutingContext rctx;
         public int nVisited;
+        /** The number of states created by traversing edges, and the largest size of the queue, for the metrics. */
+        long nCreated;
+        int maxQueueSize;
         public List<Object> targetAcceptedStates;
         public RunStatus status;
         private RoutingRequest options;
@@ -107,7 +115,9 @@ public class AStar {
 
         runState = new RunState( options, terminationStrategy );
         runState.rctx = options.getRoutingContext();
-        runState.spt = options.getNewShortestPathTree();
+        runState.spt = searchContext == null ?
+                options.getNewShortestPathTree() :
+                searchContext.getShortestPathTree(options);
 
         // We want to reuse the heuristic instance in a series of requests for the same target to avoid repeated work.
         runState.heuristic = options.batch ?
@@ -130,8 +140,12 @@ public class AStar {
         // reaching its target. 
         int initialSize = runState.rctx.graph.getVertices().size();
         initialSize = (int) Math.ceil(2 * (Math.sqrt((double) initialSize + 1)));
-        runState.pq = new BinHeap<State>(initialSize);
+        runState.pq = searchContext == null ?
+                new BinHeap<State>(initialSize) :
+                searchContext.getHeap(initialSize);
         runState.nVisited = 0;
+        runState.nCreated = 0;
+        runState.maxQueueSize = 0;
         runState.targetAcceptedStates = Lists.newArrayList();
         
         if (addToQueue) {
@@ -180,6 +194,7 @@ public class AStar {
             // returning NULL), the iteration is over. TODO Use this to board multiple trips.
             for (State v = edge.traverse(runState.u); v != null; v = v.getNextResult()) {
                 // Could be: for (State v : traverseEdge...)
+                runState.nCreated += 1;
 
                 if (traverseVisitor != null) {
                     traverseVisitor.visitEdge(edge, v);
@@ -226,6 +241,9 @@ public class AStar {
                         traverseVisitor.visitEnqueue(v);
                     
                     runState.pq.insert(v, estimate);
+                    if (runState.pq.size() > runState.maxQueueSize) {
+                        runState.maxQueueSize = runState.pq.size();
+                    }
                 } 
             }
         }
@@ -249,6 +267,11 @@ public class AStar {
 
                 break;
             }
+            if (Thread.currentThread().isInterrupted()) {
+                // The search was cancelled, e.g. a concurrent search for alternative itineraries no longer needed.
+                runState.options.rctx.aborted = true;
+                break;
+            }
             
             /*
              * Get next best state and, if it hasn't already been dominated, add adjacent states to queue.
@@ -292,6 +315,7 @@ public class AStar {
             }
 
         }
+        runState.options.rctx.debugOutput.searched(runState.nCreated, runState.nVisited, runState.maxQueueSize);
     }
 
     /** @return the shortest path, or null if none is found */
@@ -354,4 +378,12 @@ public class AStar {
     public void setTraverseVisitor(TraverseVisitor traverseVisitor) {
         this.traverseVisitor = traverseVisitor;
     }
+
+    /**
+     * Reuse the data structures in the given context for subsequent searches. Each ShortestPathTree returned by
+     * this AStar is then only valid until the next search using the same context begins.
+     */
+    public void setSearchContext(SearchContext searchContext) {
+        this.searchContext = searchContext;
+    }
 }
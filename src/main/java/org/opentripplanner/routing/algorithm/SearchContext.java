@@ -0,0 +1,104 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import java.util.Arrays;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.spt.VertexIndexShortestPathTree;
+
+/**
+ * The large, request-independent data structures used by an AStar search: the priority queue, the storage of the
+ * shortest path tree and the weights of the remaining weight heuristic. Handing the same SearchContext to a series of searches lets them reuse these arrays
+ * instead of allocating and growing new ones every time.
+ *
+ * A SearchContext must only be used by one search at a time, and any ShortestPathTree produced with it becomes
+ * invalid as soon as the next search using the same context begins. Contexts are normally borrowed from a
+ * {@link SearchContextPool} for the duration of a request.
+ */
+public class SearchContext {
+
+    private BinHeap<State> heap;
+
+    /** The last vertex-indexed tree handed out, whose storage will be recycled by the next one. */
+    private VertexIndexShortestPathTree lastTree;
+
+    /** The weights of InterleavedBidirectionalHeuristic by vertex index, all infinite except at heuristicWeightsSet. */
+    private double[] heuristicWeights;
+
+    /** The indexes of the heuristic weights which were set since the array was last handed out. */
+    private final TIntList heuristicWeightsSet = new TIntArrayList();
+
+    /** @return an empty priority queue with at least the given capacity. */
+    public BinHeap<State> getHeap(int initialCapacity) {
+        if (heap == null || heap.capacity() < initialCapacity) {
+            heap = new BinHeap<State>(initialCapacity);
+        } else {
+            heap.clear();
+        }
+        return heap;
+    }
+
+    /**
+     * @return a new empty ShortestPathTree for the given request. It is always indexed by vertex, whatever the
+     * request says, and its storage is taken from the tree produced by the previous search with this context, which
+     * becomes unusable. Both kinds of trees give the same results.
+     */
+    public ShortestPathTree getShortestPathTree(RoutingRequest options) {
+        if (lastTree == null) {
+            lastTree = new VertexIndexShortestPathTree(options, options.dominanceFunction);
+        } else {
+            lastTree = new VertexIndexShortestPathTree(options, options.dominanceFunction, lastTree);
+        }
+        return lastTree;
+    }
+
+    /**
+     * @return an array of heuristic weights with at least the given length, all infinite. The weights of the previous
+     * search are reset, so only one heuristic can use the array at a time. Callers must report the indexes they set
+     * with heuristicWeightSet, which is cheaper than filling the whole array again for every request.
+     */
+    public double[] getHeuristicWeights(int length) {
+        if (heuristicWeights == null || heuristicWeights.length < length) {
+            heuristicWeights = new double[length];
+            Arrays.fill(heuristicWeights, Double.POSITIVE_INFINITY);
+        } else {
+            for (int i = 0; i < heuristicWeightsSet.size(); i++) {
+                heuristicWeights[heuristicWeightsSet.get(i)] = Double.POSITIVE_INFINITY;
+            }
+        }
+        heuristicWeightsSet.clear();
+        return heuristicWeights;
+    }
+
+    /** Record that the heuristic weight at the given index was set, so that it is reset before the next search. */
+    public void heuristicWeightSet(int index) {
+        heuristicWeightsSet.add(index);
+    }
+
+    /** Drop references to the States of the last search, so they can be garbage collected while the context is idle. */
+    void releaseStates() {
+        if (heap != null) heap.clear();
+        if (lastTree != null) {
+            lastTree = new VertexIndexShortestPathTree(lastTree.options, lastTree.dominanceFunction, lastTree);
+        }
+    }
+
+}
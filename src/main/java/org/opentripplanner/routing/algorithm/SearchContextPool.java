@@ -0,0 +1,77 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of SearchContexts shared by the request-handling threads of a Router. Borrowing never blocks:
+ * when the pool is empty a new context is created, and contexts returned to a full pool are dropped. The pool
+ * size therefore only limits how much memory is kept around between requests, and should be on the order of
+ * the number of requests running concurrently (i.e. the number of cores).
+ */
+public class SearchContextPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SearchContextPool.class);
+
+    private final ConcurrentLinkedDeque<SearchContext> idle = new ConcurrentLinkedDeque<SearchContext>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private final int maxIdle;
+
+    /** @param maxIdle the maximum number of contexts kept between requests. Zero disables pooling. */
+    public SearchContextPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /** @return an idle context if one is available, otherwise a new one. Must be returned with release(). */
+    public SearchContext borrow() {
+        // Take the most recently used context, whose arrays are most likely to still be in cache.
+        SearchContext context = idle.pollFirst();
+        if (context != null) {
+            idleCount.decrementAndGet();
+            return context;
+        }
+        int n = created.incrementAndGet();
+        LOG.debug("Creating search context number {}.", n);
+        return new SearchContext();
+    }
+
+    /**
+     * Return a context to the pool once all results of the searches performed with it have been extracted.
+     * The context must not be used by the caller after this.
+     */
+    public void release(SearchContext context) {
+        if (context == null) return;
+        context.releaseStates();
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offerFirst(context);
+    }
+
+    /** @return the number of contexts that had to be created because none were idle. */
+    public int getCreatedCount() {
+        return created.get();
+    }
+
+}
@@ -14,9 +14,16 @@
 package org.opentripplanner.routing.algorithm.strategies;
 
 import com.google.common.collect.Lists;
+import gnu.trove.iterator.TObjectDoubleIterator;
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TObjectDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.algorithm.SearchContext;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.edgetype.StreetTransitLink;
@@ -27,12 +34,19 @@ import org.opentripplanner.routing.location.StreetLocation;
 import org.opentripplanner.routing.spt.DominanceFunction;
 import org.opentripplanner.routing.spt.ShortestPathTree;
 import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
 import org.opentripplanner.routing.vertextype.TransitStationStop;
 import org.opentripplanner.routing.vertextype.TransitVertex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Euclidean heuristics are terrible for transit because the maximum transit speed is quite high, especially relative
@@ -47,6 +61,10 @@ import java.util.List;
  * remove any time-dependent component (e.g. by evaluating all boarding wait times as zero). This produces an
  * admissible heuristic (which always underestimates path weight) making it valid independent of the clock time.
  * This is important because you don't know precisely what time you will arrive at the destination until you get there.
+ *
+ * The street searches around the origin and the target are independent, so the one around the target can run on
+ * another thread while the one around the origin runs on the request thread. Its results can be kept in a
+ * TargetStreetSearchCache for later requests to the same place.
  */
 public class InterleavedBidirectionalHeuristic implements RemainingWeightHeuristic {
 
@@ -61,7 +79,7 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
      * http://en.wikipedia.org/wiki/File:Baanvaksnelheden.png 
      */
     private final static double MAX_TRANSIT_SPEED = 45.0; // in meters/second
-    
+
     /** The vertex that the main search is working towards. */
     Vertex target;
 
@@ -69,9 +87,31 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
     
     double minEgressWalk = 0;
 
-    TObjectDoubleHashMap<Vertex> weights;
+    /**
+     * The weights by vertex index, for all vertices that existed when the graph was loaded. Other vertices are
+     * temporary vertices of the request, for which the heuristic is zero, or vertices added later by updaters, whose
+     * weights go in extraWeights.
+     */
+    double[] weights;
+
+    /**
+     * Once the weights array is shared with copies of this heuristic, it is only read, and the weights which change
+     * are kept here by vertex index. Null while the array is not shared.
+     */
+    TIntDoubleMap changedWeights;
+
+    TObjectDoubleMap<Vertex> extraWeights;
 
     Graph graph;
+
+    /** Street searches from previous targets, may be null. */
+    private final TargetStreetSearchCache cache;
+
+    /** Runs the street search around the target while the request thread searches around the origin, may be null. */
+    private final ExecutorService targetSearchExecutor;
+
+    /** Where to take the weights array from instead of allocating it, may be null. */
+    private SearchContext searchContext;
     
     Vertex origin;
     
@@ -82,9 +122,28 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
     boolean finished = false;
     
     public InterleavedBidirectionalHeuristic(Graph graph) {
+        this(graph, null, null);
+    }
+
+    /**
+     * @param cache where to keep and find the results of street searches from the target, or null.
+     * @param targetSearchExecutor where to search around the target concurrently with the search around the origin,
+     *                             or null to search around both on the request thread.
+     */
+    public InterleavedBidirectionalHeuristic(Graph graph, TargetStreetSearchCache cache,
+            ExecutorService targetSearchExecutor) {
         this.graph = graph;
+        this.cache = cache != null && cache.getGraph() == graph ? cache : null;
+        this.targetSearchExecutor = targetSearchExecutor;
     }
 
+    /**
+     * Take the weights array from the given search context when initialized, rather than allocating and filling a
+     * new one. The heuristic must not be used any more once the context is used by another search.
+     */
+    public void setSearchContext(SearchContext searchContext) {
+        this.searchContext = searchContext;
+    }
     
     /* Implementation observations:
      * 1. filling weights array with inf is expensive (~70 msec in PDX)
@@ -109,32 +168,85 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
             LOG.debug("Reusing existing heuristic, the target vertex has not changed.");
             return;
         }
-        long start = System.currentTimeMillis();
+        long start = System.nanoTime();
         this.target = target;
-        // int nVertices = AbstractVertex.getMaxIndex(); // will be ever increasing?
-        int nVertices = graph.countVertices();
-        weights = new TObjectDoubleHashMap((int)(Math.log(nVertices)) + 1, 0.5f, Double.POSITIVE_INFINITY);
+        int indexLimit = cache != null ? cache.getVertexIndexLimit() : graph.getVertexIndexLimit();
+        if (searchContext != null) {
+            weights = searchContext.getHeuristicWeights(indexLimit);
+        } else {
+            weights = new double[indexLimit];
+            Arrays.fill(weights, Double.POSITIVE_INFINITY);
+        }
+        extraWeights = new TObjectDoubleHashMap<Vertex>(16, 0.5f, Double.POSITIVE_INFINITY);
         this.options = options;
         this.origin = origin;
         // do not use soft limiting in long-distance mode
         options.softWalkLimiting = false;
         options.softPreTransitLimiting = false;
-        // make sure distance table is initialized before starting thread
-        LOG.debug("initializing heuristic computation thread");
-        // Forward street search first, mark street vertices around the origin so H evaluates to 0
-        List<State> search = streetSearch(options, false, abortTime); // ~30 msec
-        if (search == null) return; // Search timed out
-        LOG.debug("end foreward street search {} ms", System.currentTimeMillis() - start);
+        // Backward street search from the target on another thread, unless a previous request already did it.
+        List<Object> cacheKey = cache == null ? null : cache.key(options);
+        TargetStreetSearchCache.TargetStreetSearch targetSearch = cacheKey == null ? null : cache.get(cacheKey);
+        // The previous target may be elsewhere along the same street, lower its weights to remain admissible.
+        double slack = targetSearch == null ? 0 : targetSearch.slack(target);
+        if (Double.isInfinite(slack)) {
+            targetSearch = null;
+            slack = 0;
+        }
+        FutureTask<TargetStreetSearchCache.TargetStreetSearch> futureTargetSearch = null;
+        if (targetSearch == null) {
+            final RoutingRequest rr = options.clone();
+            final long abort = abortTime;
+            futureTargetSearch = new FutureTask<TargetStreetSearchCache.TargetStreetSearch>(
+                    new Callable<TargetStreetSearchCache.TargetStreetSearch>() {
+                @Override
+                public TargetStreetSearchCache.TargetStreetSearch call() {
+                    return targetStreetSearch(rr, abort);
+                }
+            });
+            if (targetSearchExecutor != null) {
+                try {
+                    targetSearchExecutor.execute(futureTargetSearch);
+                } catch (RejectedExecutionException e) {
+                    LOG.debug("All target search threads are busy, searching around the target afterward.");
+                }
+            }
+        } else {
+            LOG.debug("Reusing the street search around the target from a previous request.");
+        }
+        // Forward street search meanwhile, mark street vertices around the origin so H evaluates to 0
+        TObjectDoubleMap<Vertex> nearOrigin = new TObjectDoubleHashMap<Vertex>(16, 0.5f, Double.POSITIVE_INFINITY);
+        boolean completed = streetSearch(options, false, abortTime, nearOrigin) != null; // ~30 msec
+        LOG.debug("end foreward street search {} ms", (System.nanoTime() - start) / 1000000);
+        if (futureTargetSearch != null) {
+            if (!completed) {
+                futureTargetSearch.cancel(true);
+                return; // Search timed out
+            }
+            // Search around the target on this thread if no other thread has started it, which does nothing otherwise.
+            futureTargetSearch.run();
+            targetSearch = getTargetSearch(futureTargetSearch);
+            if (targetSearch == null) return; // Search timed out
+            if (cacheKey != null) {
+                cache.put(cacheKey, targetSearch);
+            }
+        }
+        if (!completed) return; // Search timed out
+        // Save weight to reach street vertices around the destination.
+        for (int i = 0; i < targetSearch.vertices.length; i++) {
+            setWeight(targetSearch.vertices[i], Math.max(0, targetSearch.weights[i] - slack));
+        }
+        // Mark vertices around the origin, as also near the destination if they are.
+        // Their weights are not used, because of potential transit use we still don't know how far the destination is.
+        for (Vertex v : nearOrigin.keySet()) {
+            setWeight(v, getWeight(v) == Double.POSITIVE_INFINITY ? -1 : -2);
+        }
         // create a new priority queue
+        // Enqueue states for each stop within walking distance of the destination.
         q = new BinHeap<Vertex>();
-        // Save weight to reach street vertices around the destination.
-        // Also enqueue states for each stop within walking distance of the destination.
-        search = streetSearch(options, true, abortTime);
-        if (search == null) return; // Search timed out
-        for (State stopState : search) {
-            q.insert(stopState.getVertex(), stopState.getWeight());
+        for (int i = 0; i < targetSearch.stops.length; i++) {
+            q.insert(targetSearch.stops[i], Math.max(0, targetSearch.stopWeights[i] - slack));
         }
-        LOG.debug("end backward street search {} ms", System.currentTimeMillis() - start);
+        LOG.debug("end backward street search {} ms", (System.nanoTime() - start) / 1000000);
         // once street searches are done, raise the limits to max
         // because hard walk limiting is incorrect and is observed to cause problems 
         // for trips near the cutoff
@@ -142,12 +254,101 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         options.setMaxPreTransitTime(Integer.MAX_VALUE);
         LOG.debug("initialized SSSP");
         options.rctx.debugOutput.finishedPrecalculating();
+        options.rctx.debugOutput.spentOnHeuristic(System.nanoTime() - start, false);
+    }
+
+    /** Wait for the street search from the target. @return its result, or null if it timed out. */
+    private static TargetStreetSearchCache.TargetStreetSearch getTargetSearch(
+            FutureTask<TargetStreetSearchCache.TargetStreetSearch> futureTargetSearch) {
+        try {
+            return futureTargetSearch.get();
+        } catch (InterruptedException e) {
+            futureTargetSearch.cancel(true);
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Search the streets backward from the target. This may run on another thread and only reads the request, which
+     * must not be shared with the request thread.
+     * @return the weights found, or null if the search timed out.
+     */
+    private static TargetStreetSearchCache.TargetStreetSearch targetStreetSearch(RoutingRequest rr, long abortTime) {
+        TObjectDoubleMap<Vertex> streetWeights = new TObjectDoubleHashMap<Vertex>(64, 0.5f, Double.POSITIVE_INFINITY);
+        List<State> stopStates = streetSearch(rr, true, abortTime, streetWeights);
+        if (stopStates == null) {
+            return null;
+        }
+        List<Vertex> vertices = Lists.newArrayList();
+        TDoubleList weights = new TDoubleArrayList();
+        for (TObjectDoubleIterator<Vertex> it = streetWeights.iterator(); it.hasNext(); ) {
+            it.advance();
+            // the heuristic is zero at temporary vertices, which are not kept in the cache
+            if (!(it.key() instanceof TemporaryVertex)) {
+                vertices.add(it.key());
+                weights.add(it.value());
+            }
+        }
+        Vertex[] stops = new Vertex[stopStates.size()];
+        double[] stopWeights = new double[stopStates.size()];
+        for (int i = 0; i < stops.length; i++) {
+            stops[i] = stopStates.get(i).getVertex();
+            stopWeights[i] = stopStates.get(i).getWeight();
+        }
+        // the weights from the other targets linked to the same vertices are lowered by the largest weight from them
+        double linkWeight = 0;
+        List<Vertex> linkedVertices = TargetStreetSearchCache.linkedVertices(rr);
+        if (linkedVertices == null) {
+            linkWeight = Double.POSITIVE_INFINITY;
+        } else {
+            for (Vertex v : linkedVertices) {
+                linkWeight = Math.max(linkWeight, streetWeights.get(v));
+            }
+        }
+        Vertex target = rr.rctx.target;
+        return new TargetStreetSearchCache.TargetStreetSearch(vertices.toArray(new Vertex[vertices.size()]),
+                weights.toArray(), stops, stopWeights, target.getX(), target.getY(), linkWeight);
+    }
+
+    private double getWeight(Vertex v) {
+        int index = v.getIndex();
+        if (index >= weights.length) {
+            return extraWeights.get(v);
+        }
+        if (changedWeights != null) {
+            double weight = changedWeights.get(index);
+            if (!Double.isNaN(weight)) {
+                return weight;
+            }
+        }
+        return weights[index];
+    }
+
+    private void setWeight(Vertex v, double weight) {
+        int index = v.getIndex();
+        if (index < weights.length && changedWeights != null) {
+            changedWeights.put(index, weight);
+        } else if (index < weights.length) {
+            if (searchContext != null && weights[index] == Double.POSITIVE_INFINITY) {
+                searchContext.heuristicWeightSet(index);
+            }
+            weights[index] = weight;
+        } else {
+            extraWeights.put(v, weight);
+        }
     }
 
     /** Do up to N iterations as long as the queue is not empty */
     @Override
     public void doSomeWork() {
         if (finished) return;
+        long start = System.nanoTime();
         for (int i = 0; i < HEURISTIC_STEPS_PER_MAIN_STEP; ++i) {
             if (q.empty()) {
                 LOG.debug("Emptied SSSP queue.");
@@ -177,14 +378,15 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
                     continue;  
                 }
                 double vw = uw + ew;
-                double old_vw = weights.get(v);
+                double old_vw = getWeight(v);
                 if (vw < old_vw) {
                     // including when old_vw is infinite because it is not yet touched
-                    weights.put(v, vw);
+                    setWeight(v, vw);
                     q.insert(v, vw); 
                 }
             }
         }
+        options.rctx.debugOutput.spentOnHeuristic(System.nanoTime() - start, true);
     }
     
     /**
@@ -199,7 +401,9 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
         final Vertex v = s.getVertex();
         // Temporary vertices (StreetLocations) might not be found in walk search.
         if (v instanceof StreetLocation) return 0;
-        double weight = weights.get(v);
+        // The weights of the temporary vertices of this request are not kept, nor cached for other requests.
+        if (v instanceof TemporaryVertex) return 0;
+        double weight = getWeight(v);
         // All valid street vertices should be explored before the main search starts,
         // but many transit vertices may not yet be explored when the search starts.
         // TODO: verify that StreetVertex includes all vertices of interest.
@@ -224,6 +428,38 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
 
     @Override
     public void reset() { }
+
+    /**
+     * Make a copy of this heuristic in its current state, which continues the search from the target independently of
+     * it. This allows several searches towards the same target to run at once, each starting with everything this
+     * heuristic has already found. The weights array is not copied: from then on both heuristics only read it, and
+     * keep the weights they change on their own, which are few compared to the number of vertices.
+     * @param options the request of the search that will use the copy, which must have the same target.
+     */
+    public InterleavedBidirectionalHeuristic copy(RoutingRequest options) {
+        InterleavedBidirectionalHeuristic copy = new InterleavedBidirectionalHeuristic(graph, cache, targetSearchExecutor);
+        copy.target = target;
+        copy.maxFound = maxFound;
+        copy.minEgressWalk = minEgressWalk;
+        copy.weights = weights;
+        if (weights != null) {
+            if (changedWeights == null) {
+                changedWeights = newChangedWeights();
+            }
+            copy.changedWeights = newChangedWeights();
+            copy.changedWeights.putAll(changedWeights);
+        }
+        copy.extraWeights = extraWeights == null ? null : new TObjectDoubleHashMap<Vertex>(extraWeights);
+        copy.origin = origin;
+        copy.options = options;
+        copy.q = q == null ? null : new BinHeap<Vertex>(q);
+        copy.finished = finished;
+        return copy;
+    }
+
+    private static TIntDoubleMap newChangedWeights() {
+        return new TIntDoubleHashMap(64, 0.5f, -1, Double.NaN);
+    }
         
 
     /*
@@ -265,7 +501,12 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
     TODO perhaps reimplement using the generic dijkstra class
     */
 
-    private List<State> streetSearch (RoutingRequest rr, boolean fromTarget, long abortTime) {
+    /**
+     * @param streetWeights receives the lowest weight at which each street vertex was reached.
+     * @return the states at the transit stops reached, or null if the search timed out.
+     */
+    private static List<State> streetSearch (RoutingRequest rr, boolean fromTarget, long abortTime,
+            TObjectDoubleMap<Vertex> streetWeights) {
         rr = rr.clone();
         if (fromTarget)
             rr.setArriveBy( ! rr.arriveBy);
@@ -296,22 +537,9 @@ public class InterleavedBidirectionalHeuristic implements RemainingWeightHeurist
                 continue;
             }
             // at this point the vertex is closed (pulled off heap).
-            // on reverse search save measured weights.
-            // the optimal path may use transit.
-            if (!fromTarget) {
-                // Mark vertex as being near origin. We have no idea how far it is to the destination.
-                weights.put(v, -1);
-            } else {
-                double old_weight = weights.get(v);
-                if (old_weight == -1) {
-                    // Mark vertex as near both origin and destination.
-                    // Because of potential transit use we still don't know how far to the destination.
-                    weights.put(v, -2);
-                } else if (w < old_weight) {
-                    // When new weight is better than old, or old weight is +INF because vertex is as yet unreached.
-                    // This will not touch -1 values around the origin, their values are unknown until we use transit.
-                    weights.put(v, w);
-                }
+            // save measured weights, the caller decides what they mean.
+            if (w < streetWeights.get(v)) {
+                streetWeights.put(v, w);
             }
             // FIXME should only traverse when state is better than old_weight
             for (Edge e : rr.arriveBy ? v.getIncoming() : v.getOutgoing()) {
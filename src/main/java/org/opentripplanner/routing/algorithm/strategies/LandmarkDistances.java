@@ -0,0 +1,203 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.graph.Vertex;
+
+/**
+ * Street network distances between every vertex of the graph and a few landmark vertices, computed at graph build
+ * time by the LandmarkModule and stored as a graph service. By the triangle inequality, the distance between two
+ * vertices is at least the difference of their distances to (or from) any landmark, which gives a lower bound on the
+ * remaining distance to the destination that is much tighter than the straight line distance when the streets have
+ * to go around rivers, motorways and the like. See LandmarkRemainingWeightHeuristic.
+ *
+ * There is a table per street mode, since the network available to each mode is different. For each vertex, the
+ * distances to and from all the landmarks are stored next to each other in arrays indexed by vertex index, rounded
+ * down to multiples of METERS_PER_UNIT to fit in a char.
+ */
+public class LandmarkDistances implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Distances are stored in units of this many meters. */
+    public static final int METERS_PER_UNIT = 5;
+
+    /** Marks unreachable vertices, as well as vertices too far away to be stored. */
+    public static final char UNKNOWN = Character.MAX_VALUE;
+
+    public final int nLandmarks;
+
+    /** The vertex at each position of the distance arrays, null where there is no vertex with that index. */
+    private Vertex[] vertices;
+
+    private final Map<TraverseMode, Table> tables = new EnumMap<TraverseMode, Table>(TraverseMode.class);
+
+    /**
+     * Whether the positions in the arrays are the vertex indexes. Vertices get new indexes when the graph is loaded,
+     * the arrays are then rearranged before first use.
+     */
+    private transient volatile boolean indexed;
+
+    /** @param vertices the vertices to store distances for, at the position of their index (possibly null). */
+    public LandmarkDistances(Vertex[] vertices, int nLandmarks) {
+        this.vertices = vertices;
+        this.nLandmarks = nLandmarks;
+        this.indexed = true;
+    }
+
+    public synchronized void putTable(TraverseMode mode, Table table) {
+        tables.put(mode, table);
+    }
+
+    /** @return the distance in meters encoded as stored in the tables. */
+    public static char encode(double meters) {
+        if (meters >= (UNKNOWN - 1) * (double) METERS_PER_UNIT) {
+            return UNKNOWN;
+        }
+        return (char) (meters / METERS_PER_UNIT);
+    }
+
+    /**
+     * @return the table for searches using the given modes, or null if there is none. Transit searches have none,
+     *         as transit can be faster than any street mode.
+     */
+    public Table getTable(TraverseModeSet modes) {
+        ensureIndexed();
+        if (modes.isTransit()) {
+            return null;
+        }
+        if (modes.getCar()) {
+            return modes.getWalk() || modes.getBicycle() ? null : tables.get(TraverseMode.CAR);
+        }
+        if (modes.getBicycle()) {
+            // bicycle tables include the edges where bikes have to be walked
+            return tables.get(TraverseMode.BICYCLE);
+        }
+        if (modes.getWalk()) {
+            return tables.get(TraverseMode.WALK);
+        }
+        return null;
+    }
+
+    /** @return true if the tables have distances for the given vertex, i.e. it existed when they were computed. */
+    public boolean covers(Vertex v) {
+        int index = v.getIndex();
+        return index < vertices.length && vertices[index] == v;
+    }
+
+    /** Rearrange the tables by the current vertex indexes if they have changed, as happens when loading a graph. */
+    private void ensureIndexed() {
+        if (indexed) {
+            return;
+        }
+        synchronized (this) {
+            if (indexed) {
+                return;
+            }
+            int maxIndex = -1;
+            boolean changed = false;
+            for (int i = 0; i < vertices.length; i++) {
+                if (vertices[i] != null) {
+                    maxIndex = Math.max(maxIndex, vertices[i].getIndex());
+                    changed |= vertices[i].getIndex() != i;
+                }
+            }
+            if (changed) {
+                int[] newPositions = new int[vertices.length];
+                Vertex[] newVertices = new Vertex[maxIndex + 1];
+                for (int i = 0; i < vertices.length; i++) {
+                    if (vertices[i] == null) {
+                        newPositions[i] = -1;
+                    } else {
+                        newPositions[i] = vertices[i].getIndex();
+                        newVertices[newPositions[i]] = vertices[i];
+                    }
+                }
+                for (Table table : tables.values()) {
+                    table.rearrange(newPositions, maxIndex + 1);
+                }
+                vertices = newVertices;
+            }
+            indexed = true;
+        }
+    }
+
+    /** The distances from and to each landmark for one mode. */
+    public static class Table implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public final Vertex[] landmarks;
+
+        /** The encoded distance from landmark l to vertex v is at position v * landmarks.length + l. */
+        private char[] fromLandmarks;
+
+        /** The encoded distance from vertex v to landmark l is at position v * landmarks.length + l. */
+        private char[] toLandmarks;
+
+        public Table(Vertex[] landmarks, char[] fromLandmarks, char[] toLandmarks) {
+            this.landmarks = landmarks;
+            this.fromLandmarks = fromLandmarks;
+            this.toLandmarks = toLandmarks;
+        }
+
+        /**
+         * @return a lower bound in meters on the length of any path from the vertex with index a to the vertex with
+         *         index b, which must be covered by the tables.
+         */
+        public int lowerBound(int a, int b) {
+            int n = landmarks.length;
+            int ia = a * n, ib = b * n;
+            int best = 0;
+            for (int l = 0; l < n; l++) {
+                // distances are rounded down, so each one may be up to a unit shorter than the real one
+                int la = fromLandmarks[ia + l], lb = fromLandmarks[ib + l];
+                if (la != UNKNOWN && lb != UNKNOWN && lb - la - 1 > best) {
+                    best = lb - la - 1;
+                }
+                int al = toLandmarks[ia + l], bl = toLandmarks[ib + l];
+                if (al != UNKNOWN && bl != UNKNOWN && al - bl - 1 > best) {
+                    best = al - bl - 1;
+                }
+            }
+            return best * METERS_PER_UNIT;
+        }
+
+        /** Move the distances at each position to the new position given, or drop them if it is negative. */
+        private void rearrange(int[] newPositions, int newLength) {
+            fromLandmarks = rearrange(fromLandmarks, newPositions, newLength);
+            toLandmarks = rearrange(toLandmarks, newPositions, newLength);
+        }
+
+        private char[] rearrange(char[] distances, int[] newPositions, int newLength) {
+            int n = landmarks.length;
+            char[] ret = new char[newLength * n];
+            Arrays.fill(ret, UNKNOWN);
+            for (int i = 0; i < newPositions.length; i++) {
+                if (newPositions[i] >= 0) {
+                    System.arraycopy(distances, i * n, ret, newPositions[i] * n, n);
+                }
+            }
+            return ret;
+        }
+    }
+
+}
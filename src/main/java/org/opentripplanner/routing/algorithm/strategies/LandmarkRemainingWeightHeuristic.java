@@ -0,0 +1,133 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Vertex;
+
+/**
+ * A remaining weight heuristic for street searches based on landmarks (the "ALT" in ALT search: A*, landmarks and
+ * triangle inequality). The street distance to the target is bounded from below using the distances to and from
+ * landmarks that were precomputed at graph build time (see LandmarkDistances), and converted to a weight in the same
+ * way as the straight line distance in EuclideanRemainingWeightHeuristic. The larger of the two estimates is used.
+ *
+ * When the graph has no landmark distances, or none for the modes of the request, this is equivalent to the
+ * Euclidean heuristic.
+ */
+public class LandmarkRemainingWeightHeuristic implements RemainingWeightHeuristic {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Give up looking for covered vertices around the target after this many, and use the Euclidean heuristic. */
+    private static final int MAX_TARGET_VERTICES = 1000;
+
+    private EuclideanRemainingWeightHeuristic euclidean = new EuclideanRemainingWeightHeuristic();
+
+    private LandmarkDistances distances;
+
+    private LandmarkDistances.Table table;
+
+    /**
+     * The indexes of the vertices covered by the landmark tables that the search must go through to reach its target.
+     * This is just the target when it is covered, but targets are usually temporary vertices linked to the streets.
+     */
+    private int[] targetIndexes;
+
+    private boolean arriveBy;
+
+    private double weightPerMeter;
+
+    @Override
+    public void initialize(RoutingRequest options, long abortTime) {
+        euclidean.initialize(options, abortTime);
+        distances = options.rctx.graph.getService(LandmarkDistances.class);
+        table = distances == null ? null : distances.getTable(options.modes);
+        if (table == null) {
+            return;
+        }
+        arriveBy = options.arriveBy;
+        targetIndexes = findCoveredVertices(options.rctx.target, arriveBy);
+        if (targetIndexes.length == 0) {
+            table = null;
+            return;
+        }
+        weightPerMeter = options.walkReluctance / options.getStreetSpeedUpperBound();
+    }
+
+    /**
+     * Find the vertices covered by the landmark tables through which the given vertex is reached (or left in an arriveBy
+     * search), going through uncovered vertices which were created after the tables.
+     * @return the indexes of those vertices, or an empty array if there are too many of them.
+     */
+    private int[] findCoveredVertices(Vertex target, boolean arriveBy) {
+        TIntList ret = new TIntArrayList();
+        Set<Vertex> seen = new HashSet<Vertex>();
+        Deque<Vertex> queue = new ArrayDeque<Vertex>();
+        queue.add(target);
+        seen.add(target);
+        while (!queue.isEmpty()) {
+            Vertex v = queue.poll();
+            if (seen.size() > MAX_TARGET_VERTICES) {
+                return new int[0];
+            }
+            if (distances.covers(v)) {
+                ret.add(v.getIndex());
+                continue;
+            }
+            Collection<Edge> edges = arriveBy ? v.getOutgoing() : v.getIncoming();
+            for (Edge e : edges) {
+                Vertex next = arriveBy ? e.getToVertex() : e.getFromVertex();
+                if (seen.add(next)) {
+                    queue.add(next);
+                }
+            }
+        }
+        return ret.toArray();
+    }
+
+    @Override
+    public double estimateRemainingWeight(State s) {
+        double euclideanWeight = euclidean.estimateRemainingWeight(s);
+        Vertex v = s.getVertex();
+        if (table == null || !distances.covers(v)) {
+            return euclideanWeight;
+        }
+        int index = v.getIndex();
+        int meters = Integer.MAX_VALUE;
+        for (int target : targetIndexes) {
+            int bound = arriveBy ? table.lowerBound(target, index) : table.lowerBound(index, target);
+            if (bound < meters) {
+                meters = bound;
+            }
+        }
+        return Math.max(euclideanWeight, meters * weightPerMeter);
+    }
+
+    @Override
+    public void reset() {}
+
+    @Override
+    public void doSomeWork() {}
+
+}
@@ -0,0 +1,202 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.common.TurnRestriction;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+/**
+ * Keeps the results of the street searches from the target done by InterleavedBidirectionalHeuristic, so that
+ * repeated requests to the same place (an airport, a stadium...) do not have to search the streets around it again.
+ *
+ * Results are looked up by the street vertices the target is linked to, so all the targets along the same street
+ * share them, and by the request parameters which affect the street search. Every path to a target goes through one
+ * of these vertices, so the weights found for another target along the same street are at most the weight from these
+ * vertices to that other target too heavy: they are lowered by that much to remain a lower bound. Requests whose
+ * street search depends on the time or on realtime data are not cached.
+ *
+ * The least recently used results are dropped when there are more than the maximum number of them. There is one cache
+ * per Router, shared by its request threads.
+ */
+public class TargetStreetSearchCache {
+
+    private final Map<List<Object>, TargetStreetSearch> results;
+
+    private final Graph graph;
+
+    /** All the vertices of the graph when the cache was created had an index below this. */
+    private final int vertexIndexLimit;
+
+    /** Whether some turn restrictions only apply at some times, so that the street search depends on the time. */
+    private final boolean timeDependent;
+
+    /** @param maxSize the maximum number of search results kept. Zero disables caching. */
+    public TargetStreetSearchCache(Graph graph, final int maxSize) {
+        this.graph = graph;
+        this.vertexIndexLimit = graph.getVertexIndexLimit();
+        this.timeDependent = hasTimeDependentTurnRestrictions(graph);
+        this.results = new LinkedHashMap<List<Object>, TargetStreetSearch>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, TargetStreetSearch> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    private static boolean hasTimeDependentTurnRestrictions(Graph graph) {
+        for (Edge e : graph.getEdges()) {
+            for (TurnRestriction restriction : graph.getTurnRestrictions(e)) {
+                if (restriction.time != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    public int getVertexIndexLimit() {
+        return vertexIndexLimit;
+    }
+
+    /**
+     * @return the key of the street search from the target of the given request, or null if the search depends on
+     * realtime bike rental availability, which changes while the results are kept, or if the target is linked to
+     * other temporary vertices of the request.
+     */
+    public List<Object> key(RoutingRequest options) {
+        if (options.allowBikeRental && options.useBikeRentalAvailabilityInformation) {
+            return null;
+        }
+        List<Vertex> linkedVertices = linkedVertices(options);
+        if (linkedVertices == null) {
+            return null;
+        }
+        List<Object> key = Lists.newArrayList();
+        key.add(ImmutableSet.copyOf(linkedVertices));
+        key.add(timeDependent ? options.dateTime : null);
+        key.add(streetSearchParameters(options));
+        return key;
+    }
+
+    /**
+     * @return the vertices of the graph every path to the target of the request goes through: the target itself if
+     * it is in the graph, otherwise the vertices at the ends of the streets it is linked to. Null if the target is
+     * linked to other temporary vertices, such as an origin along the same street.
+     */
+    static List<Vertex> linkedVertices(RoutingRequest options) {
+        Vertex target = options.rctx.target;
+        if (!(target instanceof TemporaryVertex)) {
+            return Arrays.asList(target);
+        }
+        List<Vertex> vertices = Lists.newArrayList();
+        // the street search from the target goes backward in time
+        for (Edge e : options.arriveBy ? target.getOutgoing() : target.getIncoming()) {
+            Vertex v = options.arriveBy ? e.getToVertex() : e.getFromVertex();
+            if (v instanceof TemporaryVertex) {
+                return null;
+            }
+            vertices.add(v);
+        }
+        return vertices;
+    }
+
+    /**
+     * @return the values of the request parameters read by the edges of the street network and by the states
+     * traversing them, with all the parameters of walking the bike.
+     */
+    private static List<Object> streetSearchParameters(RoutingRequest options) {
+        RoutingRequest bikeWalking = options.bikeWalkingOptions;
+        return Arrays.<Object>asList(options.modes, options.arriveBy, options.wheelchairAccessible, options.maxSlope,
+                options.optimize, options.triangleTimeFactor, options.triangleSlopeFactor,
+                options.triangleSafetyFactor, options.walkSpeed, options.bikeSpeed, options.carSpeed,
+                options.walkReluctance, options.stairsReluctance, options.turnReluctance,
+                options.traversalCostModel.getClass(), options.driveOnRight, options.carAccelerationSpeed,
+                options.carDecelerationSpeed, options.maxWalkDistance,
+                options.maxPreTransitTime, options.softWalkLimiting, options.softWalkPenalty,
+                options.softWalkOverageRate, options.softPreTransitLimiting, options.preTransitPenalty,
+                options.preTransitOverageRate, options.elevatorBoardTime, options.elevatorBoardCost,
+                options.elevatorHopTime, options.elevatorHopCost, options.bikeSwitchTime, options.bikeSwitchCost,
+                options.allowBikeRental, options.bikeRentalPickupTime, options.bikeRentalPickupCost,
+                options.bikeRentalDropoffTime, options.bikeRentalDropoffCost, options.bikeParkAndRide,
+                options.bikeParkTime, options.bikeParkCost, options.parkAndRide, options.kissAndRide,
+                options.carDropoffTime, options.walkingBike, options.longDistance, options.batch,
+                options.reverseOptimizing, bikeWalking.walkSpeed, bikeWalking.walkReluctance,
+                bikeWalking.stairsReluctance, bikeWalking.turnReluctance);
+    }
+
+    public synchronized TargetStreetSearch get(List<Object> key) {
+        return results.get(key);
+    }
+
+    public synchronized void put(List<Object> key, TargetStreetSearch search) {
+        results.put(key, search);
+    }
+
+    /**
+     * The weights to reach the target from the street vertices around it, and from the transit stops where the
+     * street search stopped, excluding temporary vertices which only exist for one request.
+     */
+    public static class TargetStreetSearch {
+
+        final Vertex[] vertices;
+
+        final double[] weights;
+
+        final Vertex[] stops;
+
+        final double[] stopWeights;
+
+        /** The coordinates of the target searched from. */
+        final double x, y;
+
+        /** The largest weight from the vertices the target is linked to, infinite if one was not reached. */
+        final double linkWeight;
+
+        TargetStreetSearch(Vertex[] vertices, double[] weights, Vertex[] stops, double[] stopWeights, double x,
+                double y, double linkWeight) {
+            this.vertices = vertices;
+            this.weights = weights;
+            this.stops = stops;
+            this.stopWeights = stopWeights;
+            this.x = x;
+            this.y = y;
+            this.linkWeight = linkWeight;
+        }
+
+        /**
+         * @return how much the weights must be lowered to be a lower bound of the weights to the given target, linked
+         * to the same vertices.
+         */
+        double slack(Vertex target) {
+            return target.getX() == x && target.getY() == y ? 0 : linkWeight;
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+
+/**
+ * The contraction hierarchies of a graph, one per street mode, computed at graph build time by the
+ * ContractionHierarchyModule and stored as a graph service.
+ */
+public class ContractionHierarchies implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Map<TraverseMode, ContractionHierarchy> hierarchies =
+            new EnumMap<TraverseMode, ContractionHierarchy>(TraverseMode.class);
+
+    public synchronized void put(ContractionHierarchy hierarchy) {
+        hierarchies.put(hierarchy.mode, hierarchy);
+    }
+
+    /**
+     * @return the hierarchy for searches using the given modes, or null if there is none. Only searches using a
+     *         single street mode, possibly walking a bicycle, have one.
+     */
+    public ContractionHierarchy get(TraverseModeSet modes) {
+        TraverseMode mode = getMode(modes);
+        return mode == null ? null : hierarchies.get(mode);
+    }
+
+    /** @return the street mode of searches using the given modes, or null if they are not single mode searches. */
+    public static TraverseMode getMode(TraverseModeSet modes) {
+        if (modes.isTransit()) {
+            return null;
+        }
+        if (modes.getCar()) {
+            return modes.getWalk() || modes.getBicycle() ? null : TraverseMode.CAR;
+        }
+        if (modes.getBicycle()) {
+            return TraverseMode.BICYCLE;
+        }
+        if (modes.getWalk()) {
+            return TraverseMode.WALK;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,383 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.util.ElevationUtils;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+/**
+ * A contraction hierarchy over the street network for one street mode, built by the ContractionHierarchyBuilder.
+ * Nodes are contracted one at a time in order of importance, adding shortcut arcs between their neighbors wherever
+ * the node was on the only shortest path between them. A shortest path can then be found by a bidirectional search
+ * that only ever goes up in the hierarchy (see ContractionHierarchyQuery), which settles a few hundred nodes where an
+ * A* search over the streets would settle hundreds of thousands of states on long car trips.
+ *
+ * Each node is a street vertex, except at vertices where turn restrictions or turn costs apply: those get one node per
+ * street reaching them, so that the arcs leaving each of these nodes are only the allowed turns, weighted with their
+ * turn costs, and one more node from which all streets leaving the vertex can be taken, for paths starting there.
+ * Original arcs are the street edges, with weights given by the Metric of the hierarchy. Shortcut arcs stand for two
+ * consecutive arcs, and are unpacked into street edges at the end of a search.
+ */
+public class ContractionHierarchy implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public final TraverseMode mode;
+
+    public final Metric metric;
+
+    /** The street vertex of each node. */
+    private final Vertex[] nodeVertex;
+
+    /** The street edge leading to each node at a vertex with turn restrictions, null for all other nodes. */
+    private final StreetEdge[] nodeInEdge;
+
+    /** The position of each node in the contraction order. */
+    private final int[] rank;
+
+    private final int[] arcFrom;
+
+    private final int[] arcTo;
+
+    private final float[] arcWeight;
+
+    /** The two arcs each shortcut arc stands for, -1 for original arcs. */
+    private final int[] arcFirst;
+
+    private final int[] arcSecond;
+
+    /** The street edge of each original arc, null for shortcut arcs. */
+    private final StreetEdge[] arcEdge;
+
+    /** The arcs going up in the hierarchy leaving node n are upOutArcs[upOutStart[n]] to upOutArcs[upOutStart[n + 1] - 1]. */
+    private final int[] upOutStart;
+
+    private final int[] upOutArcs;
+
+    /** The arcs coming down in the hierarchy to node n, in the same layout as the upward arcs. */
+    private final int[] upInStart;
+
+    private final int[] upInArcs;
+
+    /** The nodes of each vertex, the node for paths starting at the vertex first. Rebuilt after loading a graph. */
+    private transient volatile Map<Vertex, int[]> nodesByVertex;
+
+    public ContractionHierarchy(TraverseMode mode, Metric metric, Vertex[] nodeVertex, StreetEdge[] nodeInEdge,
+            int[] rank, int[] arcFrom, int[] arcTo, float[] arcWeight, int[] arcFirst, int[] arcSecond,
+            StreetEdge[] arcEdge) {
+        this.mode = mode;
+        this.metric = metric;
+        this.nodeVertex = nodeVertex;
+        this.nodeInEdge = nodeInEdge;
+        this.rank = rank;
+        this.arcFrom = arcFrom;
+        this.arcTo = arcTo;
+        this.arcWeight = arcWeight;
+        this.arcFirst = arcFirst;
+        this.arcSecond = arcSecond;
+        this.arcEdge = arcEdge;
+        int nNodes = nodeVertex.length;
+        upOutStart = new int[nNodes + 1];
+        upInStart = new int[nNodes + 1];
+        for (int a = 0; a < arcFrom.length; a++) {
+            if (rank[arcTo[a]] > rank[arcFrom[a]]) {
+                upOutStart[arcFrom[a] + 1]++;
+            } else {
+                upInStart[arcTo[a] + 1]++;
+            }
+        }
+        for (int n = 0; n < nNodes; n++) {
+            upOutStart[n + 1] += upOutStart[n];
+            upInStart[n + 1] += upInStart[n];
+        }
+        upOutArcs = new int[upOutStart[nNodes]];
+        upInArcs = new int[upInStart[nNodes]];
+        int[] outFill = new int[nNodes];
+        int[] inFill = new int[nNodes];
+        for (int a = 0; a < arcFrom.length; a++) {
+            if (rank[arcTo[a]] > rank[arcFrom[a]]) {
+                upOutArcs[upOutStart[arcFrom[a]] + outFill[arcFrom[a]]++] = a;
+            } else {
+                upInArcs[upInStart[arcTo[a]] + inFill[arcTo[a]]++] = a;
+            }
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeVertex.length;
+    }
+
+    public int getArcCount() {
+        return arcFrom.length;
+    }
+
+    public Vertex getVertex(int node) {
+        return nodeVertex[node];
+    }
+
+    /** @return the street edge leading to the given node, or null if the node does not stand for one. */
+    public StreetEdge getInEdge(int node) {
+        return nodeInEdge[node];
+    }
+
+    /** @return the nodes of the given vertex, the one for paths starting there first, or null if it has none. */
+    public int[] getNodes(Vertex v) {
+        Map<Vertex, int[]> nodes = nodesByVertex;
+        if (nodes == null) {
+            nodes = indexNodes();
+        }
+        return nodes.get(v);
+    }
+
+    /** @return true if the hierarchy has nodes for the given vertex. */
+    public boolean covers(Vertex v) {
+        return getNodes(v) != null;
+    }
+
+    /**
+     * @return the node at which a path arriving at the given vertex through the given street edge continues, or -1 if
+     *         the vertex is not in the hierarchy. When the edge is null or is not an edge leading to the vertex in the
+     *         hierarchy, this is the node for paths starting at the vertex.
+     */
+    public int getNode(Vertex v, Edge inEdge) {
+        int[] nodes = getNodes(v);
+        if (nodes == null) {
+            return -1;
+        }
+        for (int i = 1; i < nodes.length; i++) {
+            if (nodeInEdge[nodes[i]] == inEdge) {
+                return nodes[i];
+            }
+        }
+        return nodes[0];
+    }
+
+    private synchronized Map<Vertex, int[]> indexNodes() {
+        if (nodesByVertex != null) {
+            return nodesByVertex;
+        }
+        Map<Vertex, TIntList> lists = new HashMap<Vertex, TIntList>();
+        for (int n = 0; n < nodeVertex.length; n++) {
+            TIntList list = lists.get(nodeVertex[n]);
+            if (list == null) {
+                list = new TIntArrayList(1);
+                lists.put(nodeVertex[n], list);
+            }
+            // the builder creates the node for paths starting at a vertex before the others
+            list.add(n);
+        }
+        Map<Vertex, int[]> nodes = new HashMap<Vertex, int[]>(lists.size());
+        for (Map.Entry<Vertex, TIntList> entry : lists.entrySet()) {
+            nodes.put(entry.getKey(), entry.getValue().toArray());
+        }
+        nodesByVertex = nodes;
+        return nodes;
+    }
+
+    int[] getUpOutStart() {
+        return upOutStart;
+    }
+
+    int[] getUpOutArcs() {
+        return upOutArcs;
+    }
+
+    int[] getUpInStart() {
+        return upInStart;
+    }
+
+    int[] getUpInArcs() {
+        return upInArcs;
+    }
+
+    int getFrom(int arc) {
+        return arcFrom[arc];
+    }
+
+    int getTo(int arc) {
+        return arcTo[arc];
+    }
+
+    float getWeight(int arc) {
+        return arcWeight[arc];
+    }
+
+    /** Append the street edges the given arc stands for to the list, in order. */
+    void unpack(int arc, List<StreetEdge> edges) {
+        TIntList stack = new TIntArrayList();
+        stack.add(arc);
+        while (!stack.isEmpty()) {
+            int a = stack.removeAt(stack.size() - 1);
+            if (arcEdge[a] != null) {
+                edges.add(arcEdge[a]);
+            } else {
+                stack.add(arcSecond[a]);
+                stack.add(arcFirst[a]);
+            }
+        }
+    }
+
+    /**
+     * The weights of the street edges and of the turns between them for one mode, divided by the walk reluctance
+     * (which multiplies the weight of all street edges), as computed by StreetEdge for a reference routing request. A
+     * hierarchy can be used for any request whose weights are proportional to the weights it was built with, that is
+     * requests with the same ratios between speeds and between reluctances as the reference request, and the same
+     * kind of intersection traversal cost model. Car speeds are taken from StreetEdge.calculateSpeed with the
+     * reference request, and requests with another car speed are not considered proportional, since the speed
+     * function of the edges may depend on it.
+     */
+    public static class Metric implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double walkSpeed;
+
+        private final double bikeSpeed;
+
+        private final double bikeWalkSpeed;
+
+        /** Reluctances relative to the walk reluctance. */
+        private final double stairsReluctance;
+
+        private final double bikeWalkReluctance;
+
+        private final double bikeWalkStairsReluctance;
+
+        /** Zero in hierarchies built before turn costs were modeled, which are then only used without turn costs. */
+        private final double turnReluctance;
+
+        /** The reference request, given to StreetEdge.calculateSpeed for the car speeds. */
+        private final RoutingRequest options;
+
+        public Metric(RoutingRequest options) {
+            this.options = options.clone();
+            this.options.rctx = null;
+            walkSpeed = options.walkSpeed;
+            bikeSpeed = options.bikeSpeed;
+            bikeWalkSpeed = options.bikeWalkingOptions.walkSpeed;
+            stairsReluctance = options.stairsReluctance / options.walkReluctance;
+            bikeWalkReluctance = options.bikeWalkingOptions.walkReluctance / options.walkReluctance;
+            bikeWalkStairsReluctance = options.bikeWalkingOptions.stairsReluctance / options.walkReluctance;
+            turnReluctance = options.turnReluctance / options.walkReluctance;
+        }
+
+        /** @return the weight of the edge for the given mode, or -1 if the edge cannot be used with that mode. */
+        public double weight(StreetEdge e, TraverseMode mode) {
+            StreetTraversalPermission permission = e.getPermission();
+            switch (mode) {
+            case CAR:
+                if (!permission.allows(TraverseMode.CAR)) {
+                    return -1;
+                }
+                // as in StreetEdge.doTraverse, where the time at the car speed is multiplied by the reluctance
+                return e.getDistance() / e.calculateSpeed(options, TraverseMode.CAR)
+                        * (e.isStairs() ? stairsReluctance : 1);
+            case WALK:
+                if (!permission.allows(TraverseMode.WALK)) {
+                    return -1;
+                }
+                return walkWeight(e, walkSpeed, e.isStairs() ? stairsReluctance : 1);
+            case BICYCLE:
+                if (permission.allows(TraverseMode.BICYCLE)) {
+                    return e.getSlopeSpeedEffectiveLength() / bikeSpeed * (e.isStairs() ? stairsReluctance : 1);
+                }
+                if (permission.allows(TraverseMode.WALK)) {
+                    // the bike is walked, as in StreetEdge
+                    return walkWeight(e, bikeWalkSpeed,
+                            e.isStairs() ? bikeWalkStairsReluctance : bikeWalkReluctance);
+                }
+                return -1;
+            default:
+                return -1;
+            }
+        }
+
+        /**
+         * @return the weight StreetEdge.doTraverse adds for turning from one edge onto the other with the given mode,
+         *         when departing after a given time. Arriving before a given time, the turn costs are computed with
+         *         the same speeds and options and add up to the same weights.
+         */
+        public double turnWeight(StreetEdge from, StreetEdge to, TraverseMode mode) {
+            Vertex v = to.getFromVertex();
+            if (turnReluctance == 0 || !(v instanceof IntersectionVertex)) {
+                return 0;
+            }
+            RoutingRequest fromOptions = options, toOptions = options;
+            TraverseMode fromMode = mode, toMode = mode;
+            if (mode == TraverseMode.BICYCLE) {
+                // the bike is walked on the streets where it cannot be ridden, as in StreetEdge
+                if (!from.getPermission().allows(TraverseMode.BICYCLE)) {
+                    fromOptions = options.bikeWalkingOptions;
+                    fromMode = TraverseMode.WALK;
+                }
+                if (!to.getPermission().allows(TraverseMode.BICYCLE)) {
+                    toOptions = options.bikeWalkingOptions;
+                    toMode = TraverseMode.WALK;
+                }
+            }
+            double cost = toOptions.getIntersectionTraversalCostModel().computeTraversalCost((IntersectionVertex) v,
+                    from, to, toMode, toOptions, (float) from.calculateSpeed(fromOptions, fromMode),
+                    (float) to.calculateSpeed(toOptions, toMode));
+            return turnReluctance * cost;
+        }
+
+        private static double walkWeight(StreetEdge e, double speed, double reluctance) {
+            double costs = ElevationUtils.getWalkCostsForSlope(e.getDistance(), e.getMaxSlope());
+            return costs * (4.0 / 3.0) / speed * reluctance;
+        }
+
+        /**
+         * @return true if the weights of the given metric for the given mode are proportional to the weights of this
+         *         one, so that they give the same shortest paths.
+         */
+        public boolean isProportional(Metric other, TraverseMode mode) {
+            // the turn costs are in seconds, or inversely proportional to the speeds for walking and cycling
+            if (!same(turnReluctance, other.turnReluctance) || options.getIntersectionTraversalCostModel().getClass()
+                    != other.options.getIntersectionTraversalCostModel().getClass()) {
+                return false;
+            }
+            switch (mode) {
+            case CAR:
+                return same(stairsReluctance, other.stairsReluctance) && same(options.carSpeed, other.options.carSpeed);
+            case WALK:
+                return same(stairsReluctance, other.stairsReluctance);
+            case BICYCLE:
+                return same(stairsReluctance, other.stairsReluctance)
+                        && same(bikeWalkReluctance, other.bikeWalkReluctance)
+                        && same(bikeWalkStairsReluctance, other.bikeWalkStairsReluctance)
+                        && same(bikeWalkSpeed / bikeSpeed, other.bikeWalkSpeed / other.bikeSpeed);
+            default:
+                return false;
+            }
+        }
+
+        private static boolean same(double a, double b) {
+            return Math.abs(a - b) <= 1e-9 * Math.max(Math.abs(a), Math.abs(b));
+        }
+    }
+
+}
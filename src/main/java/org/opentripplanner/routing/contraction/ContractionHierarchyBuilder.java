@@ -0,0 +1,402 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.opentripplanner.common.TurnRestriction;
+import org.opentripplanner.common.TurnRestrictionType;
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.TemporaryEdge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a ContractionHierarchy over the street edges of a graph for one mode.
+ *
+ * Nodes are contracted in the order of their edge difference (the number of shortcuts contracting them would add,
+ * minus the number of arcs it would remove) plus the number of their neighbors already contracted, which spreads the
+ * contraction evenly over the graph. Priorities are updated lazily: a node is only contracted if its recomputed
+ * priority is still the smallest, otherwise it goes back in the queue. Whether a shortcut is needed is decided by a
+ * local "witness" search that gives up after MAX_WITNESS_SETTLED nodes, adding shortcuts that may not be needed
+ * rather than spending a long time proving it.
+ *
+ * Turn restrictions are treated as if they always applied, whatever their time period. U-turns are only forbidden at
+ * the vertices with turn restrictions or turn costs, where the turn taken is known.
+ */
+public class ContractionHierarchyBuilder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContractionHierarchyBuilder.class);
+
+    private static final int MAX_WITNESS_SETTLED = 500;
+
+    private final Graph graph;
+
+    private final TraverseMode mode;
+
+    private final ContractionHierarchy.Metric metric;
+
+    /* Nodes */
+
+    private final List<Vertex> nodeVertex = new ArrayList<Vertex>();
+
+    private final List<StreetEdge> nodeInEdge = new ArrayList<StreetEdge>();
+
+    /* Arcs, original and shortcuts */
+
+    private final TIntList arcFrom = new TIntArrayList();
+
+    private final TIntList arcTo = new TIntArrayList();
+
+    private final TDoubleList arcWeight = new TDoubleArrayList();
+
+    private final TIntList arcFirst = new TIntArrayList();
+
+    private final TIntList arcSecond = new TIntArrayList();
+
+    private final List<StreetEdge> arcEdge = new ArrayList<StreetEdge>();
+
+    /* Contraction state */
+
+    private TIntList[] outArcs;
+
+    private TIntList[] inArcs;
+
+    private boolean[] contracted;
+
+    private int[] contractedNeighbors;
+
+    /** Witness search distances, infinite for nodes not reached by the current search. */
+    private double[] witnessDistances;
+
+    private final TIntList witnessReached = new TIntArrayList();
+
+    public ContractionHierarchyBuilder(Graph graph, TraverseMode mode, ContractionHierarchy.Metric metric) {
+        this.graph = graph;
+        this.mode = mode;
+        this.metric = metric;
+    }
+
+    public ContractionHierarchy build() {
+        createNodesAndArcs();
+        int nNodes = nodeVertex.size();
+        LOG.info("Contracting {} nodes and {} arcs for {}...", nNodes, arcFrom.size(), mode);
+        outArcs = new TIntList[nNodes];
+        inArcs = new TIntList[nNodes];
+        for (int n = 0; n < nNodes; n++) {
+            outArcs[n] = new TIntArrayList(4);
+            inArcs[n] = new TIntArrayList(4);
+        }
+        for (int a = 0; a < arcFrom.size(); a++) {
+            outArcs[arcFrom.get(a)].add(a);
+            inArcs[arcTo.get(a)].add(a);
+        }
+        contracted = new boolean[nNodes];
+        contractedNeighbors = new int[nNodes];
+        witnessDistances = new double[nNodes];
+        Arrays.fill(witnessDistances, Double.POSITIVE_INFINITY);
+
+        BinHeap<Integer> queue = new BinHeap<Integer>(nNodes);
+        for (int n = 0; n < nNodes; n++) {
+            queue.insert(n, priority(n));
+        }
+        int[] rank = new int[nNodes];
+        int nContracted = 0;
+        while (!queue.empty()) {
+            int node = queue.extract_min();
+            double priority = priority(node);
+            if (!queue.empty() && priority > queue.peek_min_key()) {
+                queue.insert(node, priority); // lazy update
+                continue;
+            }
+            contract(node, false);
+            contracted[node] = true;
+            rank[node] = nContracted++;
+            for (int i = 0; i < outArcs[node].size(); i++) {
+                contractedNeighbors[arcTo.get(outArcs[node].get(i))]++;
+            }
+            for (int i = 0; i < inArcs[node].size(); i++) {
+                contractedNeighbors[arcFrom.get(inArcs[node].get(i))]++;
+            }
+            if (nContracted % 100000 == 0) {
+                LOG.info("Contracted {} of {} nodes, {} arcs", nContracted, nNodes, arcFrom.size());
+            }
+        }
+        LOG.info("Contraction hierarchy for {} has {} arcs including shortcuts.", mode, arcFrom.size());
+
+        float[] weights = new float[arcWeight.size()];
+        for (int a = 0; a < weights.length; a++) {
+            weights[a] = (float) arcWeight.get(a);
+        }
+        return new ContractionHierarchy(mode, metric, nodeVertex.toArray(new Vertex[nNodes]),
+                nodeInEdge.toArray(new StreetEdge[nNodes]), rank, arcFrom.toArray(), arcTo.toArray(), weights,
+                arcFirst.toArray(), arcSecond.toArray(), arcEdge.toArray(new StreetEdge[arcEdge.size()]));
+    }
+
+    /**
+     * Create a node per street vertex usable with the mode, several at vertices with turn restrictions or turn costs,
+     * and an arc per street edge and allowed turn.
+     */
+    private void createNodesAndArcs() {
+        List<StreetEdge> edges = new ArrayList<StreetEdge>();
+        TDoubleList weights = new TDoubleArrayList();
+        Map<Vertex, List<StreetEdge>> inEdgesByVertex = new HashMap<Vertex, List<StreetEdge>>();
+        for (StreetEdge e : graph.getStreetEdges()) {
+            if (e instanceof TemporaryEdge) {
+                continue;
+            }
+            double weight = metric.weight(e, mode);
+            if (weight >= 0) {
+                edges.add(e);
+                weights.add(weight);
+                List<StreetEdge> inEdges = inEdgesByVertex.get(e.getToVertex());
+                if (inEdges == null) {
+                    inEdges = new ArrayList<StreetEdge>();
+                    inEdgesByVertex.put(e.getToVertex(), inEdges);
+                }
+                inEdges.add(e);
+            }
+        }
+        // the vertices where the turn taken matters, with the edges leading to them
+        Map<Vertex, List<StreetEdge>> splitInEdges = new HashMap<Vertex, List<StreetEdge>>();
+        int nRestricted = 0;
+        for (StreetEdge e : edges) {
+            if (hasRestrictions(e) && !splitInEdges.containsKey(e.getToVertex())) {
+                splitInEdges.put(e.getToVertex(), inEdgesByVertex.get(e.getToVertex()));
+                nRestricted++;
+            }
+        }
+        for (StreetEdge e : edges) {
+            Vertex v = e.getFromVertex();
+            if (!splitInEdges.containsKey(v) && inEdgesByVertex.containsKey(v)) {
+                for (StreetEdge inEdge : inEdgesByVertex.get(v)) {
+                    if (metric.turnWeight(inEdge, e, mode) > 0) {
+                        splitInEdges.put(v, inEdgesByVertex.get(v));
+                        break;
+                    }
+                }
+            }
+        }
+        // the node of each vertex, for paths starting at the vertex at split vertices
+        Map<Vertex, Integer> vertexNodes = new HashMap<Vertex, Integer>();
+        // the node reached by each edge leading to a split vertex
+        Map<StreetEdge, Integer> splitNodes = new HashMap<StreetEdge, Integer>();
+        for (StreetEdge e : edges) {
+            for (Vertex v : new Vertex[] { e.getFromVertex(), e.getToVertex() }) {
+                if (!vertexNodes.containsKey(v)) {
+                    vertexNodes.put(v, addNode(v, null));
+                }
+            }
+            if (splitInEdges.containsKey(e.getToVertex())) {
+                splitNodes.put(e, addNode(e.getToVertex(), e));
+            }
+        }
+        for (int i = 0; i < edges.size(); i++) {
+            StreetEdge e = edges.get(i);
+            Integer to = splitNodes.get(e);
+            if (to == null) {
+                to = vertexNodes.get(e.getToVertex());
+            }
+            addArc(vertexNodes.get(e.getFromVertex()), to, weights.get(i), -1, -1, e);
+            List<StreetEdge> inEdges = splitInEdges.get(e.getFromVertex());
+            if (inEdges != null) {
+                for (StreetEdge inEdge : inEdges) {
+                    if (canTurn(inEdge, e)) {
+                        addArc(splitNodes.get(inEdge), to, weights.get(i) + metric.turnWeight(inEdge, e, mode),
+                                -1, -1, e);
+                    }
+                }
+            }
+        }
+        LOG.info("{} vertices have turn restrictions and {} more have turn costs for {}.", nRestricted,
+                splitInEdges.size() - nRestricted, mode);
+    }
+
+    private int addNode(Vertex v, StreetEdge inEdge) {
+        nodeVertex.add(v);
+        nodeInEdge.add(inEdge);
+        return nodeVertex.size() - 1;
+    }
+
+    private int addArc(int from, int to, double weight, int first, int second, StreetEdge edge) {
+        arcFrom.add(from);
+        arcTo.add(to);
+        arcWeight.add(weight);
+        arcFirst.add(first);
+        arcSecond.add(second);
+        arcEdge.add(edge);
+        return arcFrom.size() - 1;
+    }
+
+    private boolean hasRestrictions(StreetEdge e) {
+        for (TurnRestriction restriction : graph.getTurnRestrictions(e)) {
+            if (restriction.modes.contains(mode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return true if turning from one edge onto the other is allowed, as in StreetEdge.canTurnOnto. */
+    private boolean canTurn(StreetEdge from, StreetEdge to) {
+        if (from.isReverseOf(to) || to.isReverseOf(from)) {
+            return false; // no U-turns
+        }
+        for (TurnRestriction restriction : graph.getTurnRestrictions(from)) {
+            if (!restriction.modes.contains(mode)) {
+                continue;
+            }
+            if (restriction.type == TurnRestrictionType.ONLY_TURN) {
+                if (!to.isEquivalentTo(restriction.to)) {
+                    return false;
+                }
+            } else if (to.isEquivalentTo(restriction.to)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double priority(int node) {
+        int removed = 0;
+        for (int i = 0; i < outArcs[node].size(); i++) {
+            if (!contracted[arcTo.get(outArcs[node].get(i))]) {
+                removed++;
+            }
+        }
+        for (int i = 0; i < inArcs[node].size(); i++) {
+            if (!contracted[arcFrom.get(inArcs[node].get(i))]) {
+                removed++;
+            }
+        }
+        return contract(node, true) - removed + contractedNeighbors[node];
+    }
+
+    /**
+     * Add the shortcuts needed to contract the given node, that is between each pair of its remaining neighbors for
+     * which the path through the node may be the only shortest one.
+     * @param simulate only count the shortcuts without adding them.
+     * @return the number of shortcuts.
+     */
+    private int contract(int node, boolean simulate) {
+        TIntIntMap in = lightestArcs(inArcs[node], node, false);
+        TIntIntMap out = lightestArcs(outArcs[node], node, true);
+        int shortcuts = 0;
+        for (TIntIntIterator i = in.iterator(); i.hasNext(); ) {
+            i.advance();
+            int from = i.key(), inArc = i.value();
+            double maxWeight = 0;
+            for (TIntIntIterator o = out.iterator(); o.hasNext(); ) {
+                o.advance();
+                if (o.key() != from) {
+                    maxWeight = Math.max(maxWeight, arcWeight.get(inArc) + arcWeight.get(o.value()));
+                }
+            }
+            witnessSearch(from, node, maxWeight);
+            for (TIntIntIterator o = out.iterator(); o.hasNext(); ) {
+                o.advance();
+                int to = o.key(), outArc = o.value();
+                double weight = arcWeight.get(inArc) + arcWeight.get(outArc);
+                if (to == from || witnessDistances[to] <= weight) {
+                    continue;
+                }
+                shortcuts++;
+                if (!simulate) {
+                    int arc = addArc(from, to, weight, inArc, outArc, null);
+                    outArcs[from].add(arc);
+                    inArcs[to].add(arc);
+                }
+            }
+            clearWitnessSearch();
+        }
+        return shortcuts;
+    }
+
+    /** @return the lightest of the given arcs to (or from) each remaining neighbor of the node, by neighbor. */
+    private TIntIntMap lightestArcs(TIntList arcs, int node, boolean out) {
+        TIntIntMap lightest = new TIntIntHashMap();
+        for (int i = 0; i < arcs.size(); i++) {
+            int arc = arcs.get(i);
+            int neighbor = out ? arcTo.get(arc) : arcFrom.get(arc);
+            if (neighbor == node || contracted[neighbor]) {
+                continue;
+            }
+            if (!lightest.containsKey(neighbor) || arcWeight.get(arc) < arcWeight.get(lightest.get(neighbor))) {
+                lightest.put(neighbor, arc);
+            }
+        }
+        return lightest;
+    }
+
+    /**
+     * A Dijkstra search from the given node over the remaining nodes except the one being contracted, stopping at the
+     * given weight or after MAX_WITNESS_SETTLED nodes.
+     */
+    private void witnessSearch(int origin, int excluded, double maxWeight) {
+        BinHeap<Integer> queue = new BinHeap<Integer>();
+        witnessDistances[origin] = 0;
+        witnessReached.add(origin);
+        queue.insert(origin, 0);
+        int settled = 0;
+        while (!queue.empty() && settled < MAX_WITNESS_SETTLED) {
+            double weight = queue.peek_min_key();
+            int node = queue.extract_min();
+            if (weight > maxWeight) {
+                break;
+            }
+            if (weight > witnessDistances[node]) {
+                continue;
+            }
+            settled++;
+            for (int i = 0; i < outArcs[node].size(); i++) {
+                int arc = outArcs[node].get(i);
+                int next = arcTo.get(arc);
+                if (next == excluded || contracted[next]) {
+                    continue;
+                }
+                double nextWeight = weight + arcWeight.get(arc);
+                if (nextWeight < witnessDistances[next]) {
+                    if (witnessDistances[next] == Double.POSITIVE_INFINITY) {
+                        witnessReached.add(next);
+                    }
+                    witnessDistances[next] = nextWeight;
+                    queue.insert(next, nextWeight);
+                }
+            }
+        }
+    }
+
+    private void clearWitnessSearch() {
+        for (int i = 0; i < witnessReached.size(); i++) {
+            witnessDistances[witnessReached.get(i)] = Double.POSITIVE_INFINITY;
+        }
+        witnessReached.clear();
+    }
+
+}
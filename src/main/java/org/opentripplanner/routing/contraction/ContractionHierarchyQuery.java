@@ -0,0 +1,174 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+
+/**
+ * A shortest path search in a ContractionHierarchy, between any of several source nodes and any of several target
+ * nodes, each with an initial weight. This is a bidirectional Dijkstra search where the forward search only follows
+ * arcs going up in the hierarchy and the backward search arcs coming down. Each direction stops once its next node is
+ * heavier than the best path found, which is then unpacked into street edges.
+ *
+ * One instance should be used per search.
+ */
+public class ContractionHierarchyQuery {
+
+    private static final int FORWARD = 0, BACKWARD = 1;
+
+    private final ContractionHierarchy hierarchy;
+
+    private final TIntDoubleMap[] weights = new TIntDoubleMap[] {
+            new TIntDoubleHashMap(64, 0.5f, -1, Double.POSITIVE_INFINITY),
+            new TIntDoubleHashMap(64, 0.5f, -1, Double.POSITIVE_INFINITY) };
+
+    /** The arc through which each node was reached in each direction, -1 for sources and targets. */
+    private final TIntIntMap[] parentArcs = new TIntIntMap[] {
+            new TIntIntHashMap(64, 0.5f, -1, -1), new TIntIntHashMap(64, 0.5f, -1, -1) };
+
+    private double bestWeight = Double.POSITIVE_INFINITY;
+
+    private int meetingNode = -1;
+
+    private int sourceNode = -1, targetNode = -1;
+
+    private int settled = 0;
+
+    public ContractionHierarchyQuery(ContractionHierarchy hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
+    /** Let paths start at the given node with the given weight. */
+    public void addSource(int node, double weight) {
+        if (weight < weights[FORWARD].get(node)) {
+            weights[FORWARD].put(node, weight);
+        }
+    }
+
+    /** Let paths end at the given node, adding the given weight. */
+    public void addTarget(int node, double weight) {
+        if (weight < weights[BACKWARD].get(node)) {
+            weights[BACKWARD].put(node, weight);
+        }
+    }
+
+    /**
+     * Search for the lightest path from a source to a target.
+     * @return the street edges of the path in order, or null if no target can be reached.
+     */
+    public List<StreetEdge> search() {
+        List<BinHeap<Integer>> queues = new ArrayList<BinHeap<Integer>>(2);
+        for (int direction : new int[] { FORWARD, BACKWARD }) {
+            BinHeap<Integer> queue = new BinHeap<Integer>();
+            for (TIntDoubleIterator it = weights[direction].iterator(); it.hasNext(); ) {
+                it.advance();
+                queue.insert(it.key(), it.value());
+            }
+            queues.add(queue);
+        }
+        while (true) {
+            // continue in the direction with the lightest next node, if it can still lead to a better path
+            int direction = -1;
+            double min = bestWeight;
+            for (int d : new int[] { FORWARD, BACKWARD }) {
+                BinHeap<Integer> queue = queues.get(d);
+                if (!queue.empty() && queue.peek_min_key() < min) {
+                    min = queue.peek_min_key();
+                    direction = d;
+                }
+            }
+            if (direction < 0) {
+                break;
+            }
+            BinHeap<Integer> queue = queues.get(direction);
+            double weight = queue.peek_min_key();
+            int node = queue.extract_min();
+            if (weight > weights[direction].get(node)) {
+                continue; // already reached with a lower weight
+            }
+            settled++;
+            double total = weight + weights[1 - direction].get(node);
+            if (total < bestWeight) {
+                bestWeight = total;
+                meetingNode = node;
+            }
+            int[] start = direction == FORWARD ? hierarchy.getUpOutStart() : hierarchy.getUpInStart();
+            int[] arcs = direction == FORWARD ? hierarchy.getUpOutArcs() : hierarchy.getUpInArcs();
+            for (int i = start[node]; i < start[node + 1]; i++) {
+                int arc = arcs[i];
+                int next = direction == FORWARD ? hierarchy.getTo(arc) : hierarchy.getFrom(arc);
+                double nextWeight = weight + hierarchy.getWeight(arc);
+                if (nextWeight < weights[direction].get(next)) {
+                    weights[direction].put(next, nextWeight);
+                    parentArcs[direction].put(next, arc);
+                    queue.insert(next, nextWeight);
+                }
+            }
+        }
+        if (meetingNode < 0) {
+            return null;
+        }
+        TIntList pathArcs = new TIntArrayList();
+        int node = meetingNode;
+        for (int arc = parentArcs[FORWARD].get(node); arc >= 0; arc = parentArcs[FORWARD].get(node)) {
+            pathArcs.add(arc);
+            node = hierarchy.getFrom(arc);
+        }
+        sourceNode = node;
+        pathArcs.reverse();
+        node = meetingNode;
+        for (int arc = parentArcs[BACKWARD].get(node); arc >= 0; arc = parentArcs[BACKWARD].get(node)) {
+            pathArcs.add(arc);
+            node = hierarchy.getTo(arc);
+        }
+        targetNode = node;
+        List<StreetEdge> edges = new ArrayList<StreetEdge>();
+        for (int i = 0; i < pathArcs.size(); i++) {
+            hierarchy.unpack(pathArcs.get(i), edges);
+        }
+        return edges;
+    }
+
+    /** @return the weight of the path found, including the weights given to its source and target. */
+    public double getWeight() {
+        return bestWeight;
+    }
+
+    /** @return the node at which the path found starts. */
+    public int getSourceNode() {
+        return sourceNode;
+    }
+
+    /** @return the node at which the path found ends. */
+    public int getTargetNode() {
+        return targetNode;
+    }
+
+    /** @return the number of nodes settled in both directions, for debugging and tests. */
+    public int getSettledCount() {
+        return settled;
+    }
+
+}
@@ -0,0 +1,256 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.RoutingContext;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.edgetype.OnboardEdge;
+import org.opentripplanner.routing.edgetype.PartialStreetEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds street-only paths with the contraction hierarchy of the graph, as a fast alternative to an A* search.
+ *
+ * The origin and destination of a request are usually temporary vertices linked to the streets, which are not in the
+ * hierarchy: small searches over the edges around them find the vertices of the hierarchy they lead to, which are
+ * the sources and targets of the hierarchy search. The edges of the path found are then traversed again with the
+ * request to build the states of a normal GraphPath, so itineraries have the times, weights and street notes they
+ * would have with an A* search.
+ *
+ * The hierarchy ignores the time periods of turn restrictions and U-turn bans at the vertices where turns are free and
+ * unrestricted, so the path it finds may not be traversable. In that case, and whenever the request uses options the
+ * hierarchy does not model, no path is returned and the caller should fall back to an A* search.
+ */
+public class ContractionHierarchyRouter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContractionHierarchyRouter.class);
+
+    /** Give up looking for the vertices of the hierarchy around the origin or destination after this many vertices. */
+    private static final int MAX_ACCESS_VERTICES = 1000;
+
+    private final RoutingRequest options;
+
+    private final ContractionHierarchy hierarchy;
+
+    /** The request must have a routing context. */
+    public ContractionHierarchyRouter(RoutingRequest options) {
+        this.options = options;
+        this.hierarchy = findHierarchy(options);
+    }
+
+    /** @return true if the graph has a contraction hierarchy that can be used for the request. */
+    public boolean canRoute() {
+        return hierarchy != null;
+    }
+
+    private static ContractionHierarchy findHierarchy(RoutingRequest options) {
+        RoutingContext rctx = options.rctx;
+        if (rctx.fromVertex == null || rctx.toVertex == null || rctx.fromVertex == rctx.toVertex) {
+            return null;
+        }
+        ContractionHierarchies hierarchies = rctx.graph.getService(ContractionHierarchies.class);
+        if (hierarchies == null) {
+            return null;
+        }
+        if (options.wheelchairAccessible || options.allowBikeRental || options.parkAndRide || options.kissAndRide
+                || options.bikeParkAndRide || options.startingTransitTripId != null) {
+            return null;
+        }
+        ContractionHierarchy hierarchy = hierarchies.get(options.modes);
+        if (hierarchy == null) {
+            return null;
+        }
+        if (hierarchy.mode == TraverseMode.BICYCLE && options.optimize != OptimizeType.QUICK) {
+            return null;
+        }
+        // getting on the bike is not in the hierarchy
+        if (hierarchy.mode == TraverseMode.BICYCLE && (options.bikeSwitchTime != 0 || options.bikeSwitchCost != 0)) {
+            return null;
+        }
+        if (!hierarchy.metric.isProportional(new ContractionHierarchy.Metric(options), hierarchy.mode)) {
+            return null;
+        }
+        return hierarchy;
+    }
+
+    /**
+     * @return the lightest path found with the contraction hierarchy, or null if there is none or it cannot be used,
+     *         in which case an A* search should be run instead.
+     */
+    public GraphPath getPath() {
+        if (hierarchy == null) {
+            return null;
+        }
+        long searchBeginTime = System.currentTimeMillis();
+        RoutingContext rctx = options.rctx;
+        AccessSearch fromSearch = new AccessSearch(rctx.fromVertex, false);
+        AccessSearch toSearch = new AccessSearch(rctx.toVertex, true);
+        ContractionHierarchyQuery query = new ContractionHierarchyQuery(hierarchy);
+        for (Vertex v : fromSearch.reached) {
+            Edge backEdge = fromSearch.parents.get(v);
+            if (backEdge instanceof PartialStreetEdge) {
+                backEdge = ((PartialStreetEdge) backEdge).getParentEdge();
+            }
+            query.addSource(hierarchy.getNode(v, backEdge), fromSearch.weights.get(v));
+        }
+        for (Vertex v : toSearch.reached) {
+            // the turn onto the street leading to the destination depends on the street the path arrives by
+            Edge nextEdge = toSearch.parents.get(v);
+            for (int node : hierarchy.getNodes(v)) {
+                double turnWeight = 0;
+                if (hierarchy.getInEdge(node) != null && nextEdge instanceof StreetEdge) {
+                    turnWeight = hierarchy.metric.turnWeight(hierarchy.getInEdge(node), (StreetEdge) nextEdge,
+                            hierarchy.mode);
+                }
+                query.addTarget(node, toSearch.weights.get(v) + turnWeight);
+            }
+        }
+        List<StreetEdge> streetEdges = query.search();
+        // both ends may be on the same street, with a path that does not go through the hierarchy
+        Double directWeight = fromSearch.weights.get(rctx.toVertex);
+        List<Edge> edges;
+        if (streetEdges != null && (directWeight == null || query.getWeight() < directWeight)) {
+            edges = fromSearch.getEdges(hierarchy.getVertex(query.getSourceNode()));
+            edges.addAll(streetEdges);
+            edges.addAll(toSearch.getEdges(hierarchy.getVertex(query.getTargetNode())));
+        } else if (directWeight != null) {
+            edges = fromSearch.getEdges(rctx.toVertex);
+        } else {
+            LOG.debug("No path in the contraction hierarchy.");
+            return null;
+        }
+        GraphPath path = replay(edges);
+        LOG.debug("Contraction hierarchy search settled {} nodes, found a path of {} edges in {} msec",
+                query.getSettledCount(), edges.size(), System.currentTimeMillis() - searchBeginTime);
+        return path;
+    }
+
+    /**
+     * Traverse the given edges from the origin of the request (backward from the destination in an arriveBy search).
+     * @return the path, or null if the edges cannot be traversed or the path does not respect the walk limit.
+     */
+    private GraphPath replay(List<Edge> edges) {
+        State s = new State(options);
+        int n = edges.size();
+        for (int i = 0; i < n; i++) {
+            Edge e = edges.get(options.arriveBy ? n - 1 - i : i);
+            s = e.traverse(s);
+            if (s == null) {
+                LOG.debug("The contraction hierarchy path cannot be traversed at {}.", e);
+                return null;
+            }
+        }
+        if (s.getVertex() != options.rctx.target) {
+            return null;
+        }
+        // beyond the walk limit, A* either finds no path or adds penalties the hierarchy does not know about
+        if (hierarchy.mode != TraverseMode.CAR && s.getWalkDistance() > options.maxWalkDistance) {
+            LOG.debug("The contraction hierarchy path exceeds the walk limit.");
+            return null;
+        }
+        return new GraphPath(s, false);
+    }
+
+    /** @return the weight of the edge for the hierarchy search, or -1 if it cannot be used. */
+    private double weight(Edge e) {
+        if (e instanceof OnboardEdge) {
+            return -1;
+        }
+        if (e instanceof StreetEdge) {
+            return hierarchy.metric.weight((StreetEdge) e, hierarchy.mode);
+        }
+        return 0;
+    }
+
+    /**
+     * A Dijkstra search from a vertex (or to it if reverse is true) that stops at the vertices of the hierarchy,
+     * going through the vertices that were created after the hierarchy, such as the temporary vertices of the
+     * request.
+     */
+    private class AccessSearch {
+
+        final Vertex origin;
+
+        final boolean reverse;
+
+        final Map<Vertex, Double> weights = new HashMap<Vertex, Double>();
+
+        final Map<Vertex, Edge> parents = new HashMap<Vertex, Edge>();
+
+        /** The vertices of the hierarchy reached. */
+        final List<Vertex> reached = new ArrayList<Vertex>();
+
+        AccessSearch(Vertex origin, boolean reverse) {
+            this.origin = origin;
+            this.reverse = reverse;
+            BinHeap<Vertex> queue = new BinHeap<Vertex>();
+            weights.put(origin, 0.0);
+            queue.insert(origin, 0);
+            while (!queue.empty() && weights.size() < MAX_ACCESS_VERTICES) {
+                double weight = queue.peek_min_key();
+                Vertex v = queue.extract_min();
+                if (weight > weights.get(v)) {
+                    continue;
+                }
+                if (hierarchy.covers(v)) {
+                    reached.add(v);
+                    continue;
+                }
+                for (Edge e : reverse ? v.getIncoming() : v.getOutgoing()) {
+                    double edgeWeight = weight(e);
+                    if (edgeWeight < 0) {
+                        continue;
+                    }
+                    Vertex next = reverse ? e.getFromVertex() : e.getToVertex();
+                    Double nextWeight = weights.get(next);
+                    if (nextWeight == null || weight + edgeWeight < nextWeight) {
+                        weights.put(next, weight + edgeWeight);
+                        parents.put(next, e);
+                        queue.insert(next, weight + edgeWeight);
+                    }
+                }
+            }
+        }
+
+        /** @return the edges from the origin to the given vertex (from the vertex to the origin if reverse). */
+        List<Edge> getEdges(Vertex v) {
+            List<Edge> edges = new ArrayList<Edge>();
+            while (v != origin) {
+                Edge e = parents.get(v);
+                edges.add(e);
+                v = reverse ? e.getToVertex() : e.getFromVertex();
+            }
+            if (!reverse) {
+                Collections.reverse(edges);
+            }
+            return edges;
+        }
+    }
+
+}
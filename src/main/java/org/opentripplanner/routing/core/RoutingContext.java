@@ -14,6 +14,9 @@
 package org.opentripplanner.routing.core;
 
 import com.google.common.collect.Iterables;
+import gnu.trove.iterator.TIntIterator;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import com.vividsolutions.jts.geom.LineString;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import org.onebusaway.gtfs.model.Stop;
@@ -144,8 +147,9 @@ public class RoutingContext implements Cloneable {
      * Returns the StreetEdges that overlap between two vertices edge sets.
      */
     private Set<StreetEdge> overlappingStreetEdges(Vertex u, Vertex v) {
-        Set<Integer> vIds = new HashSet<Integer>();
-        Set<Integer> uIds = new HashSet<Integer>();
+        // Temporary vertices have only a handful of edges, use primitive sets to avoid boxing every edge ID.
+        TIntSet vIds = new TIntHashSet();
+        TIntSet uIds = new TIntHashSet();
         for (Edge e : Iterables.concat(v.getIncoming(), v.getOutgoing())) {
             vIds.add(e.getId());
         }
@@ -155,12 +159,12 @@ public class RoutingContext implements Cloneable {
         
         // Intesection of edge IDs between u and v.
         uIds.retainAll(vIds);
-        Set<Integer> overlappingIds = uIds;
+        TIntSet overlappingIds = uIds;
 
         // Fetch the edges by ID - important so we aren't stuck with temporary edges.
         Set<StreetEdge> overlap = new HashSet<>();
-        for (Integer id : overlappingIds) {
-            Edge e = graph.getEdgeById(id);
+        for (TIntIterator it = overlappingIds.iterator(); it.hasNext(); ) {
+            Edge e = graph.getEdgeById(it.next());
             if (e == null || !(e instanceof StreetEdge)) {
                 continue;
             }
@@ -400,6 +404,31 @@ public class RoutingContext implements Cloneable {
         return true;
     }
 
+    /**
+     * Make a routing context sharing the endpoints, temporary vertices and service days of this one, for another
+     * search running at the same time as the search of this context. The copy has its own path parsers, debug output
+     * and abort flag, and no heuristic: one must be set before searching. It must not be destroyed, since the
+     * temporary vertices still belong to this context.
+     * @param opt the request of the other search, whose routing context the copy becomes.
+     */
+    public RoutingContext copy(RoutingRequest opt) {
+        RoutingContext copy;
+        try {
+            copy = (RoutingContext) super.clone();
+        } catch (CloneNotSupportedException e) {
+            /* this will never happen since we implement Cloneable */
+            throw new RuntimeException(e);
+        }
+        copy.opt = opt;
+        copy.pathParsers = pathParsers.clone();
+        copy.remainingWeightHeuristic = null;
+        copy.debugOutput = new DebugOutput();
+        copy.debugOutput.startedCalculating();
+        copy.aborted = false;
+        opt.rctx = copy;
+        return copy;
+    }
+
     /**
      * Tear down this routing context, removing any temporary edges.
      */
@@ -358,6 +358,13 @@ public class RoutingRequest implements Cloneable, Serializable {
      */
     public boolean disableRemainingWeightHeuristic = false;
 
+    /**
+     * If true, street-only searches use a remaining weight heuristic based on the distances to landmarks
+     * precomputed at graph build time, when the graph has them. This does not change the results, only the number
+     * of states explored. Currently only implemented for the long distance path service.
+     */
+    public boolean landmarkHeuristic = false;
+
     /**
      * The routing context used to actually carry out this search. It is important to build States from TraverseOptions
      * rather than RoutingContexts,and just keep a reference to the context in the TraverseOptions, rather than using
@@ -408,6 +415,15 @@ public class RoutingRequest implements Cloneable, Serializable {
     /** The function that compares paths converging on the same vertex to decide which ones continue to be explored. */
     public DominanceFunction dominanceFunction = new DominanceFunction.Pareto();
 
+    /**
+     * If true, shortest path trees for this request store their states in arrays indexed by vertex rather than
+     * in a map keyed on vertices. This does not change search results, only memory use and garbage production.
+     * Searches using a pooled SearchContext, such as those of the trip planner, always use a vertex-indexed tree
+     * whose storage is reused, so this only matters to searches which allocate their own tree. Those pay for a full
+     * array on each search, so this is off by default; RepeatedRaptorProfileRouter turns it on.
+     */
+    public boolean vertexIndexedShortestPathTree = false;
+
     /* CONSTRUCTORS */
 
     /** Constructor for options; modes defaults to walk and transit */
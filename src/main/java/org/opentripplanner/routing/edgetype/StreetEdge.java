@@ -172,6 +172,26 @@ public class StreetEdge extends Edge implements Cloneable {
         this(v1, v2, geometry, new NonLocalizedString(name), length, permission, back);
     }
 
+    /**
+     * Recreate an edge from the raw field values stored by CompactGraphFormat. The geometry is already in its
+     * compacted form and the angles are already computed, so this is much cheaper than the other constructors.
+     */
+    public StreetEdge(StreetVertex v1, StreetVertex v2, int[] compactGeometry, I18NString name,
+                      int length_mm, StreetTraversalPermission permission, int streetClass,
+                      float carSpeed, float bicycleSafetyFactor, byte flags, byte inAngle, byte outAngle) {
+        super(v1, v2);
+        this.compactGeometry = compactGeometry;
+        this.name = name;
+        this.length_mm = length_mm;
+        this.permission = permission;
+        this.streetClass = streetClass;
+        this.carSpeed = carSpeed;
+        this.bicycleSafetyFactor = bicycleSafetyFactor;
+        this.flags = flags;
+        this.inAngle = inAngle;
+        this.outAngle = outAngle;
+    }
+
     public boolean canTraverse(RoutingRequest options) {
         if (options.wheelchairAccessible) {
             if (!isWheelchairAccessible()) {
@@ -711,6 +731,28 @@ public class StreetEdge extends Edge implements Cloneable {
 		return this.outAngle * 180 / 128;
 	}
 
+    /* Raw field values, used to store street edges in columns (see CompactGraphFormat). */
+
+    public int[] getCompactGeometry() {
+        return compactGeometry;
+    }
+
+    public int getLengthMm() {
+        return length_mm;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public byte getRawInAngle() {
+        return inAngle;
+    }
+
+    public byte getRawOutAngle() {
+        return outAngle;
+    }
+
     protected List<TurnRestriction> getTurnRestrictions(Graph graph) {
         return graph.getTurnRestrictions(this);
     }
@@ -52,6 +52,23 @@ public class StreetWithElevationEdge extends StreetEdge {
         super(v1, v2, geometry, new NonLocalizedString(name), length, permission, back);
     }
 
+    /**
+     * Recreate an edge from the raw field values stored by CompactGraphFormat, as with the corresponding StreetEdge
+     * constructor. The elevation profile is already packed and the slope costs are already computed.
+     */
+    public StreetWithElevationEdge(StreetVertex v1, StreetVertex v2, int[] compactGeometry, I18NString name,
+            int length_mm, StreetTraversalPermission permission, int streetClass, float carSpeed,
+            float bicycleSafetyFactor, byte flags, byte inAngle, byte outAngle, byte[] packedElevationProfile,
+            float slopeSpeedFactor, float slopeWorkFactor, float maxSlope, boolean flattened) {
+        super(v1, v2, compactGeometry, name, length_mm, permission, streetClass, carSpeed, bicycleSafetyFactor,
+                flags, inAngle, outAngle);
+        this.packedElevationProfile = packedElevationProfile;
+        this.slopeSpeedFactor = slopeSpeedFactor;
+        this.slopeWorkFactor = slopeWorkFactor;
+        this.maxSlope = maxSlope;
+        this.flattened = flattened;
+    }
+
     @Override
     public StreetWithElevationEdge clone() {
         return (StreetWithElevationEdge) super.clone();
@@ -83,6 +100,19 @@ public class StreetWithElevationEdge extends StreetEdge {
         return CompactElevationProfile.uncompactElevationProfile(packedElevationProfile);
     }
 
+    /** @return the elevation profile as stored, or null if it was never set. */
+    public byte[] getPackedElevationProfile() {
+        return packedElevationProfile;
+    }
+
+    public float getSlopeSpeedFactor() {
+        return slopeSpeedFactor;
+    }
+
+    public float getSlopeWorkFactor() {
+        return slopeWorkFactor;
+    }
+
     @Override
     public boolean isElevationFlattened() {
         return flattened;
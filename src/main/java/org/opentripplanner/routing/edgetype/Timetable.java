@@ -15,6 +15,7 @@ package org.opentripplanner.routing.edgetype;
 
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -57,11 +58,16 @@ public class Timetable implements Serializable {
      */
     public final TripPattern pattern;
 
+    /** The trips of this timetable, only modified through addTripTimes and setTripTimes. */
+    private final List<TripTimes> trips = Lists.newArrayList();
+
     /**
      * Contains one TripTimes object for each scheduled trip (even cancelled ones) and possibly
      * additional TripTimes objects for unscheduled trips. Frequency entries are stored separately.
+     * This is a read-only view: trips are added and replaced with addTripTimes and setTripTimes,
+     * which keep the per-stop departure index up to date.
      */
-    public final List<TripTimes> tripTimes = Lists.newArrayList();
+    public final List<TripTimes> tripTimes = Collections.unmodifiableList(trips);
 
     /**
      * Contains one FrequencyEntry object for each block of frequency-based trips.
@@ -87,6 +93,29 @@ public class Timetable implements Serializable {
      * Helps determine whether a particular pattern is worth searching for departures at a given time. 
      */
     private transient int minTime, maxTime;
+
+    /**
+     * For each stop, the indexes of the elements of tripTimes sorted by departure time at that stop, ties broken
+     * by position in tripTimes. Consecutive stops where the trips keep the same order share a single array, which
+     * is the common case when trips do not overtake one another. Null until the Timetable is indexed, after which
+     * every change to the trips updates it.
+     */
+    private transient int[][] departureOrder;
+
+    /** Same as departureOrder, but sorted by arrival time at each stop. May share arrays with departureOrder. */
+    private transient int[][] arrivalOrder;
+
+    /**
+     * True if the order arrays may be shared with another Timetable (the one this was copied from) or between
+     * stops, and must be copied before they are modified in place.
+     */
+    private transient boolean orderArraysShared;
+
+    /**
+     * False when the order arrays have been maintained incrementally since they were copied from another
+     * Timetable, allowing finish() to skip re-sorting them. Scheduled timetables are always re-indexed on finish.
+     */
+    private transient boolean reindexOnFinish = true;
     
     /** Construct an empty Timetable. */
     public Timetable(TripPattern pattern) {
@@ -95,12 +124,21 @@ public class Timetable implements Serializable {
     }
 
     /**
-     * Copy constructor: create an un-indexed Timetable with the same TripTimes as the specified timetable.
+     * Copy constructor: create a Timetable with the same TripTimes as the specified timetable. Only the per-stop
+     * departure index is carried over; the other summary information is computed again in finish().
      */
     Timetable (Timetable tt, ServiceDate serviceDate) {
-        tripTimes.addAll(tt.tripTimes);
+        trips.addAll(tt.trips);
         this.serviceDate = serviceDate;
         this.pattern = tt.pattern;
+        // The departure index of the source timetable describes our identical list of trips. Share it until we
+        // modify it, so that realtime updates only pay for re-sorting the trips they actually touch.
+        if (tt.departureIndexValid()) {
+            this.departureOrder = tt.departureOrder;
+            this.arrivalOrder = tt.arrivalOrder;
+            this.orderArraysShared = true;
+            this.reindexOnFinish = false;
+        }
     }
 
     /**
@@ -140,37 +178,66 @@ public class Timetable implements Serializable {
         // NOTE the time is sometimes negative here. That is fine, we search for the first trip of the day.
         TripTimes bestTrip = null;
         Stop currentStop = pattern.getStop(stopIndex);
-        // Linear search through the timetable looking for the best departure.
-        // We no longer use a binary search on Timetables because:
-        // 1. we allow combining trips from different service IDs on the same tripPattern.
-        // 2. We mix frequency-based and one-off TripTimes together on tripPatterns.
-        // 3. Stoptimes may change with realtime updates, and we cannot count on them being sorted.
-        //    The complexity of keeping sorted indexes up to date does not appear to be worth the
-        //    apparently minor speed improvement.
         int bestTime = boarding ? Integer.MAX_VALUE : Integer.MIN_VALUE;
-        // Hoping JVM JIT will distribute the loop over the if clauses as needed.
-        // We could invert this and skip some service days based on schedule overlap as in RRRR.
-        for (TripTimes tt : tripTimes) {
-            if (tt.isCanceled()) continue;
-            if ( ! serviceDay.serviceRunning(tt.serviceCode)) continue; // TODO merge into call on next line
-            if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
-            int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
-            if (adjustedTime == -1) continue;
+        if (departureIndexValid()) {
+            // Binary search in the per-stop sorted index, then walk forward (backward) from there. Trips on other
+            // services, canceled trips and trips ruled out by transfer rules are skipped during the walk, so the
+            // first acceptable trip encountered is the best one. Ties are resolved exactly as in the linear scan.
             if (boarding) {
-                int depTime = tt.getDepartureTime(stopIndex);
-                if (depTime < 0) continue; // negative values were previously used for canceled trips/passed stops/skipped stops, but
-                                           // now its not sure if this check should be still in place because there is a boolean field
-                                           // for canceled trips
-                if (depTime >= adjustedTime && depTime < bestTime) {
-                    bestTrip = tt;
-                    bestTime = depTime;
+                int[] order = departureOrder[stopIndex];
+                for (int p = firstDepartureAtOrAfter(order, stopIndex, time); p < order.length; p++) {
+                    TripTimes tt = trips.get(order[p]);
+                    int depTime = tt.getDepartureTime(stopIndex);
+                    if (depTime < 0) continue;
+                    if ( ! tripUsable(tt, s0, serviceDay, stopIndex)) continue;
+                    int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
+                    if (adjustedTime == -1) continue;
+                    if (depTime >= adjustedTime) {
+                        bestTrip = tt;
+                        bestTime = depTime;
+                        break;
+                    }
                 }
             } else {
-                int arvTime = tt.getArrivalTime(stopIndex);
-                if (arvTime < 0) continue;
-                if (arvTime <= adjustedTime && arvTime > bestTime) {
-                    bestTrip = tt;
-                    bestTime = arvTime;
+                int[] order = arrivalOrder[stopIndex];
+                for (int p = lastArrivalAtOrBefore(order, stopIndex, time); p >= 0; p--) {
+                    TripTimes tt = trips.get(order[p]);
+                    int arvTime = tt.getArrivalTime(stopIndex);
+                    // Keep walking through ties so we end up with the first such trip in the list.
+                    if (arvTime < 0 || arvTime < bestTime) break;
+                    if ( ! tripUsable(tt, s0, serviceDay, stopIndex)) continue;
+                    int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
+                    if (adjustedTime == -1) continue;
+                    if (arvTime <= adjustedTime) {
+                        bestTrip = tt;
+                        bestTime = arvTime;
+                    }
+                }
+            }
+        } else {
+            // The index has not been built yet, finish() has not been called.
+            // Linear search through the timetable looking for the best departure.
+            // Hoping JVM JIT will distribute the loop over the if clauses as needed.
+            for (TripTimes tt : tripTimes) {
+                if ( ! tripUsable(tt, s0, serviceDay, stopIndex)) continue;
+                int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
+                if (adjustedTime == -1) continue;
+                if (boarding) {
+                    int depTime = tt.getDepartureTime(stopIndex);
+                    if (depTime < 0) continue; // negative values were previously used for canceled trips/passed stops/skipped stops, but
+                                               // now its not sure if this check should be still in place because there is a boolean field
+                                               // for canceled trips
+                    if (depTime >= adjustedTime && depTime < bestTime) {
+                        bestTrip = tt;
+                        bestTime = depTime;
+                    }
+                } else {
+                    int arvTime = tt.getArrivalTime(stopIndex);
+                    if (arvTime < 0) continue;
+                    if (arvTime <= adjustedTime && arvTime > bestTime) {
+                        bestTrip = tt;
+                        bestTime = arvTime;
+                    }
                 }
             }
         }
@@ -179,9 +246,7 @@ public class Timetable implements Serializable {
         FrequencyEntry bestFreq = null;
         for (FrequencyEntry freq : frequencyEntries) {
             TripTimes tt = freq.tripTimes;
-            if (tt.isCanceled()) continue;
-            if ( ! serviceDay.serviceRunning(tt.serviceCode)) continue; // TODO merge into call on next line
-            if ( ! tt.tripAcceptable(s0, stopIndex)) continue;
+            if ( ! tripUsable(tt, s0, serviceDay, stopIndex)) continue;
             int adjustedTime = adjustTimeForTransfer(s0, currentStop, tt.trip, boarding, serviceDay, time);
             if (adjustedTime == -1) continue;
             LOG.debug("  running freq {}", freq);
@@ -209,6 +274,35 @@ public class Timetable implements Serializable {
         return bestTrip;
     }
 
+    /** @return whether the given trip is running on the service day and may be used from the given state. */
+    private boolean tripUsable(TripTimes tt, State s0, ServiceDay serviceDay, int stopIndex) {
+        if (tt.isCanceled()) return false;
+        if ( ! serviceDay.serviceRunning(tt.serviceCode)) return false;
+        return tt.tripAcceptable(s0, stopIndex);
+    }
+
+    /** @return the first position in the given departure order at which the departure time is not before t. */
+    private int firstDepartureAtOrAfter(int[] order, int stopIndex, int t) {
+        int lo = 0, hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (trips.get(order[mid]).getDepartureTime(stopIndex) < t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /** @return the last position in the given arrival order at which the arrival time is not after t, or -1. */
+    private int lastArrivalAtOrBefore(int[] order, int stopIndex, int t) {
+        int lo = 0, hi = order.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (trips.get(order[mid]).getArrivalTime(stopIndex) <= t) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo - 1;
+    }
+
     /**
      * Check transfer table rules. Given the last alight time from the State,
      * return the boarding time t0 adjusted for this particular trip's minimum transfer time,
@@ -289,6 +383,107 @@ public class Timetable implements Serializable {
             minTime = Math.min(minTime, freq.getMinDeparture());
             maxTime = Math.max(maxTime, freq.getMaxArrival());
         }
+        if (reindexOnFinish || ! departureIndexValid()) {
+            indexDepartures();
+        }
+    }
+
+    /** @return true if the per-stop departure and arrival orders have been built, and so cover all the trips. */
+    private boolean departureIndexValid() {
+        return departureOrder != null;
+    }
+
+    /**
+     * Sort the trips at each stop by departure and arrival time. Each sort key packs the time into the high
+     * bits and the trip's position in tripTimes into the low bits, so a single primitive sort breaks ties by
+     * position and avoids boxing.
+     */
+    private void indexDepartures() {
+        int nStops = pattern.stopPattern.size;
+        int nTrips = trips.size();
+        departureOrder = new int[nStops][];
+        arrivalOrder = new int[nStops][];
+        long[] keys = new long[nTrips];
+        for (int s = 0; s < nStops; s++) {
+            for (int t = 0; t < nTrips; t++) {
+                keys[t] = ((long) trips.get(t).getDepartureTime(s) << 32) | t;
+            }
+            departureOrder[s] = sortedOrder(keys, s > 0 ? departureOrder[s - 1] : null);
+            for (int t = 0; t < nTrips; t++) {
+                keys[t] = ((long) trips.get(t).getArrivalTime(s) << 32) | t;
+            }
+            arrivalOrder[s] = sortedOrder(keys, departureOrder[s]);
+        }
+        orderArraysShared = true;
+        reindexOnFinish = true;
+    }
+
+    /** Sort the given keys and extract the trip indexes, returning the candidate array instead if it is equal. */
+    private static int[] sortedOrder(long[] keys, int[] candidate) {
+        Arrays.sort(keys);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = (int) keys[i];
+        }
+        if (candidate != null && Arrays.equals(order, candidate)) return candidate;
+        return order;
+    }
+
+    /**
+     * Give each stop its own copies of the order arrays so they can be modified in place without affecting
+     * other stops, or the Timetable they were copied from.
+     */
+    private void unshareOrderArrays() {
+        if ( ! orderArraysShared) return;
+        for (int s = 0; s < departureOrder.length; s++) {
+            departureOrder[s] = departureOrder[s].clone();
+            arrivalOrder[s] = arrivalOrder[s].clone();
+        }
+        orderArraysShared = false;
+    }
+
+    /**
+     * Move the trip at the given position in tripTimes to its sorted position in each stop's order arrays.
+     * The entry is appended first if it is not yet present (a newly added trip).
+     */
+    private void reindexTrip(int tripIndex) {
+        unshareOrderArrays();
+        TripTimes tt = trips.get(tripIndex);
+        for (int s = 0; s < departureOrder.length; s++) {
+            departureOrder[s] = reinsert(departureOrder[s], tripIndex, tt.getDepartureTime(s), s, true);
+            arrivalOrder[s] = reinsert(arrivalOrder[s], tripIndex, tt.getArrivalTime(s), s, false);
+        }
+    }
+
+    /** Remove tripIndex from the order array if present, then insert it at the position for the given time. */
+    private int[] reinsert(int[] order, int tripIndex, int time, int stopIndex, boolean departures) {
+        int n = order.length;
+        int[] ret = order;
+        int from = -1;
+        for (int p = 0; p < n; p++) {
+            if (order[p] == tripIndex) {
+                from = p;
+                break;
+            }
+        }
+        if (from < 0) {
+            ret = Arrays.copyOf(order, n + 1);
+        } else {
+            System.arraycopy(ret, from + 1, ret, from, n - from - 1);
+            n -= 1;
+        }
+        // Find the insertion point among the n remaining entries, ordering by time then by position in tripTimes.
+        int lo = 0, hi = n;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            TripTimes other = trips.get(ret[mid]);
+            int otherTime = departures ? other.getDepartureTime(stopIndex) : other.getArrivalTime(stopIndex);
+            if (otherTime < time || (otherTime == time && ret[mid] < tripIndex)) lo = mid + 1;
+            else hi = mid;
+        }
+        System.arraycopy(ret, lo, ret, lo + 1, n - lo);
+        ret[lo] = tripIndex;
+        return ret;
     }
 
     /** @return the index of TripTimes for this trip ID in this particular Timetable */
@@ -332,7 +527,9 @@ public class Timetable implements Serializable {
      * @return old trip times of trip
      */
     public TripTimes setTripTimes(int tripIndex, TripTimes tt) {
-        return tripTimes.set(tripIndex, tt);
+        TripTimes old = trips.set(tripIndex, tt);
+        if (departureIndexValid()) reindexTrip(tripIndex);
+        return old;
     }
 
     /**
@@ -507,12 +704,16 @@ public class Timetable implements Serializable {
     /**
      * Add a trip to this Timetable. The Timetable must be analyzed, compacted, and indexed
      * any time trips are added, but this is not done automatically because it is time consuming
-     * and should only be done once after an entire batch of trips are added.
+     * and should only be done once after an entire batch of trips are added. The only exception is the
+     * per-stop departure index, which is updated in place if it has already been built.
      * Note that the trip is not added to the enclosing pattern here, but in the pattern's wrapper function.
      * Here we don't know if it's a scheduled trip or a realtime-added trip.
      */
     public void addTripTimes(TripTimes tt) {
-        tripTimes.add(tt);
+        trips.add(tt);
+        if (departureIndexValid()) {
+            reindexTrip(trips.size() - 1);
+        }
     }
 
     /**
@@ -17,7 +17,7 @@ import java.util.Comparator;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
@@ -25,6 +25,7 @@ import java.util.SortedSet;
 import java.util.TreeSet;
 
 import org.onebusaway.gtfs.model.calendar.ServiceDate;
+import org.opentripplanner.common.PersistentMap;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +44,11 @@ import com.google.common.base.Preconditions;
  * relative arrival and departure times of other trips that have not necessarily been boarded.
  *
  * At this point, only one writing thread at a time is supported.
+ *
+ * Committed snapshots are persistent: each commit derives new versions of the committed maps from the previous ones
+ * plus the changes made to the buffer since the last commit, sharing everything else. Only the patterns touched since
+ * the last commit are copied (and their timetables are copied on write by update()), so the cost of a commit is
+ * proportional to the number of changed trips rather than to the number of patterns with real-time data.
  */
 public class TimetableSnapshot {
 
@@ -96,13 +102,17 @@ public class TimetableSnapshot {
 
     private static final Logger LOG = LoggerFactory.getLogger(TimetableSnapshot.class);
     
-    // Use HashMap not Map so we can clone.
-    // if this turns out to be slow/spacious we can use an array with integer pattern indexes
     // The SortedSet members are copy-on-write
     // FIXME: this could be made into a flat hashtable with compound keys.
-    private HashMap<TripPattern, SortedSet<Timetable>> timetables =
-            new HashMap<TripPattern, SortedSet<Timetable>>();
-    
+    /** The timetables for each pattern as of the last commit, shared with the committed snapshot. */
+    private PersistentMap<TripPattern, SortedSet<Timetable>> timetables = PersistentMap.empty();
+
+    /**
+     * The timetables for each pattern changed in this buffer since the last commit, overriding those in timetables.
+     * A null value means all the timetables of the pattern were removed.
+     */
+    private Map<TripPattern, SortedSet<Timetable>> changedTimetables = new HashMap<>();
+
     /**
      * <p>
      * Map containing the last <b>added</b> trip pattern given a trip id (without agency) and a
@@ -110,10 +120,12 @@ public class TimetableSnapshot {
      * with trip times of a trip that didn't exist yet in the trip pattern.
      * </p>
      * <p>
-     * This is a HashMap and not a Map so the clone function is available.
+     * As for the timetables, this is the state as of the last commit and the changes made since.
      * </p>
      */
-    private HashMap<TripIdAndServiceDate, TripPattern> lastAddedTripPattern = new HashMap<>();
+    private PersistentMap<TripIdAndServiceDate, TripPattern> lastAddedTripPattern = PersistentMap.empty();
+
+    private Map<TripIdAndServiceDate, TripPattern> changedLastAddedTripPattern = new HashMap<>();
     
     /**
      * Boolean value indicating that timetable snapshot is read only if true. Once it is true, it shouldn't
@@ -126,6 +138,21 @@ public class TimetableSnapshot {
      * of the last commit if true.
      */
     private boolean dirty = false;
+
+    /** Whether all the timetables have been cleared since the last commit. */
+    private boolean cleared = false;
+
+    /**
+     * In a committed snapshot, the patterns whose timetables changed since the previous commit, or null if the
+     * timetables of any pattern may have changed.
+     */
+    private Set<TripPattern> changedPatterns = null;
+
+    /** In a committed snapshot, the next snapshot committed from the same buffer, or null if there is none yet. */
+    private volatile TimetableSnapshot next = null;
+
+    /** The last snapshot committed from this buffer, to link it to the next one. */
+    private TimetableSnapshot lastCommitted = null;
     
     /**
      * A set of all timetables which have been modified and are waiting to be indexed. When
@@ -138,7 +165,7 @@ public class TimetableSnapshot {
      * or the originally scheduled timetable if there are no updates in this snapshot.
      */
     public Timetable resolve(TripPattern pattern, ServiceDate serviceDate) {
-        SortedSet<Timetable> sortedTimetables = timetables.get(pattern);
+        SortedSet<Timetable> sortedTimetables = getTimetables(pattern);
 
         if(sortedTimetables != null && serviceDate != null) {
             for(Timetable timetable : sortedTimetables) {
@@ -163,10 +190,21 @@ public class TimetableSnapshot {
      */
     public TripPattern getLastAddedTripPattern(String tripId, ServiceDate serviceDate) {
         TripIdAndServiceDate tripIdAndServiceDate = new TripIdAndServiceDate(tripId, serviceDate);
+        if (changedLastAddedTripPattern.containsKey(tripIdAndServiceDate)) {
+            return changedLastAddedTripPattern.get(tripIdAndServiceDate);
+        }
         TripPattern pattern = lastAddedTripPattern.get(tripIdAndServiceDate);
         return pattern;
     }
 
+    /** @return the timetables of the given pattern in this buffer or snapshot, or null if there are none. */
+    private SortedSet<Timetable> getTimetables(TripPattern pattern) {
+        if (changedTimetables.containsKey(pattern)) {
+            return changedTimetables.get(pattern);
+        }
+        return timetables.get(pattern);
+    }
+
     /**
      * Update the trip times of one trip in a timetable of a trip pattern. If the trip of the trip
      * times does not exist yet in the timetable, add it.
@@ -191,7 +229,7 @@ public class TimetableSnapshot {
         if ( ! dirtyTimetables.contains(tt)) {
             Timetable old = tt;
             tt = new Timetable(tt, serviceDate);
-            SortedSet<Timetable> sortedTimetables = timetables.get(pattern);
+            SortedSet<Timetable> sortedTimetables = getTimetables(pattern);
             if(sortedTimetables == null) {
                 sortedTimetables = new TreeSet<Timetable>(new SortedTimetableComparator());
             } else {
@@ -203,7 +241,7 @@ public class TimetableSnapshot {
             if(old.serviceDate != null)
                 sortedTimetables.remove(old);
             sortedTimetables.add(tt);
-            timetables.put(pattern, sortedTimetables);
+            changedTimetables.put(pattern, sortedTimetables);
             dirtyTimetables.add(tt);
             dirty = true;
         }
@@ -217,20 +255,23 @@ public class TimetableSnapshot {
             // Remember this pattern for the added trip id and service date
             String tripId = updatedTripTimes.trip.getId().getId();
             TripIdAndServiceDate tripIdAndServiceDate = new TripIdAndServiceDate(tripId, serviceDate);
-            lastAddedTripPattern.put(tripIdAndServiceDate, pattern);
+            changedLastAddedTripPattern.put(tripIdAndServiceDate, pattern);
         } else {
             // Set updated trip times of trip
             tt.setTripTimes(tripIndex, updatedTripTimes);
         }
         
-        // The time tables are finished during the commit
+        // The departure index of the timetable was updated in place by the calls above. The remaining summary
+        // information in the timetables is computed during the commit.
         
         return true;
     }
 
     /**
      * This produces a small delay of typically around 50ms, which is almost entirely due to
-     * the indexing step. Cloning the map is much faster (2ms).
+     * the indexing step. The per-stop departure index is maintained incrementally by update(), so
+     * only the running and dwell time bounds are recomputed here. Only the patterns changed since the
+     * last commit are added to the committed maps, which share everything else with the previous snapshot.
      * It is perhaps better to index timetables as they are changed to avoid experiencing all
      * this lag at once, but we want to avoid re-indexing when receiving multiple updates for
      * the same timetable in rapid succession. This compromise is expressed by the
@@ -242,7 +283,6 @@ public class TimetableSnapshot {
         return commit(false);
     }
 
-    @SuppressWarnings("unchecked")
     public TimetableSnapshot commit(boolean force) {
         if (readOnly) {
             throw new ConcurrentModificationException("This TimetableSnapshot is read-only.");
@@ -253,16 +293,42 @@ public class TimetableSnapshot {
         for (Timetable tt : dirtyTimetables) {
             tt.finish(); // summarize, index, etc. the new timetables
         }
-        ret.timetables = (HashMap<TripPattern, SortedSet<Timetable>>) this.timetables.clone();
-        ret.lastAddedTripPattern = (HashMap<TripIdAndServiceDate, TripPattern>)
-                this.lastAddedTripPattern.clone();
+        ret.changedPatterns = cleared ? null : new HashSet<TripPattern>(changedTimetables.keySet());
+        this.timetables = this.timetables.plus(changedTimetables);
+        this.lastAddedTripPattern = this.lastAddedTripPattern.plus(changedLastAddedTripPattern);
+        this.changedTimetables = new HashMap<>();
+        this.changedLastAddedTripPattern = new HashMap<>();
+        ret.timetables = this.timetables;
+        ret.lastAddedTripPattern = this.lastAddedTripPattern;
         this.dirtyTimetables.clear();
         this.dirty = false;
+        this.cleared = false;
 
         ret.readOnly = true; // mark the snapshot as henceforth immutable
+        if (lastCommitted != null) {
+            lastCommitted.next = ret;
+        }
+        lastCommitted = ret;
         return ret;
     }
 
+    /**
+     * @return the next snapshot committed from the same buffer as this one, or null if this is the latest one (or
+     *         this is not a committed snapshot). Only the snapshots still referenced somewhere are kept, so following
+     *         these links from an old snapshot leads to the latest one through all those committed since.
+     */
+    public TimetableSnapshot getNext() {
+        return next;
+    }
+
+    /**
+     * @return for a committed snapshot, the patterns whose timetables changed since the previous snapshot, or null if
+     *         the timetables of any pattern may have changed.
+     */
+    public Set<TripPattern> getChangedPatterns() {
+        return changedPatterns;
+    }
+
     /**
      * Clear all data of snapshot 
      */
@@ -272,13 +338,17 @@ public class TimetableSnapshot {
         }
         
         // If this snapshot is not empty, it will be dirty after the clear action 
-        if (!timetables.isEmpty() || !lastAddedTripPattern.isEmpty()) {
+        if (!timetables.isEmpty() || !lastAddedTripPattern.isEmpty() ||
+                !changedTimetables.isEmpty() || !changedLastAddedTripPattern.isEmpty()) {
             dirty = true;
         }
+        cleared = true;
         
-        // Clear all data from snapshot
-        timetables.clear();
-        lastAddedTripPattern.clear();
+        // Clear all data from snapshot. The committed maps are shared with the last snapshot, start new ones.
+        timetables = PersistentMap.empty();
+        lastAddedTripPattern = PersistentMap.empty();
+        changedTimetables.clear();
+        changedLastAddedTripPattern.clear();
     }
 
     /**
@@ -289,33 +359,35 @@ public class TimetableSnapshot {
             throw new ConcurrentModificationException("This TimetableSnapshot is read-only.");
         }
 
+        // This visits all the timetables, but only runs once a day. Changes are recorded like those made by update().
         boolean modified = false;
-        for (Iterator<TripPattern> it = timetables.keySet().iterator(); it.hasNext();){
-            TripPattern pattern = it.next();
-            SortedSet<Timetable> sortedTimetables = timetables.get(pattern);
+        Map<TripPattern, SortedSet<Timetable>> allTimetables = timetables.toMap();
+        allTimetables.putAll(changedTimetables);
+        for (Entry<TripPattern, SortedSet<Timetable>> entry : allTimetables.entrySet()) {
+            TripPattern pattern = entry.getKey();
+            SortedSet<Timetable> sortedTimetables = entry.getValue();
+            if (sortedTimetables == null) continue; // already removed since the last commit
             SortedSet<Timetable> toKeepTimetables =
                     new TreeSet<Timetable>(new SortedTimetableComparator());
             for(Timetable timetable : sortedTimetables) {
                 if(serviceDate.compareTo(timetable.serviceDate) < 0) {
                     toKeepTimetables.add(timetable);
-                } else {
-                    modified = true;
                 }
             }
 
-            if(toKeepTimetables.isEmpty()) {
-                it.remove();
-            } else {
-                timetables.put(pattern, toKeepTimetables);
+            if (toKeepTimetables.size() < sortedTimetables.size()) {
+                modified = true;
+                changedTimetables.put(pattern, toKeepTimetables.isEmpty() ? null : toKeepTimetables);
             }
         }
         
         // Also remove last added trip pattern for days that are purged
-        for (Iterator<Entry<TripIdAndServiceDate, TripPattern>> iterator = lastAddedTripPattern
-                .entrySet().iterator(); iterator.hasNext();) {
-            TripIdAndServiceDate tripIdAndServiceDate = iterator.next().getKey();
-            if (serviceDate.compareTo(tripIdAndServiceDate.getServiceDate()) >= 0) {
-                iterator.remove();
+        Map<TripIdAndServiceDate, TripPattern> allLastAddedTripPatterns = lastAddedTripPattern.toMap();
+        allLastAddedTripPatterns.putAll(changedLastAddedTripPattern);
+        for (Entry<TripIdAndServiceDate, TripPattern> entry : allLastAddedTripPatterns.entrySet()) {
+            TripIdAndServiceDate tripIdAndServiceDate = entry.getKey();
+            if (entry.getValue() != null && serviceDate.compareTo(tripIdAndServiceDate.getServiceDate()) >= 0) {
+                changedLastAddedTripPattern.put(tripIdAndServiceDate, null);
                 modified = true;
             }
         }
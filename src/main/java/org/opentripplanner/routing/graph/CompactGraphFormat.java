@@ -0,0 +1,541 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.edgetype.StreetWithElevationEdge;
+import org.opentripplanner.routing.graph.Graph.LoadLevel;
+import org.opentripplanner.routing.services.StreetVertexIndexFactory;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.OsmVertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.opentripplanner.util.I18NString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * An alternative on-disk format for graphs. Plain intersection vertices and street edges (with or without elevation
+ * data) make up the vast majority
+ * of the objects in a graph, and deserializing them one by one with Java serialization is what makes loading a
+ * graph slow and memory hungry. This format stores them in columns of primitive values which are memory-mapped on
+ * loading, and the objects are recreated with plain constructor calls. Everything else (the Graph object itself,
+ * transit patterns and timetables, other kinds of vertices and edges, services) is still written with Java
+ * serialization after the columns. References from those objects to the vertices and edges stored in columns are
+ * replaced with small placeholders that are resolved when the graph is read back.
+ *
+ * Layout of the file, all values big-endian:
+ * <pre>
+ * header:    magic, format version, vertex, edge, geometry, geometry value, label byte, name byte, elevation edge
+ *            and elevation profile byte counts
+ * names:     a serialized list of the distinct I18NStrings used as vertex and street names
+ * vertices:  kind, flags, x, y, name index, label offsets, label UTF-8 bytes
+ * geometry:  offsets into a single array holding all distinct CompactLineString geometries, that array
+ * edges:     from vertex, to vertex, ID, geometry index, name index, length, permission, street class, car speed,
+ *            bicycle safety factor, flags, in angle, out angle, whether the edge has elevation data
+ * elevation: for the edges with elevation data in the same order, profile offsets, profile bytes, slope speed
+ *            factor, slope work factor, maximum slope, flags
+ * remainder: Java serialization of the Graph, the other edges and the debug data, as in Graph.save()
+ * </pre>
+ *
+ * A graph file in this format has the same name as a serialized graph. InputStreamGraphSource recognizes it by its
+ * magic number.
+ */
+public class CompactGraphFormat {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompactGraphFormat.class);
+
+    private static final byte[] MAGIC = { 'O', 'T', 'P', 'G', 'R', 'A', 'P', 'H' };
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = MAGIC.length + 9 * 4;
+
+    /* Vertex kinds */
+    private static final byte INTERSECTION_VERTEX = 0;
+    private static final byte OSM_VERTEX = 1;
+
+    /* Vertex flags */
+    private static final byte TRAFFIC_LIGHT = 1;
+    private static final byte FREE_FLOWING = 2;
+
+    /* Elevation flags */
+    private static final byte FLATTENED = 1;
+    private static final byte NO_PROFILE = 2;
+
+    private static final StreetTraversalPermission[] PERMISSIONS = StreetTraversalPermission.values();
+
+    /**
+     * @return true if the given file starts with the magic number of this format. Serialized graphs start with
+     *         the Java serialization stream magic number instead.
+     */
+    public static boolean isCompactGraph(File file) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < magic.length) {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0) return false;
+                read += n;
+            }
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    /* Saving */
+
+    public static void save(Graph graph, File file) throws IOException {
+        LOG.info("Main graph size: |V|={} |E|={}", graph.countVertices(), graph.countEdges());
+        LOG.info("Writing compact graph " + file.getAbsolutePath() + " ...");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            save(graph, out);
+        } catch (IOException | RuntimeException e) {
+            file.delete(); // remove half-written file
+            throw e;
+        }
+        LOG.info("Graph written.");
+    }
+
+    public static void save(Graph graph, OutputStream outputStream) throws IOException {
+        // Choose the vertices and edges that can be stored in columns. Like Graph.save(), only vertices with edges
+        // are saved.
+        Map<Vertex, Integer> vertexIndex = new IdentityHashMap<Vertex, Integer>();
+        List<IntersectionVertex> vertices = new ArrayList<IntersectionVertex>();
+        for (Vertex v : graph.getVertices()) {
+            if ((v.getClass() == IntersectionVertex.class || v.getClass() == OsmVertex.class)
+                    && v.getDegreeOut() + v.getDegreeIn() > 0) {
+                vertexIndex.put(v, vertices.size());
+                vertices.add((IntersectionVertex) v);
+            }
+        }
+        Map<Edge, Integer> edgeIndex = new IdentityHashMap<Edge, Integer>();
+        List<StreetEdge> edges = new ArrayList<StreetEdge>();
+        List<StreetWithElevationEdge> elevationEdges = new ArrayList<StreetWithElevationEdge>();
+        int elevationBytes = 0;
+        List<Edge> otherEdges = new ArrayList<Edge>();
+        for (Vertex v : graph.getVertices()) {
+            for (Edge e : v.getOutgoing()) {
+                if ((e.getClass() == StreetEdge.class || e.getClass() == StreetWithElevationEdge.class)
+                        && vertexIndex.containsKey(e.getFromVertex())
+                        && vertexIndex.containsKey(e.getToVertex())
+                        && e.getQuality() == null && e.getQuantity() == null) {
+                    edgeIndex.put(e, edges.size());
+                    edges.add((StreetEdge) e);
+                    if (e instanceof StreetWithElevationEdge) {
+                        StreetWithElevationEdge elevationEdge = (StreetWithElevationEdge) e;
+                        elevationEdges.add(elevationEdge);
+                        byte[] profile = elevationEdge.getPackedElevationProfile();
+                        elevationBytes += profile == null ? 0 : profile.length;
+                    }
+                } else {
+                    otherEdges.add(e);
+                }
+            }
+        }
+        LOG.info("Writing {} vertices and {} edges ({} with elevation data) in columns, serializing {} other edges.",
+                vertices.size(), edges.size(), elevationEdges.size(), otherEdges.size());
+
+        // Distinct names and geometries. Identity is enough: names and geometries of edges created from the same
+        // OSM way, and geometries of back edges, are shared.
+        Map<I18NString, Integer> nameIndex = new IdentityHashMap<I18NString, Integer>();
+        List<I18NString> names = new ArrayList<I18NString>();
+        Map<int[], Integer> geometryIndex = new IdentityHashMap<int[], Integer>();
+        List<int[]> geometries = new ArrayList<int[]>();
+        int geometryValues = 0;
+        for (Vertex v : vertices) indexOf(v.getRawName(), nameIndex, names);
+        for (StreetEdge e : edges) {
+            indexOf(e.getRawName(), nameIndex, names);
+            int[] geometry = e.getCompactGeometry();
+            if (geometry != null && !geometryIndex.containsKey(geometry)) {
+                geometryIndex.put(geometry, geometries.size());
+                geometries.add(geometry);
+                geometryValues += geometry.length;
+            }
+        }
+        ByteArrayOutputStream namesBytes = new ByteArrayOutputStream();
+        ObjectOutputStream namesOut = new ObjectOutputStream(namesBytes);
+        namesOut.writeObject(names);
+        namesOut.close();
+        byte[][] labels = new byte[vertices.size()][];
+        int labelBytes = 0;
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = vertices.get(i).getLabel().getBytes(StandardCharsets.UTF_8);
+            labelBytes += labels[i].length;
+        }
+
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.write(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(vertices.size());
+        out.writeInt(edges.size());
+        out.writeInt(geometries.size());
+        out.writeInt(geometryValues);
+        out.writeInt(labelBytes);
+        out.writeInt(namesBytes.size());
+        out.writeInt(elevationEdges.size());
+        out.writeInt(elevationBytes);
+        namesBytes.writeTo(out);
+
+        LOG.debug("Writing vertex columns...");
+        for (IntersectionVertex v : vertices) out.writeByte(v.getClass() == OsmVertex.class ? OSM_VERTEX : INTERSECTION_VERTEX);
+        for (IntersectionVertex v : vertices) out.writeByte((v.trafficLight ? TRAFFIC_LIGHT : 0) | (v.freeFlowing ? FREE_FLOWING : 0));
+        for (IntersectionVertex v : vertices) out.writeDouble(v.getX());
+        for (IntersectionVertex v : vertices) out.writeDouble(v.getY());
+        for (Vertex v : vertices) out.writeInt(indexOf(v.getRawName(), nameIndex, names));
+        int labelOffset = 0;
+        out.writeInt(labelOffset);
+        for (byte[] label : labels) out.writeInt(labelOffset += label.length);
+        for (byte[] label : labels) out.write(label);
+
+        LOG.debug("Writing geometry columns...");
+        int geometryOffset = 0;
+        out.writeInt(geometryOffset);
+        for (int[] geometry : geometries) out.writeInt(geometryOffset += geometry.length);
+        for (int[] geometry : geometries) {
+            for (int value : geometry) out.writeInt(value);
+        }
+
+        LOG.debug("Writing edge columns...");
+        for (StreetEdge e : edges) out.writeInt(vertexIndex.get(e.getFromVertex()));
+        for (StreetEdge e : edges) out.writeInt(vertexIndex.get(e.getToVertex()));
+        for (StreetEdge e : edges) out.writeInt(e.getId());
+        for (StreetEdge e : edges) {
+            int[] geometry = e.getCompactGeometry();
+            out.writeInt(geometry == null ? -1 : geometryIndex.get(geometry));
+        }
+        for (StreetEdge e : edges) out.writeInt(indexOf(e.getRawName(), nameIndex, names));
+        for (StreetEdge e : edges) out.writeInt(e.getLengthMm());
+        for (StreetEdge e : edges) out.writeByte(e.getPermission().ordinal());
+        for (StreetEdge e : edges) out.writeInt(e.getStreetClass());
+        for (StreetEdge e : edges) out.writeFloat(e.getCarSpeed());
+        for (StreetEdge e : edges) out.writeFloat(e.getBicycleSafetyFactor());
+        for (StreetEdge e : edges) out.writeByte(e.getFlags());
+        for (StreetEdge e : edges) out.writeByte(e.getRawInAngle());
+        for (StreetEdge e : edges) out.writeByte(e.getRawOutAngle());
+        for (StreetEdge e : edges) out.writeBoolean(e instanceof StreetWithElevationEdge);
+
+        LOG.debug("Writing elevation columns...");
+        int profileOffset = 0;
+        out.writeInt(profileOffset);
+        for (StreetWithElevationEdge e : elevationEdges) {
+            byte[] profile = e.getPackedElevationProfile();
+            out.writeInt(profileOffset += profile == null ? 0 : profile.length);
+        }
+        for (StreetWithElevationEdge e : elevationEdges) {
+            byte[] profile = e.getPackedElevationProfile();
+            if (profile != null) out.write(profile);
+        }
+        for (StreetWithElevationEdge e : elevationEdges) out.writeFloat(e.getSlopeSpeedFactor());
+        for (StreetWithElevationEdge e : elevationEdges) out.writeFloat(e.getSlopeWorkFactor());
+        for (StreetWithElevationEdge e : elevationEdges) out.writeFloat(e.getMaxSlope());
+        for (StreetWithElevationEdge e : elevationEdges) {
+            out.writeByte((e.isElevationFlattened() ? FLATTENED : 0)
+                    | (e.getPackedElevationProfile() == null ? NO_PROFILE : 0));
+        }
+        out.flush();
+
+        LOG.debug("Serializing the rest of the graph...");
+        ObjectOutputStream objectOut = new ColumnReferenceOutputStream(outputStream, vertexIndex, edgeIndex);
+        objectOut.writeObject(graph);
+        objectOut.writeObject(otherEdges);
+        if (graph.debugData) {
+            objectOut.writeObject(graph.getBuilderAnnotations());
+        }
+        objectOut.flush();
+    }
+
+    /** @return the index of the given name in the names list, adding it if needed, or -1 for a null name. */
+    private static int indexOf(I18NString name, Map<I18NString, Integer> nameIndex, List<I18NString> names) {
+        if (name == null) return -1;
+        Integer index = nameIndex.get(name);
+        if (index == null) {
+            index = names.size();
+            nameIndex.put(name, index);
+            names.add(name);
+        }
+        return index;
+    }
+
+    /* Loading */
+
+    /**
+     * Load a graph saved in this format. The columns are memory-mapped rather than read through a stream. Graphs
+     * loaded at LoadLevel.BASIC have no vertices or edges, as with Graph.load().
+     */
+    @SuppressWarnings("unchecked")
+    public static Graph load(File file, LoadLevel level, StreetVertexIndexFactory indexFactory)
+            throws IOException, ClassNotFoundException {
+        LOG.info("Reading compact graph " + file.getAbsolutePath() + " ...");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            Sections sections = new Sections(channel);
+            ByteBuffer header = sections.next(HEADER_SIZE);
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a compact graph file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                LOG.error("Stored graph is incompatible with this version of OTP, please rebuild it.");
+                throw new IllegalStateException("Compact graph format version " + version + " is not supported.");
+            }
+            int nVertices = header.getInt();
+            int nEdges = header.getInt();
+            int nGeometries = header.getInt();
+            int nGeometryValues = header.getInt();
+            int nLabelBytes = header.getInt();
+            int nNameBytes = header.getInt();
+            int nElevationEdges = header.getInt();
+            int nElevationBytes = header.getInt();
+
+            byte[] nameBytes = new byte[nNameBytes];
+            sections.next(nNameBytes).get(nameBytes);
+            List<I18NString> names;
+            try (ObjectInputStream namesIn = new ObjectInputStream(new ByteArrayInputStream(nameBytes))) {
+                names = (List<I18NString>) namesIn.readObject();
+            }
+
+            LOG.debug("Creating {} vertices...", nVertices);
+            ByteBuffer kinds = sections.next(nVertices);
+            ByteBuffer vertexFlags = sections.next(nVertices);
+            DoubleBuffer xs = sections.next(nVertices * 8L).asDoubleBuffer();
+            DoubleBuffer ys = sections.next(nVertices * 8L).asDoubleBuffer();
+            IntBuffer vertexNames = sections.next(nVertices * 4L).asIntBuffer();
+            IntBuffer labelOffsets = sections.next((nVertices + 1) * 4L).asIntBuffer();
+            byte[] labels = new byte[nLabelBytes];
+            sections.next(nLabelBytes).get(labels);
+            StreetVertex[] vertices = new StreetVertex[nVertices];
+            for (int i = 0; i < nVertices; i++) {
+                int labelStart = labelOffsets.get(i);
+                String label = new String(labels, labelStart, labelOffsets.get(i + 1) - labelStart,
+                        StandardCharsets.UTF_8);
+                I18NString name = name(names, vertexNames.get(i));
+                // Vertices are added to the graph once it has been deserialized.
+                IntersectionVertex v = kinds.get(i) == OSM_VERTEX
+                        ? new OsmVertex(null, label, xs.get(i), ys.get(i), name)
+                        : new IntersectionVertex(null, label, xs.get(i), ys.get(i), name);
+                byte flags = vertexFlags.get(i);
+                v.trafficLight = (flags & TRAFFIC_LIGHT) != 0;
+                v.freeFlowing = (flags & FREE_FLOWING) != 0;
+                vertices[i] = v;
+            }
+            labels = null;
+
+            IntBuffer geometryOffsets = sections.next((nGeometries + 1) * 4L).asIntBuffer();
+            IntBuffer geometryValues = sections.next(nGeometryValues * 4L).asIntBuffer();
+            int[][] geometries = new int[nGeometries][];
+            for (int i = 0; i < nGeometries; i++) {
+                int start = geometryOffsets.get(i);
+                geometries[i] = new int[geometryOffsets.get(i + 1) - start];
+                geometryValues.position(start);
+                geometryValues.get(geometries[i]);
+            }
+
+            LOG.debug("Creating {} street edges...", nEdges);
+            IntBuffer fromVertices = sections.next(nEdges * 4L).asIntBuffer();
+            IntBuffer toVertices = sections.next(nEdges * 4L).asIntBuffer();
+            IntBuffer ids = sections.next(nEdges * 4L).asIntBuffer();
+            IntBuffer edgeGeometries = sections.next(nEdges * 4L).asIntBuffer();
+            IntBuffer edgeNames = sections.next(nEdges * 4L).asIntBuffer();
+            IntBuffer lengths = sections.next(nEdges * 4L).asIntBuffer();
+            ByteBuffer permissions = sections.next(nEdges);
+            IntBuffer streetClasses = sections.next(nEdges * 4L).asIntBuffer();
+            FloatBuffer carSpeeds = sections.next(nEdges * 4L).asFloatBuffer();
+            FloatBuffer safetyFactors = sections.next(nEdges * 4L).asFloatBuffer();
+            ByteBuffer edgeFlags = sections.next(nEdges);
+            ByteBuffer inAngles = sections.next(nEdges);
+            ByteBuffer outAngles = sections.next(nEdges);
+            ByteBuffer hasElevation = sections.next(nEdges);
+            IntBuffer profileOffsets = sections.next((nElevationEdges + 1) * 4L).asIntBuffer();
+            ByteBuffer profiles = sections.next(nElevationBytes);
+            FloatBuffer slopeSpeedFactors = sections.next(nElevationEdges * 4L).asFloatBuffer();
+            FloatBuffer slopeWorkFactors = sections.next(nElevationEdges * 4L).asFloatBuffer();
+            FloatBuffer maxSlopes = sections.next(nElevationEdges * 4L).asFloatBuffer();
+            ByteBuffer elevationFlags = sections.next(nElevationEdges);
+            StreetEdge[] edges = new StreetEdge[nEdges];
+            int elevationEdge = 0;
+            for (int i = 0; i < nEdges; i++) {
+                int geometry = edgeGeometries.get(i);
+                StreetVertex from = vertices[fromVertices.get(i)];
+                StreetVertex to = vertices[toVertices.get(i)];
+                int[] compactGeometry = geometry < 0 ? null : geometries[geometry];
+                I18NString name = name(names, edgeNames.get(i));
+                StreetEdge e;
+                if (hasElevation.get(i) != 0) {
+                    int j = elevationEdge++;
+                    byte flags = elevationFlags.get(j);
+                    byte[] profile = null;
+                    if ((flags & NO_PROFILE) == 0) {
+                        int start = profileOffsets.get(j);
+                        profile = new byte[profileOffsets.get(j + 1) - start];
+                        profiles.position(start);
+                        profiles.get(profile);
+                    }
+                    e = new StreetWithElevationEdge(from, to, compactGeometry, name, lengths.get(i),
+                            PERMISSIONS[permissions.get(i)], streetClasses.get(i), carSpeeds.get(i),
+                            safetyFactors.get(i), edgeFlags.get(i), inAngles.get(i), outAngles.get(i), profile,
+                            slopeSpeedFactors.get(j), slopeWorkFactors.get(j), maxSlopes.get(j),
+                            (flags & FLATTENED) != 0);
+                } else {
+                    e = new StreetEdge(from, to, compactGeometry, name, lengths.get(i),
+                            PERMISSIONS[permissions.get(i)], streetClasses.get(i), carSpeeds.get(i),
+                            safetyFactors.get(i), edgeFlags.get(i), inAngles.get(i), outAngles.get(i));
+                }
+                ((Edge) e).setId(ids.get(i));
+                edges[i] = e;
+            }
+
+            LOG.debug("Deserializing the rest of the graph...");
+            channel.position(sections.position);
+            ObjectInputStream in = new ColumnReferenceInputStream(new BufferedInputStream(
+                    new FileInputStream(raf.getFD())), vertices, edges);
+            Graph graph = (Graph) in.readObject();
+            LOG.debug("Basic graph info read.");
+            if (graph.graphVersionMismatch())
+                throw new RuntimeException("Graph version mismatch detected.");
+            if (level == LoadLevel.BASIC)
+                return graph;
+            List<Edge> otherEdges = (List<Edge>) in.readObject();
+            graph.restoreVertices(Iterables.concat(Arrays.asList(edges), otherEdges));
+            graph.finishLoading(in, level, indexFactory);
+            return graph;
+        } catch (InvalidClassException ex) {
+            LOG.error("Stored graph is incompatible with this version of OTP, please rebuild it.");
+            throw new IllegalStateException("Stored Graph version error", ex);
+        }
+    }
+
+    private static I18NString name(List<I18NString> names, int index) {
+        return index < 0 ? null : names.get(index);
+    }
+
+    /**
+     * Maps the consecutive sections of a file one after the other. Each column is mapped separately so that the
+     * 2GB limit of a single mapping only applies to individual columns rather than to the whole file.
+     */
+    private static class Sections {
+
+        private final FileChannel channel;
+
+        private long position = 0;
+
+        private Sections(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private ByteBuffer next(long size) throws IOException {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            position += size;
+            return buffer;
+        }
+    }
+
+    /** Stands in for a vertex or an edge stored in the columns, in the serialized part of the file. */
+    private static class ColumnReference implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean edge;
+
+        private final int index;
+
+        private ColumnReference(boolean edge, int index) {
+            this.edge = edge;
+            this.index = index;
+        }
+    }
+
+    private static class ColumnReferenceOutputStream extends ObjectOutputStream {
+
+        private final Map<Vertex, Integer> vertexIndex;
+
+        private final Map<Edge, Integer> edgeIndex;
+
+        private ColumnReferenceOutputStream(OutputStream out, Map<Vertex, Integer> vertexIndex,
+                Map<Edge, Integer> edgeIndex) throws IOException {
+            super(out);
+            this.vertexIndex = vertexIndex;
+            this.edgeIndex = edgeIndex;
+            enableReplaceObject(true);
+        }
+
+        /* Called once per object: further references to the same object are written as back-references. */
+        @Override
+        protected Object replaceObject(Object obj) {
+            if (obj instanceof Vertex) {
+                Integer index = vertexIndex.get(obj);
+                if (index != null) return new ColumnReference(false, index);
+            } else if (obj instanceof Edge) {
+                Integer index = edgeIndex.get(obj);
+                if (index != null) return new ColumnReference(true, index);
+            }
+            return obj;
+        }
+    }
+
+    private static class ColumnReferenceInputStream extends ObjectInputStream {
+
+        private final Vertex[] vertices;
+
+        private final Edge[] edges;
+
+        private ColumnReferenceInputStream(InputStream in, Vertex[] vertices, Edge[] edges) throws IOException {
+            super(in);
+            this.vertices = vertices;
+            this.edges = edges;
+            enableResolveObject(true);
+        }
+
+        @Override
+        protected Object resolveObject(Object obj) {
+            if (obj instanceof ColumnReference) {
+                ColumnReference reference = (ColumnReference) obj;
+                return reference.edge ? edges[reference.index] : vertices[reference.index];
+            }
+            return obj;
+        }
+    }
+
+}
@@ -281,6 +281,11 @@ public abstract class Edge implements Serializable {
     public int getId(){
     	return this.id;
     }
+
+    /** Restore the ID of an edge that was not deserialized but recreated by CompactGraphFormat. */
+    void setId(int id) {
+        this.id = id;
+    }
     public int[] getQuantity(){
     	return this.quantity;
     }
@@ -72,6 +72,7 @@ import org.opentripplanner.routing.services.StreetVertexIndexService;
 import org.opentripplanner.routing.services.notes.StreetNotesService;
 import org.opentripplanner.routing.trippattern.Deduplicator;
 import org.opentripplanner.routing.vertextype.PatternArriveVertex;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
 import org.opentripplanner.routing.vertextype.TransitStop;
 import org.opentripplanner.updater.GraphUpdaterConfigurator;
 import org.opentripplanner.updater.GraphUpdaterManager;
@@ -127,12 +128,15 @@ public class Graph implements Serializable {
 
     private transient CalendarService calendarService;
 
-    private boolean debugData = true;
+    boolean debugData = true;
 
     // TODO this would be more efficient if it was just an array.
-    private transient Map<Integer, Vertex> vertexById;
+    private transient volatile Map<Integer, Vertex> vertexById;
 
-    private transient Map<Integer, Edge> edgeById;
+    private transient volatile Map<Integer, Edge> edgeById;
+
+    /** One more than the highest index of the permanent vertices, or zero when it must be computed again. */
+    private transient volatile int vertexIndexLimit;
 
     public transient StreetVertexIndexService streetIndex;
 
@@ -226,6 +230,9 @@ public class Graph implements Serializable {
      * Add the given vertex to the graph. Ideally, only vertices should add themselves to the graph, when they are constructed or deserialized.
      */
     public void addVertex(Vertex v) {
+        if (!(v instanceof TemporaryVertex)) {
+            vertexIndexLimit = 0;
+        }
         Vertex old = vertices.put(v.getLabel(), v);
         if (old != null) {
             if (old == v)
@@ -262,7 +269,8 @@ public class Graph implements Serializable {
 
             turnRestrictions.remove(e);
             streetNotesService.removeStaticNotes(e);
-            edgeById.remove(e.getId());
+            Map<Integer, Edge> edgeById = this.edgeById;
+            if (edgeById != null) edgeById.remove(e.getId());
 
             if (e instanceof EdgeWithCleanup) ((EdgeWithCleanup) e).detach();
 
@@ -297,12 +305,13 @@ public class Graph implements Serializable {
      * Returns the vertex with the given ID or null if none is present.
      *
      * NOTE: you may need to run rebuildVertexAndEdgeIndices() for the indices
-     * to be accurate.
+     * to be accurate. After loading a graph the indices are built on the first call.
      *
      * @param id
      * @return
      */
     public Vertex getVertexById(int id) {
+        if (this.vertexById == null) indexVerticesAndEdgesIfNeeded();
         return this.vertexById.get(id);
     }
 
@@ -318,12 +327,13 @@ public class Graph implements Serializable {
      * Returns the edge with the given ID or null if none is present.
      *
      * NOTE: you may need to run rebuildVertexAndEdgeIndices() for the indices
-     * to be accurate.
+     * to be accurate. After loading a graph the indices are built on the first call.
      *
      * @param id
      * @return
      */
     public Edge getEdgeById(int id) {
+        if (this.edgeById == null) indexVerticesAndEdgesIfNeeded();
         return edgeById.get(id);
     }
 
@@ -588,12 +598,12 @@ public class Graph implements Serializable {
     }
 
     /**
-     * Add a collection of edges from the edgesById index.
+     * Add a collection of edges to the given edgesById index.
      * @param es
      */
-    private void addEdgesToIndex(Collection<Edge> es) {
+    private static void addEdgesToIndex(Map<Integer, Edge> edgeById, Collection<Edge> es) {
         for (Edge e : es) {
-            this.edgeById.put(e.getId(), e);
+            edgeById.put(e.getId(), e);
         }
     }
     
@@ -608,14 +618,15 @@ public class Graph implements Serializable {
      * before the Vertex has any edges, so updating indices on addVertex is insufficient.
      */
     public void rebuildVertexAndEdgeIndices() {
-        this.vertexById = new HashMap<Integer, Vertex>(Vertex.getMaxIndex());
+        // The maps are filled before being published, as they can be built lazily while requests are being handled.
+        Map<Integer, Vertex> vertexById = new HashMap<Integer, Vertex>(Vertex.getMaxIndex());
         Collection<Vertex> vertices = getVertices();
         for (Vertex v : vertices) {
             vertexById.put(v.getIndex(), v);
         }
 
         // Create map from edge ids to edges.
-        this.edgeById = new HashMap<Integer, Edge>();
+        Map<Integer, Edge> edgeById = new HashMap<Integer, Edge>();
         for (Vertex v : vertices) {
             // TODO(flamholz): this check seems superfluous.
             if (v == null) {
@@ -623,10 +634,53 @@ public class Graph implements Serializable {
             }
 
             // Assumes that all the edges appear in at least one outgoing edge list.
-            addEdgesToIndex(v.getOutgoing());
+            addEdgesToIndex(edgeById, v.getOutgoing());
+        }
+        this.vertexById = vertexById;
+        this.edgeById = edgeById;
+    }
+
+    /** Build the vertex and edge ID indices on first use after they were dropped in index(). */
+    private synchronized void indexVerticesAndEdgesIfNeeded() {
+        if (this.vertexById == null || this.edgeById == null) {
+            LOG.debug("Rebuilding edge and vertex indices.");
+            rebuildVertexAndEdgeIndices();
         }
     }
 
+    /**
+     * Rebuild the transient vertex map from the endpoints of the given deserialized edges. Vertices that are not
+     * attached to any edge do not survive serialization.
+     */
+    void restoreVertices(Iterable<? extends Edge> edges) {
+        if (this.vertices == null) {
+            this.vertices = new HashMap<String, Vertex>();
+        }
+        for (Edge e : edges) {
+            this.vertices.put(e.getFromVertex().getLabel(), e.getFromVertex());
+            this.vertices.put(e.getToVertex().getLabel(), e.getToVertex());
+        }
+        vertexIndexLimit = 0;
+    }
+
+    /**
+     * @return one more than the highest index of the permanent vertices of this graph, so that arrays of this size can
+     * be indexed by vertex. The temporary vertices of requests are left out: their indexes keep growing over the life
+     * of the server, so data about them must be kept on the side.
+     */
+    public int getVertexIndexLimit() {
+        int limit = vertexIndexLimit;
+        if (limit == 0) {
+            for (Vertex v : getVertices()) {
+                if (!(v instanceof TemporaryVertex)) {
+                    limit = Math.max(limit, v.getIndex() + 1);
+                }
+            }
+            vertexIndexLimit = limit;
+        }
+        return limit;
+    }
+
     private void readObject(ObjectInputStream inputStream) throws ClassNotFoundException,
             IOException {
         inputStream.defaultReadObject();
@@ -712,8 +766,9 @@ public class Graph implements Serializable {
     public void index(StreetVertexIndexFactory indexFactory) {
         streetIndex = indexFactory.newIndex(this);
         LOG.debug("street index built.");
-        LOG.debug("Rebuilding edge and vertex indices.");
-        rebuildVertexAndEdgeIndices();
+        // The edge and vertex ID indices are only used by a few lookups, build them on first use.
+        this.vertexById = null;
+        this.edgeById = null;
         Set<TripPattern> tableTripPatterns = Sets.newHashSet();
         for (PatternArriveVertex pav : Iterables.filter(this.getVertices(), PatternArriveVertex.class)) {
             tableTripPatterns.add(pav.getTripPattern());
@@ -748,26 +803,8 @@ public class Graph implements Serializable {
             // vertex list is transient because it can be reconstructed from edges
             LOG.debug("Loading edges...");
             List<Edge> edges = (ArrayList<Edge>) in.readObject();
-            graph.vertices = new HashMap<String, Vertex>();
-            
-            for (Edge e : edges) {
-                graph.vertices.put(e.getFromVertex().getLabel(), e.getFromVertex());
-                graph.vertices.put(e.getToVertex().getLabel(), e.getToVertex());
-            }
-
-            LOG.info("Main graph read. |V|={} |E|={}", graph.countVertices(), graph.countEdges());
-            graph.index(indexFactory);
-
-            if (level == LoadLevel.FULL) {
-                return graph;
-            }
-            
-            if (graph.debugData) {
-                graph.graphBuilderAnnotations = (List<GraphBuilderAnnotation>) in.readObject();
-                LOG.debug("Debug info read.");
-            } else {
-                LOG.warn("Graph file does not contain debug data.");
-            }
+            graph.restoreVertices(edges);
+            graph.finishLoading(in, level, indexFactory);
             return graph;
         } catch (InvalidClassException ex) {
             LOG.error("Stored graph is incompatible with this version of OTP, please rebuild it.");
@@ -775,6 +812,28 @@ public class Graph implements Serializable {
         }
     }
 
+    /**
+     * Common end of loading for all graph file formats, once all edges have been read and the vertex map restored:
+     * index the graph and read the debug data that follows the edges in the stream if requested.
+     */
+    @SuppressWarnings("unchecked")
+    void finishLoading(ObjectInputStream in, LoadLevel level, StreetVertexIndexFactory indexFactory)
+            throws IOException, ClassNotFoundException {
+        LOG.info("Main graph read. |V|={} |E|={}", countVertices(), countEdges());
+        index(indexFactory);
+
+        if (level == LoadLevel.FULL) {
+            return;
+        }
+
+        if (debugData) {
+            graphBuilderAnnotations = (List<GraphBuilderAnnotation>) in.readObject();
+            LOG.debug("Debug info read.");
+        } else {
+            LOG.warn("Graph file does not contain debug data.");
+        }
+    }
+
     /**
      * Compares the OTP version number stored in the graph with that of the currently running instance. Logs warnings explaining that mismatched
      * versions can cause problems.
@@ -782,7 +841,7 @@ public class Graph implements Serializable {
      * @return false if Maven versions match (even if commit ids do not match), true if Maven version of graph does not match this version of OTP or
      *         graphs are otherwise obviously incompatible.
      */
-    private boolean graphVersionMismatch() {
+    boolean graphVersionMismatch() {
         MavenVersion v = MavenVersion.VERSION;
         MavenVersion gv = this.mavenVersion;
         LOG.info("Graph version: {}", gv);
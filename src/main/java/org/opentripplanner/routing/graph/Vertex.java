@@ -232,6 +232,11 @@ public abstract class Vertex implements Serializable, Cloneable {
         return this.name.toString(locale);
     }
 
+    /** The name of this vertex before localization, used when storing the vertex in CompactGraphFormat. */
+    I18NString getRawName() {
+        return this.name;
+    }
+
     /* FIELD ACCESSOR METHODS : READ ONLY */
 
     /** Every vertex has a label which is globally unique. */
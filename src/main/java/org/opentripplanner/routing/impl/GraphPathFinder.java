@@ -15,6 +15,7 @@ package org.opentripplanner.routing.impl;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.onebusaway.gtfs.model.AgencyAndId;
 import static org.opentripplanner.routing.automata.Nonterminal.choice;
 import static org.opentripplanner.routing.automata.Nonterminal.optional;
@@ -22,14 +23,18 @@ import static org.opentripplanner.routing.automata.Nonterminal.plus;
 import static org.opentripplanner.routing.automata.Nonterminal.seq;
 import static org.opentripplanner.routing.automata.Nonterminal.star;
 
+import org.opentripplanner.api.resource.DebugOutput;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.algorithm.SearchContext;
 import org.opentripplanner.routing.algorithm.strategies.EuclideanRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.InterleavedBidirectionalHeuristic;
+import org.opentripplanner.routing.algorithm.strategies.LandmarkRemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.RemainingWeightHeuristic;
 import org.opentripplanner.routing.algorithm.strategies.TrivialRemainingWeightHeuristic;
 import org.opentripplanner.routing.automata.DFA;
 import org.opentripplanner.routing.automata.Nonterminal;
+import org.opentripplanner.routing.contraction.ContractionHierarchyRouter;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.edgetype.*;
@@ -39,6 +44,7 @@ import org.opentripplanner.routing.graph.Edge;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.pathparser.PathParser;
+import org.opentripplanner.routing.request.BannedStopSet;
 import org.opentripplanner.routing.spt.DominanceFunction;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.ShortestPathTree;
@@ -48,6 +54,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class contains the logic for repeatedly building shortest path trees and accumulating paths through
@@ -69,6 +84,13 @@ import java.util.*;
  *
  * It is very close to being an abstract library class with only static functions. However it turns out to be convenient
  * and harmless to have the OTPServer object etc. in fields, to avoid passing context around in function parameters.
+ *
+ * When the router is configured with concurrentItineraries, the alternatives are searched for in rounds rather than one
+ * at a time. Each round makes the search the sequential mode would make next, banning the trips of all the paths found
+ * so far, and at the same time, on other threads, searches which only ban one of the trips of the paths found in the
+ * previous round. These deviate from the previous paths at a single ride, and often give reasonable alternatives too.
+ * All the searches of a round start from a copy of the goal direction heuristic as it was at the end of the previous
+ * round, and the round takes about as long as a single search, so a few itineraries take about two searches.
  */
 public class GraphPathFinder {
 
@@ -76,6 +98,9 @@ public class GraphPathFinder {
     private static final double DEFAULT_MAX_WALK = 2000;
     private static final double CLAMP_MAX_WALK = 15000;
 
+    /** The maximum number of searches deviating from the previous paths in each round of a concurrent search. */
+    private static final int MAX_DEVIATION_SEARCHES = 4;
+
     Router router;
 
     public GraphPathFinder(Router router) {
@@ -99,11 +124,7 @@ public class GraphPathFinder {
 
         // Reuse one instance of AStar for all N requests, which are carried out sequentially
         AStar aStar = new AStar();
-        if (options.rctx == null) {
-            options.setRoutingContext(router.graph);
-            /* Use a pathparser that constrains the search to use SimpleTransfers. */
-            options.rctx.pathParsers = new PathParser[] { new Parser() };
-        }
+        setRoutingContext(options);
         // If this Router has a GraphVisualizer attached to it, set it as a callback for the AStar search
         if (router.graphVisualizer != null) {
             aStar.setTraverseVisitor(router.graphVisualizer.traverseVisitor);
@@ -122,7 +143,10 @@ public class GraphPathFinder {
             heuristic = new TrivialRemainingWeightHeuristic();
         } else if (options.modes.isTransit()) {
            // Only use the BiDi heuristic for transit.
-            heuristic = new InterleavedBidirectionalHeuristic(options.rctx.graph);
+            heuristic = new InterleavedBidirectionalHeuristic(options.rctx.graph, router.heuristicCache,
+                    router.getTargetSearchExecutor());
+        } else if (options.landmarkHeuristic) {
+            heuristic = new LandmarkRemainingWeightHeuristic();
         } else {
             heuristic = new EuclideanRemainingWeightHeuristic();
         }
@@ -143,19 +167,69 @@ public class GraphPathFinder {
          * the whole graph walkable. */
         if (options.maxWalkDistance == Double.MAX_VALUE) options.maxWalkDistance = DEFAULT_MAX_WALK;
         if (options.maxWalkDistance > CLAMP_MAX_WALK) options.maxWalkDistance = CLAMP_MAX_WALK;
+
+        /* Street-only requests can be answered with the contraction hierarchy of the graph if it has one, unless the
+         * search is being visualized. Whenever that does not give a path, fall back on the A* search below. */
+        if (!options.modes.isTransit() && router.graphVisualizer == null) {
+            GraphPath path = new ContractionHierarchyRouter(options).getPath();
+            if (path != null) {
+                return Lists.newArrayList(path);
+            }
+        }
+
         long searchBeginTime = System.currentTimeMillis();
         LOG.debug("BEGIN SEARCH");
         List<GraphPath> paths = Lists.newArrayList();
         Set<AgencyAndId> bannedTrips = Sets.newHashSet();
-        while (paths.size() < options.numItineraries) {
-            // TODO pull all this timeout logic into a function near org.opentripplanner.util.DateUtils.absoluteTimeout()
-            int timeoutIndex = paths.size();
-            if (timeoutIndex >= router.timeouts.length) {
-                timeoutIndex = router.timeouts.length - 1;
+        // Borrow the priority queue and SPT storage from a previous request rather than allocating them again.
+        // Paths are extracted from each SPT before the next search, so reusing them between our N searches is safe.
+        SearchContext searchContext = router.searchContextPool.borrow();
+        aStar.setSearchContext(searchContext);
+        if (heuristic instanceof InterleavedBidirectionalHeuristic) {
+            ((InterleavedBidirectionalHeuristic) heuristic).setSearchContext(searchContext);
+        }
+        // The other searches of a concurrent search each need a copy of the heuristic, and must not be visualized.
+        boolean concurrent = router.concurrentItineraries && router.graphVisualizer == null
+                && options.numItineraries > 1 && (heuristic instanceof InterleavedBidirectionalHeuristic
+                || heuristic instanceof TrivialRemainingWeightHeuristic);
+        try {
+            if (concurrent) {
+                if ( ! searchForPathsConcurrently(options, aStar, paths, searchBeginTime)) {
+                    return null;
+                }
+            } else if ( ! searchForPaths(options, aStar, paths, searchBeginTime, options.numItineraries)) {
+                return null;
             }
-            double timeout = searchBeginTime + (router.timeouts[timeoutIndex] * 1000);
-            timeout -= System.currentTimeMillis(); // absolute to relative
-            timeout /= 1000; // msec to seconds
+        } finally {
+            aStar.setSearchContext(null);
+            router.searchContextPool.release(searchContext);
+        }
+        LOG.debug("END SEARCH ({} msec)", System.currentTimeMillis() - searchBeginTime);
+        Collections.sort(paths, new PathWeightComparator());
+        return paths;
+    }
+
+    /**
+     * Give the request the routing context its searches need, linking its endpoints to the graph, unless it already
+     * has one. This is done by the searches themselves, but can be done beforehand to find the endpoint vertices.
+     */
+    public void setRoutingContext(RoutingRequest options) {
+        if (options.rctx == null) {
+            options.setRoutingContext(router.graph);
+            /* Use a pathparser that constrains the search to use SimpleTransfers. */
+            options.rctx.pathParsers = new PathParser[] { new Parser() };
+        }
+    }
+
+    /**
+     * Perform the successive searches, banning the trips used in each result from the following ones, and
+     * accumulate the resulting paths.
+     * @return false if a search failed for an unknown reason, true otherwise (even if no paths were found).
+     */
+    private boolean searchForPaths(RoutingRequest options, AStar aStar, List<GraphPath> paths, long searchBeginTime,
+            int numItineraries) {
+        while (paths.size() < numItineraries) {
+            double timeout = relativeTimeout(searchBeginTime, paths.size());
             if (timeout <= 0) {
                 // must catch this case where advancing to the next (lower) timeout value means the search is timed out
                 // before it even begins, because a negative relative timeout will mean "no timeout" in the SPT call.
@@ -165,7 +239,7 @@ public class GraphPathFinder {
             ShortestPathTree spt = aStar.getShortestPathTree(options, timeout);
             if (spt == null) {
                 LOG.warn("SPT was null."); // unknown failure
-                return null;
+                return false;
             }
             if (options.rctx.aborted) {
                 break; // search timed out or was gracefully aborted for some other reason.
@@ -184,9 +258,249 @@ public class GraphPathFinder {
             paths.addAll(newPaths);
             LOG.debug("we have {} paths", paths.size());
         }
-        LOG.debug("END SEARCH ({} msec)", System.currentTimeMillis() - searchBeginTime);
-        Collections.sort(paths, new PathWeightComparator());
-        return paths;
+        return true;
+    }
+
+    /**
+     * @return the time left in seconds for the search for the path with the given index, which is negative or zero
+     *         if there is no time left.
+     */
+    private double relativeTimeout(long searchBeginTime, int pathIndex) {
+        // TODO pull all this timeout logic into a function near org.opentripplanner.util.DateUtils.absoluteTimeout()
+        int timeoutIndex = pathIndex;
+        if (timeoutIndex >= router.timeouts.length) {
+            timeoutIndex = router.timeouts.length - 1;
+        }
+        double timeout = searchBeginTime + (router.timeouts[timeoutIndex] * 1000);
+        timeout -= System.currentTimeMillis(); // absolute to relative
+        timeout /= 1000; // msec to seconds
+        return timeout;
+    }
+
+    /**
+     * Perform the searches in rounds, as described in the class comment, and accumulate the resulting paths. The
+     * first path, and the first new path of each round, are those the sequential searches would find.
+     * @return false if a search failed for an unknown reason, true otherwise (even if no paths were found).
+     */
+    private boolean searchForPathsConcurrently(RoutingRequest options, AStar aStar, List<GraphPath> paths,
+            long searchBeginTime) {
+        // The trips banned before the paths of the last round were found, by the request or by earlier rounds.
+        Map<AgencyAndId, BannedStopSet> previousBans = new HashMap<AgencyAndId, BannedStopSet>(options.bannedTrips);
+        if ( ! searchForPaths(options, aStar, paths, searchBeginTime, 1)) {
+            return false;
+        }
+        Set<List<Object>> pathKeys = Sets.newHashSet();
+        for (GraphPath path : paths) {
+            pathKeys.add(pathKey(path));
+        }
+        List<GraphPath> lastPaths = Lists.newArrayList(paths);
+        while (paths.size() < options.numItineraries && !lastPaths.isEmpty() && !options.rctx.aborted) {
+            int pathIndex = paths.size();
+            if (relativeTimeout(searchBeginTime, pathIndex) <= 0) {
+                options.rctx.aborted = true;
+                break;
+            }
+            // Banning a single trip only makes a difference when the last paths used several of them.
+            Set<AgencyAndId> lastTrips = new LinkedHashSet<AgencyAndId>();
+            for (GraphPath path : lastPaths) {
+                lastTrips.addAll(path.getTrips());
+            }
+            lastTrips.removeAll(previousBans.keySet());
+            List<DeviationSearch> deviations = Lists.newArrayList();
+            if (lastTrips.size() > 1) {
+                for (AgencyAndId tripId : lastTrips) {
+                    if (deviations.size() >= MAX_DEVIATION_SEARCHES) break;
+                    // The heuristic is copied before the search on this thread makes any progress with it.
+                    deviations.add(new DeviationSearch(options, previousBans, tripId, searchBeginTime, pathIndex));
+                }
+            }
+            List<Future<List<GraphPath>>> futures = Lists.newArrayList();
+            List<GraphPath> candidates = Lists.newArrayList();
+            int mainPaths = 0;
+            try {
+                // The searches which the router has no room for, because it is busy, are not made.
+                ExecutorService executor = router.getDeviationSearchExecutor();
+                for (Iterator<DeviationSearch> it = deviations.iterator(); it.hasNext(); ) {
+                    DeviationSearch deviation = it.next();
+                    try {
+                        if (executor == null) {
+                            throw new RejectedExecutionException("The router was shut down.");
+                        }
+                        futures.add(executor.submit(deviation));
+                    } catch (RejectedExecutionException e) {
+                        LOG.debug("Deviation search rejected: {}", e.getMessage());
+                        it.remove();
+                    }
+                }
+                // The search banning all the trips found so far runs on this thread, with the original heuristic.
+                ShortestPathTree spt = aStar.getShortestPathTree(options, relativeTimeout(searchBeginTime, pathIndex));
+                if (spt == null) {
+                    LOG.warn("SPT was null."); // unknown failure
+                    return false;
+                }
+                if (!options.rctx.aborted) {
+                    candidates.addAll(spt.getPaths());
+                    mainPaths = candidates.size();
+                }
+                List<GraphPath> deviationPaths = Lists.newArrayList();
+                for (int i = 0; i < futures.size(); i++) {
+                    // A search still waiting for a thread at the timeout is abandoned.
+                    long timeoutMillis = (long) (relativeTimeout(searchBeginTime, pathIndex) * 1000);
+                    List<GraphPath> newPaths = getDeviationPaths(futures.get(i), timeoutMillis);
+                    if (newPaths == null && futures.get(i).isCancelled()) {
+                        deviations.get(i).options.rctx.debugOutput.timedOut = true;
+                    }
+                    if (newPaths != null) {
+                        deviationPaths.addAll(newPaths);
+                    }
+                    DebugOutput deviationOutput = deviations.get(i).options.rctx.debugOutput;
+                    if (deviationOutput.timedOut) {
+                        options.rctx.debugOutput.timedOut = true;
+                    }
+                    options.rctx.debugOutput.searched(deviationOutput);
+                }
+                Collections.sort(deviationPaths, new PathWeightComparator());
+                candidates.addAll(deviationPaths);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                options.rctx.aborted = true;
+                break;
+            } finally {
+                // The copies of the heuristic read the weights of the search context of this request until they stop.
+                for (int i = 0; i < futures.size(); i++) {
+                    deviations.get(i).stop(futures.get(i));
+                }
+            }
+            // Keep the new paths, in the order they would be found sequentially first, and ban all their trips.
+            previousBans = new HashMap<AgencyAndId, BannedStopSet>(options.bannedTrips);
+            lastPaths.clear();
+            for (int i = 0; i < candidates.size() && paths.size() < options.numItineraries; i++) {
+                GraphPath path = candidates.get(i);
+                if (!pathKeys.add(pathKey(path))) continue;
+                if (i >= mainPaths) {
+                    options.rctx.debugOutput.foundPath(); // the search on this thread reported its own paths
+                }
+                for (AgencyAndId tripId : path.getTrips()) {
+                    options.banTrip(tripId);
+                }
+                paths.add(path);
+                lastPaths.add(path);
+            }
+            LOG.debug("we have {} paths", paths.size());
+        }
+        return true;
+    }
+
+    /** @return the paths found by a deviation search, or null if it failed or did not finish within the timeout. */
+    private static List<GraphPath> getDeviationPaths(Future<List<GraphPath>> future, long timeoutMillis)
+            throws InterruptedException {
+        try {
+            return future.get(Math.max(timeoutMillis, 0), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * @return a heuristic for another search towards the same target as the given one, starting where it is now, or
+     *         null if the heuristic cannot be shared nor copied.
+     */
+    private static RemainingWeightHeuristic copyHeuristic(RemainingWeightHeuristic heuristic, RoutingRequest options) {
+        if (heuristic instanceof InterleavedBidirectionalHeuristic) {
+            return ((InterleavedBidirectionalHeuristic) heuristic).copy(options);
+        }
+        if (heuristic instanceof TrivialRemainingWeightHeuristic) {
+            return heuristic; // it has no state
+        }
+        return null;
+    }
+
+    /** @return a key which is the same for paths riding the same trips at the same times. */
+    private static List<Object> pathKey(GraphPath path) {
+        List<Object> key = Lists.newArrayList();
+        key.add(path.getStartTime());
+        key.add(path.getEndTime());
+        key.addAll(path.getTrips());
+        return key;
+    }
+
+    /**
+     * A search banning the trips banned before the last round and one of the trips of the paths of the last round. It
+     * runs on another thread, with its own copies of the request, routing context and heuristic.
+     */
+    private class DeviationSearch implements Callable<List<GraphPath>> {
+
+        final RoutingRequest options;
+
+        final long searchBeginTime;
+
+        final int pathIndex;
+
+        /** Set when the search starts, or when it is stopped before starting so that it never does. */
+        final AtomicBoolean claimed = new AtomicBoolean(false);
+
+        /** Counted down when a search which started no longer uses its heuristic. */
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        DeviationSearch(RoutingRequest mainOptions, Map<AgencyAndId, BannedStopSet> previousBans,
+                AgencyAndId tripId, long searchBeginTime, int pathIndex) {
+            options = mainOptions.clone();
+            options.bannedTrips = new HashMap<AgencyAndId, BannedStopSet>(previousBans);
+            options.banTrip(tripId);
+            mainOptions.rctx.copy(options);
+            options.rctx.remainingWeightHeuristic = copyHeuristic(mainOptions.rctx.remainingWeightHeuristic, options);
+            if (options.bikeWalkingOptions != options && options.bikeWalkingOptions.rctx == mainOptions.rctx) {
+                options.bikeWalkingOptions.rctx = options.rctx;
+            }
+            this.searchBeginTime = searchBeginTime;
+            this.pathIndex = pathIndex;
+        }
+
+        @Override
+        public List<GraphPath> call() {
+            if ( ! claimed.compareAndSet(false, true)) {
+                return null; // stopped before it started
+            }
+            try {
+                // The search may have waited for a thread, so its time is measured from the beginning of the request.
+                double timeout = relativeTimeout(searchBeginTime, pathIndex);
+                if (timeout <= 0) {
+                    return null;
+                }
+                AStar aStar = new AStar();
+                SearchContext searchContext = router.searchContextPool.borrow();
+                aStar.setSearchContext(searchContext);
+                try {
+                    ShortestPathTree spt = aStar.getShortestPathTree(options, timeout);
+                    if (spt == null || options.rctx.aborted) {
+                        return null;
+                    }
+                    return spt.getPaths();
+                } finally {
+                    aStar.setSearchContext(null);
+                    router.searchContextPool.release(searchContext);
+                }
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Cancel this search, interrupting it if it is running, and wait until it stops. A search only stops between
+         * two steps of AStar, which checks whether its thread was interrupted.
+         */
+        void stop(Future<List<GraphPath>> future) {
+            future.cancel(true);
+            if ( ! claimed.compareAndSet(false, true)) {
+                Uninterruptibles.awaitUninterruptibly(finished);
+            }
+        }
     }
 
     /* TODO eliminate the need for pathparsers. They are theoretically efficient but arcane and problematic. */
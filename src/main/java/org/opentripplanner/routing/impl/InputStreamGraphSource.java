@@ -24,6 +24,7 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.MissingNode;
+import org.opentripplanner.routing.graph.CompactGraphFormat;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Graph.LoadLevel;
 import org.opentripplanner.routing.services.GraphSource;
@@ -212,8 +213,14 @@ public class InputStreamGraphSource implements GraphSource {
         try (InputStream is = streams.getGraphInputStream()) {
             LOG.info("Loading graph...");
             try {
-                newGraph = Graph.load(new ObjectInputStream(is), loadLevel,
-                        streetVertexIndexFactory);
+                File graphFile = streams.getGraphFile();
+                if (graphFile != null && CompactGraphFormat.isCompactGraph(graphFile)) {
+                    // Columns are memory-mapped directly from the file rather than read from the stream.
+                    newGraph = CompactGraphFormat.load(graphFile, loadLevel, streetVertexIndexFactory);
+                } else {
+                    newGraph = Graph.load(new ObjectInputStream(is), loadLevel,
+                            streetVertexIndexFactory);
+                }
             } catch (Exception ex) {
                 LOG.error("Exception while loading graph '{}'.", routerId);
                 ex.printStackTrace();
@@ -258,6 +265,9 @@ public class InputStreamGraphSource implements GraphSource {
 
         public abstract InputStream getConfigInputStream() throws IOException;
 
+        /** @return the graph file if the graph is read from a file that can be memory-mapped, null otherwise. */
+        public abstract File getGraphFile();
+
         public abstract long getLastModified();
     }
 
@@ -276,6 +286,11 @@ public class InputStreamGraphSource implements GraphSource {
             return new FileInputStream(graphFile);
         }
 
+        @Override
+        public File getGraphFile() {
+            return new File(path, GRAPH_FILENAME);
+        }
+
         @Override
         public InputStream getConfigInputStream() throws IOException {
             File configFile = new File(path, Router.ROUTER_CONFIG_FILENAME);
@@ -310,6 +325,12 @@ public class InputStreamGraphSource implements GraphSource {
                     .getResourceAsStream(graphFile.getPath());
         }
 
+        /** Classpath resources cannot be memory-mapped. */
+        @Override
+        public File getGraphFile() {
+            return null;
+        }
+
         @Override
         public InputStream getConfigInputStream() {
             File configFile = new File(path, Router.ROUTER_CONFIG_FILENAME);
@@ -35,6 +35,9 @@ import java.util.*;
  * Note that turn restrictions make all searches multi-state; however turn restrictions do not apply when walking.
  * The turn restriction handling is done in the base dominance function implementation, and applies to all subclasses.
  * It essentially splits each vertex into N vertices depending on the incoming edge being taken.
+ *
+ * The states are stored in a map keyed on vertex identity. {@link VertexIndexShortestPathTree} provides the same
+ * behavior with storage addressed by vertex index, which produces much less garbage in large searches.
  */
 public class ShortestPathTree {
 
@@ -52,6 +55,16 @@ public class ShortestPathTree {
         stateSets = new IdentityHashMap<Vertex, List<State>>();
     }
 
+    /**
+     * Constructor for subclasses that provide their own state storage. They must override every public method
+     * that reads or writes states, since the map used by this class is not allocated.
+     */
+    protected ShortestPathTree (RoutingRequest options, DominanceFunction dominanceFunction, boolean ownStorage) {
+        this.options = options;
+        this.dominanceFunction = dominanceFunction;
+        stateSets = ownStorage ? null : new IdentityHashMap<Vertex, List<State>>();
+    }
+
     /** @return a list of GraphPaths, sometimes empty but never null. */
     public List<GraphPath> getPaths(Vertex dest, boolean optimize) {
         List<? extends State> stateList = getStates(dest);
@@ -0,0 +1,307 @@
+/* This program is free software: you can redistribute it and/or
+modify it under the terms of the GNU Lesser General Public License
+as published by the Free Software Foundation, either version 3 of
+the License, or (at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.spt;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.vertextype.TemporaryVertex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * A ShortestPathTree that stores its states in an array addressed by Vertex.getIndex() rather than in an
+ * IdentityHashMap of lists. Vertex indexes are dense, so this avoids hashing and boxing entirely.
+ *
+ * Each slot holds either null, a single State, or a State[] when several co-dominant States coexist at the vertex.
+ * Most vertices only ever hold one state (walk, bike and car searches without turn restrictions), so no per-vertex
+ * collection is allocated in the common case. Multi-state arrays are kept compact, with unused slots at the end set
+ * to null.
+ *
+ * The array only covers the permanent vertices of the graph. The temporary vertices of each request get ever higher
+ * indexes over the life of the server, so their states are kept in a small map on the side instead, and the array
+ * does not grow with the number of requests served.
+ *
+ * The dominance rules are exactly the same as in ShortestPathTree, including the order in which existing states
+ * are compared to new ones, so both implementations produce identical results.
+ */
+public class VertexIndexShortestPathTree extends ShortestPathTree {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VertexIndexShortestPathTree.class);
+
+    /** Initial capacity of a State[] when a second state is added at a vertex. */
+    private static final int INITIAL_SPILL_SIZE = 4;
+
+    /** Indexed by Vertex.getIndex() for the permanent vertices, each element is null, a State, or a State[]. */
+    private Object[] statesByVertex;
+
+    /** The slots of the temporary vertices, by vertex index. */
+    private TIntObjectMap<Object> temporarySlots = new TIntObjectHashMap<Object>();
+
+    /** Number of non-null slots in statesByVertex. */
+    private int vertexCount = 0;
+
+    /** The indexes of the non-null slots in statesByVertex, in the order they were filled. Used for recycling. */
+    private int[] usedSlots = new int[64];
+
+    public VertexIndexShortestPathTree (RoutingRequest options, DominanceFunction dominanceFunction) {
+        super(options, dominanceFunction, true);
+        statesByVertex = new Object[vertexIndexLimit(options)];
+    }
+
+    /**
+     * Create an empty tree that takes over the storage of a tree from a previous search, rather than allocating
+     * its own. The recycled tree is emptied and must not be used anymore. Only the slots that were actually filled
+     * are cleared, so the cost of recycling is proportional to the size of the previous search, not of the graph.
+     */
+    public VertexIndexShortestPathTree (RoutingRequest options, DominanceFunction dominanceFunction,
+            VertexIndexShortestPathTree recycled) {
+        super(options, dominanceFunction, true);
+        Object[] slots = recycled.statesByVertex;
+        if (recycled.vertexCount > slots.length / 8) {
+            Arrays.fill(slots, null);
+        } else {
+            for (int i = 0; i < recycled.vertexCount; i++) {
+                slots[recycled.usedSlots[i]] = null;
+            }
+        }
+        int indexLimit = vertexIndexLimit(options);
+        if (slots.length < indexLimit) {
+            slots = Arrays.copyOf(slots, indexLimit);
+        }
+        statesByVertex = slots;
+        usedSlots = recycled.usedSlots;
+        recycled.statesByVertex = new Object[0];
+        recycled.usedSlots = new int[0];
+        recycled.vertexCount = 0;
+        recycled.temporarySlots.clear();
+    }
+
+    /** @return the size of the array covering the permanent vertices of the graph searched, if it is known yet. */
+    private static int vertexIndexLimit(RoutingRequest options) {
+        return options.rctx == null ? 0 : options.rctx.graph.getVertexIndexLimit();
+    }
+
+    @Override
+    public boolean add(State newState) {
+        Vertex vertex = newState.getVertex();
+        int index = vertex.getIndex();
+        Object slot = getSlot(vertex);
+
+        // if the vertex has no states, add one and return
+        if (slot == null) {
+            if (vertex instanceof TemporaryVertex) {
+                temporarySlots.put(index, newState);
+                return true;
+            }
+            if (index >= statesByVertex.length) {
+                // a permanent vertex added to the graph after the search started
+                statesByVertex = Arrays.copyOf(statesByVertex, Math.max(index + 1, statesByVertex.length * 3 / 2));
+            }
+            statesByVertex[index] = newState;
+            if (vertexCount == usedSlots.length) {
+                usedSlots = Arrays.copyOf(usedSlots, Math.max(64, usedSlots.length * 2));
+            }
+            usedSlots[vertexCount++] = index;
+            return true;
+        }
+
+        if (slot instanceof State) {
+            State oldState = (State) slot;
+            // order is important, because in the case of a tie we want to reject the new state
+            if (dominanceFunction.betterOrEqualAndComparable(oldState, newState)) return false;
+            if (dominanceFunction.betterOrEqualAndComparable(newState, oldState)) {
+                setSlot(vertex, newState);
+            } else {
+                State[] states = new State[INITIAL_SPILL_SIZE];
+                states[0] = oldState;
+                states[1] = newState;
+                setSlot(vertex, states);
+            }
+            return true;
+        }
+
+        // Several co-dominant states already exist at this vertex. Remove any that the new state dominates,
+        // shifting the survivors down to keep the array compact.
+        State[] states = (State[]) slot;
+        int kept = 0;
+        for (int i = 0; i < states.length && states[i] != null; i++) {
+            State oldState = states[i];
+            if (dominanceFunction.betterOrEqualAndComparable(oldState, newState)) {
+                // As in ShortestPathTree, states already removed stay removed. Close the gap they left.
+                if (kept != i) {
+                    System.arraycopy(states, i, states, kept, states.length - i);
+                    Arrays.fill(states, states.length - (i - kept), states.length, null);
+                }
+                return false;
+            }
+            if ( ! dominanceFunction.betterOrEqualAndComparable(newState, oldState)) {
+                states[kept++] = oldState;
+            }
+        }
+        // any states remaining are co-dominant with the new state
+        if (kept == 0) {
+            setSlot(vertex, newState);
+            return true;
+        }
+        if (kept == states.length) {
+            states = Arrays.copyOf(states, states.length * 2);
+            setSlot(vertex, states);
+        }
+        states[kept++] = newState;
+        Arrays.fill(states, kept, states.length, null);
+        return true;
+    }
+
+    /** @return the slot of the given vertex: null, a State or a State[]. */
+    private Object getSlot(Vertex vertex) {
+        int index = vertex.getIndex();
+        if (vertex instanceof TemporaryVertex) {
+            return temporarySlots.get(index);
+        }
+        return index < statesByVertex.length ? statesByVertex[index] : null;
+    }
+
+    /** Replace the existing slot of the given vertex. */
+    private void setSlot(Vertex vertex, Object slot) {
+        if (vertex instanceof TemporaryVertex) {
+            temporarySlots.put(vertex.getIndex(), slot);
+        } else {
+            statesByVertex[vertex.getIndex()] = slot;
+        }
+    }
+
+    @Override
+    public State getState(Vertex dest) {
+        State ret = null;
+        for (State s : getStatesOrEmpty(dest)) {
+            if ((ret == null || s.weight < ret.weight) && s.isFinal() && s.allPathParsersAccept()) {
+                ret = s;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public List<State> getStates(Vertex dest) {
+        List<State> states = getStatesOrEmpty(dest);
+        return states.isEmpty() ? null : states;
+    }
+
+    /** @return the states at the given vertex, or an empty list. A new list is created on each call. */
+    private List<State> getStatesOrEmpty(Vertex dest) {
+        return statesInSlot(getSlot(dest));
+    }
+
+    private static List<State> statesInSlot(Object slot) {
+        if (slot == null) {
+            return Collections.emptyList();
+        }
+        if (slot instanceof State) {
+            return Collections.singletonList((State) slot);
+        }
+        State[] states = (State[]) slot;
+        int n = 0;
+        while (n < states.length && states[n] != null) n++;
+        return Arrays.asList(Arrays.copyOf(states, n));
+    }
+
+    @Override
+    public boolean visit(State state) {
+        Object slot = getSlot(state.getVertex());
+        if (slot == state) return true;
+        if (slot instanceof State[]) {
+            for (State s : (State[]) slot) {
+                if (s == state) return true;
+                if (s == null) break;
+            }
+        }
+        return false;
+    }
+
+    /** @return all the non-null slots, of the permanent vertices then of the temporary ones. */
+    private List<Object> getSlots() {
+        List<Object> slots = new ArrayList<Object>(getVertexCount());
+        for (int i = 0; i < vertexCount; i++) {
+            slots.add(statesByVertex[usedSlots[i]]);
+        }
+        slots.addAll(temporarySlots.valueCollection());
+        return slots;
+    }
+
+    @Override
+    public Set<Vertex> getVertices() {
+        Set<Vertex> vertices = Collections.newSetFromMap(new IdentityHashMap<Vertex, Boolean>(getVertexCount()));
+        for (Object slot : getSlots()) {
+            State first = (slot instanceof State) ? (State) slot : ((State[]) slot)[0];
+            vertices.add(first.getVertex());
+        }
+        return vertices;
+    }
+
+    @Override
+    public int getVertexCount() {
+        return vertexCount + temporarySlots.size();
+    }
+
+    @Override
+    public Collection<State> getAllStates() {
+        ArrayList<State> allStates = new ArrayList<State>(getVertexCount());
+        for (Object slot : getSlots()) {
+            if (slot instanceof State) {
+                allStates.add((State) slot);
+            } else {
+                for (State s : (State[]) slot) {
+                    if (s == null) break;
+                    allStates.add(s);
+                }
+            }
+        }
+        return allStates;
+    }
+
+    @Override
+    public void dump() {
+        Multiset<Integer> histogram = HashMultiset.create();
+        int statesCount = 0;
+        int maxSize = 0;
+        for (Object slot : getSlots()) {
+            int size = statesInSlot(slot).size();
+            histogram.add(size);
+            statesCount += size;
+            if (size > maxSize) {
+                maxSize = size;
+            }
+        }
+        LOG.info("SPT: vertices: " + getVertexCount() + " states: total: "
+                + statesCount + " per vertex max: " + maxSize + " avg: "
+                + (statesCount * 1.0 / getVertexCount()));
+        List<Integer> nStates = new ArrayList<Integer>(histogram.elementSet());
+        Collections.sort(nStates);
+        for (Integer nState : nStates) {
+            LOG.info(nState + " states: " + histogram.count(nState) + " vertices.");
+        }
+    }
+
+    public String toString() {
+        return "VertexIndexShortestPathTree(" + getVertexCount() + " vertices)";
+    }
+
+}
@@ -76,6 +76,10 @@ public class CommandLineParameters implements Cloneable {
             description = "Enable OTP Analyst extensions.")
     public boolean analyst;
 
+    @Parameter(names = {"--surfaceCacheSize"},
+            description = "Memory in megabytes used to keep Analyst travel time surfaces.")
+    public int surfaceCacheSize = 512;
+
     @Parameter(names = {"--bindAddress"},
             description = "Specify which network interface to bind to by address. 0.0.0.0 means all interfaces.")
     public String bindAddress = "0.0.0.0";
@@ -94,6 +98,30 @@ public class CommandLineParameters implements Cloneable {
             description = "Server port for plain HTTP.")
     public Integer port;
 
+    @Parameter(names = {"--serverThreads"}, validateWith = PositiveInteger.class,
+            description = "Number of threads handling the requests of the endpoints without threads of their own.")
+    public int serverThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--planThreads"}, validateWith = PositiveInteger.class,
+            description = "Number of trip planning requests handled at once.")
+    public int planThreads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(names = {"--planQueue"},
+            description = "Number of trip planning requests waiting for a thread before new ones are rejected.")
+    public int planQueue = 100;
+
+    @Parameter(names = {"--profileThreads"}, validateWith = PositiveInteger.class,
+            description = "Number of profile routing requests handled at once.")
+    public int profileThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    @Parameter(names = {"--profileQueue"},
+            description = "Number of profile routing requests waiting for a thread before new ones are rejected.")
+    public int profileQueue = 10;
+
+    @Parameter(names = {"--requestTimeout"},
+            description = "Seconds after which routing requests which have not been answered get an error, 0 for none.")
+    public int requestTimeout = 0;
+
     @Parameter(names = {"--graphs"}, validateWith = ReadableDirectory.class,
             description = "Path to directory containing graphs. Defaults to BASE_PATH/graphs.")
     public File graphDirectory;
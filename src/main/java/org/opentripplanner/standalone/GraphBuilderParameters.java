@@ -1,5 +1,6 @@
 package org.opentripplanner.standalone;
 
+import org.opentripplanner.graph_builder.module.osm.OSMDatabase;
 import org.opentripplanner.graph_builder.services.osm.CustomNamer;
 import org.opentripplanner.routing.impl.DefaultFareServiceFactory;
 import org.opentripplanner.routing.services.FareServiceFactory;
@@ -106,6 +107,48 @@ public class GraphBuilderParameters {
      */
     public boolean staticBikeParkAndRide = false;
 
+    /**
+     * Whether the graph should be saved in the compact columnar format rather than with Java serialization.
+     * Graphs in that format load much faster, see CompactGraphFormat.
+     */
+    public final boolean compactGraphFormat;
+
+    /**
+     * The number of landmarks to precompute street distances for, for the landmark remaining weight heuristic.
+     * Each landmark takes 12 bytes per vertex. No landmarks are computed when this is zero.
+     */
+    public final int landmarks;
+
+    /**
+     * Whether to build contraction hierarchies over the street network, used to answer street-only routing requests
+     * much faster than with an A* search.
+     */
+    public final boolean contractionHierarchies;
+
+    /**
+     * How to keep OSM nodes in memory while building the graph: "objects", "arrays" (primitive arrays on the heap
+     * for the nodes without tags) or "mapped" (memory-mapped temporary files for the nodes without tags).
+     */
+    public final OSMDatabase.NodeStorage osmNodeStorage;
+
+    /**
+     * Whether to keep the streets each stop, bike rental station and bike park was linked to in the cache directory,
+     * to link them again without a spatial search in the next builds with the same OSM inputs and parameters.
+     */
+    public final boolean streetLinkingCache;
+
+    /**
+     * Save the street graph after the street modules, and reuse it in the next builds from the same street inputs
+     * and parameters, which then only have to build the transit part of the graph.
+     */
+    public final boolean incrementalBuild;
+
+    /**
+     * Sample the elevation coverage in blocks of its raster copied to arrays, on several threads, rather than one
+     * point at a time through GeoTools.
+     */
+    public final boolean tiledElevation;
+
     /**
      * Set all parameters from the given Jackson JSON tree, applying defaults.
      * Supplying MissingNode.getInstance() will cause all the defaults to be applied.
@@ -131,6 +174,14 @@ public class GraphBuilderParameters {
         staticBikeRental = config.path("staticBikeRental").asBoolean(false);
         staticParkAndRide = config.path("staticParkAndRide").asBoolean(true);
         staticBikeParkAndRide = config.path("staticBikeParkAndRide").asBoolean(false);
+        compactGraphFormat = config.path("compactGraphFormat").asBoolean(false);
+        landmarks = config.path("landmarks").asInt(0);
+        contractionHierarchies = config.path("contractionHierarchies").asBoolean(false);
+        osmNodeStorage = OSMDatabase.NodeStorage.valueOf(
+                config.path("osmNodeStorage").asText("objects").toUpperCase());
+        streetLinkingCache = config.path("streetLinkingCache").asBoolean(false);
+        incrementalBuild = config.path("incrementalBuild").asBoolean(false);
+        tiledElevation = config.path("tiledElevation").asBoolean(false);
     }
 
 }
@@ -14,6 +14,7 @@ import org.glassfish.grizzly.ssl.SSLContextConfigurator;
 import org.glassfish.grizzly.ssl.SSLEngineConfigurator;
 import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.glassfish.jersey.server.ContainerFactory;
+import org.opentripplanner.api.common.RequestExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
@@ -57,14 +58,17 @@ public class GrizzlyServer {
         sslConfig.setKeyStoreFile(new File(params.basePath, "keystore").getAbsolutePath());
         sslConfig.setKeyStorePass("opentrip");
 
-        /* OTP is CPU-bound, so we want only as many worker threads as we have cores. */
+        /*
+         * OTP is CPU-bound, so we want only as many worker threads as we have cores. The trip planning and profile
+         * routing endpoints suspend their requests and search on threads of their own (see RequestExecutor), so these
+         * threads are left for the other endpoints, like the index API, which are quick to answer.
+         */
         ThreadPoolConfig threadPoolConfig = ThreadPoolConfig.defaultConfig()
             .setCorePoolSize(1)
-            .setMaxPoolSize(Runtime.getRuntime().availableProcessors());
+            .setMaxPoolSize(params.serverThreads);
 
         /* HTTP (non-encrypted) listener */
         NetworkListener httpListener = new NetworkListener("otp_insecure", params.bindAddress, params.port);
-        // OTP is CPU-bound, we don't want more threads than cores. TODO: We should switch to async handling.
         httpListener.setSecure(false);
 
         /* HTTPS listener */
@@ -128,6 +132,9 @@ public class GrizzlyServer {
             LOG.info("Interrupted, shutting down.");
         }
         httpServer.shutdown();
+        for (RequestExecutor executor : server.getRequestExecutors()) {
+            executor.shutdown();
+        }
 
     }
 }
@@ -1,12 +1,16 @@
 package org.opentripplanner.standalone;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.opentripplanner.analyst.DiskBackedPointSetCache;
 import org.opentripplanner.analyst.PointSetCache;
 import org.opentripplanner.analyst.SurfaceCache;
+import org.opentripplanner.api.common.RequestExecutor;
+import org.opentripplanner.api.resource.SearchMetrics;
 import org.opentripplanner.routing.error.GraphNotFoundException;
 import org.opentripplanner.routing.services.GraphService;
 import org.opentripplanner.scripting.impl.ScriptingService;
@@ -34,6 +38,13 @@ public class OTPServer {
 
     public CommandLineParameters params;
 
+    /** Handle the trip planning and profile routing requests, so that they never hold the Grizzly worker threads. */
+    public final RequestExecutor planExecutor;
+    public final RequestExecutor profileExecutor;
+
+    /** The work done and time taken by the trip planning requests, for monitoring. */
+    public final SearchMetrics searchMetrics = new SearchMetrics();
+
     public OTPServer (CommandLineParameters params, GraphService gs) {
         LOG.info("Wiring up and configuring server.");
 
@@ -44,10 +55,14 @@ public class OTPServer {
 
         // Optional Analyst Modules.
         if (params.analyst) {
-            surfaceCache = new SurfaceCache(30);
+            surfaceCache = new SurfaceCache(params.surfaceCacheSize * 1024L * 1024L);
             pointSetCache = new DiskBackedPointSetCache(100, params.pointSetDirectory);
         }
 
+        planExecutor = new RequestExecutor("plan", params.planThreads, params.planQueue, params.requestTimeout);
+        profileExecutor = new RequestExecutor("profile", params.profileThreads, params.profileQueue,
+                params.requestTimeout);
+
         scriptingService = new ScriptingService(this);
         scriptingService.enableScriptingWebService = params.enableScriptingWebService;
         if (params.enableScriptingWebService) {
@@ -74,6 +89,11 @@ public class OTPServer {
         return graphService.getRouter(routerId);
     }
 
+    /** @return the executors handling the requests of the endpoints which have threads of their own. */
+    public List<RequestExecutor> getRequestExecutors() {
+        return Arrays.asList(planExecutor, profileExecutor);
+    }
+
     /**
      * Return an HK2 Binder that injects this specific OTPServer instance into Jersey web resources.
      * This should be registered in the ResourceConfig (Jersey) or Application (JAX-RS) as a singleton.
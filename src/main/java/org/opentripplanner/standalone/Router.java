@@ -1,10 +1,14 @@
 package org.opentripplanner.standalone;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.opentripplanner.analyst.request.*;
 import org.opentripplanner.analyst.scenario.ScenarioStore;
+import org.opentripplanner.api.resource.PlanCache;
 import org.opentripplanner.inspector.TileRendererManager;
 import org.opentripplanner.reflect.ReflectiveInitializer;
+import org.opentripplanner.routing.algorithm.SearchContextPool;
+import org.opentripplanner.routing.algorithm.strategies.TargetStreetSearchCache;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.updater.GraphUpdaterConfigurator;
@@ -12,6 +16,11 @@ import org.opentripplanner.visualizer.GraphVisualizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Represents the configuration of a single router (a single graph for a specific geographic area)
  * in an OTP server.
@@ -46,9 +55,37 @@ public class Router {
     /** Storage for non-descructive alternatives analysis scenarios. */
     public ScenarioStore scenarioStore = new ScenarioStore();
 
+    /** Priority queues and shortest path tree storage kept between requests, to avoid reallocating them. */
+    public SearchContextPool searchContextPool = new SearchContextPool(Runtime.getRuntime().availableProcessors());
+
+    /** Street searches around recent transit destinations, reused by the bidirectional heuristic. */
+    public TargetStreetSearchCache heuristicCache;
+
+    public static final int DEFAULT_HEURISTIC_CACHE_SIZE = 64;
+
+    /**
+     * Whether the alternative itineraries of a trip plan are searched for concurrently, several at a time, rather than
+     * one after the other. See GraphPathFinder.
+     */
+    public boolean concurrentItineraries = false;
+
+    /** Runs the searches deviating from earlier itineraries for concurrentItineraries, created on first use. */
+    private ThreadPoolExecutor deviationSearchExecutor;
+
+    /** Runs the street searches around the targets of the bidirectional heuristic, created on first use. */
+    private ThreadPoolExecutor targetSearchExecutor;
+
+    private boolean shutDown = false;
+
+    /** The trip plans returned for recent requests, to answer the same requests again, or null if disabled. */
+    public PlanCache planCache = null;
+
     public Router(String id, Graph graph) {
         this.id = id;
         this.graph = graph;
+        if (graph != null) {
+            this.heuristicCache = new TargetStreetSearchCache(graph, DEFAULT_HEURISTIC_CACHE_SIZE);
+        }
     }
 
 
@@ -110,14 +147,101 @@ public class Router {
         }
         LOG.info("Timeouts for router '{}': {}", this.id, this.timeouts);
 
+        /* Size of the pool of reusable search data structures. Zero disables reuse. */
+        JsonNode searchContextPoolSize = config.get("searchContextPoolSize");
+        if (searchContextPoolSize != null) {
+            if (searchContextPoolSize.isInt() && searchContextPoolSize.intValue() >= 0) {
+                this.searchContextPool = new SearchContextPool(searchContextPoolSize.intValue());
+            } else {
+                LOG.error("The 'searchContextPoolSize' configuration option should be a non-negative integer.");
+            }
+        }
+
+        /* Number of street searches around destinations kept for later requests. Zero disables caching. */
+        JsonNode heuristicCacheSize = config.get("heuristicCacheSize");
+        if (heuristicCacheSize != null) {
+            if (heuristicCacheSize.isInt() && heuristicCacheSize.intValue() >= 0) {
+                this.heuristicCache = new TargetStreetSearchCache(graph, heuristicCacheSize.intValue());
+            } else {
+                LOG.error("The 'heuristicCacheSize' configuration option should be a non-negative integer.");
+            }
+        }
+
+        /* Search for the alternative itineraries of each request several at a time. */
+        JsonNode concurrentItineraries = config.get("concurrentItineraries");
+        if (concurrentItineraries != null) {
+            if (concurrentItineraries.isBoolean()) {
+                this.concurrentItineraries = concurrentItineraries.booleanValue();
+            } else {
+                LOG.error("The 'concurrentItineraries' configuration option should be true or false.");
+            }
+        }
+
+        /* Keep the trip plans for repeated requests. */
+        JsonNode planCache = config.get("planCache");
+        if (planCache != null) {
+            if (planCache.isObject()) {
+                this.planCache = new PlanCache(
+                        planCache.path("maxEntries").asInt(PlanCache.DEFAULT_MAX_ENTRIES),
+                        planCache.path("timeBucket").asInt(PlanCache.DEFAULT_TIME_BUCKET_SECONDS),
+                        planCache.path("maxAge").asInt(PlanCache.DEFAULT_MAX_AGE_SECONDS));
+            } else {
+                LOG.error("The 'planCache' configuration option should be an object.");
+            }
+        }
+
         /* Create Graph updater modules from JSON config. */
         GraphUpdaterConfigurator.setupGraph(this.graph, config);
 
     }
 
+    /**
+     * @return the executor of the searches deviating from earlier itineraries, or null if this router was shut down.
+     * It has one thread per core and queues as many searches, and rejects any more searches than that rather than
+     * letting them wait behind the others.
+     */
+    public synchronized ExecutorService getDeviationSearchExecutor() {
+        if (deviationSearchExecutor == null && !shutDown) {
+            deviationSearchExecutor = newSearchExecutor("itinerary-search-");
+        }
+        return deviationSearchExecutor;
+    }
+
+    /**
+     * @return the executor of the street searches around the targets of the bidirectional heuristic, which run while
+     * the request thread searches around the origin, or null if this router was shut down. It is bounded like the
+     * executor of the deviating searches: the requests whose search it rejects search around the target themselves.
+     */
+    public synchronized ExecutorService getTargetSearchExecutor() {
+        if (targetSearchExecutor == null && !shutDown) {
+            targetSearchExecutor = newSearchExecutor("heuristic-target-search-");
+        }
+        return targetSearchExecutor;
+    }
+
+    private ThreadPoolExecutor newSearchExecutor(String namePrefix) {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(nThreads), new ThreadFactoryBuilder()
+                        .setNameFormat(namePrefix + id + "-%d").setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /** Shut down this router when evicted or (auto-)reloaded. Stop any real-time updater threads. */
     public void shutdown() {
         GraphUpdaterConfigurator.shutdownGraph(this.graph);
+        synchronized (this) {
+            shutDown = true;
+            if (deviationSearchExecutor != null) {
+                deviationSearchExecutor.shutdownNow();
+                deviationSearchExecutor = null;
+            }
+            if (targetSearchExecutor != null) {
+                targetSearchExecutor.shutdownNow();
+                targetSearchExecutor = null;
+            }
+        }
     }
 
 }
@@ -17,14 +17,17 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.BitSet;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
 
 import org.onebusaway.gtfs.model.Agency;
 import org.onebusaway.gtfs.model.AgencyAndId;
@@ -70,6 +73,29 @@ public class TimetableSnapshotSource {
 
     private int appliedBlockCount = 0;
 
+    /**
+     * Total number of trip updates applied, skipped because unchanged, and failed since creation. These are written
+     * on the updater thread and read from the API threads.
+     */
+    private final AtomicLong appliedUpdates = new AtomicLong(),
+            skippedUpdates = new AtomicLong(), failedUpdates = new AtomicLong();
+
+    /**
+     * Should trip updates in full dataset messages that are identical to one in the previous full
+     * dataset message be skipped, reusing the TripTimes created for the previous message.
+     */
+    public boolean skipUnchangedUpdates = true;
+
+    /**
+     * The trip updates successfully applied from the last full dataset message, with the changes
+     * they made to the buffer. Since the buffer is cleared before applying a full dataset, these
+     * changes can be replayed as-is when the same trip update appears in the next full dataset.
+     */
+    private Map<TripUpdateFingerprint, List<BufferChange>> lastFullDatasetChanges = new HashMap<>();
+
+    /** The changes made to the buffer by the trip update being applied, or null if not recording. */
+    private List<BufferChange> bufferChanges = null;
+
     /**
      * If a timetable snapshot is requested less than this number of milliseconds after the previous
      * snapshot, just return the same one. Throttles the potentially resource-consuming task of
@@ -194,6 +220,11 @@ public class TimetableSnapshotSource {
                 // Remove all updates from the buffer
                 buffer.clear();
             }
+            Map<TripUpdateFingerprint, List<BufferChange>> fullDatasetChanges = null;
+            if (fullDataset && skipUnchangedUpdates) {
+                fullDatasetChanges = new HashMap<>();
+            }
+            long applied0 = appliedUpdates.get(), skipped0 = skippedUpdates.get(), failed0 = failedUpdates.get();
 
             LOG.debug("message contains {} trip updates", updates.size());
             int uIndex = 0;
@@ -205,6 +236,7 @@ public class TimetableSnapshotSource {
 
                 if (!tripUpdate.hasTrip()) {
                     LOG.warn("Missing TripDescriptor in gtfs-rt trip update: \n{}", tripUpdate);
+                    failedUpdates.incrementAndGet();
                     continue;
                 }
 
@@ -216,6 +248,7 @@ public class TimetableSnapshotSource {
                         serviceDate = ServiceDate.parseString(tripDescriptor.getStartDate());
                     } catch (ParseException e) {
                         LOG.warn("Failed to parse start date in gtfs-rt trip update: \n{}", tripUpdate);
+                        failedUpdates.incrementAndGet();
                         continue;
                     }
                 } else {
@@ -228,6 +261,22 @@ public class TimetableSnapshotSource {
                         uIndex, tripUpdate.getStopTimeUpdateCount());
                 LOG.trace("{}", tripUpdate);
 
+                // Replay the changes of an identical trip update in the previous full dataset
+                TripUpdateFingerprint fingerprint = null;
+                if (fullDatasetChanges != null) {
+                    fingerprint = new TripUpdateFingerprint(tripUpdate, serviceDate);
+                    List<BufferChange> changes = lastFullDatasetChanges.get(fingerprint);
+                    if (changes != null) {
+                        for (BufferChange change : changes) {
+                            buffer.update(change.pattern, change.tripTimes, serviceDate);
+                        }
+                        fullDatasetChanges.put(fingerprint, changes);
+                        skippedUpdates.incrementAndGet();
+                        continue;
+                    }
+                    bufferChanges = new ArrayList<>();
+                }
+
                 // Determine what kind of trip update this is
                 boolean applied = false;
                 final TripDescriptor.ScheduleRelationship tripScheduleRelationship = determineTripScheduleRelationship(
@@ -252,16 +301,26 @@ public class TimetableSnapshotSource {
 
                 if (applied) {
                     appliedBlockCount++;
+                    appliedUpdates.incrementAndGet();
+                    if (fingerprint != null) {
+                        fullDatasetChanges.put(fingerprint, bufferChanges);
+                    }
                 } else {
                     LOG.warn("Failed to apply TripUpdate.");
                     LOG.trace(" Contents: {}", tripUpdate);
+                    failedUpdates.incrementAndGet();
                 }
+                bufferChanges = null;
 
                 if (appliedBlockCount % logFrequency == 0) {
                     LOG.info("Applied {} trip updates.", appliedBlockCount);
                 }
             }
-            LOG.debug("end of update message");
+            LOG.debug("end of update message: {} applied, {} skipped as unchanged, {} failed",
+                    appliedUpdates.get() - applied0, skippedUpdates.get() - skipped0, failedUpdates.get() - failed0);
+            if (fullDatasetChanges != null) {
+                lastFullDatasetChanges = fullDatasetChanges;
+            }
 
             // Make a snapshot after each message in anticipation of incoming requests
             // Purge data if necessary (and force new snapshot if anything was purged)
@@ -274,10 +333,40 @@ public class TimetableSnapshotSource {
             }
         } finally {
             // Always release lock
+            bufferChanges = null;
             bufferLock.unlock();
         }
     }
 
+    /** @return the number of trip updates applied since this snapshot source was created. */
+    public long getAppliedUpdates() {
+        return appliedUpdates.get();
+    }
+
+    /**
+     * @return the number of trip updates in full dataset messages that were skipped since this
+     *         snapshot source was created, because they were identical to the previous message.
+     */
+    public long getSkippedUpdates() {
+        return skippedUpdates.get();
+    }
+
+    /** @return the number of trip updates that could not be applied since this snapshot source was created. */
+    public long getFailedUpdates() {
+        return failedUpdates.get();
+    }
+
+    /**
+     * Add updated trip times to the buffer, remembering the change if the trip update being
+     * applied is part of a full dataset.
+     */
+    private boolean updateBuffer(TripPattern pattern, TripTimes tripTimes, ServiceDate serviceDate) {
+        if (bufferChanges != null) {
+            bufferChanges.add(new BufferChange(pattern, tripTimes));
+        }
+        return buffer.update(pattern, tripTimes, serviceDate);
+    }
+
     /**
      * Determine how the trip update should be handled.
      * 
@@ -343,7 +432,7 @@ public class TimetableSnapshotSource {
             return false;
         }
         
-        boolean success = buffer.update(pattern, updatedTripTimes, serviceDate); 
+        boolean success = updateBuffer(pattern, updatedTripTimes, serviceDate); 
         return success;
     }
 
@@ -712,7 +801,7 @@ public class TimetableSnapshotSource {
         newTripTimes.serviceCode = serviceCode;
         
         // Add new trip times to the buffer
-        boolean success = buffer.update(pattern, newTripTimes, serviceDate);
+        boolean success = updateBuffer(pattern, newTripTimes, serviceDate);
         return success;
     }
 
@@ -736,7 +825,7 @@ public class TimetableSnapshotSource {
             } else {
                 TripTimes newTripTimes = new TripTimes(timetable.getTripTimes(tripIndex));
                 newTripTimes.cancel();
-                buffer.update(pattern, newTripTimes, serviceDate);
+                updateBuffer(pattern, newTripTimes, serviceDate);
                 success = true;
             }
         }
@@ -765,7 +854,7 @@ public class TimetableSnapshotSource {
             } else {
                 TripTimes newTripTimes = new TripTimes(timetable.getTripTimes(tripIndex));
                 newTripTimes.cancel();
-                buffer.update(pattern, newTripTimes, serviceDate);
+                updateBuffer(pattern, newTripTimes, serviceDate);
                 success = true;
             }
         }
@@ -995,4 +1084,44 @@ public class TimetableSnapshotSource {
         return stop;
     }
     
+
+    /**
+     * Identifies a trip update by its contents, leaving out the fields that do not affect how it is
+     * applied (the timestamp and vehicle, which may change from one message to the next), and the
+     * service date it was applied to (which is today when it has no start date).
+     */
+    private static class TripUpdateFingerprint {
+        private final ByteString bytes;
+        private final ServiceDate serviceDate;
+
+        TripUpdateFingerprint(TripUpdate tripUpdate, ServiceDate serviceDate) {
+            this.bytes = tripUpdate.toBuilder().clearTimestamp().clearVehicle().build().toByteString();
+            this.serviceDate = serviceDate;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TripUpdateFingerprint)) {
+                return false;
+            }
+            TripUpdateFingerprint other = (TripUpdateFingerprint) obj;
+            return bytes.equals(other.bytes) && serviceDate.equals(other.serviceDate);
+        }
+
+        @Override
+        public int hashCode() {
+            return bytes.hashCode() * 31 + serviceDate.hashCode();
+        }
+    }
+
+    /** Trip times added to the buffer for a pattern while applying a trip update. */
+    private static class BufferChange {
+        private final TripPattern pattern;
+        private final TripTimes tripTimes;
+
+        BufferChange(TripPattern pattern, TripTimes tripTimes) {
+            this.pattern = pattern;
+            this.tripTimes = tripTimes;
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.util.monitoring;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts observed values in fixed buckets, and writes them out in the Prometheus text format. Observing a value is a
+ * binary search over the bucket bounds and two uncontended additions, so any number of threads can record into the
+ * same histogram on every request.
+ */
+public class Histogram {
+
+    private final String name;
+
+    private final String help;
+
+    /** The inclusive upper bounds of the buckets, in increasing order. */
+    private final double[] upperBounds;
+
+    /** The number of values in each bucket, plus one for the values above all bounds. */
+    private final LongAdder[] counts;
+
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * @param name the name of the metric, in snake case.
+     * @param help a description of the metric.
+     * @param upperBounds the upper bounds of the buckets, in increasing order.
+     */
+    public Histogram(String name, String help, double... upperBounds) {
+        this.name = name;
+        this.help = help;
+        this.upperBounds = upperBounds.clone();
+        this.counts = new LongAdder[upperBounds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /** @return the given number of bucket bounds, starting from the given one and multiplied by the given factor. */
+    public static double[] exponentialBuckets(double start, double factor, int count) {
+        double[] bounds = new double[count];
+        for (int i = 0; i < count; i++) {
+            bounds[i] = start;
+            start *= factor;
+        }
+        return bounds;
+    }
+
+    public void observe(double value) {
+        int bucket = Arrays.binarySearch(upperBounds, value);
+        if (bucket < 0) {
+            bucket = -bucket - 1; // the first bound above the value
+        }
+        counts[bucket].increment();
+        sum.add(value);
+    }
+
+    /** @return the number of values observed. */
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucketCount : counts) {
+            count += bucketCount.sum();
+        }
+        return count;
+    }
+
+    /** @return the sum of the values observed. */
+    public double getSum() {
+        return sum.sum();
+    }
+
+    /** Write the cumulative counts of the buckets, the sum and the count of the values in the Prometheus format. */
+    public void write(PrintWriter writer) {
+        writer.printf("# HELP %s %s\n", name, help);
+        writer.printf("# TYPE %s histogram\n", name);
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i].sum();
+            String bound = i < upperBounds.length ? formatValue(upperBounds[i]) : "+Inf";
+            writer.printf("%s_bucket{le=\"%s\"} %d\n", name, bound, count);
+        }
+        writer.printf("%s_sum %s\n", name, formatValue(sum.sum()));
+        writer.printf("%s_count %d\n", name, count);
+    }
+
+    /** @return the value without a fractional part if it is a whole number, as Prometheus clients write them. */
+    public static String formatValue(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+}
@@ -0,0 +1,50 @@
+package org.opentripplanner.analyst;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.profile.ProfileRequest;
+import org.opentripplanner.profile.RepeatedRaptorProfileRouter;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class TimeSurfaceTest extends TestCase {
+
+    /** A deserialized surface has no graph, but must still know where its vertices are. */
+    public void testSerialization() throws Exception {
+        Graph graph = new Graph();
+        IntersectionVertex a = new IntersectionVertex(graph, "a", -122.4, 37.8);
+        IntersectionVertex b = new IntersectionVertex(graph, "b", -122.41, 37.81);
+        IntersectionVertex unreached = new IntersectionVertex(graph, "unreached", -122.42, 37.82);
+        graph.rebuildVertexAndEdgeIndices();
+
+        TimeSurface surface = new TimeSurface(new RepeatedRaptorProfileRouter(graph, new ProfileRequest()));
+        surface.times.put(a, 60);
+        surface.times.put(b, 600);
+        surface.times.compact();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(surface);
+        out.close();
+        TimeSurface copy = (TimeSurface) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertNull(copy.graph);
+        assertEquals(60, copy.getTime(a.getIndex()));
+        assertEquals(600, copy.getTime(b.getIndex()));
+        assertEquals(new Coordinate(-122.4, 37.8), copy.getVertexCoordinate(a.getIndex()));
+        assertEquals(new Coordinate(-122.41, 37.81), copy.getVertexCoordinate(b.getIndex()));
+        assertNull(copy.getVertexCoordinate(unreached.getIndex()));
+
+        copy.makeSampleGridWithoutSPT();
+        assertTrue(copy.sampleGrid.size() > 0);
+    }
+
+}
@@ -0,0 +1,49 @@
+package org.opentripplanner.analyst;
+
+import junit.framework.TestCase;
+
+public class VertexTimesTest extends TestCase {
+
+    public void testPutAndGet() {
+        VertexTimes times = new VertexTimes(4);
+        assertEquals(VertexTimes.UNREACHABLE, times.get(2));
+        assertEquals(VertexTimes.UNREACHABLE, times.get(100));
+        times.put(2, 60);
+        times.put(100, 120);
+        times.put(2, 30);
+        assertEquals(30, times.get(2));
+        assertEquals(120, times.get(100));
+        assertEquals(VertexTimes.UNREACHABLE, times.get(50));
+        assertEquals(2, times.size());
+        times.put(100, VertexTimes.UNREACHABLE);
+        assertEquals(1, times.size());
+    }
+
+    /** Compacted times must be the same, in less memory, and remain writable. */
+    public void testCompact() {
+        VertexTimes times = new VertexTimes(100000);
+        for (int i = 0; i < 1000; i += 3) {
+            times.put(i, i * 10);
+        }
+        long bytes = times.byteSize();
+        times.compact();
+        assertTrue(times.byteSize() < bytes / 100);
+        assertEquals(999 + 1, times.indexLimit());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 3 == 0 ? i * 10 : VertexTimes.UNREACHABLE, times.get(i));
+        }
+        assertEquals(334, times.size());
+
+        // times which do not fit in a short
+        times.put(1, 100000);
+        times.put(5000, 7);
+        assertEquals(100000, times.get(1));
+        assertEquals(7, times.get(5000));
+        assertEquals(9990, times.get(999));
+        assertEquals(336, times.size());
+        times.compact();
+        assertEquals(100000, times.get(1));
+        assertEquals(5001, times.indexLimit());
+    }
+
+}
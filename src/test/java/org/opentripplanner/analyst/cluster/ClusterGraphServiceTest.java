@@ -0,0 +1,91 @@
+package org.opentripplanner.analyst.cluster;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.routing.graph.Graph;
+
+public class ClusterGraphServiceTest extends TestCase {
+
+    private static final String GRAPH_ID = "caltrain";
+
+    private File originalGraphDir;
+
+    private File gtfsFile;
+
+    private File graphFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        originalGraphDir = ClusterGraphService.GRAPH_DIR;
+        ClusterGraphService.GRAPH_DIR = Files.createTempDirectory("graphs").toFile();
+        File inputDir = new File(ClusterGraphService.GRAPH_DIR, GRAPH_ID);
+        gtfsFile = new File(inputDir, "caltrain_gtfs.zip");
+        FileUtils.copyFile(new File(ConstantsForTests.CALTRAIN_GTFS), gtfsFile);
+        graphFile = new File(inputDir, ClusterGraphService.SHARED_GRAPH_FILENAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(ClusterGraphService.GRAPH_DIR);
+        ClusterGraphService.GRAPH_DIR = originalGraphDir;
+    }
+
+    /** The second worker loads the graph saved by the first one, without building it again. */
+    public void testSharedGraph() throws Exception {
+        Graph built = sharingService().getRouter(GRAPH_ID).graph;
+        assertTrue(graphFile.exists());
+        long saved = graphFile.lastModified();
+
+        // the second worker could not build the graph without its inputs
+        assertTrue(gtfsFile.delete());
+        Graph loaded = sharingService().getRouter(GRAPH_ID).graph;
+        assertNotSame(built, loaded);
+        assertEquals(GRAPH_ID, loaded.routerId);
+        assertEquals(built.countVertices(), loaded.countVertices());
+        assertEquals(built.countEdges(), loaded.countEdges());
+        assertEquals(built.index.stopForId.keySet(), loaded.index.stopForId.keySet());
+        assertEquals(saved, graphFile.lastModified());
+    }
+
+    /** A graph file which cannot be loaded is replaced, and the graph is built in memory meanwhile. */
+    public void testUnloadableGraphFile() throws Exception {
+        FileUtils.writeStringToFile(graphFile, "not a graph");
+        Graph built = sharingService().getRouter(GRAPH_ID).graph;
+        assertTrue(built.countVertices() > 0);
+        assertTrue(graphFile.length() > "not a graph".length());
+
+        assertTrue(gtfsFile.delete());
+        Graph loaded = sharingService().getRouter(GRAPH_ID).graph;
+        assertEquals(built.countVertices(), loaded.countVertices());
+    }
+
+    /** A worker which cannot lock the graph file builds the graph in memory, without saving it. */
+    public void testLockFailure() throws Exception {
+        assertTrue(new File(ClusterGraphService.GRAPH_DIR, GRAPH_ID + ".lock").mkdirs());
+        Graph built = sharingService().getRouter(GRAPH_ID).graph;
+        assertTrue(built.countVertices() > 0);
+        assertFalse(graphFile.exists());
+    }
+
+    /** Shared graphs are kept for the following requests, the graphs built by each worker on its own are not. */
+    public void testCaching() throws Exception {
+        ClusterGraphService sharing = sharingService();
+        assertSame(sharing.getRouter(GRAPH_ID), sharing.getRouter(GRAPH_ID));
+        ClusterGraphService notSharing = new ClusterGraphService(null, true, null);
+        assertNotSame(notSharing.getRouter(GRAPH_ID), notSharing.getRouter(GRAPH_ID));
+        assertTrue(notSharing.getRouterIds().isEmpty());
+    }
+
+    /** @return a graph service as used by a worker sharing its graphs, which works in the local cache only. */
+    private static ClusterGraphService sharingService() {
+        ClusterGraphService service = new ClusterGraphService(null, true, null);
+        service.shareGraphs = true;
+        return service;
+    }
+
+}
@@ -3,11 +3,11 @@ package org.opentripplanner.analyst.scenario;
 import com.google.common.collect.Lists;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.io.WKTReader;
-import gnu.trove.iterator.TObjectIntIterator;
 import gnu.trove.map.TIntIntMap;
 import junit.framework.TestCase;
 import org.joda.time.LocalDate;
 import org.junit.Test;
+import org.opentripplanner.analyst.TimeSurface;
 import org.opentripplanner.common.model.GenericLocation;
 import org.opentripplanner.profile.ProfileRequest;
 import org.opentripplanner.profile.RaptorWorkerData;
@@ -17,7 +17,6 @@ import org.opentripplanner.routing.algorithm.AStar;
 import org.opentripplanner.routing.core.RoutingRequest;
 import org.opentripplanner.routing.core.TraverseMode;
 import org.opentripplanner.routing.graph.Graph;
-import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
 import org.opentripplanner.routing.spt.ShortestPathTree;
 
@@ -172,9 +171,9 @@ public class AddTripPatternTest extends TestCase {
         // make sure that we have transfers a) between the new lines b) from the new lines
         // to the existing lines c) from the existing lines to the new lines
         // stop IDs in the data will be 0 and 1 for existing stops, 2 - 6 for Broad/High and 7 - 11 for Bexley/CMH
-        int[] txFromExisting = data.transfersForStop.get(0);
+        int[] txFromExisting = transfersForStop(data, 0);
         if (txFromExisting.length == 0)
-            txFromExisting = data.transfersForStop.get(1);
+            txFromExisting = transfersForStop(data, 1);
 
         // make sure there's a transfer to stop 4 (Broad/High)
         // the AddTripPattern instructions are processed in order
@@ -195,7 +194,7 @@ public class AddTripPatternTest extends TestCase {
 
         // Check that there are transfers from the new route to the existing route
         // This is the stop at Broad and High
-        int[] txToExisting = data.transfersForStop.get(4);
+        int[] txToExisting = transfersForStop(data, 4);
         assertTrue(txToExisting.length > 0);
         foundTx = false;
 
@@ -210,7 +209,7 @@ public class AddTripPatternTest extends TestCase {
         assertTrue("transfer from new to existing", foundTx);
 
         // Check that there are transfers between the new routes
-        int[] txBetweenNew = data.transfersForStop.get(7);
+        int[] txBetweenNew = transfersForStop(data, 7);
         assertTrue(txBetweenNew.length > 0);
         foundTx = false;
 
@@ -224,6 +223,12 @@ public class AddTripPatternTest extends TestCase {
         assertTrue(foundTx);
     }
 
+    /** @return the (stop, distance) pairs of the transfers out of the given stop of the RAPTOR data. */
+    private static int[] transfersForStop (RaptorWorkerData data, int stop) {
+        return Arrays.copyOfRange(data.transfersForStopPairs, data.transfersForStopOffsets[stop],
+                data.transfersForStopOffsets[stop + 1]);
+    }
+
     /** Test the full routing */
     @Test
     public void integrationTest () throws Exception {
@@ -260,14 +265,15 @@ public class AddTripPatternTest extends TestCase {
         boolean foundDecrease = false;
 
         // make sure that travel time did not increase
-        for (TObjectIntIterator<Vertex> vit = rrpr1.timeSurfaceRangeSet.min.times.iterator(); vit.hasNext();) {
-            vit.advance();
+        for (int v = 0; v < rrpr1.timeSurfaceRangeSet.min.times.indexLimit(); v++) {
+            int time1 = rrpr1.timeSurfaceRangeSet.min.getTime(v);
+            if (time1 == TimeSurface.UNREACHABLE) continue;
 
-            int time2 = rrpr2.timeSurfaceRangeSet.min.getTime(vit.key());
+            int time2 = rrpr2.timeSurfaceRangeSet.min.getTime(v);
 
-            assertTrue(time2 <= vit.value());
+            assertTrue(time2 <= time1);
 
-            if (time2 < vit.value()) foundDecrease = true;
+            if (time2 < time1) foundDecrease = true;
         }
 
         assertTrue("found decreases in travel time due to adding route", foundDecrease);
@@ -0,0 +1,122 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.api.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class RequestExecutorTest {
+
+    @Test
+    public void testAdmissionControl() throws Exception {
+        RequestExecutor executor = new RequestExecutor("test", 1, 1, 0);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncResponse first = suspendedResponse();
+        AsyncResponse second = suspendedResponse();
+        AsyncResponse third = suspendedResponse();
+
+        executor.submit(first, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                started.countDown();
+                release.await();
+                return "first";
+            }
+        });
+        started.await(10, TimeUnit.SECONDS);
+        // waits in the queue
+        executor.submit(second, answer("second"));
+        // the only thread is busy and the queue is full
+        executor.submit(third, answer("third"));
+
+        ArgumentCaptor<Object> rejection = ArgumentCaptor.forClass(Object.class);
+        verify(third).resume(rejection.capture());
+        assertEquals(503, ((Response) rejection.getValue()).getStatus());
+
+        release.countDown();
+        verify(first, timeout(10000)).resume((Object) "first");
+        verify(second, timeout(10000)).resume((Object) "second");
+        executor.shutdown();
+
+        RequestExecutor.Stats stats = executor.getStats();
+        assertEquals(2, stats.accepted);
+        assertEquals(1, stats.rejected);
+        assertEquals(0, stats.timedOut);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        RequestExecutor executor = new RequestExecutor("test", 1, 1, 30);
+        AsyncResponse response = suspendedResponse();
+        // the request times out while it is queued, so it is never started
+        when(response.isSuspended()).thenReturn(false);
+        final CountDownLatch called = new CountDownLatch(1);
+        executor.submit(response, new Callable<String>() {
+            @Override
+            public String call() {
+                called.countDown();
+                return "late";
+            }
+        });
+
+        ArgumentCaptor<TimeoutHandler> handler = ArgumentCaptor.forClass(TimeoutHandler.class);
+        verify(response).setTimeoutHandler(handler.capture());
+        verify(response).setTimeout(30, TimeUnit.SECONDS);
+        handler.getValue().handleTimeout(response);
+        verify(response, timeout(10000)).isSuspended();
+        executor.shutdown();
+
+        assertEquals(1, called.getCount());
+        ArgumentCaptor<Object> answer = ArgumentCaptor.forClass(Object.class);
+        verify(response).resume(answer.capture());
+        assertEquals(503, ((Response) answer.getValue()).getStatus());
+        RequestExecutor.Stats stats = executor.getStats();
+        assertEquals(1, stats.accepted);
+        assertEquals(0, stats.completed);
+        assertEquals(1, stats.timedOut);
+    }
+
+    private static AsyncResponse suspendedResponse() {
+        AsyncResponse response = mock(AsyncResponse.class);
+        when(response.isSuspended()).thenReturn(true);
+        when(response.resume(any())).thenReturn(true);
+        return response;
+    }
+
+    private static Callable<String> answer(final String answer) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return answer;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,75 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.api.resource;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.api.model.TripPlan;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.edgetype.TimetableSnapshot;
+import org.opentripplanner.routing.spt.GraphPath;
+
+public class PlanCacheTest extends TestCase {
+
+    public void testRoundTime() {
+        PlanCache cache = new PlanCache(10, 60, 300);
+        RoutingRequest request = new RoutingRequest();
+        request.dateTime = 1000;
+        cache.roundTime(request);
+        assertEquals(1020, request.dateTime); // departures after any time in the bucket
+        request.dateTime = 1020;
+        cache.roundTime(request);
+        assertEquals(1020, request.dateTime);
+        request.setArriveBy(true);
+        request.dateTime = 1000;
+        cache.roundTime(request);
+        assertEquals(960, request.dateTime); // arrivals before any time in the bucket
+    }
+
+    public void testGetAndInvalidate() {
+        PlanCache cache = new PlanCache(10, 60, 300);
+        Map<String, List<String>> parameters = Collections.singletonMap("mode", Arrays.asList("TRANSIT,WALK"));
+        PlanCache.Key key = new PlanCache.Key("a", "b", null, null, 1020, false, parameters);
+        PlanCache.Key otherKey = new PlanCache.Key("a", "c", null, null, 1020, false, parameters);
+        TimetableSnapshot buffer = new TimetableSnapshot();
+        TimetableSnapshot first = buffer.commit(true);
+        TripPlan plan = new TripPlan();
+
+        assertNull(cache.get(key, first));
+        cache.put(key, plan, Collections.<GraphPath>emptyList(), first);
+        assertSame(plan, cache.get(new PlanCache.Key("a", "b", null, null, 1020, false, parameters), first));
+        assertNull(cache.get(otherKey, first));
+
+        // a commit not touching the patterns of the plan keeps it
+        TimetableSnapshot second = buffer.commit(true);
+        assertSame(plan, cache.get(key, second));
+
+        // a commit after clearing all the timetables drops it
+        buffer.clear();
+        TimetableSnapshot third = buffer.commit(true);
+        assertNull(cache.get(key, third));
+
+        PlanCache.Stats stats = cache.getStats();
+        assertEquals(2, stats.hits);
+        assertEquals(3, stats.misses);
+        assertEquals(1, stats.invalidations);
+        assertEquals(0, stats.size);
+    }
+
+}
@@ -0,0 +1,88 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class PersistentMapTest extends TestCase {
+
+    public void testVersionsAreIndependent() {
+        PersistentMap<String, Integer> empty = PersistentMap.empty();
+        Map<String, Integer> changes = new HashMap<>();
+        changes.put("a", 1);
+        changes.put("b", 2);
+        PersistentMap<String, Integer> v1 = empty.plus(changes);
+        changes.put("b", null);
+        changes.put("c", 3);
+        PersistentMap<String, Integer> v2 = v1.plus(changes);
+
+        assertTrue(empty.isEmpty());
+        assertEquals(2, v1.size());
+        assertEquals(Integer.valueOf(2), v1.get("b"));
+        assertNull(v1.get("c"));
+        assertEquals(2, v2.size());
+        assertNull(v2.get("b"));
+        assertFalse(v2.containsKey("b"));
+        assertEquals(Integer.valueOf(3), v2.get("c"));
+        assertEquals(2, v2.toMap().size());
+
+        // removing absent keys and empty changes do not make new versions
+        changes.clear();
+        changes.put("x", null);
+        assertSame(v2, v2.plus(changes));
+        assertSame(v2, v2.plus(new HashMap<String, Integer>()));
+    }
+
+    /** Compare with a plain map over many small changes, keeping all versions around. */
+    public void testRandomChanges() {
+        Random random = new Random(42);
+        Map<Integer, Integer> expected = new HashMap<>();
+        PersistentMap<Integer, Integer> map = PersistentMap.empty();
+        List<PersistentMap<Integer, Integer>> versions = new ArrayList<>();
+        List<Map<Integer, Integer>> expectedVersions = new ArrayList<>();
+        for (int version = 0; version < 500; version++) {
+            Map<Integer, Integer> changes = new HashMap<>();
+            for (int i = random.nextInt(20); i >= 0; i--) {
+                int key = random.nextInt(1000);
+                Integer value = random.nextInt(5) == 0 ? null : random.nextInt();
+                changes.put(key, value);
+            }
+            map = map.plus(changes);
+            for (Map.Entry<Integer, Integer> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    expected.remove(change.getKey());
+                } else {
+                    expected.put(change.getKey(), change.getValue());
+                }
+            }
+            versions.add(map);
+            expectedVersions.add(new HashMap<>(expected));
+            assertEquals(expected.size(), map.size());
+            assertTrue(map.getLayerCount() <= 10);
+        }
+        for (int v = 0; v < versions.size(); v++) {
+            assertEquals(expectedVersions.get(v), versions.get(v).toMap());
+            for (int key = 0; key < 1000; key++) {
+                assertEquals(expectedVersions.get(v).get(key), versions.get(v).get(key));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,55 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.routing.edgetype.SimpleTransfer;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+
+public class DirectTransferGeneratorTest extends TestCase {
+
+    /** Searching for nearby stops on several threads must create the same transfers as on a single thread. */
+    public void testSameTransfersWithSeveralThreads() {
+        List<String> serial = transfers(1);
+        assertFalse(serial.isEmpty());
+        assertEquals(serial, transfers(4));
+    }
+
+    private List<String> transfers(int nThreads) {
+        Graph graph = ConstantsForTests.buildGraph(ConstantsForTests.PORTLAND_GTFS);
+        DirectTransferGenerator generator = new DirectTransferGenerator();
+        generator.nThreads = nThreads;
+        generator.buildGraph(graph, new HashMap<Class<?>, Object>());
+        assertTrue(graph.hasDirectTransfers);
+        List<String> transfers = new ArrayList<String>();
+        for (Vertex v : graph.getVertices()) {
+            for (Edge e : v.getOutgoing()) {
+                if (e instanceof SimpleTransfer) {
+                    transfers.add(e.getFromVertex().getLabel() + " " + e.getToVertex().getLabel() + " "
+                            + e.getDistance());
+                }
+            }
+        }
+        return transfers;
+    }
+
+}
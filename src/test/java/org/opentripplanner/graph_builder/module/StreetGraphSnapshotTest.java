@@ -0,0 +1,153 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.io.FileUtils;
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.opentripplanner.graph_builder.model.GtfsBundle;
+import org.opentripplanner.routing.edgetype.SimpleTransfer;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Joiner;
+import com.google.common.io.Files;
+
+public class StreetGraphSnapshotTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() {
+        directory = Files.createTempDir();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /** Only the parameters which affect the streets are part of the hash. */
+    public void testHash() throws Exception {
+        File osm = File.createTempFile("streets", ".osm", directory);
+        Files.write("<osm/>".getBytes("UTF-8"), osm);
+        List<File> inputs = Arrays.asList(osm);
+        ObjectMapper mapper = new ObjectMapper();
+        String hash = StreetGraphSnapshot.hashInputs(inputs, mapper.readTree("{\"areaVisibility\": true}"));
+        assertEquals(hash, StreetGraphSnapshot.hashInputs(inputs,
+                mapper.readTree("{\"areaVisibility\": true, \"subwayAccessTime\": 3, \"fares\": \"nyc\"}")));
+        assertFalse(hash.equals(StreetGraphSnapshot.hashInputs(inputs,
+                mapper.readTree("{\"areaVisibility\": false}"))));
+        Files.write("<osm></osm>".getBytes("UTF-8"), osm);
+        assertFalse(hash.equals(StreetGraphSnapshot.hashInputs(inputs,
+                mapper.readTree("{\"areaVisibility\": true}"))));
+    }
+
+    /**
+     * Transit built on the streets of a snapshot must be the same as on freshly built streets, including the transfers
+     * between stops, which are found with the stop index of the graph.
+     */
+    public void testTransitOnSnapshot() throws Exception {
+        StreetGraphSnapshot snapshot = new StreetGraphSnapshot(directory, "test");
+        assertFalse(snapshot.exists());
+        Graph built = FakeGraph.buildGraphNoTransit();
+        snapshot.buildGraph(built, new HashMap<Class<?>, Object>());
+        assertTrue(snapshot.exists());
+
+        Graph loaded = snapshot.load();
+        assertNotNull(loaded);
+        assertNull(loaded.index);
+        assertNull(loaded.streetIndex);
+        assertEquals(built.countVertices(), loaded.countVertices());
+        assertEquals(built.countEdges(), loaded.countEdges());
+
+        File gtfs = writeGtfs();
+        addTransit(built, gtfs);
+        addTransit(loaded, gtfs);
+        assertEquals(built.countVertices(), loaded.countVertices());
+        assertEquals(built.countEdges(), loaded.countEdges());
+        List<String> transfers = transfers(built);
+        assertFalse(transfers.isEmpty());
+        assertEquals(transfers, transfers(loaded));
+        assertEquals(built.index.stopForId.keySet(), loaded.index.stopForId.keySet());
+        for (AgencyAndId stopId : built.index.stopForId.keySet()) {
+            assertEquals(built.index.patternsForStop.get(built.index.stopForId.get(stopId)).size(),
+                    loaded.index.patternsForStop.get(loaded.index.stopForId.get(stopId)).size());
+        }
+
+        // a snapshot of other streets replaces this one
+        new StreetGraphSnapshot(directory, "other").buildGraph(FakeGraph.buildGraphNoTransit(),
+                new HashMap<Class<?>, Object>());
+        assertFalse(snapshot.exists());
+    }
+
+    /** Run the transit modules of a build, as GraphBuilder does after the streets. */
+    private static void addTransit(Graph graph, File gtfs) {
+        new GtfsModule(Arrays.asList(new GtfsBundle(gtfs))).buildGraph(graph, new HashMap<Class<?>, Object>());
+        FakeGraph.link(graph);
+        new DirectTransferGenerator().buildGraph(graph, new HashMap<Class<?>, Object>());
+    }
+
+    private static List<String> transfers(Graph graph) {
+        List<String> transfers = new ArrayList<String>();
+        for (Vertex v : graph.getVertices()) {
+            for (Edge e : v.getOutgoing()) {
+                if (e instanceof SimpleTransfer) {
+                    transfers.add(e.getFromVertex().getLabel() + " " + e.getToVertex().getLabel() + " "
+                            + e.getDistance());
+                }
+            }
+        }
+        Collections.sort(transfers);
+        return transfers;
+    }
+
+    /** Write a feed with two routes in Columbus, which cross near one stop of each. */
+    private File writeGtfs() throws IOException {
+        File gtfs = new File(directory, "gtfs");
+        gtfs.mkdir();
+        write(gtfs, "agency.txt", "agency_id,agency_name,agency_url,agency_timezone",
+                "agency,Agency,http://www.example.com,America/New_York");
+        write(gtfs, "calendar.txt",
+                "service_id,monday,tuesday,wednesday,thursday,friday,saturday,sunday,start_date,end_date",
+                "service,1,1,1,1,1,1,1,19991231,21001231");
+        write(gtfs, "routes.txt", "route_id,agency_id,route_short_name,route_long_name,route_type",
+                "A,agency,A,High Street,3", "B,agency,B,Broad Street,3");
+        write(gtfs, "stops.txt", "stop_id,stop_name,stop_lat,stop_lon",
+                "a1,a1,39.9621,-83.0007", "a2,a2,39.9800,-83.0007",
+                "b1,b1,39.9630,-83.0000", "b2,b2,39.9630,-82.9800");
+        write(gtfs, "trips.txt", "route_id,service_id,trip_id", "A,service,a", "B,service,b");
+        write(gtfs, "stop_times.txt", "trip_id,arrival_time,departure_time,stop_id,stop_sequence",
+                "a,08:00:00,08:00:00,a1,1", "a,08:10:00,08:10:00,a2,2",
+                "b,08:00:00,08:00:00,b1,1", "b,08:10:00,08:10:00,b2,2");
+        return gtfs;
+    }
+
+    private static void write(File directory, String name, String... lines) throws IOException {
+        Files.write(Joiner.on('\n').join(lines) + "\n", new File(directory, name), StandardCharsets.UTF_8);
+    }
+
+}
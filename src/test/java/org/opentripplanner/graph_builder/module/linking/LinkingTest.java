@@ -2,6 +2,7 @@ package org.opentripplanner.graph_builder.module.linking;
 
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
+import com.google.common.io.Files;
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
@@ -14,6 +15,8 @@ import org.junit.Test;
 import org.opentripplanner.common.geometry.GeometryUtils;
 import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
 import org.opentripplanner.common.model.P2;
+import org.opentripplanner.graph_builder.linking.SimpleStreetSplitter;
+import org.opentripplanner.graph_builder.linking.StreetLinkingCache;
 import org.opentripplanner.profile.StopTreeCache;
 import org.opentripplanner.routing.edgetype.StreetEdge;
 import org.opentripplanner.routing.edgetype.StreetTransitLink;
@@ -27,10 +30,13 @@ import org.opentripplanner.routing.vertextype.SplitterVertex;
 import org.opentripplanner.routing.vertextype.StreetVertex;
 import org.opentripplanner.routing.vertextype.TransitStop;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 import static org.opentripplanner.graph_builder.module.FakeGraph.*;
@@ -151,6 +157,52 @@ public class LinkingTest {
         }
     }
 
+    /**
+     * Test that stops linked with the links cached by a previous build of the same streets are linked exactly as
+     * they are with a spatial search, and that only the new stops are searched for.
+     */
+    @Test
+    public void testCachedLinks () throws Exception {
+        File cacheDirectory = Files.createTempDir();
+        String inputHash = "test";
+
+        Graph g1 = buildGraphNoTransit();
+        addRegularStopGrid(g1);
+        StreetLinkingCache cache = new StreetLinkingCache(cacheDirectory, inputHash);
+        new SimpleStreetSplitter(g1, cache).link();
+        int nStops = Iterables.size(Iterables.filter(g1.getVertices(), TransitStop.class));
+        assertEquals(0, cache.getHits());
+        assertEquals(nStops, cache.getMisses());
+        cache.save();
+
+        Graph g2 = buildGraphNoTransit();
+        addExtraStops(g2);
+        addRegularStopGrid(g2);
+        cache = new StreetLinkingCache(cacheDirectory, inputHash);
+        new SimpleStreetSplitter(g2, cache).link();
+        assertEquals(nStops, cache.getHits());
+        assertTrue(cache.getMisses() > 0);
+
+        Graph g3 = buildGraphNoTransit();
+        addExtraStops(g3);
+        addRegularStopGrid(g3);
+        link(g3);
+
+        for (TransitStop ts : Iterables.filter(g3.getVertices(), TransitStop.class)) {
+            assertEquals("Different links from stop " + ts, linkTargets(ts),
+                    linkTargets((TransitStop) g2.getVertex(ts.getLabel())));
+        }
+    }
+
+    private static Set<String> linkTargets (TransitStop ts) {
+        Set<String> targets = new HashSet<String>();
+        for (Edge e : stls(ts.getOutgoing())) {
+            targets.add(e.getToVertex().getLat() + "," + e.getToVertex().getLon());
+        }
+        assertFalse(targets.isEmpty());
+        return targets;
+    }
+
     private TObjectIntMap<String> jaggedArrayToVertexMap(int[] value, Graph g) {
         TObjectIntMap<String> ret = new TObjectIntHashMap<String>();
 
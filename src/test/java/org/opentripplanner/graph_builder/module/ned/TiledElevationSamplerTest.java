@@ -0,0 +1,70 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.ned;
+
+import java.util.Random;
+
+import javax.media.jai.InterpolationBilinear;
+
+import junit.framework.TestCase;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.Interpolator2D;
+import org.geotools.geometry.DirectPosition2D;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.coverage.Coverage;
+import org.opentripplanner.common.geometry.GeometryUtils;
+
+public class TiledElevationSamplerTest extends TestCase {
+
+    private static final int SIZE = TiledElevationSampler.BLOCK_SIZE * 2 + 100;
+
+    /** Elevations interpolated in blocks must be those the coverage gives, wherever the block can give them. */
+    public void testSameAsCoverage() {
+        Random random = new Random(42);
+        float[][] matrix = new float[SIZE][SIZE];
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                matrix[row][col] = (float) (100 + 50 * Math.sin(row / 40.0) * Math.cos(col / 70.0)
+                        + random.nextDouble());
+            }
+        }
+        ReferencedEnvelope envelope = new ReferencedEnvelope(-122.5, -122.0, 37.5, 38.0, GeometryUtils.WGS84_XY);
+        GridCoverage2D grid = new GridCoverageFactory().create("test", matrix, envelope);
+        Coverage coverage = Interpolator2D.create(grid, new InterpolationBilinear());
+
+        TiledElevationSampler sampler = TiledElevationSampler.forCoverage(coverage);
+        assertNotNull(sampler);
+        int nSampled = 0;
+        double[] values = new double[1];
+        for (int i = 0; i < 10000; i++) {
+            double x = -122.5 + random.nextDouble() * 0.5;
+            double y = 37.5 + random.nextDouble() * 0.5;
+            long key = sampler.blockKey(x, y);
+            assertTrue(key >= 0);
+            double elevation = sampler.sample(sampler.loadBlock(key), x, y);
+            if (Double.isNaN(elevation)) {
+                continue;
+            }
+            coverage.evaluate(new DirectPosition2D(GeometryUtils.WGS84_XY, x, y), values);
+            assertEquals(values[0], elevation, 1e-9);
+            nSampled++;
+        }
+        // only points near the edges of the blocks fall back to the coverage
+        assertTrue(nSampled > 9900);
+        assertEquals(-1, sampler.blockKey(-123, 37.7));
+    }
+
+}
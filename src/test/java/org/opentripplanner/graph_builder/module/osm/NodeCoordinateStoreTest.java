@@ -0,0 +1,57 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.graph_builder.module.osm;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.openstreetmap.model.OSMNode;
+
+public class NodeCoordinateStoreTest extends TestCase {
+
+    public void testSortedNodes() {
+        NodeCoordinateStore store = new NodeCoordinateStore();
+        for (long id = 1; id <= 3000000; id += 2) {
+            store.add(id, 40 + id * 1e-7, -74 - id * 1e-7);
+        }
+        assertEquals(1500000, store.size());
+        assertFalse(store.contains(0));
+        assertFalse(store.contains(2000000));
+        OSMNode node = store.getNode(2000001);
+        assertEquals(2000001, node.getId());
+        assertEquals(40.2000001, node.lat, 1e-9);
+        assertEquals(-74.2000001, node.lon, 1e-9);
+        assertNull(node.getTags());
+    }
+
+    public void testUnsortedNodesFromSeveralFiles() {
+        NodeCoordinateStore store = new NodeCoordinateStore(new File(System.getProperty("java.io.tmpdir")));
+        long[] ids = { 42, 7, 1L << 40, -100, 42, 7 };
+        for (long id : ids) {
+            store.add(id, id % 90, -1.2345678);
+        }
+        assertEquals(4, store.size());
+        for (long id : ids) {
+            assertEquals(id % 90, store.getNode(id).lat, 1e-9);
+            assertEquals(-1.2345678, store.getNode(id).lon, 0);
+        }
+        // nodes from another file after the lookups
+        store.add(3, 1, 2);
+        assertEquals(1.0, store.getNode(3).lat);
+        assertNotNull(store.getNode(1L << 40));
+        store.close();
+    }
+
+}
@@ -154,6 +154,36 @@ public class TestOpenStreetMapGraphBuilder extends TestCase {
         }
     }
 
+    /**
+     * Keeping the nodes without tags in primitive arrays must build the same streets as keeping them as objects.
+     */
+    @Test
+    public void testNodeStorage() throws Exception {
+        Set<String> streets = buildStreets(OSMDatabase.NodeStorage.OBJECTS);
+        assertFalse(streets.isEmpty());
+        assertEquals(streets, buildStreets(OSMDatabase.NodeStorage.ARRAYS));
+        assertEquals(streets, buildStreets(OSMDatabase.NodeStorage.MAPPED));
+    }
+
+    private Set<String> buildStreets(OSMDatabase.NodeStorage nodeStorage) throws Exception {
+        Graph gg = new Graph();
+        OpenStreetMapModule loader = new OpenStreetMapModule();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        loader.nodeStorage = nodeStorage;
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        File file = new File(URLDecoder.decode(getClass().getResource("NYC_small.osm.gz").getFile(), "UTF-8"));
+        provider.setPath(file);
+        loader.setProvider(provider);
+        loader.buildGraph(gg, extra);
+
+        Set<String> streets = new HashSet<String>();
+        for (StreetEdge se : gg.getStreetEdges()) {
+            streets.add(se.getFromVertex().getLabel() + " " + se.getToVertex().getLabel() + " "
+                    + se.getGeometry() + " " + se.getPermission());
+        }
+        return streets;
+    }
+
     @Test
     public void testWayDataSet() {
         OSMWithTags way = new OSMWay();
@@ -0,0 +1,116 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.openstreetmap.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.openstreetmap.model.OSMNode;
+import org.opentripplanner.openstreetmap.model.OSMRelation;
+import org.opentripplanner.openstreetmap.model.OSMWay;
+import org.opentripplanner.openstreetmap.model.OSMWithTags;
+import org.opentripplanner.openstreetmap.services.OpenStreetMapContentHandler;
+
+import crosby.binary.file.BlockInputStream;
+
+public class ParallelPbfReaderTest extends TestCase {
+
+    private static final String COLUMBUS = "/org/opentripplanner/graph_builder/module/columbus.osm.pbf";
+
+    /** The handler must get the same entities in the same order as when the blocks are decoded one by one. */
+    public void testSameEntitiesAsBlockInputStream() throws Exception {
+        File file = getFile(COLUMBUS);
+        List<String> serial = readSerially(file);
+        assertTrue(serial.size() > 1000);
+        assertEquals(serial, readInParallel(file, 4));
+        assertEquals(serial, readInParallel(file, 1));
+    }
+
+    private File getFile(String resource) throws Exception {
+        return new File(URLDecoder.decode(getClass().getResource(resource).getFile(), "UTF-8"));
+    }
+
+    private List<String> readSerially(File file) throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        BinaryOpenStreetMapParser parser = new BinaryOpenStreetMapParser(handler);
+        parser.setParseNodes(false);
+        parser.setParseWays(false);
+        new BlockInputStream(new FileInputStream(file), parser).process();
+        handler.doneFirstPhaseRelations();
+        parser.setParseRelations(false);
+        parser.setParseWays(true);
+        new BlockInputStream(new FileInputStream(file), parser).process();
+        handler.doneSecondPhaseWays();
+        parser.setParseNodes(true);
+        parser.setParseWays(false);
+        new BlockInputStream(new FileInputStream(file), parser).process();
+        handler.doneThirdPhaseNodes();
+        return handler.events;
+    }
+
+    private List<String> readInParallel(File file, int nThreads) throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        BinaryFileBasedOpenStreetMapProviderImpl provider = new BinaryFileBasedOpenStreetMapProviderImpl();
+        provider.setPath(file);
+        provider.setThreads(nThreads);
+        provider.readOSM(handler);
+        return handler.events;
+    }
+
+    private static class RecordingHandler implements OpenStreetMapContentHandler {
+
+        List<String> events = new ArrayList<String>();
+
+        private String tags(OSMWithTags entity) {
+            return entity.getTags() == null ? "{}" : new TreeMap<String, String>(entity.getTags()).toString();
+        }
+
+        @Override
+        public void addNode(OSMNode node) {
+            events.add("node " + node.getId() + " " + node.lat + " " + node.lon + " " + tags(node));
+        }
+
+        @Override
+        public void addWay(OSMWay way) {
+            events.add("way " + way.getId() + " " + way.getNodeRefs() + " " + tags(way));
+        }
+
+        @Override
+        public void addRelation(OSMRelation relation) {
+            events.add("relation " + relation.getId() + " " + relation.getMembers().size() + " " + tags(relation));
+        }
+
+        @Override
+        public void doneFirstPhaseRelations() {
+            events.add("relations done");
+        }
+
+        @Override
+        public void doneSecondPhaseWays() {
+            events.add("ways done");
+        }
+
+        @Override
+        public void doneThirdPhaseNodes() {
+            events.add("nodes done");
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package org.opentripplanner.profile;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+public class MinuteTimesSpillTest extends TestCase {
+
+    private static final int U = RaptorWorker.UNREACHED;
+
+    public void testRoundTrip() throws Exception {
+        int[][] minutes = new int[][] {
+                { 600, U, 0, 7200, U },
+                { 660, U, 0, 7100, 300 },
+                { U, 1200, 0, 7100, 240 }
+        };
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MinuteTimesSpill spill = new MinuteTimesSpill(bytes, 5);
+        // minutes may be written out of order
+        spill.writeMinute(2, minutes[2]);
+        spill.writeMinute(0, minutes[0]);
+        spill.writeMinute(1, minutes[1]);
+        spill.flush();
+
+        MinuteTimesSpill.Reader reader = new MinuteTimesSpill.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(5, reader.getTargetCount());
+        for (int expectedMinute : new int[] { 2, 0, 1 }) {
+            assertTrue(reader.next());
+            assertEquals(expectedMinute, reader.getMinute());
+            assertTrue(Arrays.equals(minutes[expectedMinute], reader.getTimes()));
+        }
+        assertFalse(reader.next());
+    }
+
+    /** Times that change little between minutes take much less space than plain ints. */
+    public void testCompression() throws Exception {
+        int nTargets = 10000;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MinuteTimesSpill spill = new MinuteTimesSpill(bytes, nTargets);
+        int[] times = new int[nTargets];
+        for (int minute = 0; minute < 60; minute++) {
+            for (int t = 0; t < nTargets; t++) {
+                times[t] = t % 13 == 0 ? U : 1800 + t % 3600 + (minute + t) % 5 * 60;
+            }
+            spill.writeMinute(minute, times);
+        }
+        spill.flush();
+        assertTrue(bytes.size() < 60 * nTargets * 2);
+    }
+
+}
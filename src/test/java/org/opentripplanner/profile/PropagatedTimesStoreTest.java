@@ -0,0 +1,65 @@
+package org.opentripplanner.profile;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class PropagatedTimesStoreTest extends TestCase {
+
+    private static final int U = RaptorWorker.UNREACHED;
+
+    private static final int[][] MINUTES = new int[][] {
+            { 600, U, 100 },
+            { 660, U, 3000 },
+            { 900, 1200, 200 },
+            { 610, U, 150 }
+    };
+
+    public void testStreamingMatchesArray() {
+        PropagatedTimesStore fromArray = new PropagatedTimesStore(null, 3);
+        fromArray.setFromArray(MINUTES);
+
+        // two halves merged separately, as parallel blocks do
+        PropagatedTimesStore streamed = new PropagatedTimesStore(null, 3);
+        PropagatedTimesStore block = streamed.emptyCopy();
+        streamed.mergeMinute(MINUTES[0]);
+        streamed.mergeMinute(MINUTES[1]);
+        block.mergeMinute(MINUTES[2]);
+        block.mergeMinute(MINUTES[3]);
+        streamed.mergeStore(block);
+
+        assertTrue(Arrays.equals(fromArray.mins, streamed.mins));
+        assertTrue(Arrays.equals(fromArray.maxs, streamed.maxs));
+        assertTrue(Arrays.equals(fromArray.sums, streamed.sums));
+        assertTrue(Arrays.equals(fromArray.counts, streamed.counts));
+        assertEquals(600, streamed.mins[0]);
+        assertEquals(1200, streamed.maxs[1]);
+        assertEquals(1, streamed.counts[1]);
+    }
+
+    public void testPercentiles() {
+        PropagatedTimesStore store = new PropagatedTimesStore(null, 3);
+        store.keepHistograms(300, RaptorWorker.MAX_DURATION);
+        PropagatedTimesStore block = store.emptyCopy();
+        store.mergeMinute(MINUTES[0]);
+        store.mergeMinute(MINUTES[1]);
+        block.mergeMinute(MINUTES[2]);
+        block.mergeMinute(MINUTES[3]);
+        store.mergeStore(block);
+
+        // target 0: 600, 610, 660 in the 600-900 bin, and 900 in the next
+        assertEquals(3, store.getHistogram(0)[2]);
+        assertEquals(1, store.getHistogram(0)[3]);
+        assertEquals(900, store.getPercentile(0, 50));
+        assertEquals(900, store.getPercentile(0, 100));
+        // target 2: 100, 150, 200 in the first bin, 3000 further up
+        assertEquals(300, store.getPercentile(2, 75));
+        assertEquals(3000, store.getPercentile(2, 100));
+
+        PropagatedTimesStore unreached = new PropagatedTimesStore(null, 1);
+        unreached.keepHistograms(300, RaptorWorker.MAX_DURATION);
+        unreached.mergeMinute(new int[] { U });
+        assertEquals(U, unreached.getPercentile(0, 50));
+    }
+
+}
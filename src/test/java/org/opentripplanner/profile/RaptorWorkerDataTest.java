@@ -0,0 +1,286 @@
+package org.opentripplanner.profile;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import junit.framework.TestCase;
+import org.joda.time.LocalDate;
+import org.opentripplanner.routing.graph.Graph;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.time.DayOfWeek;
+import java.util.Arrays;
+
+import static org.opentripplanner.graph_builder.module.FakeGraph.*;
+
+/**
+ * Test the flat (CSR) layout of RaptorWorkerData, and check that RAPTOR rounds on the flat layout give the same results
+ * as on the nested arrays it replaced.
+ */
+public class RaptorWorkerDataTest extends TestCase {
+
+    private Graph graph;
+
+    private RaptorWorkerData data;
+
+    private ProfileRequest req;
+
+    @Override
+    protected void setUp() throws Exception {
+        graph = buildGraphNoTransit();
+        addTransit(graph);
+        link(graph);
+        LocalDate date = new LocalDate(2015, 6, 10);
+        TimeWindow window = new TimeWindow(7 * 3600, 9 * 3600 + RaptorWorker.MAX_DURATION,
+                graph.index.servicesRunning(date), DayOfWeek.WEDNESDAY);
+        data = new RaptorWorkerData(graph, window, null);
+        req = new ProfileRequest();
+        req.fromTime = 7 * 3600;
+        req.toTime = 9 * 3600;
+        req.walkSpeed = 1.3f;
+    }
+
+    /** Check the offsets of n rows, and that the values in even (or all) positions are below valueLimit. */
+    private static void assertFlattened(int n, int[] offsets, int[] payload, boolean pairs, int valueLimit) {
+        assertEquals(n + 1, offsets.length);
+        assertEquals(0, offsets[0]);
+        for (int i = 0; i < n; i++) {
+            assertTrue(offsets[i] <= offsets[i + 1]);
+            if (pairs) assertEquals(0, offsets[i] % 2);
+        }
+        assertEquals(payload.length, offsets[n]);
+        for (int i = 0; i < payload.length; i += pairs ? 2 : 1) {
+            assertTrue(payload[i] >= 0 && payload[i] < valueLimit);
+        }
+    }
+
+    public void testFlatLayout() {
+        assertTrue(data.nStops > 0);
+        assertFlattened(data.nPatterns, data.stopsForPatternOffsets, data.stopsForPatternStops, false, data.nStops);
+        assertFlattened(data.nStops, data.patternsForStopOffsets, data.patternsForStopPatterns, false, data.nPatterns);
+        assertFlattened(data.nStops, data.transfersForStopOffsets, data.transfersForStopPairs, true, data.nStops);
+        assertFlattened(data.nStops, data.targetsForStopOffsets, data.targetsForStopPairs, true, data.nTargets);
+
+        // every pattern is listed at every stop it visits
+        for (int p = 0; p < data.nPatterns; p++) {
+            for (int i = data.stopsForPatternOffsets[p]; i < data.stopsForPatternOffsets[p + 1]; i++) {
+                int stop = data.stopsForPatternStops[i];
+                boolean listed = false;
+                for (int j = data.patternsForStopOffsets[stop]; j < data.patternsForStopOffsets[stop + 1]; j++) {
+                    if (data.patternsForStopPatterns[j] == p) listed = true;
+                }
+                assertTrue(listed);
+            }
+        }
+
+        for (int p = 0; p < data.nPatterns; p++) {
+            RaptorWorkerTimetable timetable = data.timetablesForPattern.get(p);
+            for (int trip = 1; trip < timetable.getTripCount(); trip++) {
+                // trips are sorted, and each stop's times are stored together
+                assertTrue(timetable.getDeparture(trip, 0) >= timetable.getDeparture(trip - 1, 0));
+            }
+        }
+    }
+
+    public void testSerialization() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(data);
+        out.close();
+        RaptorWorkerData copy = (RaptorWorkerData) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        assertEquals(data.nStops, copy.nStops);
+        assertEquals(data.nTargets, copy.nTargets);
+        assertTrue(Arrays.equals(data.stopsForPatternOffsets, copy.stopsForPatternOffsets));
+        assertTrue(Arrays.equals(data.stopsForPatternStops, copy.stopsForPatternStops));
+        assertTrue(Arrays.equals(data.patternsForStopOffsets, copy.patternsForStopOffsets));
+        assertTrue(Arrays.equals(data.patternsForStopPatterns, copy.patternsForStopPatterns));
+        assertTrue(Arrays.equals(data.transfersForStopOffsets, copy.transfersForStopOffsets));
+        assertTrue(Arrays.equals(data.transfersForStopPairs, copy.transfersForStopPairs));
+        assertTrue(Arrays.equals(data.targetsForStopOffsets, copy.targetsForStopOffsets));
+        assertTrue(Arrays.equals(data.targetsForStopPairs, copy.targetsForStopPairs));
+
+        // the flat layout is all the worker needs
+        TIntIntMap initialStops = initialStops();
+        RaptorWorker original = new RaptorWorker(data, req);
+        RaptorWorker deserialized = new RaptorWorker(copy, req);
+        original.runRaptor(initialStops, req.fromTime);
+        deserialized.runRaptor(initialStops, req.fromTime);
+        assertTrue(Arrays.equals(original.bestTimes, deserialized.bestTimes));
+    }
+
+    /** The rounds on the flat layout must give the same best times as on the nested arrays, at every minute. */
+    public void testSameAsNestedLayout() {
+        TIntIntMap initialStops = initialStops();
+        RaptorWorker flat = new RaptorWorker(data, req);
+        NestedWorker nested = new NestedWorker(data, req);
+        for (int departureTime = req.toTime - 60; departureTime >= req.fromTime; departureTime -= 60) {
+            flat.runRaptor(initialStops, departureTime);
+            nested.runRaptor(initialStops, departureTime);
+            assertTrue(Arrays.equals(flat.bestTimes, nested.bestTimes));
+            assertTrue(Arrays.equals(flat.bestNonTransferTimes, nested.bestNonTransferTimes));
+        }
+    }
+
+    /** Start at every stop, with a different access time for each. */
+    private TIntIntMap initialStops() {
+        TIntIntMap initialStops = new TIntIntHashMap();
+        for (int s = 0; s < data.nStops; s++) {
+            initialStops.put(s, 60 + 120 * s);
+        }
+        return initialStops;
+    }
+
+    /**
+     * The rounds as they were implemented on the nested layout: one array of stops per pattern, one array of transfers
+     * and patterns per stop, and one array of times per trip.
+     */
+    private static class NestedWorker extends RaptorWorker {
+        final ProfileRequest req;
+
+        final int[][] stopsForPattern;
+
+        final int[][] patternsForStop;
+
+        final int[][] transfersForStop;
+
+        final int[][][] timesPerTripForPattern;
+
+        NestedWorker(RaptorWorkerData data, ProfileRequest req) {
+            super(data, req);
+            this.req = req;
+            stopsForPattern = nest(data.stopsForPatternOffsets, data.stopsForPatternStops);
+            patternsForStop = nest(data.patternsForStopOffsets, data.patternsForStopPatterns);
+            transfersForStop = nest(data.transfersForStopOffsets, data.transfersForStopPairs);
+            timesPerTripForPattern = new int[data.nPatterns][][];
+            for (int p = 0; p < timesPerTripForPattern.length; p++) {
+                RaptorWorkerTimetable timetable = data.timetablesForPattern.get(p);
+                int nStops = stopsForPattern[p].length;
+                int[][] timesPerTrip = new int[timetable.getTripCount()][nStops * 2];
+                for (int trip = 0; trip < timesPerTrip.length; trip++) {
+                    for (int s = 0; s < nStops; s++) {
+                        timesPerTrip[trip][s * 2] = timetable.getArrival(trip, s);
+                        timesPerTrip[trip][s * 2 + 1] = timetable.getDeparture(trip, s);
+                    }
+                }
+                timesPerTripForPattern[p] = timesPerTrip;
+            }
+        }
+
+        private static int[][] nest(int[] offsets, int[] payload) {
+            int[][] nested = new int[offsets.length - 1][];
+            for (int i = 0; i < nested.length; i++) {
+                nested[i] = Arrays.copyOfRange(payload, offsets[i], offsets[i + 1]);
+            }
+            return nested;
+        }
+
+        @Override
+        public boolean doOneRound() {
+            stopsTouched.clear();
+            PATTERNS: for (int p = patternsTouched.nextSetBit(0); p >= 0; p = patternsTouched.nextSetBit(p + 1)) {
+                int onTrip = -1;
+                RaptorWorkerTimetable timetable = data.timetablesForPattern.get(p);
+                int[][] timesPerTrip = timesPerTripForPattern[p];
+                int[] stops = stopsForPattern[p];
+                int stopPositionInPattern = -1;
+
+                int bestFreqBoardTime = Integer.MAX_VALUE;
+                int bestFreqBoardStop = -1;
+                int bestFreq = -1;
+
+                for (int stopIndex : stops) {
+                    stopPositionInPattern += 1;
+                    int remainOnBoardTime;
+                    if (bestFreq != -1) {
+                        remainOnBoardTime = bestFreqBoardTime +
+                                timetable.getFrequencyTravelTime(bestFreq, bestFreqBoardStop, stopPositionInPattern);
+                    } else {
+                        remainOnBoardTime = Integer.MAX_VALUE;
+                    }
+                    if (bestTimes[stopIndex] != UNREACHED) {
+                        for (int trip = 0; trip < timetable.getFrequencyTripCount(); trip++) {
+                            int boardTime = timetable.getFrequencyDeparture(trip, stopPositionInPattern, bestTimes[stopIndex], true);
+                            if (boardTime != -1 && boardTime < remainOnBoardTime) {
+                                if (bestFreqBoardStop == stopPositionInPattern && bestFreqBoardTime < boardTime)
+                                    continue;
+                                bestFreqBoardTime = boardTime;
+                                bestFreqBoardStop = stopPositionInPattern;
+                                bestFreq = trip;
+                            }
+                        }
+                    }
+                    if (remainOnBoardTime != Integer.MAX_VALUE && remainOnBoardTime < max_time) {
+                        if (bestNonTransferTimes[stopIndex] > remainOnBoardTime) {
+                            bestNonTransferTimes[stopIndex] = remainOnBoardTime;
+                            stopsTouched.set(stopIndex);
+                            if (bestTimes[stopIndex] > remainOnBoardTime)
+                                bestTimes[stopIndex] = remainOnBoardTime;
+                        }
+                    }
+                }
+
+                if (bestFreq != -1)
+                    continue PATTERNS;
+
+                stopPositionInPattern = -1;
+                for (int stopIndex : stops) {
+                    stopPositionInPattern += 1;
+                    if (onTrip == -1) {
+                        if (bestTimes[stopIndex] == UNREACHED) {
+                            continue;
+                        }
+                        for (int trip = 0; trip < timesPerTrip.length; trip++) {
+                            if (timesPerTrip[trip][stopPositionInPattern * 2 + 1] >
+                                    bestTimes[stopIndex] + RaptorWorkerTimetable.MIN_BOARD_TIME_SECONDS) {
+                                onTrip = trip;
+                                break;
+                            }
+                        }
+                    } else {
+                        int arrivalTime = timesPerTrip[onTrip][stopPositionInPattern * 2];
+                        if (arrivalTime < max_time && arrivalTime < bestNonTransferTimes[stopIndex]) {
+                            bestNonTransferTimes[stopIndex] = arrivalTime;
+                            stopsTouched.set(stopIndex);
+                            if (arrivalTime < bestTimes[stopIndex])
+                                bestTimes[stopIndex] = arrivalTime;
+                        }
+                        while (onTrip > 0) {
+                            if (timesPerTrip[onTrip - 1][stopPositionInPattern * 2 + 1] > bestTimes[stopIndex]) {
+                                onTrip--;
+                            } else {
+                                break;
+                            }
+                        }
+                    }
+                }
+            }
+
+            patternsTouched.clear();
+            for (int stop = stopsTouched.nextSetBit(0); stop >= 0; stop = stopsTouched.nextSetBit(stop + 1)) {
+                markPatterns(stop);
+                int fromTime = bestNonTransferTimes[stop];
+                int[] transfers = transfersForStop[stop];
+                for (int i = 0; i < transfers.length; i += 2) {
+                    int toStop = transfers[i];
+                    int toTime = fromTime + (int) (transfers[i + 1] / req.walkSpeed);
+                    if (toTime < max_time && toTime < bestTimes[toStop]) {
+                        bestTimes[toStop] = toTime;
+                        markPatterns(toStop);
+                    }
+                }
+            }
+            return !patternsTouched.isEmpty();
+        }
+
+        private void markPatterns(int stop) {
+            for (int pattern : patternsForStop[stop]) {
+                patternsTouched.set(pattern);
+            }
+        }
+    }
+
+}
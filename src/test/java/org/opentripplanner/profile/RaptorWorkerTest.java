@@ -0,0 +1,164 @@
+package org.opentripplanner.profile;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import junit.framework.TestCase;
+import org.joda.time.LocalDate;
+import org.opentripplanner.analyst.TimeSurface;
+import org.opentripplanner.routing.graph.Graph;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.time.DayOfWeek;
+import java.util.Arrays;
+
+import static org.opentripplanner.graph_builder.module.FakeGraph.*;
+
+/**
+ * Test that running the departure minutes of repeated RAPTOR in parallel blocks gives the same results as running
+ * them serially, that incremental propagation to targets gives the same results as propagating every stop, and that
+ * the streamed statistics match the full matrix of times.
+ */
+public class RaptorWorkerTest extends TestCase {
+
+    private RepeatedRaptorProfileRouter route (Graph g, int raptorThreads) {
+        ProfileRequest pr = new ProfileRequest();
+        pr.date = new LocalDate(2015, 6, 10);
+        pr.fromTime = 7 * 3600;
+        pr.toTime = 9 * 3600;
+        pr.fromLat = pr.toLat = 39.9621;
+        pr.fromLon = pr.toLon = -83.0007;
+        pr.walkSpeed = 1.3f;
+        pr.raptorThreads = raptorThreads;
+        RepeatedRaptorProfileRouter router = new RepeatedRaptorProfileRouter(g, pr);
+        router.route();
+        return router;
+    }
+
+    public void testParallelBlocks () throws Exception {
+        Graph g = buildGraphNoTransit();
+        addTransit(g);
+        link(g);
+
+        RepeatedRaptorProfileRouter serial = route(g, 1);
+        RepeatedRaptorProfileRouter parallel = route(g, 4);
+
+        int reached = 0;
+        int limit = Math.max(serial.timeSurfaceRangeSet.max.times.indexLimit(),
+                parallel.timeSurfaceRangeSet.max.times.indexLimit());
+        for (int v = 0; v < limit; v++) {
+            assertEquals(serial.timeSurfaceRangeSet.min.getTime(v), parallel.timeSurfaceRangeSet.min.getTime(v));
+            assertEquals(serial.timeSurfaceRangeSet.avg.getTime(v), parallel.timeSurfaceRangeSet.avg.getTime(v));
+            assertEquals(serial.timeSurfaceRangeSet.max.getTime(v), parallel.timeSurfaceRangeSet.max.getTime(v));
+            if (serial.timeSurfaceRangeSet.max.getTime(v) != TimeSurface.UNREACHABLE) reached++;
+        }
+        assertTrue(reached > 0);
+    }
+
+    /**
+     * The statistics streamed into the PropagatedTimesStore must match those of all the minutes written to a spill,
+     * and parallel blocks must give the same times as a serial search at every minute.
+     */
+    public void testSpill () throws Exception {
+        Graph g = buildGraphNoTransit();
+        addTransit(g);
+        link(g);
+        TimeWindow window = new TimeWindow(7 * 3600, 9 * 3600 + RaptorWorker.MAX_DURATION,
+                g.index.servicesRunning(new LocalDate(2015, 6, 10)), DayOfWeek.WEDNESDAY);
+        RaptorWorkerData data = new RaptorWorkerData(g, window, null);
+        TIntIntMap accessTimes = new TIntIntHashMap();
+        accessTimes.put(0, 300);
+        int[] walkTimes = new int[data.nTargets];
+        Arrays.fill(walkTimes, RaptorWorker.UNREACHED);
+
+        int[][] serialMinutes = null;
+        for (int raptorThreads : new int[] { 1, 3 }) {
+            ProfileRequest pr = new ProfileRequest();
+            pr.fromTime = 7 * 3600;
+            pr.toTime = 9 * 3600;
+            pr.walkSpeed = 1.3f;
+            pr.raptorThreads = raptorThreads;
+            RaptorWorker worker = new RaptorWorker(data, pr);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            worker.spill = new MinuteTimesSpill(bytes, data.nTargets);
+            PropagatedTimesStore store = worker.runRaptor(g, accessTimes, walkTimes);
+
+            int[][] minutes = new int[(pr.toTime - pr.fromTime) / 60][];
+            MinuteTimesSpill.Reader reader = new MinuteTimesSpill.Reader(new ByteArrayInputStream(bytes.toByteArray()));
+            while (reader.next()) {
+                assertNull(minutes[reader.getMinute()]);
+                minutes[reader.getMinute()] = reader.getTimes().clone();
+            }
+            PropagatedTimesStore expected = new PropagatedTimesStore(g, data.nTargets);
+            expected.setFromArray(minutes);
+            assertTrue(Arrays.equals(expected.mins, store.mins));
+            assertTrue(Arrays.equals(expected.maxs, store.maxs));
+            assertTrue(Arrays.equals(expected.sums, store.sums));
+            assertTrue(Arrays.equals(expected.counts, store.counts));
+
+            if (serialMinutes == null) {
+                serialMinutes = minutes;
+            } else {
+                for (int n = 0; n < minutes.length; n++) {
+                    assertTrue(Arrays.equals(serialMinutes[n], minutes[n]));
+                }
+            }
+        }
+    }
+
+    public void testIncrementalPropagation () throws Exception {
+        Graph g = buildGraphNoTransit();
+        addTransit(g);
+        link(g);
+        TimeWindow window = new TimeWindow(7 * 3600, 9 * 3600 + RaptorWorker.MAX_DURATION,
+                g.index.servicesRunning(new LocalDate(2015, 6, 10)), DayOfWeek.WEDNESDAY);
+        RaptorWorkerData data = new RaptorWorkerData(g, window, null);
+        ProfileRequest pr = new ProfileRequest();
+        pr.fromTime = 7 * 3600;
+        pr.toTime = 9 * 3600;
+        pr.walkSpeed = 1.3f;
+
+        TIntIntMap initialStops = new TIntIntHashMap();
+        initialStops.put(0, 300);
+        int[] walkTimes = new int[data.nTargets];
+        Arrays.fill(walkTimes, RaptorWorker.UNREACHED);
+        for (int t = 0; t < walkTimes.length; t += 7) {
+            walkTimes[t] = t % 5000;
+        }
+
+        RaptorWorker worker = new RaptorWorker(data, pr);
+        int[] timesAtTargets = new int[data.nTargets];
+        for (int departureTime = pr.toTime - 60; departureTime >= pr.fromTime; departureTime -= 60) {
+            worker.runRaptor(initialStops, departureTime);
+            worker.propagate(departureTime, walkTimes, timesAtTargets);
+            int[] expected = propagateAllStops(data, worker.bestNonTransferTimes, departureTime, walkTimes, pr.walkSpeed);
+            assertTrue(Arrays.equals(expected, timesAtTargets));
+        }
+    }
+
+    /**
+     * Propagate every reached stop to its targets for a single departure minute, as RaptorWorker did before
+     * propagation was incremental.
+     */
+    private static int[] propagateAllStops (RaptorWorkerData data, int[] bestNonTransferTimes, int departureTime,
+                                            int[] walkTimes, float walkSpeed) {
+        int[] timesAtTargets = new int[data.nTargets];
+        System.arraycopy(walkTimes, 0, timesAtTargets, 0, timesAtTargets.length);
+        for (int s = 0; s < data.nStops; s++) {
+            int baseTimeSeconds = bestNonTransferTimes[s];
+            if (baseTimeSeconds != RaptorWorker.UNREACHED) {
+                baseTimeSeconds -= departureTime;
+                for (int i = data.targetsForStopOffsets[s]; i < data.targetsForStopOffsets[s + 1]; i++) {
+                    int targetIndex = data.targetsForStopPairs[i++];
+                    int distance = data.targetsForStopPairs[i];
+                    int propagatedTime = baseTimeSeconds + (int) (distance / walkSpeed);
+                    if (timesAtTargets[targetIndex] > propagatedTime) {
+                        timesAtTargets[targetIndex] = propagatedTime;
+                    }
+                }
+            }
+        }
+        return timesAtTargets;
+    }
+
+}
@@ -16,6 +16,7 @@ package org.opentripplanner.routing.algorithm;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 
 import java.util.HashSet;
 import java.util.List;
@@ -23,6 +24,7 @@ import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.opentripplanner.api.resource.DebugOutput;
 import org.opentripplanner.routing.algorithm.strategies.MultiTargetTerminationStrategy;
 import org.opentripplanner.routing.algorithm.strategies.SearchTerminationStrategy;
 import org.opentripplanner.routing.core.State;
@@ -244,6 +246,40 @@ public class AStarTest {
         }
     }
 
+    @Test
+    public void testSearchCounts() {
+        RoutingRequest options = new RoutingRequest();
+        options.walkSpeed = 1.0;
+        options.setRoutingContext(_graph, _graph.getVertex("56th_24th"), _graph.getVertex("leary_20th"));
+        new AStar().getShortestPathTree(options);
+
+        DebugOutput debugOutput = options.rctx.debugOutput;
+        debugOutput.reportSearchCounts();
+        DebugOutput.SearchCounts counts = debugOutput.searchCounts;
+        // at least the vertices of the path are settled, and every settled vertex after the first was created
+        assertTrue(counts.verticesSettled >= 7);
+        assertTrue(counts.statesCreated >= counts.verticesSettled - 1);
+        assertTrue(counts.maxQueueSize > 0);
+        assertTrue(counts.maxQueueSize <= counts.statesCreated + 1);
+    }
+
+    /** A search on an interrupted thread stops, like a search which timed out, without finding the target. */
+    @Test
+    public void testInterrupted() {
+        RoutingRequest options = new RoutingRequest();
+        options.walkSpeed = 1.0;
+        options.setRoutingContext(_graph, _graph.getVertex("56th_24th"), _graph.getVertex("leary_20th"));
+        Thread.currentThread().interrupt();
+        ShortestPathTree tree;
+        try {
+            tree = new AStar().getShortestPathTree(options);
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(options.rctx.aborted);
+        assertNull(tree.getPath(_graph.getVertex("leary_20th"), false));
+    }
+
     /****
      * Private Methods
      ****/
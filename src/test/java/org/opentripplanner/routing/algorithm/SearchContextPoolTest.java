@@ -0,0 +1,141 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.gtfs.GtfsContext;
+import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.spt.VertexIndexShortestPathTree;
+import org.opentripplanner.util.TestUtils;
+
+/**
+ * Check that searches reusing a SearchContext give the same results as searches allocating their own data
+ * structures, and allocate less memory.
+ */
+public class SearchContextPoolTest extends TestCase {
+
+    private static final int N_SEARCHES = 200;
+
+    private Graph graph;
+
+    @Override
+    public void setUp() throws Exception {
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.CALTRAIN_GTFS));
+        graph = new Graph();
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+        factory.run(graph);
+        graph.putService(CalendarServiceData.class, GtfsLibrary.createCalendarServiceData(context.getDao()));
+    }
+
+    private GraphPath search(SearchContext searchContext, int minutesAfterNoon) {
+        RoutingRequest options = new RoutingRequest();
+        // the default options of trip planning requests
+        options.dateTime = TestUtils.dateInSeconds("America/Los_Angeles", 2009, 8, 7, 12, minutesAfterNoon, 0);
+        options.setRoutingContext(graph, "Caltrain:Millbrae Caltrain", "Caltrain:Mountain View Caltrain");
+        AStar aStar = new AStar();
+        aStar.setSearchContext(searchContext);
+        ShortestPathTree spt = aStar.getShortestPathTree(options);
+        return spt.getPath(graph.getVertex("Caltrain:Mountain View Caltrain"), true);
+    }
+
+    public void testSameResults() {
+        RoutingRequest options = new RoutingRequest();
+        options.setRoutingContext(graph, "Caltrain:Millbrae Caltrain", "Caltrain:Mountain View Caltrain");
+        assertTrue(new SearchContext().getShortestPathTree(options) instanceof VertexIndexShortestPathTree);
+        assertFalse(options.getNewShortestPathTree() instanceof VertexIndexShortestPathTree);
+
+        SearchContextPool pool = new SearchContextPool(1);
+        for (int m = 0; m < 60; m += 7) {
+            SearchContext searchContext = pool.borrow();
+            GraphPath pooled = search(searchContext, m);
+            pool.release(searchContext);
+            GraphPath fresh = search(null, m);
+            assertEquals(fresh.getEndTime(), pooled.getEndTime());
+            assertEquals(fresh.getWeight(), pooled.getWeight());
+            assertEquals(fresh.states.size(), pooled.states.size());
+        }
+        // Every search after the first one reused the single pooled context.
+        assertEquals(1, pool.getCreatedCount());
+    }
+
+    public void testPoolBounds() {
+        SearchContextPool pool = new SearchContextPool(1);
+        SearchContext a = pool.borrow();
+        SearchContext b = pool.borrow();
+        assertNotSame(a, b);
+        pool.release(a);
+        pool.release(b); // dropped, the pool is full
+        assertSame(a, pool.borrow());
+        assertNotSame(b, pool.borrow());
+        assertEquals(3, pool.getCreatedCount());
+    }
+
+    /** The heuristic weights handed out are all infinite, even when the previous search set some of them. */
+    public void testHeuristicWeights() {
+        SearchContext searchContext = new SearchContext();
+        double[] weights = searchContext.getHeuristicWeights(10);
+        assertEquals(10, weights.length);
+        weights[3] = 42;
+        searchContext.heuristicWeightSet(3);
+        weights[7] = -1;
+        searchContext.heuristicWeightSet(7);
+        assertSame(weights, searchContext.getHeuristicWeights(5));
+        for (double weight : weights) {
+            assertEquals(Double.POSITIVE_INFINITY, weight);
+        }
+        double[] longer = searchContext.getHeuristicWeights(20);
+        assertEquals(20, longer.length);
+        for (double weight : longer) {
+            assertEquals(Double.POSITIVE_INFINITY, weight);
+        }
+    }
+
+    /**
+     * Check that reusing a context allocates less memory per search than allocating new data structures, with the
+     * default options where a search without a context uses a map-backed tree.
+     */
+    public void testAllocationRate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if ( ! (bean instanceof com.sun.management.ThreadMXBean)) return;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if ( ! threadBean.isThreadAllocatedMemorySupported()) return;
+        long threadId = Thread.currentThread().getId();
+        SearchContext searchContext = new SearchContext();
+        // Warm up both code paths.
+        for (int i = 0; i < N_SEARCHES; i++) {
+            search(null, i % 60);
+            search(searchContext, i % 60);
+        }
+        long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < N_SEARCHES; i++) search(null, i % 60);
+        long freshBytes = threadBean.getThreadAllocatedBytes(threadId) - start;
+        start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < N_SEARCHES; i++) search(searchContext, i % 60);
+        long pooledBytes = threadBean.getThreadAllocatedBytes(threadId) - start;
+        assertTrue(String.format("Allocated per search: %d bytes with new structures, %d bytes with a reused context.",
+                freshBytes / N_SEARCHES, pooledBytes / N_SEARCHES), pooledBytes < freshBytes);
+    }
+
+}
@@ -0,0 +1,192 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.common.pqueue.BinHeap;
+import org.opentripplanner.graph_builder.module.LandmarkModule;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.algorithm.TraverseVisitor;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class LandmarkRemainingWeightHeuristicTest extends TestCase {
+
+    private static final int SIZE = 40;
+
+    private Graph graph;
+
+    private IntersectionVertex[][] grid;
+
+    /**
+     * A grid of streets about 100m apart, with a river between the two middle rows that can only be crossed at the
+     * western end, so that points facing each other across the river are far apart.
+     */
+    @Override
+    protected void setUp() {
+        graph = new Graph();
+        grid = new IntersectionVertex[SIZE][SIZE];
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                grid[row][col] = new IntersectionVertex(graph, row + "_" + col,
+                        -122.4 + col * 0.0013, 47.6 + row * 0.0009);
+            }
+        }
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                if (col + 1 < SIZE) {
+                    street(grid[row][col], grid[row][col + 1]);
+                }
+                if (row + 1 < SIZE && (row != SIZE / 2 - 1 || col == 0)) {
+                    street(grid[row][col], grid[row + 1][col]);
+                }
+            }
+        }
+        new LandmarkModule(8, TraverseMode.WALK).buildGraph(graph, null);
+    }
+
+    private void street(IntersectionVertex a, IntersectionVertex b) {
+        double length = SphericalDistanceLibrary.distance(a.getCoordinate(), b.getCoordinate());
+        Coordinate[] coordinates = new Coordinate[] { a.getCoordinate(), b.getCoordinate() };
+        new StreetEdge(a, b, GeometryUtils.getGeometryFactory().createLineString(coordinates),
+                a.getLabel() + "-" + b.getLabel(), length, StreetTraversalPermission.ALL, false);
+        coordinates = new Coordinate[] { b.getCoordinate(), a.getCoordinate() };
+        new StreetEdge(b, a, GeometryUtils.getGeometryFactory().createLineString(coordinates),
+                b.getLabel() + "-" + a.getLabel(), length, StreetTraversalPermission.ALL, true);
+    }
+
+    /** The bounds must never exceed the street distances, nor be looser than the straight line distance everywhere. */
+    public void testLowerBounds() {
+        LandmarkDistances distances = graph.getService(LandmarkDistances.class);
+        LandmarkDistances.Table table = distances.getTable(new TraverseModeSet(TraverseMode.WALK));
+        assertNotNull(table);
+        assertNull(distances.getTable(new TraverseModeSet(TraverseMode.CAR)));
+        assertNull(distances.getTable(new TraverseModeSet("WALK,TRANSIT")));
+
+        Vertex origin = grid[SIZE / 2 - 1][SIZE - 1];
+        Map<Vertex, Double> streetDistances = streetDistances(origin);
+        boolean someBoundAboveEuclidean = false;
+        for (IntersectionVertex[] row : grid) {
+            for (IntersectionVertex v : row) {
+                int bound = table.lowerBound(origin.getIndex(), v.getIndex());
+                assertTrue(bound <= streetDistances.get(v));
+                double euclidean = SphericalDistanceLibrary.distance(origin.getCoordinate(), v.getCoordinate());
+                someBoundAboveEuclidean |= bound > euclidean;
+            }
+        }
+        assertTrue(someBoundAboveEuclidean);
+    }
+
+    /** A plain Dijkstra search on street lengths. */
+    private Map<Vertex, Double> streetDistances(Vertex origin) {
+        Map<Vertex, Double> distances = new HashMap<Vertex, Double>();
+        BinHeap<Vertex> queue = new BinHeap<Vertex>();
+        queue.insert(origin, 0);
+        while (!queue.empty()) {
+            double distance = queue.peek_min_key();
+            Vertex v = queue.extract_min();
+            if (distances.containsKey(v)) {
+                continue;
+            }
+            distances.put(v, distance);
+            for (Edge e : v.getOutgoing()) {
+                queue.insert(e.getToVertex(), distance + e.getDistance());
+            }
+        }
+        return distances;
+    }
+
+    /** Loading a graph gives new indexes to the vertices, the tables must follow. */
+    public void testSerialization() throws Exception {
+        LandmarkDistances distances = graph.getService(LandmarkDistances.class);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(distances);
+        out.writeObject(grid);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        LandmarkDistances copy = (LandmarkDistances) in.readObject();
+        Vertex[][] copyGrid = (Vertex[][]) in.readObject();
+        TraverseModeSet walk = new TraverseModeSet(TraverseMode.WALK);
+        LandmarkDistances.Table table = distances.getTable(walk);
+        LandmarkDistances.Table copyTable = copy.getTable(walk);
+        Vertex a = grid[3][5], b = grid[SIZE - 1][SIZE - 2];
+        Vertex copyA = copyGrid[3][5], copyB = copyGrid[SIZE - 1][SIZE - 2];
+        assertTrue(copyA.getIndex() != a.getIndex());
+        assertTrue(copy.covers(copyA));
+        assertFalse(copy.covers(a));
+        assertEquals(table.lowerBound(a.getIndex(), b.getIndex()), copyTable.lowerBound(copyA.getIndex(), copyB.getIndex()));
+        assertEquals(table.lowerBound(b.getIndex(), a.getIndex()), copyTable.lowerBound(copyB.getIndex(), copyA.getIndex()));
+    }
+
+    /**
+     * Searches across the river with the landmark heuristic must settle less than half the states settled with the
+     * Euclidean heuristic, and find paths of the same weight since both are admissible.
+     */
+    public void testSettledStates() {
+        Vertex from = grid[SIZE / 2 - 1][SIZE - 1];
+        Vertex to = grid[SIZE / 2][SIZE - 1];
+        for (boolean arriveBy : new boolean[] { false, true }) {
+            int[] euclidean = search(from, to, arriveBy, new EuclideanRemainingWeightHeuristic());
+            int[] landmark = search(from, to, arriveBy, new LandmarkRemainingWeightHeuristic());
+            assertEquals(euclidean[0], landmark[0]);
+            assertTrue(String.format("arriveBy=%s: %d states settled with the Euclidean heuristic, %d with landmarks",
+                    arriveBy, euclidean[1], landmark[1]), landmark[1] * 2 < euclidean[1]);
+        }
+    }
+
+    /** @return the weight of the path found and the number of states settled. */
+    private int[] search(Vertex from, Vertex to, boolean arriveBy, RemainingWeightHeuristic heuristic) {
+        RoutingRequest options = new RoutingRequest(new TraverseModeSet(TraverseMode.WALK));
+        options.setArriveBy(arriveBy);
+        options.setRoutingContext(graph, from, to);
+        options.rctx.remainingWeightHeuristic = heuristic;
+        final int[] settled = new int[1];
+        AStar aStar = new AStar();
+        aStar.setTraverseVisitor(new TraverseVisitor() {
+            @Override public void visitEdge(Edge edge, State state) { }
+            @Override public void visitEnqueue(State state) { }
+            @Override public void visitVertex(State state) {
+                settled[0]++;
+            }
+        });
+        ShortestPathTree spt = aStar.getShortestPathTree(options);
+        GraphPath path = spt.getPath(arriveBy ? from : to, false);
+        assertNotNull(path);
+        return new int[] { (int) path.getWeight(), settled[0] };
+    }
+
+}
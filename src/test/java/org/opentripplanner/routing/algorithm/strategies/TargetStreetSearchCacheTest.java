@@ -0,0 +1,169 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.algorithm.strategies;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.RepeatingTimePeriod;
+import org.opentripplanner.common.TurnRestriction;
+import org.opentripplanner.common.TurnRestrictionType;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.impl.StreetVertexIndexServiceImpl;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.StreetVertex;
+import org.opentripplanner.util.NonLocalizedString;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.LineString;
+
+public class TargetStreetSearchCacheTest extends TestCase {
+
+    private Graph graph;
+
+    private Vertex a, b, c, sameAsC;
+
+    @Override
+    protected void setUp() {
+        graph = new Graph();
+        a = new IntersectionVertex(graph, "a", -122.4, 47.6);
+        b = new IntersectionVertex(graph, "b", -122.41, 47.61);
+        c = new IntersectionVertex(graph, "c", -122.42, 47.62);
+        sameAsC = new IntersectionVertex(graph, "c'", -122.42, 47.62);
+    }
+
+    public void testKeys() {
+        TargetStreetSearchCache cache = new TargetStreetSearchCache(graph, 10);
+        assertEquals(sameAsC.getIndex() + 1, cache.getVertexIndexLimit());
+        // only the target and the parameters of the street search matter
+        List<Object> toC = cache.key(request(a, c, false));
+        assertEquals(toC, cache.key(request(b, c, false)));
+        RoutingRequest later = request(a, c, false);
+        later.dateTime += 3600;
+        later.numItineraries = 1;
+        assertEquals(toC, cache.key(later));
+        assertFalse(toC.equals(cache.key(request(a, b, false))));
+        assertFalse(toC.equals(cache.key(request(a, sameAsC, false))));
+        assertFalse(toC.equals(cache.key(request(c, a, true))));
+        // including the ones which do not change the weights of walking directly
+        RoutingRequest slow = request(a, c, false);
+        slow.walkSpeed /= 2;
+        assertFalse(toC.equals(cache.key(slow)));
+        RoutingRequest fast = request(a, c, false);
+        fast.carSpeed *= 2;
+        assertFalse(toC.equals(cache.key(fast)));
+        RoutingRequest limited = request(a, c, false);
+        limited.maxPreTransitTime = 600;
+        assertFalse(toC.equals(cache.key(limited)));
+        List<Object> bikeToC = cache.key(bikeRequest(a, c));
+        assertEquals(bikeToC, cache.key(bikeRequest(b, c)));
+        RoutingRequest slowBikeWalk = bikeRequest(a, c);
+        slowBikeWalk.bikeWalkingOptions.walkSpeed /= 2;
+        assertFalse(bikeToC.equals(cache.key(slowBikeWalk)));
+    }
+
+    /** The targets along the same street share their searches, whose weights are lowered for the others. */
+    public void testTargetsAlongTheSameStreet() {
+        StreetEdge ab = street(a, b);
+        Vertex near = target(ab, 0.25);
+        Vertex far = target(ab, 0.75);
+        TargetStreetSearchCache cache = new TargetStreetSearchCache(graph, 10);
+        assertEquals(Arrays.asList(a), TargetStreetSearchCache.linkedVertices(request(c, near, false)));
+        List<Object> toNear = cache.key(request(c, near, false));
+        assertEquals(toNear, cache.key(request(c, far, false)));
+        assertFalse(toNear.equals(cache.key(request(c, a, false))));
+        assertFalse(toNear.equals(cache.key(request(c, b, false))));
+
+        TargetStreetSearchCache.TargetStreetSearch search = new TargetStreetSearchCache.TargetStreetSearch(
+                new Vertex[0], new double[0], new Vertex[0], new double[0], near.getX(), near.getY(), 100);
+        assertEquals(0.0, search.slack(near));
+        assertEquals(100.0, search.slack(far));
+    }
+
+    /** Street searches depending on realtime bike availability or on the time are not shared. */
+    public void testUncachedRequests() {
+        TargetStreetSearchCache cache = new TargetStreetSearchCache(graph, 10);
+        RoutingRequest rental = request(a, c, false);
+        rental.allowBikeRental = true;
+        assertNotNull(cache.key(rental));
+        rental.useBikeRentalAvailabilityInformation = true;
+        assertNull(cache.key(rental));
+
+        StreetEdge ab = street(a, b);
+        StreetEdge bc = street(b, c);
+        TurnRestriction restriction = new TurnRestriction(ab, bc, TurnRestrictionType.NO_TURN,
+                new TraverseModeSet(TraverseMode.CAR));
+        restriction.time = RepeatingTimePeriod.parseFromOsmTurnRestriction("Mo", "Fr", "07:00", "09:00");
+        graph.addTurnRestriction(ab, restriction);
+        cache = new TargetStreetSearchCache(graph, 10);
+        RoutingRequest later = request(a, c, false);
+        later.dateTime += 3600;
+        assertFalse(cache.key(request(a, c, false)).equals(cache.key(later)));
+    }
+
+    public void testLeastRecentlyUsedAreDropped() {
+        TargetStreetSearchCache cache = new TargetStreetSearchCache(graph, 2);
+        List<Object> toA = cache.key(request(b, a, false));
+        List<Object> toB = cache.key(request(a, b, false));
+        List<Object> toC = cache.key(request(a, c, false));
+        TargetStreetSearchCache.TargetStreetSearch search = new TargetStreetSearchCache.TargetStreetSearch(
+                new Vertex[0], new double[0], new Vertex[0], new double[0], 0, 0, 0);
+        cache.put(toA, search);
+        cache.put(toB, search);
+        assertSame(search, cache.get(toA));
+        cache.put(toC, search);
+        assertSame(search, cache.get(toA));
+        assertNull(cache.get(toB));
+        assertSame(search, cache.get(toC));
+    }
+
+    private RoutingRequest bikeRequest(Vertex from, Vertex to) {
+        RoutingRequest options = new RoutingRequest(new TraverseModeSet(TraverseMode.BICYCLE, TraverseMode.TRANSIT));
+        options.setRoutingContext(graph, from, to);
+        return options;
+    }
+
+    private StreetEdge street(Vertex from, Vertex to) {
+        LineString geometry = GeometryUtils.getGeometryFactory().createLineString(
+                new Coordinate[] { from.getCoordinate(), to.getCoordinate() });
+        return new StreetEdge((StreetVertex) from, (StreetVertex) to, geometry, "street", 1000,
+                StreetTraversalPermission.ALL, false);
+    }
+
+    /** @return a temporary target along the given street, at the given fraction of its length. */
+    private Vertex target(StreetEdge street, double fraction) {
+        Coordinate from = street.getFromVertex().getCoordinate();
+        Coordinate to = street.getToVertex().getCoordinate();
+        Coordinate point = new Coordinate(from.x + (to.x - from.x) * fraction, from.y + (to.y - from.y) * fraction);
+        return StreetVertexIndexServiceImpl.createTemporaryStreetLocation(graph, "target " + fraction,
+                new NonLocalizedString("target"), Arrays.asList(street), point, true);
+    }
+
+    private RoutingRequest request(Vertex from, Vertex to, boolean arriveBy) {
+        RoutingRequest options = new RoutingRequest(new TraverseModeSet(TraverseMode.WALK, TraverseMode.TRANSIT));
+        options.setArriveBy(arriveBy);
+        options.setRoutingContext(graph, from, to);
+        return options;
+    }
+
+}
@@ -0,0 +1,235 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.contraction;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.TurnRestriction;
+import org.opentripplanner.common.TurnRestrictionType;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.SphericalDistanceLibrary;
+import org.opentripplanner.graph_builder.module.ContractionHierarchyModule;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.algorithm.strategies.EuclideanRemainingWeightHeuristic;
+import org.opentripplanner.routing.core.OptimizeType;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.graph.Edge;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.spt.GraphPath;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class ContractionHierarchyRouterTest extends TestCase {
+
+    private static final int SIZE = 20;
+
+    private Graph graph;
+
+    private IntersectionVertex[][] grid;
+
+    private StreetEdge restrictedFrom, restrictedTo;
+
+    /**
+     * A grid of streets about 100m apart, with pedestrian streets on every third row, one way streets on every fourth
+     * column, and a turn that cars cannot make in the middle. The car speeds vary from street to street, and there
+     * are stairs which cars are allowed on in every fifth column. Some intersections have traffic lights, so the turn
+     * costs vary from intersection to intersection.
+     */
+    @Override
+    protected void setUp() {
+        graph = new Graph();
+        grid = new IntersectionVertex[SIZE][SIZE];
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                grid[row][col] = new IntersectionVertex(graph, row + "_" + col,
+                        -122.4 + col * 0.0013, 47.6 + row * 0.0009);
+                grid[row][col].trafficLight = (row + 2 * col) % 5 == 0;
+            }
+        }
+        for (int row = 0; row < SIZE; row++) {
+            for (int col = 0; col < SIZE; col++) {
+                if (col + 1 < SIZE) {
+                    StreetTraversalPermission permission = row % 3 == 2 ?
+                            StreetTraversalPermission.PEDESTRIAN : StreetTraversalPermission.ALL;
+                    street(grid[row][col], grid[row][col + 1], permission);
+                    street(grid[row][col + 1], grid[row][col], permission);
+                }
+                if (row + 1 < SIZE) {
+                    street(grid[row][col], grid[row + 1][col], StreetTraversalPermission.ALL)
+                            .setStairs(col % 5 == 3);
+                    street(grid[row + 1][col], grid[row][col], col % 4 == 0 ?
+                            StreetTraversalPermission.PEDESTRIAN : StreetTraversalPermission.ALL)
+                            .setStairs(col % 5 == 3);
+                }
+            }
+        }
+        int middle = SIZE / 2;
+        restrictedFrom = edge(grid[middle][middle - 1], grid[middle][middle]);
+        restrictedTo = edge(grid[middle][middle], grid[middle + 1][middle]);
+        graph.addTurnRestriction(restrictedFrom, new TurnRestriction(restrictedFrom, restrictedTo,
+                TurnRestrictionType.NO_TURN, new TraverseModeSet(TraverseMode.CAR)));
+        new ContractionHierarchyModule(TraverseMode.WALK, TraverseMode.CAR).buildGraph(graph, null);
+    }
+
+    private StreetEdge street(IntersectionVertex a, IntersectionVertex b, StreetTraversalPermission permission) {
+        double length = SphericalDistanceLibrary.distance(a.getCoordinate(), b.getCoordinate());
+        Coordinate[] coordinates = new Coordinate[] { a.getCoordinate(), b.getCoordinate() };
+        StreetEdge e = new StreetEdge(a, b, GeometryUtils.getGeometryFactory().createLineString(coordinates),
+                a.getLabel() + "-" + b.getLabel(), length, permission, false);
+        e.setCarSpeed(5 + (a.getLabel().hashCode() & 0xff) % 25);
+        return e;
+    }
+
+    private StreetEdge edge(Vertex a, Vertex b) {
+        for (Edge e : a.getOutgoing()) {
+            if (e.getToVertex() == b) {
+                return (StreetEdge) e;
+            }
+        }
+        return null;
+    }
+
+    /** The paths found with the hierarchy must be as light as the ones found by A*. */
+    public void testSameWeightsAsAStar() {
+        Random random = new Random(42);
+        for (TraverseMode mode : new TraverseMode[] { TraverseMode.WALK, TraverseMode.CAR }) {
+            for (int i = 0; i < 50; i++) {
+                Vertex from = grid[random.nextInt(SIZE)][random.nextInt(SIZE)];
+                Vertex to = grid[random.nextInt(SIZE)][random.nextInt(SIZE)];
+                if (from == to) {
+                    continue;
+                }
+                boolean arriveBy = random.nextBoolean();
+                GraphPath path = new ContractionHierarchyRouter(request(mode, from, to, arriveBy)).getPath();
+                assertNotNull(path);
+                assertEquals(from, path.states.getFirst().getVertex());
+                assertEquals(to, path.states.getLast().getVertex());
+                assertEquals(aStarWeight(mode, from, to, arriveBy), path.getWeight(), 1e-6);
+            }
+        }
+    }
+
+    /** The turn costs must be part of the weights of the hierarchy, so that it finds the same paths as A*. */
+    public void testTurnCosts() {
+        Random random = new Random(7);
+        int withTurnCosts = 0;
+        for (TraverseMode mode : new TraverseMode[] { TraverseMode.WALK, TraverseMode.CAR }) {
+            for (int i = 0; i < 50; i++) {
+                Vertex from = grid[random.nextInt(SIZE)][random.nextInt(SIZE)];
+                Vertex to = grid[random.nextInt(SIZE)][random.nextInt(SIZE)];
+                if (from == to) {
+                    continue;
+                }
+                RoutingRequest options = request(mode, from, to, false);
+                assertEquals(1.0, options.turnReluctance);
+                GraphPath path = new ContractionHierarchyRouter(options).getPath();
+                assertNotNull(path);
+                double aStarWeight = aStarWeight(mode, from, to, false);
+                assertEquals(aStarWeight, path.getWeight(), 1e-6);
+
+                RoutingRequest noTurnCosts = request(mode, from, to, false);
+                noTurnCosts.turnReluctance = 0;
+                noTurnCosts.rctx.remainingWeightHeuristic = new EuclideanRemainingWeightHeuristic();
+                GraphPath noTurnCostsPath = new AStar().getShortestPathTree(noTurnCosts).getPath(to, false);
+                if (noTurnCostsPath.getWeight() < aStarWeight - 1e-6) {
+                    withTurnCosts++;
+                }
+            }
+        }
+        // the turn costs do change the weights
+        assertTrue(withTurnCosts > 0);
+    }
+
+    /** Cars must go around the block rather than make the forbidden turn. */
+    public void testTurnRestriction() {
+        Vertex from = restrictedFrom.getFromVertex();
+        Vertex to = restrictedTo.getToVertex();
+        GraphPath path = new ContractionHierarchyRouter(request(TraverseMode.CAR, from, to, false)).getPath();
+        assertNotNull(path);
+        for (State s : path.states) {
+            if (s.getBackEdge() == restrictedTo) {
+                assertFalse(s.getBackState().getBackEdge() == restrictedFrom);
+            }
+        }
+        assertTrue(path.edges.size() > 2);
+        assertEquals(aStarWeight(TraverseMode.CAR, from, to, false), path.getWeight(), 1e-6);
+
+        path = new ContractionHierarchyRouter(request(TraverseMode.WALK, from, to, false)).getPath();
+        assertEquals(2, path.edges.size());
+    }
+
+    /** Requests using options the hierarchy does not model must be left to A*. */
+    public void testUnsupportedRequests() {
+        Vertex from = grid[1][1], to = grid[SIZE - 2][SIZE - 2];
+        assertTrue(new ContractionHierarchyRouter(request(TraverseMode.WALK, from, to, false)).canRoute());
+
+        RoutingRequest options = request(TraverseMode.WALK, from, to, false);
+        options.wheelchairAccessible = true;
+        assertFalse(new ContractionHierarchyRouter(options).canRoute());
+
+        options = request(TraverseMode.WALK, from, to, false);
+        options.stairsReluctance = options.walkReluctance * 3;
+        assertFalse(new ContractionHierarchyRouter(options).canRoute());
+
+        // the turn costs are weighted differently
+        options = request(TraverseMode.CAR, from, to, false);
+        options.turnReluctance = 2;
+        assertFalse(new ContractionHierarchyRouter(options).canRoute());
+
+        // the weights of cars on stairs change
+        options = request(TraverseMode.CAR, from, to, false);
+        assertTrue(new ContractionHierarchyRouter(options).canRoute());
+        options.stairsReluctance = options.walkReluctance * 3;
+        assertFalse(new ContractionHierarchyRouter(options).canRoute());
+
+        // the car speeds of the edges may depend on the requested speed
+        options = request(TraverseMode.CAR, from, to, false);
+        options.carSpeed = 20;
+        assertFalse(new ContractionHierarchyRouter(options).canRoute());
+
+        // there is no hierarchy for bicycles in this graph
+        options = new RoutingRequest(new TraverseModeSet(TraverseMode.BICYCLE), OptimizeType.QUICK);
+        options.setRoutingContext(graph, from, to);
+        assertFalse(new ContractionHierarchyRouter(options).canRoute());
+
+        options = new RoutingRequest(new TraverseModeSet("WALK,TRANSIT"));
+        options.setRoutingContext(graph, from, to);
+        assertFalse(new ContractionHierarchyRouter(options).canRoute());
+    }
+
+    private RoutingRequest request(TraverseMode mode, Vertex from, Vertex to, boolean arriveBy) {
+        RoutingRequest options = new RoutingRequest(mode);
+        options.setArriveBy(arriveBy);
+        options.setRoutingContext(graph, from, to);
+        return options;
+    }
+
+    private double aStarWeight(TraverseMode mode, Vertex from, Vertex to, boolean arriveBy) {
+        RoutingRequest options = request(mode, from, to, arriveBy);
+        options.rctx.remainingWeightHeuristic = new EuclideanRemainingWeightHeuristic();
+        GraphPath path = new AStar().getShortestPathTree(options).getPath(arriveBy ? from : to, false);
+        assertNotNull(path);
+        return path.getWeight();
+    }
+
+}
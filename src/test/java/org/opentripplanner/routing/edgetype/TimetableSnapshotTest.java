@@ -18,9 +18,11 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.Map;
@@ -213,6 +215,77 @@ public class TimetableSnapshotTest {
         snapshot.commit();
     }
 
+    /** Committed snapshots share unchanged data but are not affected by later updates and commits. */
+    @Test
+    public void testSnapshotsAreIndependent() {
+        ServiceDate today = new ServiceDate();
+        TripPattern pattern1 = patternIndex.get(new AgencyAndId("agency", "1.1"));
+        TripPattern pattern2 = patternIndex.get(new AgencyAndId("agency", "2.1"));
+        TripPattern pattern3 = patternIndex.get(new AgencyAndId("agency", "3.1"));
+
+        TimetableSnapshot resolver = new TimetableSnapshot();
+        assertTrue(updateResolver(resolver, pattern1, cancellation("1.1"), "agency", today));
+        assertTrue(updateResolver(resolver, pattern2, cancellation("2.1"), "agency", today));
+        TimetableSnapshot first = resolver.commit();
+        Timetable first1 = first.resolve(pattern1, today);
+        Timetable first2 = first.resolve(pattern2, today);
+
+        assertTrue(updateResolver(resolver, pattern2, cancellation("2.2"), "agency", today));
+        assertTrue(updateResolver(resolver, pattern3, cancellation("3.1"), "agency", today));
+        TimetableSnapshot second = resolver.commit();
+
+        // the first snapshot is unchanged
+        assertSame(first1, first.resolve(pattern1, today));
+        assertSame(first2, first.resolve(pattern2, today));
+        assertSame(pattern3.scheduledTimetable, first.resolve(pattern3, today));
+        // the untouched pattern is shared, the others are new
+        assertSame(first1, second.resolve(pattern1, today));
+        assertNotSame(first2, second.resolve(pattern2, today));
+        assertNotSame(pattern3.scheduledTimetable, second.resolve(pattern3, today));
+
+        // clearing the buffer does not affect committed snapshots either
+        resolver.clear();
+        assertTrue(resolver.isDirty());
+        TimetableSnapshot third = resolver.commit();
+        assertSame(pattern1.scheduledTimetable, third.resolve(pattern1, today));
+        assertSame(first1, second.resolve(pattern1, today));
+    }
+
+    /** Each committed snapshot links to the next one and tells which patterns changed in between. */
+    @Test
+    public void testChangedPatterns() {
+        ServiceDate today = new ServiceDate();
+        TripPattern pattern1 = patternIndex.get(new AgencyAndId("agency", "1.1"));
+        TripPattern pattern2 = patternIndex.get(new AgencyAndId("agency", "2.1"));
+
+        TimetableSnapshot resolver = new TimetableSnapshot();
+        assertTrue(updateResolver(resolver, pattern1, cancellation("1.1"), "agency", today));
+        TimetableSnapshot first = resolver.commit();
+        assertNull(first.getNext());
+        assertEquals(Collections.singleton(pattern1), first.getChangedPatterns());
+
+        assertTrue(updateResolver(resolver, pattern2, cancellation("2.1"), "agency", today));
+        TimetableSnapshot second = resolver.commit();
+        assertSame(second, first.getNext());
+        assertEquals(Collections.singleton(pattern2), second.getChangedPatterns());
+
+        // after clearing the buffer, any pattern may have changed
+        resolver.clear();
+        TimetableSnapshot third = resolver.commit();
+        assertSame(third, second.getNext());
+        assertNull(third.getChangedPatterns());
+        assertNull(third.getNext());
+    }
+
+    private TripUpdate cancellation(String tripId) {
+        TripDescriptor.Builder tripDescriptorBuilder = TripDescriptor.newBuilder();
+        tripDescriptorBuilder.setTripId(tripId);
+        tripDescriptorBuilder.setScheduleRelationship(ScheduleRelationship.CANCELED);
+        TripUpdate.Builder tripUpdateBuilder = TripUpdate.newBuilder();
+        tripUpdateBuilder.setTrip(tripDescriptorBuilder);
+        return tripUpdateBuilder.build();
+    }
+
     @Test
     public void testPurge() {
         ServiceDate today = new ServiceDate();
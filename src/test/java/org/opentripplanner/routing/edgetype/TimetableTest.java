@@ -16,11 +16,18 @@ package org.opentripplanner.routing.edgetype;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 import static org.opentripplanner.util.TestUtils.AUGUST;
 
 import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Random;
 import java.util.TimeZone;
 
 import com.google.common.collect.Iterables;
@@ -34,12 +41,17 @@ import org.opentripplanner.ConstantsForTests;
 import org.opentripplanner.gtfs.GtfsContext;
 import org.opentripplanner.gtfs.GtfsLibrary;
 import org.opentripplanner.routing.algorithm.AStar;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.ServiceDay;
+import org.opentripplanner.routing.core.State;
 import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
 import org.opentripplanner.routing.graph.Graph;
 import org.opentripplanner.routing.graph.Vertex;
 import org.opentripplanner.routing.spt.GraphPath;
 import org.opentripplanner.routing.spt.ShortestPathTree;
+import org.opentripplanner.routing.trippattern.FrequencyEntry;
 import org.opentripplanner.routing.trippattern.TripTimes;
 import org.opentripplanner.routing.vertextype.TransitStopDepart;
 import org.opentripplanner.util.TestUtils;
@@ -313,4 +325,188 @@ public class TimetableTest {
         updatedTripTimes = timetable.createUpdatedTripTimes(tripUpdate, timeZone, serviceDate); 
         assertNull(updatedTripTimes);
     }
+
+    /** The service code of the trips which are not running in the departure index tests. */
+    private static final int OTHER_SERVICE = 99;
+
+    @Test
+    public void testTripTimesReadOnly() {
+        try {
+            timetable.tripTimes.add(timetable.getTripTimes(0));
+            fail("the trip list must only be modified through addTripTimes and setTripTimes");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /** The per-stop departure index must find the same trips as a linear scan, ties included. */
+    @Test
+    public void testDepartureIndex() {
+        Random random = new Random(42);
+        Timetable indexed = makeTimetable(random, 200);
+        assertSameAsScan(indexed);
+    }
+
+    /**
+     * Trips replaced and added by realtime updates are moved within the shared index of the copied timetable,
+     * which must still find the same trips as a linear scan, and leave the original timetable unchanged.
+     */
+    @Test
+    public void testDepartureIndexAfterUpdates() {
+        Random random = new Random(43);
+        Timetable scheduled = makeTimetable(random, 100);
+        Timetable updated = new Timetable(scheduled, serviceDate);
+        for (int i = 0; i < 30; i++) {
+            int tripIndex = random.nextInt(updated.tripTimes.size());
+            TripTimes delayed = new TripTimes(updated.getTripTimes(tripIndex));
+            // Early and late trips, which overtake others or end up tied with them.
+            int delay = (random.nextInt(40) - 10) * 60;
+            for (int s = 0; s < delayed.getNumStops(); s++) {
+                delayed.updateArrivalDelay(s, delay);
+                delayed.updateDepartureDelay(s, delay);
+            }
+            updated.setTripTimes(tripIndex, delayed);
+            // Updating the same trip twice moves it again.
+            if (i % 10 == 0) {
+                updated.setTripTimes(tripIndex, new TripTimes(delayed));
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            updated.addTripTimes(makeTrip(random));
+        }
+        assertSameAsScan(updated);
+        updated.finish();
+        assertSameAsScan(updated);
+        assertSameAsScan(scheduled);
+    }
+
+    /** Frequency entries are still scanned, and win over the indexed trips when they pass earlier (later). */
+    @Test
+    public void testDepartureIndexWithFrequencies() {
+        Random random = new Random(44);
+        Timetable withFrequencies = makeTimetable(random, 50);
+        FrequencyEntry frequency = new FrequencyEntry(8 * 3600, 9 * 3600, 600, true, baseTrip());
+        withFrequencies.addFrequencyEntry(frequency);
+        withFrequencies.finish();
+        ServiceDay serviceDay = serviceDay();
+        RoutingRequest options = new RoutingRequest();
+        int nStops = pattern.stopPattern.size;
+        for (int stop = 0; stop < nStops; stop++) {
+            for (int time = 5 * 3600; time < 12 * 3600; time += 37) {
+                State state = new State(graph.getVertex("agency:A"), time, options);
+                TripTimes next = withFrequencies.getNextTrip(state, serviceDay, stop, true);
+                TripTimes scanned = scanForNextTrip(withFrequencies, stop, time, true);
+                int frequencyTime = frequency.nextDepartureTime(stop, time);
+                if (frequencyTime >= 0 && (scanned == null || frequencyTime < scanned.getDepartureTime(stop))) {
+                    assertEquals(frequencyTime, next.getDepartureTime(stop));
+                } else {
+                    assertSame(scanned, next);
+                }
+                TripTimes previous = withFrequencies.getNextTrip(state, serviceDay, stop, false);
+                scanned = scanForNextTrip(withFrequencies, stop, time, false);
+                frequencyTime = frequency.prevArrivalTime(stop, time);
+                if (frequencyTime >= 0 && (scanned == null || frequencyTime > scanned.getArrivalTime(stop))) {
+                    assertEquals(frequencyTime, previous.getArrivalTime(stop));
+                } else {
+                    assertSame(scanned, previous);
+                }
+            }
+        }
+    }
+
+    /** @return a copy of a scheduled trip of the pattern, without realtime times so that it can be time-shifted. */
+    private static TripTimes baseTrip() {
+        return new TripTimes(pattern.scheduledTimetable.getTripTimes(0));
+    }
+
+    /**
+     * @return a trip starting at a whole minute in the morning, so that many trips are tied. Some of them overtake
+     * others halfway, are canceled or are not running.
+     */
+    private static TripTimes makeTrip(Random random) {
+        TripTimes trip = baseTrip().timeShift(0, 6 * 3600 + random.nextInt(240) * 60, true);
+        switch (random.nextInt(10)) {
+        case 0:
+            trip.cancel();
+            break;
+        case 1:
+            trip.serviceCode = OTHER_SERVICE;
+            break;
+        case 2:
+        case 3:
+            int delay = random.nextInt(30) * 60;
+            for (int s = trip.getNumStops() / 2; s < trip.getNumStops(); s++) {
+                trip.updateArrivalDelay(s, delay);
+                trip.updateDepartureDelay(s, delay);
+            }
+            break;
+        default:
+        }
+        return trip;
+    }
+
+    private static Timetable makeTimetable(Random random, int nTrips) {
+        Timetable timetable = new Timetable(pattern);
+        for (int i = 0; i < nTrips; i++) {
+            timetable.addTripTimes(makeTrip(random));
+        }
+        timetable.finish();
+        return timetable;
+    }
+
+    /** @return a service day starting at time zero, on which the trips of the OTHER_SERVICE are not running. */
+    private static ServiceDay serviceDay() {
+        ServiceDay serviceDay = mock(ServiceDay.class);
+        when(serviceDay.serviceRunning(anyInt())).thenReturn(true);
+        when(serviceDay.serviceRunning(OTHER_SERVICE)).thenReturn(false);
+        when(serviceDay.secondsSinceMidnight(anyLong())).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) {
+                return ((Long) invocation.getArguments()[0]).intValue();
+            }
+        });
+        return serviceDay;
+    }
+
+    /** Check the boarding and alighting trips found at every stop against a linear scan, over a morning. */
+    private static void assertSameAsScan(Timetable timetable) {
+        ServiceDay serviceDay = serviceDay();
+        RoutingRequest options = new RoutingRequest();
+        int nStops = pattern.stopPattern.size;
+        for (int stop = 0; stop < nStops; stop++) {
+            for (int time = 5 * 3600; time < 12 * 3600; time += 37) {
+                State state = new State(graph.getVertex("agency:A"), time, options);
+                assertSame(scanForNextTrip(timetable, stop, time, true),
+                        timetable.getNextTrip(state, serviceDay, stop, true));
+                assertSame(scanForNextTrip(timetable, stop, time, false),
+                        timetable.getNextTrip(state, serviceDay, stop, false));
+            }
+        }
+    }
+
+    /**
+     * The search getNextTrip did before the departure index: the first trip in the list departing earliest at or
+     * after the time, or the first one arriving latest at or before the time.
+     */
+    private static TripTimes scanForNextTrip(Timetable timetable, int stop, int time, boolean boarding) {
+        TripTimes best = null;
+        int bestTime = boarding ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+        for (TripTimes tt : timetable.tripTimes) {
+            if (tt.isCanceled() || tt.serviceCode == OTHER_SERVICE) continue;
+            if (boarding) {
+                int depTime = tt.getDepartureTime(stop);
+                if (depTime >= 0 && depTime >= time && depTime < bestTime) {
+                    best = tt;
+                    bestTime = depTime;
+                }
+            } else {
+                int arvTime = tt.getArrivalTime(stop);
+                if (arvTime >= 0 && arvTime <= time && arvTime > bestTime) {
+                    best = tt;
+                    bestTime = arvTime;
+                }
+            }
+        }
+        return best;
+    }
 }
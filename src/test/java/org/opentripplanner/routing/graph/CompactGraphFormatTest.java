@@ -0,0 +1,184 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.graph;
+
+import java.io.File;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opentripplanner.common.TurnRestriction;
+import org.opentripplanner.common.TurnRestrictionType;
+import org.opentripplanner.common.geometry.GeometryUtils;
+import org.opentripplanner.common.geometry.PackedCoordinateSequence;
+import org.opentripplanner.graph_builder.module.osm.DefaultWayPropertySetSource;
+import org.opentripplanner.graph_builder.module.osm.OpenStreetMapModule;
+import org.opentripplanner.openstreetmap.impl.FileBasedOpenStreetMapProviderImpl;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.edgetype.FreeEdge;
+import org.opentripplanner.routing.edgetype.StreetEdge;
+import org.opentripplanner.routing.edgetype.StreetTraversalPermission;
+import org.opentripplanner.routing.edgetype.StreetWithElevationEdge;
+import org.opentripplanner.routing.graph.Graph.LoadLevel;
+import org.opentripplanner.routing.impl.DefaultStreetVertexIndexFactory;
+import org.opentripplanner.routing.vertextype.IntersectionVertex;
+import org.opentripplanner.routing.vertextype.OsmVertex;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class CompactGraphFormatTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("graph", ".obj");
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    private Graph saveAndLoad(Graph graph) throws Exception {
+        CompactGraphFormat.save(graph, file);
+        assertTrue(CompactGraphFormat.isCompactGraph(file));
+        return CompactGraphFormat.load(file, LoadLevel.FULL, new DefaultStreetVertexIndexFactory());
+    }
+
+    /** Serialized edges and turn restrictions must end up pointing to the vertices and edges read from columns. */
+    public void testReferencesToColumns() throws Exception {
+        Graph graph = new Graph();
+        IntersectionVertex a = new IntersectionVertex(graph, "a", 0, 0, "A");
+        OsmVertex b = new OsmVertex(graph, "b", 0.001, 0);
+        IntersectionVertex c = new IntersectionVertex(graph, "c", 0.001, 0.001);
+        c.trafficLight = true;
+        StreetEdge ab = new StreetEdge(a, b, GeometryUtils.makeLineString(0, 0, 0.0005, 0.0001, 0.001, 0),
+                "ab", 120, StreetTraversalPermission.ALL, false);
+        StreetEdge ba = new StreetEdge(b, a, GeometryUtils.makeLineString(0.001, 0, 0.0005, 0.0001, 0, 0),
+                "ab", 120, StreetTraversalPermission.PEDESTRIAN, true);
+        ba.shareData(ab);
+        ab.setRoundabout(true);
+        new FreeEdge(b, c);
+        graph.addTurnRestriction(ab, new TurnRestriction(ab, ba, TurnRestrictionType.NO_TURN,
+                TraverseModeSet.allModes()));
+
+        Graph loaded = saveAndLoad(graph);
+        assertEquals(3, loaded.countVertices());
+        assertEquals(3, loaded.countEdges());
+        Vertex la = loaded.getVertex("a");
+        Vertex lb = loaded.getVertex("b");
+        Vertex lc = loaded.getVertex("c");
+        assertEquals(IntersectionVertex.class, la.getClass());
+        assertEquals(OsmVertex.class, lb.getClass());
+        assertEquals("A", la.getName());
+        assertTrue(((IntersectionVertex) lc).trafficLight);
+
+        StreetEdge lab = (StreetEdge) la.getOutgoing().iterator().next();
+        assertSame(lb, lab.getToVertex());
+        assertEquals(ab.getId(), lab.getId());
+        assertEquals(ab.getDistance(), lab.getDistance());
+        assertTrue(ab.getGeometry().equalsExact(lab.getGeometry()));
+        assertEquals(ab.getInAngle(), lab.getInAngle());
+        assertEquals(ab.getOutAngle(), lab.getOutAngle());
+        assertTrue(lab.isRoundabout());
+        StreetEdge lba = (StreetEdge) la.getIncoming().iterator().next();
+        assertTrue(lba.isBack());
+        assertEquals(StreetTraversalPermission.PEDESTRIAN, lba.getPermission());
+        assertSame(lab.getCompactGeometry(), lba.getCompactGeometry());
+
+        // The free edge was serialized, its endpoints are the vertices created from the columns.
+        Edge free = null;
+        for (Edge e : lb.getOutgoing()) {
+            if (e instanceof FreeEdge) free = e;
+        }
+        assertNotNull(free);
+        assertSame(lc, free.getToVertex());
+        assertEquals(1, lc.getDegreeIn());
+
+        List<TurnRestriction> restrictions = loaded.getTurnRestrictions(lab);
+        assertEquals(1, restrictions.size());
+        assertSame(lab, restrictions.get(0).from);
+        assertSame(lba, restrictions.get(0).to);
+
+        // ID indices are built lazily.
+        assertSame(lab, loaded.getEdgeById(lab.getId()));
+        assertSame(la, loaded.getVertexById(la.getIndex()));
+    }
+
+    /** Street edges with elevation data are stored in columns too, with their profile and slope costs. */
+    public void testElevation() throws Exception {
+        Graph graph = new Graph();
+        IntersectionVertex a = new IntersectionVertex(graph, "a", 0, 0);
+        IntersectionVertex b = new IntersectionVertex(graph, "b", 0.001, 0);
+        StreetWithElevationEdge ab = new StreetWithElevationEdge(a, b,
+                GeometryUtils.makeLineString(0, 0, 0.001, 0), "ab", 111, StreetTraversalPermission.ALL, false);
+        ab.setElevationProfile(new PackedCoordinateSequence.Double(new Coordinate[] {
+                new Coordinate(0, 10), new Coordinate(50, 14), new Coordinate(111, 12) }), false);
+        StreetWithElevationEdge ba = new StreetWithElevationEdge(b, a,
+                GeometryUtils.makeLineString(0.001, 0, 0, 0), "ab", 111, StreetTraversalPermission.ALL, true);
+
+        Graph loaded = saveAndLoad(graph);
+        StreetWithElevationEdge lab = (StreetWithElevationEdge) loaded.getVertex("a").getOutgoing().iterator().next();
+        assertEquals(ab.getId(), lab.getId());
+        assertNotNull(ab.getPackedElevationProfile());
+        assertTrue(Arrays.equals(ab.getPackedElevationProfile(), lab.getPackedElevationProfile()));
+        assertEquals(ab.getSlopeSpeedEffectiveLength(), lab.getSlopeSpeedEffectiveLength());
+        assertEquals(ab.getSlopeWorkCostEffectiveLength(), lab.getSlopeWorkCostEffectiveLength());
+        assertEquals(ab.getMaxSlope(), lab.getMaxSlope());
+        assertEquals(ab.isElevationFlattened(), lab.isElevationFlattened());
+        assertEquals(ab.getBicycleSafetyFactor(), lab.getBicycleSafetyFactor());
+        StreetWithElevationEdge lba = (StreetWithElevationEdge) loaded.getVertex("b").getOutgoing().iterator().next();
+        assertNull(ba.getPackedElevationProfile());
+        assertNull(lba.getPackedElevationProfile());
+        assertEquals(ba.getSlopeSpeedEffectiveLength(), lba.getSlopeSpeedEffectiveLength());
+    }
+
+    /** An OSM graph loads back from the compact format with the same vertices and edges as from Java serialization. */
+    public void testSameGraphAsSerialized() throws Exception {
+        Graph graph = new Graph();
+        OpenStreetMapModule loader = new OpenStreetMapModule();
+        loader.setDefaultWayPropertySetSource(new DefaultWayPropertySetSource());
+        FileBasedOpenStreetMapProviderImpl provider = new FileBasedOpenStreetMapProviderImpl();
+        provider.setPath(new File(URLDecoder.decode(OpenStreetMapModule.class.getResource("NYC_small.osm.gz")
+                .getFile(), "UTF-8")));
+        loader.setProvider(provider);
+        loader.buildGraph(graph, new HashMap<Class<?>, Object>());
+
+        File serializedFile = File.createTempFile("graph", ".obj");
+        try {
+            graph.save(serializedFile);
+            CompactGraphFormat.save(graph, file);
+            assertFalse(CompactGraphFormat.isCompactGraph(serializedFile));
+
+            Graph serialized = Graph.load(serializedFile, LoadLevel.FULL);
+            Graph compact = CompactGraphFormat.load(file, LoadLevel.FULL, new DefaultStreetVertexIndexFactory());
+            assertEquals(serialized.countVertices(), compact.countVertices());
+            assertEquals(serialized.countEdges(), compact.countEdges());
+            for (Vertex v : serialized.getVertices()) {
+                Vertex cv = compact.getVertex(v.getLabel());
+                assertEquals(v.getClass(), cv.getClass());
+                assertEquals(v.getCoordinate(), cv.getCoordinate());
+                assertEquals(v.getDegreeOut(), cv.getDegreeOut());
+                assertEquals(v.getDegreeIn(), cv.getDegreeIn());
+            }
+        } finally {
+            serializedFile.delete();
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.impl;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+
+import org.onebusaway.gtfs.model.AgencyAndId;
+import org.opentripplanner.GtfsTest;
+import org.opentripplanner.common.model.GenericLocation;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.TraverseMode;
+import org.opentripplanner.routing.core.TraverseModeSet;
+import org.opentripplanner.routing.spt.GraphPath;
+
+/**
+ * Check that searching for the alternative itineraries concurrently finds the same ones as searching for them one
+ * after the other, on a feed with two ways to the destination, each riding two trips.
+ */
+public class ConcurrentItinerariesTest extends GtfsTest {
+
+    @Override
+    public String getFeedName() {
+        return "gtfs/interlining";
+    }
+
+    public void testSameItineraries() {
+        List<List<AgencyAndId>> sequential = planTrips(false);
+        List<List<AgencyAndId>> concurrent = planTrips(true);
+        assertEquals(2, sequential.size());
+        assertEquals(sequential, concurrent);
+        // each itinerary only once
+        assertEquals(concurrent.size(), new HashSet<List<AgencyAndId>>(concurrent).size());
+    }
+
+    /** The deviation searches run on threads of the router, which are stopped with it. */
+    public void testDeviationSearchExecutor() {
+        List<List<AgencyAndId>> sequential = planTrips(false);
+        assertEquals(sequential, planTrips(true));
+        ExecutorService executor = router.getDeviationSearchExecutor();
+        assertNotNull(executor);
+        assertSame(executor, router.getDeviationSearchExecutor());
+        router.shutdown();
+        assertTrue(executor.isShutdown());
+        assertNull(router.getDeviationSearchExecutor());
+        // without deviation searches, the rounds only make the sequential searches
+        assertEquals(sequential, planTrips(true));
+    }
+
+    /** @return the trips ridden in each itinerary found from stop0 to stop3. */
+    private List<List<AgencyAndId>> planTrips(boolean concurrent) {
+        Calendar calendar = new GregorianCalendar(2014, Calendar.JANUARY, 01, 00, 05, 00);
+        calendar.setTimeZone(TimeZone.getTimeZone("America/New_York"));
+        String agencyId = graph.getAgencyIds().iterator().next();
+        RoutingRequest request = new RoutingRequest();
+        request.setNumItineraries(3);
+        request.dateTime = calendar.getTime().getTime() / 1000;
+        request.from = new GenericLocation(null, agencyId + ":stop0");
+        request.to = new GenericLocation(null, agencyId + ":stop3");
+        request.setModes(new TraverseModeSet(TraverseMode.WALK, TraverseMode.TRANSIT));
+        request.setRoutingContext(graph);
+        router.concurrentItineraries = concurrent;
+        List<GraphPath> paths = new GraphPathFinder(router).getPaths(request);
+        List<List<AgencyAndId>> trips = new ArrayList<List<AgencyAndId>>();
+        for (GraphPath path : paths) {
+            trips.add(path.getTrips());
+        }
+        return trips;
+    }
+
+}
@@ -0,0 +1,122 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.routing.spt;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import org.onebusaway.gtfs.model.calendar.CalendarServiceData;
+import org.opentripplanner.ConstantsForTests;
+import org.opentripplanner.gtfs.GtfsContext;
+import org.opentripplanner.gtfs.GtfsLibrary;
+import org.opentripplanner.routing.algorithm.AStar;
+import org.opentripplanner.routing.core.RoutingRequest;
+import org.opentripplanner.routing.core.State;
+import org.opentripplanner.routing.edgetype.factory.GTFSPatternHopFactory;
+import org.opentripplanner.routing.graph.Graph;
+import org.opentripplanner.routing.graph.Vertex;
+import org.opentripplanner.routing.location.TemporaryStreetLocation;
+import org.opentripplanner.util.NonLocalizedString;
+import org.opentripplanner.util.TestUtils;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+public class VertexIndexShortestPathTreeTest extends TestCase {
+
+    private Graph graph;
+
+    @Override
+    public void setUp() throws Exception {
+        GtfsContext context = GtfsLibrary.readGtfs(new File(ConstantsForTests.CALTRAIN_GTFS));
+        graph = new Graph();
+        GTFSPatternHopFactory factory = new GTFSPatternHopFactory(context);
+        factory.run(graph);
+        graph.putService(CalendarServiceData.class, GtfsLibrary.createCalendarServiceData(context.getDao()));
+    }
+
+    private ShortestPathTree search(boolean vertexIndexed) {
+        RoutingRequest options = new RoutingRequest();
+        options.dateTime = TestUtils.dateInSeconds("America/Los_Angeles", 2009, 8, 7, 12, 0, 0);
+        options.batch = true;
+        options.vertexIndexedShortestPathTree = vertexIndexed;
+        options.setRoutingContext(graph, graph.getVertex("Caltrain:Millbrae Caltrain"), null);
+        return new AStar().getShortestPathTree(options);
+    }
+
+    /** Both SPT implementations must reach the same vertices with the same best states. */
+    public void testSameResultsAsMapBackedTree() {
+        ShortestPathTree mapped = search(false);
+        ShortestPathTree indexed = search(true);
+        assertTrue(indexed instanceof VertexIndexShortestPathTree);
+        assertFalse(mapped instanceof VertexIndexShortestPathTree);
+        assertEquals(mapped.getVertexCount(), indexed.getVertexCount());
+        assertEquals(mapped.getVertices(), indexed.getVertices());
+        assertEquals(mapped.getAllStates().size(), indexed.getAllStates().size());
+        for (Vertex v : mapped.getVertices()) {
+            assertEquals(mapped.getStates(v).size(), indexed.getStates(v).size());
+            State a = mapped.getState(v);
+            State b = indexed.getState(v);
+            if (a == null) {
+                assertNull(b);
+            } else {
+                assertEquals(a.getWeight(), b.getWeight());
+                assertEquals(a.getTimeSeconds(), b.getTimeSeconds());
+            }
+        }
+    }
+
+    /** Every state in the tree can be visited, and adding it again is rejected as a tie. */
+    public void testReaddingStatesIsRejected() {
+        ShortestPathTree indexed = search(true);
+        int before = indexed.getVertexCount();
+        for (State s : indexed.getAllStates()) {
+            assertFalse(indexed.add(s));
+            assertTrue(indexed.visit(s));
+        }
+        assertEquals(before, indexed.getVertexCount());
+    }
+
+    /** The states of temporary vertices are kept on the side, whatever the number of vertices created before. */
+    public void testTemporaryVertices() {
+        RoutingRequest options = new RoutingRequest();
+        Vertex stop = graph.getVertex("Caltrain:Millbrae Caltrain");
+        options.setRoutingContext(graph, stop, null);
+        for (int i = 0; i < 1000; i++) {
+            new TemporaryStreetLocation("past request " + i, new Coordinate(-122.38, 37.6),
+                    new NonLocalizedString("past request"), false);
+        }
+        Vertex temporary = new TemporaryStreetLocation("origin", new Coordinate(-122.38, 37.6),
+                new NonLocalizedString("origin"), false);
+        assertTrue(temporary.getIndex() >= graph.getVertexIndexLimit() + 1000);
+
+        VertexIndexShortestPathTree spt = new VertexIndexShortestPathTree(options, options.dominanceFunction);
+        State atStop = new State(stop, options);
+        State atTemporary = new State(temporary, options);
+        assertTrue(spt.add(atStop));
+        assertTrue(spt.add(atTemporary));
+        assertFalse(spt.add(new State(temporary, options)));
+        assertEquals(2, spt.getVertexCount());
+        assertSame(atTemporary, spt.getStates(temporary).get(0));
+        assertTrue(spt.visit(atTemporary));
+        assertTrue(spt.getVertices().contains(temporary));
+        assertEquals(2, spt.getAllStates().size());
+
+        ShortestPathTree recycled = new VertexIndexShortestPathTree(options, options.dominanceFunction, spt);
+        assertEquals(0, recycled.getVertexCount());
+        assertNull(recycled.getStates(temporary));
+        assertNull(recycled.getStates(stop));
+    }
+
+}
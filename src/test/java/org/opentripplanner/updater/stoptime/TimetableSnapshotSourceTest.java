@@ -467,4 +467,59 @@ public class TimetableSnapshotSourceTest {
         assertNotSame(snapshotA.resolve(pattern, null ), snapshotA.resolve(pattern, serviceDate));
         assertSame   (snapshotB.resolve(pattern, null ), snapshotB.resolve(pattern, previously));
     }
+
+    @Test
+    public void testSkipUnchangedUpdatesInFullDataset() throws InvalidProtocolBufferException {
+        AgencyAndId tripId = new AgencyAndId("agency", "1.1");
+        Trip trip = graph.index.tripForId.get(tripId);
+        TripPattern pattern = graph.index.patternForTrip.get(trip);
+        int tripIndex = pattern.scheduledTimetable.getTripIndex(tripId);
+        TripUpdate cancelled = TripUpdate.parseFrom(cancellation);
+
+        updater.maxSnapshotFrequency = (-1);
+        updater.applyTripUpdates(graph, true, Arrays.asList(cancelled, delay("2.1", 60, 1)), "agency");
+        assertEquals(2, updater.getAppliedUpdates());
+        assertEquals(0, updater.getSkippedUpdates());
+        TimetableSnapshot snapshotA = updater.getTimetableSnapshot();
+        TripTimes cancelledA = snapshotA.resolve(pattern, serviceDate).getTripTimes(tripIndex);
+
+        // Same message with a new timestamp: nothing is applied again, the trip times are kept
+        updater.applyTripUpdates(graph, true, Arrays.asList(
+                cancelled.toBuilder().setTimestamp(1).build(), delay("2.1", 60, 2)), "agency");
+        assertEquals(2, updater.getAppliedUpdates());
+        assertEquals(2, updater.getSkippedUpdates());
+        TimetableSnapshot snapshotB = updater.getTimetableSnapshot();
+        assertSame(cancelledA, snapshotB.resolve(pattern, serviceDate).getTripTimes(tripIndex));
+
+        // A changed delay is applied, and trips no longer in the feed go back to their schedule
+        updater.applyTripUpdates(graph, true, Arrays.asList(delay("2.1", 120, 3)), "agency");
+        assertEquals(3, updater.getAppliedUpdates());
+        assertEquals(2, updater.getSkippedUpdates());
+        assertEquals(0, updater.getFailedUpdates());
+        TimetableSnapshot snapshotC = updater.getTimetableSnapshot();
+        assertSame(pattern.scheduledTimetable.getTripTimes(tripIndex),
+                snapshotC.resolve(pattern, serviceDate).getTripTimes(tripIndex));
+        Trip trip2 = graph.index.tripForId.get(new AgencyAndId("agency", "2.1"));
+        TripPattern pattern2 = graph.index.patternForTrip.get(trip2);
+        int tripIndex2 = pattern2.scheduledTimetable.getTripIndex(trip2.getId());
+        assertEquals(120, snapshotC.resolve(pattern2, serviceDate).getTripTimes(tripIndex2).getArrivalDelay(1));
+
+        // Updates in differential messages are always applied
+        updater.applyTripUpdates(graph, false, Arrays.asList(delay("2.1", 120, 4)), "agency");
+        assertEquals(4, updater.getAppliedUpdates());
+        assertEquals(2, updater.getSkippedUpdates());
+    }
+
+    private static TripUpdate delay(String tripId, int delay, long timestamp) {
+        TripUpdate.Builder tripUpdateBuilder = TripUpdate.newBuilder();
+        tripUpdateBuilder.setTrip(TripDescriptor.newBuilder().setTripId(tripId)
+                .setScheduleRelationship(TripDescriptor.ScheduleRelationship.SCHEDULED));
+        tripUpdateBuilder.setTimestamp(timestamp);
+        StopTimeUpdate.Builder stopTimeUpdateBuilder = tripUpdateBuilder.addStopTimeUpdateBuilder();
+        stopTimeUpdateBuilder.setScheduleRelationship(StopTimeUpdate.ScheduleRelationship.SCHEDULED);
+        stopTimeUpdateBuilder.setStopSequence(2);
+        stopTimeUpdateBuilder.getArrivalBuilder().setDelay(delay);
+        stopTimeUpdateBuilder.getDepartureBuilder().setDelay(delay);
+        return tripUpdateBuilder.build();
+    }
 }
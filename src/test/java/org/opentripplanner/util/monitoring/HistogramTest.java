@@ -0,0 +1,56 @@
+/* This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU Lesser General Public License
+ as published by the Free Software Foundation, either version 3 of
+ the License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+
+package org.opentripplanner.util.monitoring;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class HistogramTest {
+
+    @Test
+    public void testExponentialBuckets() {
+        assertArrayEquals(new double[] { 10, 40, 160 }, Histogram.exponentialBuckets(10, 4, 3), 0);
+    }
+
+    @Test
+    public void testWrite() {
+        Histogram histogram = new Histogram("test_seconds", "Test values.", 0.5, 1, 2);
+        histogram.observe(0.25);
+        histogram.observe(1); // the bounds are inclusive
+        histogram.observe(1.5);
+        histogram.observe(3);
+        assertEquals(4, histogram.getCount());
+        assertEquals(5.75, histogram.getSum(), 0);
+
+        StringWriter buffer = new StringWriter();
+        PrintWriter writer = new PrintWriter(buffer);
+        histogram.write(writer);
+        writer.flush();
+        String expected = "# HELP test_seconds Test values.\n"
+                + "# TYPE test_seconds histogram\n"
+                + "test_seconds_bucket{le=\"0.5\"} 1\n"
+                + "test_seconds_bucket{le=\"1\"} 2\n"
+                + "test_seconds_bucket{le=\"2\"} 3\n"
+                + "test_seconds_bucket{le=\"+Inf\"} 4\n"
+                + "test_seconds_sum 5.75\n"
+                + "test_seconds_count 4\n";
+        assertEquals(expected, buffer.toString());
+    }
+
+}